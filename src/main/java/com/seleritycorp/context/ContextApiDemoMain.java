@@ -16,10 +16,6 @@
 
 package com.seleritycorp.context;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import org.kohsuke.args4j.CmdLineException;
@@ -27,15 +23,27 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.LogManager;
 
 /**
@@ -46,6 +54,11 @@ public class ContextApiDemoMain {
    * Upper bound for how many entities a DDS query should return.
    */
   private static final int MAX_ENTITIES = 20;
+
+  /**
+   * Upper bound for how many queries get sent at the same time.
+   */
+  private static final int MAX_CONCURRENT_QUERIES = 16;
   
   /**
    * Email address to which send questions. 
@@ -55,7 +68,9 @@ public class ContextApiDemoMain {
   @Option(name = "-help", usage = "Prints this help page", aliases = {"--help","-h","-?"})
   boolean showHelp = false;
   
-  @Option(name = "-apiserver", metaVar = "URL", usage = "The Context API server to connect to")
+  @Option(name = "-apiserver", metaVar = "URL", usage = "The Context API server to connect to. "
+      + "Separate multiple equivalent servers by comma (E.g.: regional endpoints) to spread "
+      + "requests across them, preferring fast ones and routing around failing ones")
   String apiServerRootUrl = "context-api-test.seleritycorp.com";
 
   @Option(name = "-apikey", metaVar = "API_KEY", usage = "The key used for the API connections")
@@ -71,7 +86,21 @@ public class ContextApiDemoMain {
   @Option(name = "-query", metaVar = "QUERY", usage = "Query only for content items of the given "
       + "entity (E.g.: AAPL, Google)")
   String query = "";
+
+  @Option(name = "-queryfile", metaVar = "FILE", usage = "Additionally query for content items "
+      + "of the entities of the queries in FILE (one per line, E.g.: a list of tickers). The "
+      + "queries get resolved concurrently, giving up on those that take longer than -deadline")
+  File queryFile = null;
   
+  @Option(name = "-interests", metaVar = "FILE", usage = "Additionally query for content items "
+      + "of the entity ids in FILE (one per line). Long lists get split into shards of "
+      + "-shardsize entities that get queried concurrently, each in its own session")
+  File interestsFile = null;
+
+  @Option(name = "-shardsize", metaVar = "ENTITIES", hidden = true, usage = "Maximum number of "
+      + "entities per query when splitting -interests")
+  int shardSize = MAX_ENTITIES;
+
   @Option(name = "-exact", usage = "When matching entities, consider only exact matches, instead of"
       + "also partial matches")
   boolean exactMatching = false;
@@ -84,7 +113,9 @@ public class ContextApiDemoMain {
       + "verbosity further and further.")
   boolean[] verboseCollector = {};
 
-  @Option(name = "-querytype", metaVar = "TYPE", usage = "The type of query to make. One of\n"
+  @Option(name = "-querytype", metaVar = "TYPE", usage = "The type of query to make. Separate "
+      + "multiple types by comma (E.g.: FEED,SEARCH) to query them concurrently and merge their "
+      + "items. One of\n"
       + "  - FEED            <- use to keep on top of latest\n"
       + "                       breaking news\n"
       + "  - RECOMMENDATION  <- use to get 'up to speed'\n"
@@ -99,15 +130,200 @@ public class ContextApiDemoMain {
       + "contributed to the score of a found content item. Can be one of:\n"
       + "  - NONE     <- does not show contributions\n"
       + "  - DIRECT   <- shows direct contributions\n"
-      + "  - ALL      <- shows all contributions\n")
+      + "  - ALL      <- shows all contributions\n"
+      + "Separate multiple modes by comma to query each of them")
   String contributions = "NONE";
 
+  @Option(name = "-deadline", metaVar = "SECS", usage = "When querying multiple query types or "
+      + "contribution modes, or resolving multiple queries to entities, give up on queries that "
+      + "take longer than that many seconds")
+  long deadlineSeconds = 20;
+
+  @Option(name = "-entityindex", usage = "Answer partial entity lookups (E.g.: for -query) from "
+      + "a local index of the entities DDS returned so far, and only ask DDS if the index knows "
+      + "no matching entity")
+  boolean useEntityIndex = false;
+
+  @Option(name = "-entitypreload", metaVar = "FILE", usage = "Preload the local entity index "
+      + "with the entities in FILE (one DDS entity Json object per line, optionally with an "
+      + "\"aliases\" array). Implies -entityindex")
+  File entityPreloadFile = null;
+
+  @Option(name = "-tracefile", metaVar = "FILE", usage = "Append the time each poll and request "
+      + "spent per phase (name resolution, connect, TLS, write, first byte, body, parse, dedup, "
+      + "render) to FILE as Json lines, and print histograms upon exit")
+  File traceFile = null;
+
+  @Option(name = "-freshness", usage = "Measure how long new content items took from their "
+      + "timestamp to the query, to the response, and to being written out by the first of the "
+      + "-ringfile, -archive, and -store sinks, per source and query type, and print histograms "
+      + "upon exit")
+  boolean trackFreshness = false;
+
+  @Option(name = "-cachesize", metaVar = "MB", usage = "Cache responses of source and entity "
+      + "requests in up to that many MiB")
+  long cacheSizeMegabytes = 0;
+
+  @Option(name = "-cachettl", metaVar = "SECS", usage = "Seconds to serve cached source and "
+      + "entity responses. For another SECS seconds, they get served while being refreshed in "
+      + "the background")
+  long cacheTtlSeconds = 60;
+
+  @Option(name = "-connecttimeout", metaVar = "SECS", usage = "Give up connecting to the API "
+      + "server, or waiting for a pooled connection, after that many seconds")
+  int connectTimeoutSeconds = 10;
+
+  @Option(name = "-readtimeout", metaVar = "SECS", usage = "Give up on requests, if the API "
+      + "server did not send data for that many seconds")
+  int readTimeoutSeconds = 60;
+
+  @Option(name = "-requesttimeout", metaVar = "SECS", usage = "Abort requests that did not "
+      + "complete within that many seconds, including reading the response")
+  int requestTimeoutSeconds = 120;
+
+  @Option(name = "-hedge", metaVar = "PERCENTILE", usage = "Send a duplicate of source and entity "
+      + "requests that take longer than that percentile of recent requests "
+      + "(E.g.: 95), and use whichever response arrives first")
+  double hedgePercentile = 0;
+
+  @Option(name = "-hedgebudget", metaVar = "PERCENT", usage = "When hedging, send duplicates for "
+      + "at most that many percent of requests")
+  double hedgeBudgetPercent = 5;
+
   @Option(name = "-pause", metaVar = "SECS", hidden = true, usage = "Pause in seconds between "
       + "content update queries")
   long pauseSeconds = 30;
 
+  @Option(name = "-neardup", metaVar = "SIMILARITY", usage = "Suppress items whose headline and "
+      + "summary are near duplicates of a recent item (e.g.: the same story through another "
+      + "source). SIMILARITY is the share of equal fingerprint bits, between 0.9 and 1 (E.g.: "
+      + "0.95)")
+  double nearDuplicateSimilarity = 0;
+
+  @Option(name = "-collapse", usage = "When suppressing near duplicates, keep the highest scored "
+      + "item instead of the first")
+  boolean collapseNearDuplicates = false;
+
+  @Option(name = "-topk", metaVar = "K", usage = "Periodically show the K most important items "
+      + "by time-decayed score. In server mode, serve them at http://localhost:PORT/top "
+      + "instead")
+  int topK = 0;
+
+  @Option(name = "-halflife", metaVar = "MINS", usage = "Minutes after which an item's score "
+      + "counts only half for -topk")
+  long topHalfLifeMinutes = 60;
+
+  @Option(name = "-topwindow", metaVar = "MINS", usage = "Only consider items of that many past "
+      + "minutes for -topk")
+  long topWindowMinutes = 24 * 60;
+
+  @Option(name = "-topinterval", metaVar = "SECS", usage = "Show the -topk items at most every "
+      + "that many seconds")
+  long topIntervalSeconds = 300;
+
+  @Option(name = "-lateness", metaVar = "SECS", usage = "Hand new content items to the "
+      + "-ringfile, -archive, and -store sinks in timestamp order, allowing items to arrive up "
+      + "to SECS seconds late. Items arriving even later get dropped. Without this option, "
+      + "items get handed to the sinks as they arrive")
+  long latenessSeconds = -1;
+
+  @Option(name = "-serve", metaVar = "PORT", usage = "Run as local fan-out server on the given "
+      + "port instead of printing content items. Subscribers connect via Server-Sent Events to "
+      + "http://localhost:PORT/recommendations?query=QUERY&querytype=TYPE&contributions=MODE"
+      + "&exact=true and share a single upstream poll per distinct query")
+  int servePort = -1;
+
+  @Option(name = "-buffer", metaVar = "ITEMS", usage = "Number of items to buffer per subscriber "
+      + "in server mode")
+  int subscriberBuffer = 100;
+
+  @Option(name = "-slowconsumer", metaVar = "POLICY", usage = "How to treat subscribers whose "
+      + "buffer is full in server mode. One of:\n"
+      + "  - DROP_OLDEST  <- drop the subscriber's oldest\n"
+      + "                    buffered item\n"
+      + "  - DISCONNECT   <- disconnect the subscriber")
+  Subscriber.SlowConsumerPolicy slowConsumerPolicy = Subscriber.SlowConsumerPolicy.DROP_OLDEST;
+
+  @Option(name = "-localsearch", metaVar = "MINS", usage = "In server mode, index the items of "
+      + "the given past minutes for local search at http://localhost:PORT/search?q=TEXT")
+  long localSearchMinutes = 0;
+
+  @Option(name = "-coalesce", usage = "In server mode, serve subscribers of overlapping entities "
+      + "through shared upstream queries for the union of their entities, and hand each "
+      + "subscriber only the items relevant to its entities")
+  boolean coalesceInterests = false;
+
+  @Option(name = "-ringfile", metaVar = "FILE", usage = "Additionally append new content items "
+      + "to the given memory-mapped ring file, so other processes on the same host can tail them "
+      + "through MappedRingReader")
+  File ringFile = null;
+
+  @Option(name = "-ringsize", metaVar = "MB", hidden = true, usage = "Size of the ring file's data "
+      + "region in MiB. Gets rounded up to a power of two.")
+  int ringSizeMegabytes = 64;
+
+  @Option(name = "-archive", metaVar = "DIR", usage = "Additionally archive new content items as "
+      + "Json lines into rotating files in the given directory")
+  File archiveDirectory = null;
+
+  @Option(name = "-archivesize", metaVar = "MB", usage = "Rotate archive files after this many "
+      + "MiB of (uncompressed) items")
+  long archiveSizeMegabytes = 256;
+
+  @Option(name = "-archiveminutes", metaVar = "MINS", usage = "Rotate archive files after this "
+      + "many minutes")
+  long archiveMinutes = 60;
+
+  @Option(name = "-archivesync", metaVar = "MILLIS", usage = "Minimum milliseconds between "
+      + "syncing archive files to disk. 0 syncs after each write. -1 leaves syncing to the "
+      + "operating system")
+  long archiveSyncMillis = 1000;
+
+  @Option(name = "-archivegzip", usage = "Gzip compress archive files")
+  boolean archiveCompress = false;
+
+  @Option(name = "-store", metaVar = "DIR", usage = "Additionally store new content items in the "
+      + "recommendation store in the given directory, or query that store when used along with "
+      + "-storequery")
+  File storeDirectory = null;
+
+  @Option(name = "-retentionhours", metaVar = "HOURS", usage = "Hours to keep items in the "
+      + "recommendation store")
+  long retentionHours = 7 * 24;
+
+  @Option(name = "-storequery", usage = "Query the recommendation store given by -store instead "
+      + "of the API. Items are filtered by -query, -entity, and -hours.")
+  boolean requestedStoreQuery = false;
+
+  @Option(name = "-entity", metaVar = "ENTITY_ID", usage = "When querying the recommendation "
+      + "store, only consider items relevant to the given entity id. Can be given multiple times")
+  List<String> storeEntityIds = new ArrayList<>();
+
+  @Option(name = "-hours", metaVar = "HOURS", usage = "When querying the recommendation store, "
+      + "only consider items of that many past hours")
+  long storeQueryHours = 24;
+
+  @Option(name = "-byscore", usage = "When querying the recommendation store, order items by "
+      + "score instead of by time")
+  boolean storeQueryByScore = false;
+
+  @Option(name = "-limit", metaVar = "ITEMS", usage = "When querying the recommendation store, "
+      + "show at most that many items")
+  int storeQueryLimit = 20;
+
+  private RequestUtils requestUtils;
+  private RequestTracer tracer;
+  private FreshnessTracker freshnessTracker;
   private QueryUtils queryUtils;
   private PrintUtils printUtils;
+  private final List<RecommendationSink> sinks = new LinkedList<>();
+  private boolean sinksClosed = false; // Guarded by this
+  private TopKAggregator topKAggregator;
+  private FanOutServer server;
+  private List<String> apiServerRootUrls;
+  private List<String> queryTypes;
+  private List<String> contributionModes;
+  private EventTimeMerger eventTimeMerger;
   
   /**
    * Handles argument parsing.
@@ -135,8 +351,23 @@ public class ContextApiDemoMain {
     
     updateLogging();
 
-    // Making sure we to avoid obviously wrong api keys.
-    if (apiKey == null || apiKey.isEmpty()) {
+    if (requestedStoreQuery && storeDirectory == null) {
+      System.err.println("-storequery requires a store directory given through -store");
+      System.exit(1);
+    }
+
+    if (trackFreshness && ringFile == null && archiveDirectory == null
+        && storeDirectory == null) {
+      System.err.println("Freshness gets measured until a sink writes items, but no sink is "
+          + "configured. Switching to not measuring freshness.");
+      trackFreshness = false;
+    }
+
+    // Making sure we to avoid obviously wrong api keys. Store queries only need the API to
+    // resolve -query and -queryfile.
+    boolean needsApi = !requestedStoreQuery || (query != null && !query.isEmpty())
+        || queryFile != null;
+    if (needsApi && (apiKey == null || apiKey.isEmpty())) {
       System.err.println("No usable api key given. Please run the demo command with\n"
           + "\n"
           + "  -apikey INSERT-YOUR-API-KEY-HERE\n"
@@ -146,9 +377,15 @@ public class ContextApiDemoMain {
       System.exit(1);
     }
 
-    // Fixing up apiServerRootUrl to be a proper URL.
-    if (!apiServerRootUrl.contains("://")) {
-      apiServerRootUrl = "https://" + apiServerRootUrl;
+    // Fixing up apiServerRootUrls to be proper URLs.
+    apiServerRootUrls = new ArrayList<>();
+    for (String url : apiServerRootUrl.split(",")) {
+      if (!url.contains("://")) {
+        url = "https://" + url;
+      }
+      if (!apiServerRootUrls.contains(url)) {
+        apiServerRootUrls.add(url);
+      }
     }
     
     // Making sure, we're on a good session
@@ -157,16 +394,103 @@ public class ContextApiDemoMain {
     }
 
     // Fixing up queryType
-    switch (queryType) {
-      case "FEED":
-      case "RECOMMENDATION":
-      case "SURVEY":
-      case "SEARCH":
-      case "DISCOVERY":
-        break;
-      default:
-        System.err.println("Unknown query type " + queryType + ". Switching to FEED.");
-        queryType = "FEED";
+    queryTypes = new ArrayList<>();
+    for (String type : queryType.split(",")) {
+      switch (type) {
+        case "FEED":
+        case "RECOMMENDATION":
+        case "SURVEY":
+        case "SEARCH":
+        case "DISCOVERY":
+          break;
+        default:
+          System.err.println("Unknown query type " + type + ". Switching to FEED.");
+          type = "FEED";
+      }
+      if (!queryTypes.contains(type)) {
+        queryTypes.add(type);
+      }
+    }
+
+    contributionModes = new ArrayList<>();
+    for (String mode : contributions.split(",")) {
+      switch (mode) {
+        case "NONE":
+        case "DIRECT":
+        case "ALL":
+          break;
+        default:
+          System.err.println("Unknown contribution mode " + mode + ". Switching to NONE.");
+          mode = "NONE";
+      }
+      if (!contributionModes.contains(mode)) {
+        contributionModes.add(mode);
+      }
+    }
+
+    if (shardSize < 1 || shardSize > MAX_ENTITIES) {
+      System.err.println("Shards have to hold between 1 and " + MAX_ENTITIES + " entities. "
+          + "Switching to " + MAX_ENTITIES + ".");
+      shardSize = MAX_ENTITIES;
+    }
+
+    if (deadlineSeconds < 1) {
+      System.err.println("Deadline has to be at least 1 second. Switching to 20.");
+      deadlineSeconds = 20;
+    }
+
+    if (cacheSizeMegabytes < 0 || cacheTtlSeconds < 0) {
+      System.err.println("Cache size and times to live must not be negative. Switching to no "
+          + "caching.");
+      cacheSizeMegabytes = 0;
+    }
+
+    if (connectTimeoutSeconds < 1 || readTimeoutSeconds < 1 || requestTimeoutSeconds < 1) {
+      System.err.println("Timeouts have to be at least 1 second. Switching to 10 seconds to "
+          + "connect, 60 seconds to read, and 120 seconds per request.");
+      connectTimeoutSeconds = 10;
+      readTimeoutSeconds = 60;
+      requestTimeoutSeconds = 120;
+    }
+
+    if (hedgePercentile < 0 || hedgePercentile >= 100) {
+      System.err.println("Hedge percentile has to be between 0 and 100. Switching to no "
+          + "hedging.");
+      hedgePercentile = 0;
+    }
+
+    if (hedgeBudgetPercent <= 0 || hedgeBudgetPercent > 100) {
+      System.err.println("Hedge budget has to be between 0 and 100 percent. Switching to 5.");
+      hedgeBudgetPercent = 5;
+    }
+
+    if (archiveSizeMegabytes < 1 || archiveMinutes < 1) {
+      System.err.println("Archive files need to be allowed at least 1 MiB and 1 minute. "
+          + "Switching to 256 MiB and 60 minutes.");
+      archiveSizeMegabytes = 256;
+      archiveMinutes = 60;
+    }
+
+    if (topHalfLifeMinutes < 1) {
+      System.err.println("Half-life has to be at least 1 minute. Switching to 60.");
+      topHalfLifeMinutes = 60;
+    }
+
+    if (nearDuplicateSimilarity != 0 && (nearDuplicateSimilarity < 0.9
+        || nearDuplicateSimilarity > 1)) {
+      System.err.println("Near duplicate similarity has to be between 0.9 and 1. Switching to "
+          + "0.95.");
+      nearDuplicateSimilarity = 0.95;
+    }
+
+    if (ringSizeMegabytes < 1 || ringSizeMegabytes > 1024) {
+      System.err.println("Ring size has to be between 1 and 1024 MiB. Switching to 64.");
+      ringSizeMegabytes = 64;
+    }
+
+    if (subscriberBuffer < 1) {
+      System.err.println("Subscriber buffer has to hold at least 1 item. Switching to 1.");
+      subscriberBuffer = 1;
     }
   }
 
@@ -260,6 +584,23 @@ public class ContextApiDemoMain {
         + "new items are received right away.\n"
         + "\n"
         + "\n"
+        + "  ./run-demo.sh -apikey REPLACE_WITH_YOUR_API_KEY -serve 8080\n"
+        + "\n"
+        + "The above command runs a local server that polls each distinct query only once and\n"
+        + "streams new items to all subscribers. For example, run\n"
+        + "  curl 'http://localhost:8080/recommendations?query=Google'\n"
+        + "in several terminals to share the poll for Google items among them.\n"
+        + "\n"
+        + "\n"
+        + "  ./run-demo.sh -apikey REPLACE_WITH_YOUR_API_KEY -query Google -store store\n"
+        + "  ./run-demo.sh -apikey REPLACE_WITH_YOUR_API_KEY -query Google -store store \\\n"
+        + "      -storequery -hours 6 -byscore\n"
+        + "\n"
+        + "The first command keeps on storing the latest items for Google in the directory\n"
+        + "'store'. The second command shows the highest scoring of those items of the last 6\n"
+        + "hours without querying the API for content again.\n"
+        + "\n"
+        + "\n"
         + "  ./run-demo.sh -apikey REPLACE_WITH_YOUR_API_KEY -sources\n"
         + "\n"
         + "The above command will query and show the sources that your API key is entitled for.\n"
@@ -278,14 +619,14 @@ public class ContextApiDemoMain {
    * @throws Exception, if any error occurs.
    */
   private void printEntitledSources() throws Exception {
-    JsonArray sources = queryUtils.queryEntitledSources();
+    List<Source> sources = queryUtils.fetchEntitledSources();
 
-    if (sources.size() == 0) {
+    if (sources.isEmpty()) {
       printUtils.println("API key is not entitled for any source.");
     } else {    
       printUtils.println("API key is entitled for the following sources:");
-      for (JsonElement source : sources) {
-        printUtils.println("* " + source.getAsString());
+      for (Source source : sources) {
+        printUtils.println("* " + source.getName());
       }
     }
   }
@@ -293,37 +634,108 @@ public class ContextApiDemoMain {
   /**
    * Resolves the query to entities, dumps information about them, and yields the entity ids. 
    * 
-   * <p/>Queries DDS for entities that match the query command line argument. If the command line
-   * arguments requested exact matching, exact matching is requested from DDS, otherwise partial
-   * matching is performed.
+   * <p/>Queries DDS for entities that match the query command line argument and the queries of
+   * the query file. If the command line arguments requested exact matching, exact matching is
+   * requested from DDS, otherwise partial matching is performed.
    * 
-   * </p>Only up to {@link #MAX_ENTITIES} are fetched from DDS. 
+   * </p>Only up to {@link #MAX_ENTITIES} are fetched from DDS per query. 
    *
-   * @return the entity ids of the entities for the query
+   * @return the entity ids of the entities for the queries
    * @throws Exception, if any error occurs
    */
   private Iterable<String> resolveQueryEntityIds() throws Exception {
-    List<String> entityIds = new LinkedList<>();
-
+    List<String> queries = new ArrayList<>();
     if (query != null && !query.isEmpty()) {
-      String entityQueryMode = exactMatching ? "EXACT_MATCH" : "PARTIAL_MATCH";
-      JsonArray results = queryUtils.queryEntities(query, entityQueryMode, MAX_ENTITIES);
+      queries.add(query);
+    }
+    if (queryFile != null) {
+      queries.addAll(readLines(queryFile));
+    }
+    String entityQueryMode = exactMatching ? "EXACT_MATCH" : "PARTIAL_MATCH";
+
+    List<String> entityIds = new LinkedList<>();
+    if (queries.size() == 1) {
+      List<Entity> results = queryUtils.fetchEntities(queries.get(0), entityQueryMode,
+          MAX_ENTITIES);
     
-      printUtils.println("Query for '" + query + "' will look for those entities:");
-      for (JsonElement resultElement : results) {
-        JsonObject result = resultElement.getAsJsonObject();
-        String id = result.getAsJsonPrimitive("entityID").getAsString();
+      printUtils.println("Query for '" + queries.get(0) + "' will look for those entities:");
+      for (Entity result : results) {
+        String id = result.getEntityId();
       
         printUtils.print("* " + id);
         printUtils.printEntityDetails(result);
       
         entityIds.add(id);
       }
+    } else if (queries.size() > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(queries.size(), MAX_CONCURRENT_QUERIES));
+      try {
+        EntityResolver resolver = new EntityResolver(queryUtils, executor,
+            deadlineSeconds * 1000);
+        EntityResolver.Result result = resolver.resolve(queries, entityQueryMode,
+            MAX_ENTITIES);
+
+        printUtils.println("Resolved " + queries.size() + " queries to "
+            + result.getEntities().size() + " entities in " + result.getElapsedMillis()
+            + " ms (" + result.getMedianLatencyMillis() + " ms median, "
+            + result.getMaxLatencyMillis() + " ms max per query). Will look for those entities:");
+        for (Entity entity : result.getEntities()) {
+          String id = entity.getEntityId();
+
+          printUtils.print("* " + id);
+          printUtils.printEntityDetails(entity);
+
+          entityIds.add(id);
+        }
+        if (!result.getFailedQueries().isEmpty()) {
+          printUtils.println("Failed to resolve " + result.getFailedQueries());
+        }
+        if (!result.getTimedOutQueries().isEmpty()) {
+          printUtils.println("Gave up resolving " + result.getTimedOutQueries());
+        }
+      } finally {
+        executor.shutdownNow();
+      }
     }
     
     return entityIds;
   }
 
+  /**
+   * Reads the entries of a list file.
+   *
+   * <p>Empty lines and lines starting with {@code #} get skipped.
+   *
+   * @param file The file to read.
+   * @return The entries of the file.
+   * @throws IOException, if reading the file fails
+   */
+  private List<String> readLines(File file) throws IOException {
+    List<String> ret = new ArrayList<>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      String entry = line.trim();
+      if (!entry.isEmpty() && !entry.startsWith("#")) {
+        ret.add(entry);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Reads the entity ids of the interests file.
+   *
+   * <p>Empty lines and lines starting with {@code #} get skipped.
+   *
+   * @return The entity ids of the file.
+   * @throws IOException, if reading the file fails
+   */
+  private List<String> readInterests() throws IOException {
+    List<String> ret = readLines(interestsFile);
+    printUtils.println("Read " + ret.size() + " entity ids from " + interestsFile);
+    return ret;
+  }
+
   /**
    * Waits a bit before asking API for updates.
    * 
@@ -346,45 +758,164 @@ public class ContextApiDemoMain {
    */
   private void queryWithUpdates() throws Exception { 
     // First, we resolve the query to entity ids.
-    Iterable<String> entityIds = resolveQueryEntityIds();
-    
+    Set<String> entityIds = new LinkedHashSet<>();
+    for (String entityId : resolveQueryEntityIds()) {
+      entityIds.add(entityId);
+    }
+    if (interestsFile != null) {
+      entityIds.addAll(readInterests());
+    }
+    // The API only takes a limited number of entities per query, so we split them into shards.
+    List<List<String>> shards = QueryUtils.shardEntityIds(entityIds, shardSize);
+    if (shards.size() > 1) {
+      printUtils.println("Splitting " + entityIds.size() + " entities into " + shards.size()
+          + " shards");
+    }
+
     int batchSize = 10; // requesting only up to 10 items per query
-    Deque<String> seenContentIds = new LinkedList<>(); // Used to filter seen items from updates
-    JsonArray recommendations; // Will hold the recommended content items of the last query
+    // Only requestSent and queryMode change between polls, so we serialize the queries only once.
+    List<QueryTemplate> queryTemplates = new ArrayList<>();
+    // UPDATE queries are incremental per session, so each query gets its own session.
+    boolean singleQuery = shards.size() * queryTypes.size() * contributionModes.size() == 1;
+    for (List<String> shard : shards) {
+      for (String type : queryTypes) {
+        for (String mode : contributionModes) {
+          QueryUtils sessionQueryUtils = singleQuery ? queryUtils
+              : queryUtils.forSession(sessionId + "-" + (queryTemplates.size() + 1));
+          queryTemplates.add(sessionQueryUtils.compileRecommendationsQuery(type, batchSize,
+              mode, shard));
+        }
+      }
+    }
+    // Multiple queries get sent concurrently and merged, so a poll takes as long as the slowest
+    // query.
+    MultiQueryFetcher fetcher = null;
+    if (queryTemplates.size() > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(queryTemplates.size(), MAX_CONCURRENT_QUERIES),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "query");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      fetcher = new MultiQueryFetcher(queryUtils, queryTemplates, executor,
+          deadlineSeconds * 1000);
+    }
+    // Used to filter seen items from updates
+    SeenContentFilter seenContentFilter = new SeenContentFilter(2 * batchSize
+        * queryTemplates.size());
+    // Used to filter stories we already got through other sources
+    NearDuplicateFilter nearDuplicateFilter = null;
+    if (nearDuplicateSimilarity > 0) {
+      nearDuplicateFilter = new NearDuplicateFilter(nearDuplicateSimilarity, 1000,
+          collapseNearDuplicates);
+    }
+    List<RawRecommendation> recommendations; // Recommended content items of the last query
+    List<List<RawRecommendation>> queryResults; // Items of the last poll per query
     boolean isInitial = true; // Whether or not to perform an INITIAL or UPDATE query.
+    long lastTopKMillis = 0; // When the top-K items got printed last
+    long lastTimeoutCount = 0; // Timed out requests as of the last poll
+    long lastRestartCount = 0; // Queries restarted with INITIAL as of the last poll
+    // Where to hand unseen recommendations to
+    List<RecommendationSink> targets = new ArrayList<>();
+    // Each query's items arrive in its own event time order, so each query gets its own source
+    // to not mark items of slower queries as late.
+    List<RecommendationSink> mergerSources = new ArrayList<>();
+    if (eventTimeMerger != null) {
+      for (int i = 0; i < queryTemplates.size(); i++) {
+        QueryTemplate template = queryTemplates.get(i);
+        mergerSources.add(eventTimeMerger.addSource(template.getQueryType() + "/"
+            + template.getContributionMode() + "#" + (i + 1)));
+      }
+    } else {
+      targets.addAll(sinks);
+    }
+    if (topKAggregator != null) {
+      targets.add(topKAggregator);
+    }
     while (true) {
+      RequestTracer.Trace trace = (tracer != null) ? tracer.begin("poll") : null;
+
       // Perform the query
-      recommendations = queryUtils.queryRecommendations(queryType, isInitial, batchSize,
-          contributions, entityIds);
+      // Items stay raw bytes until printed, so already seen items never get decoded.
+      if (fetcher != null) {
+        queryResults = fetcher.fetchEach();
+        recommendations = MultiQueryFetcher.merge(queryResults);
+        if (fetcher.getRestartCount() > lastRestartCount) {
+          lastRestartCount = fetcher.getRestartCount();
+          printUtils.println("Restarted " + lastRestartCount + " queries with INITIAL so far, as "
+              + "their UPDATE failed. Items of those UPDATEs may be lost.");
+        }
+      } else {
+        recommendations = queryUtils.fetchRawRecommendations(queryTemplates.get(0), isInitial);
+        queryResults = Collections.singletonList(recommendations);
+      }
       isInitial = false; // From now on, all queries are UPDATES
 
       // Filter down to unseen recommendations    
-      List<JsonObject> unseenRecommendations = new ArrayList<>(recommendations.size());
-      for (JsonElement recommendationElement : recommendations) {
-        JsonObject recommendation = recommendationElement.getAsJsonObject();
-        String contentId = recommendation.getAsJsonPrimitive("contentID").getAsString();
-        if (contentId != null) {
-          if (!seenContentIds.contains(contentId)) {
-            // Recommendation has not yet been seen
-            unseenRecommendations.add(recommendation);
-            
-            // And we remember that we saw that content item.
-            seenContentIds.addFirst(contentId);
-            
-            // To avoid keeping too many items in memory, we prune old items. 
-            if (seenContentIds.size() > 2 * batchSize) {
-              seenContentIds.removeLast();                
+      long dedupStart = System.nanoTime();
+      List<RawRecommendation> unseenRecommendations =
+          seenContentFilter.filterUnseen(recommendations);
+      RequestTracer.record(RequestTracer.Phase.DEDUP, dedupStart);
+
+      printUtils.println("Received " + recommendations.size() + " recommendations. "
+          + unseenRecommendations.size() + " of those have not yet been seen.");
+
+      if (nearDuplicateFilter != null) {
+        int unseenCount = unseenRecommendations.size();
+        dedupStart = System.nanoTime();
+        unseenRecommendations = nearDuplicateFilter.filter(unseenRecommendations);
+        RequestTracer.record(RequestTracer.Phase.DEDUP, dedupStart);
+        printUtils.println((unseenCount - unseenRecommendations.size()) + " of those are near "
+            + "duplicates of already seen items.");
+      }
+
+      // Printing unseen recommendations
+      for (RawRecommendation recommendation : unseenRecommendations) {
+        printUtils.printRecommendation(recommendation.getRecommendation());        
+      }
+
+      // Handing unseen recommendations to the configured sinks. Holding the lock, as the
+      // shutdown hook may close the sinks meanwhile.
+      synchronized (this) {
+        if (!sinksClosed) {
+          for (RecommendationSink sink : targets) {
+            for (RawRecommendation recommendation : unseenRecommendations) {
+              sink.append(recommendation);
             }
+            sink.flush();
+          }
+          if (!mergerSources.isEmpty()) {
+            appendByQuery(unseenRecommendations, queryResults, mergerSources);
           }
         }
       }
+      if (trace != null) {
+        tracer.end(trace);
+      }
+      if (eventTimeMerger != null) {
+        printUtils.println(eventTimeMerger.getBufferedCount() + " items wait for reordering. "
+            + eventTimeMerger.getLateCount() + " items arrived too late so far.");
+      }
 
-      printUtils.println("Received " + recommendations.size() + " recommendations. "
-          + unseenRecommendations.size() + " of those have not yet been seen.");
+      long timeoutCount = requestUtils.getConnectTimeoutCount()
+          + requestUtils.getLeaseTimeoutCount() + requestUtils.getSocketTimeoutCount()
+          + requestUtils.getDeadlineExceededCount();
+      if (timeoutCount > lastTimeoutCount) {
+        printUtils.println("Requests timed out so far: " + requestUtils.getConnectTimeoutCount()
+            + " connecting, " + requestUtils.getLeaseTimeoutCount() + " leasing a connection, "
+            + requestUtils.getSocketTimeoutCount() + " reading, "
+            + requestUtils.getDeadlineExceededCount() + " at the deadline.");
+        lastTimeoutCount = timeoutCount;
+      }
 
-      // Printing unseen recommendations
-      for (JsonObject recommendation : unseenRecommendations) {
-        printUtils.printRecommendation(recommendation);        
+      if (topKAggregator != null
+          && System.currentTimeMillis() - lastTopKMillis >= topIntervalSeconds * 1000) {
+        printTopK();
+        lastTopKMillis = System.currentTimeMillis();
       }
       
       if (!live) {
@@ -394,6 +925,69 @@ public class ContextApiDemoMain {
     }   
   }
  
+  /**
+   * Hands recommendations to the sink of the query that delivered them.
+   *
+   * @param recommendations The recommendations to hand over. They have to be instances of
+   *     {@code queryResults}.
+   * @param queryResults The recommendations of each query.
+   * @param querySinks The sink of each query.
+   * @throws IOException if appending fails.
+   */
+  private void appendByQuery(List<RawRecommendation> recommendations,
+      List<List<RawRecommendation>> queryResults, List<RecommendationSink> querySinks)
+      throws IOException {
+    // Merging keeps the instances, so identity tells which query delivered an item.
+    Set<RawRecommendation> pending = Collections.newSetFromMap(
+        new IdentityHashMap<RawRecommendation, Boolean>());
+    pending.addAll(recommendations);
+    for (int i = 0; i < queryResults.size(); i++) {
+      RecommendationSink sink = querySinks.get(i);
+      for (RawRecommendation recommendation : queryResults.get(i)) {
+        if (pending.remove(recommendation)) {
+          sink.append(recommendation);
+        }
+      }
+      sink.flush();
+    }
+  }
+
+  /**
+   * Runs the local fan-out server until the process gets terminated.
+   *
+   * @throws Exception, if any errors occur
+   */
+  private void serve() throws Exception {
+    int batchSize = 10; // requesting only up to 10 items per query
+    long pauseMillis = live ? 0 : pauseSeconds * 1000;
+    server = new FanOutServer(queryUtils, batchSize, MAX_ENTITIES, pauseMillis,
+        subscriberBuffer, slowConsumerPolicy);
+    if (localSearchMinutes > 0) {
+      // Bounding the number of items as well, so bursts cannot exhaust memory.
+      server.setSearchIndex(new LocalSearchIndex(localSearchMinutes * 60 * 1000, 1 << 18));
+    }
+    if (topK > 0) {
+      server.setTopKAggregator(createTopKAggregator());
+    }
+    if (coalesceInterests) {
+      server.setInterestCoalescer(new InterestCoalescer(MAX_ENTITIES));
+    }
+    openSinks();
+    if (eventTimeMerger != null) {
+      server.setEventTimeMerger(eventTimeMerger);
+    } else {
+      // All sinks synchronize appending, so feeds may share them.
+      for (RecommendationSink sink : sinks) {
+        server.addSink(sink);
+      }
+    }
+    // Binding only to loopback, as the server is meant for local consumers.
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), servePort));
+    printUtils.println("Serving recommendations at http://localhost:"
+        + server.getAddress().getPort()
+        + FanOutServer.PATH_RECOMMENDATIONS);
+  }
+
   /**
    * Runs Context API demo.
    *
@@ -403,28 +997,342 @@ public class ContextApiDemoMain {
     parseArgs(args);
 
     // Setting up the endpoint config
-    RequestUtils requestUtils = new RequestUtils(apiServerRootUrl);
+    if (apiServerRootUrls.size() == 1) {
+      requestUtils = new RequestUtils(apiServerRootUrls.get(0));
+    } else {
+      requestUtils = new RequestUtils(new EndpointBalancer(apiServerRootUrls));
+    }
+    requestUtils.setTimeouts(connectTimeoutSeconds * 1000, connectTimeoutSeconds * 1000,
+        readTimeoutSeconds * 1000, requestTimeoutSeconds * 1000L);
+    // Each concurrent query may have a hedged duplicate in flight.
+    requestUtils.setMaxConnections(2 * MAX_CONCURRENT_QUERIES);
+    if (hedgePercentile > 0) {
+      requestUtils.setHedger(createRequestHedger());
+    }
 
     // Setting up query helpers for the endpoint
     queryUtils = new QueryUtils(apiKey, sessionId, requestUtils);
+    if (cacheSizeMegabytes > 0) {
+      queryUtils.setResponseCache(createResponseCache());
+    }
+    EntityIndex entityIndex = null;
+    if (useEntityIndex || entityPreloadFile != null) {
+      entityIndex = new EntityIndex();
+      queryUtils.setEntityIndex(entityIndex);
+    }
 
     // Finally, setting the print helpers
     printUtils = new PrintUtils(queryUtils);
     
-    printUtils.println("Using Selerity Context API server at " + apiServerRootUrl);
+    if (apiServerRootUrls.size() == 1) {
+      printUtils.println("Using Selerity Context API server at " + apiServerRootUrls.get(0));
+    } else {
+      printUtils.println("Balancing across Selerity Context API servers at "
+          + apiServerRootUrls);
+    }
 
     // Now that setup is complete, start the queries. 
     try {
+      if (traceFile != null) {
+        startTracing();
+      }
+      if (trackFreshness) {
+        startTrackingFreshness();
+      }
+
+      if (entityPreloadFile != null) {
+        int count = entityIndex.preload(entityPreloadFile.toPath());
+        printUtils.println("Preloaded " + count + " entities from " + entityPreloadFile
+            + " into the local entity index");
+      }
+
       if (requestedSourcesQuery) {
         printEntitledSources();
+      } else if (requestedStoreQuery) {
+        printStoredRecommendations();
+      } else if (servePort >= 0) {
+        serve();
       } else {
-        queryWithUpdates();
+        openSinks();
+        try {
+          queryWithUpdates();
+        } finally {
+          closeSinks();
+        }
       }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Makes a sink record freshness, if it is the first sink and freshness gets tracked.
+   *
+   * <p>Items count as written once the first sink wrote them.
+   *
+   * @param sink The sink that writes items within appending them.
+   * @return The sink to use.
+   */
+  private RecommendationSink trackFirst(RecommendationSink sink) {
+    if (freshnessTracker != null && sinks.isEmpty()) {
+      return freshnessTracker.track(sink);
+    }
+    return sink;
+  }
+
+  /**
+   * Opens the sinks requested on the command line.
+   *
+   * @throws IOException, if a sink cannot be opened
+   */
+  private void openSinks() throws IOException {
+    if (ringFile != null) {
+      int capacity = Integer.highestOneBit(Math.max(ringSizeMegabytes, 1)) << 20;
+      if (capacity < ringSizeMegabytes << 20) {
+        capacity <<= 1;
+      }
+      sinks.add(trackFirst(new MappedRingSink(ringFile, capacity)));
+      printUtils.println("Appending new content items to ring file " + ringFile);
+    }
+
+    if (archiveDirectory != null) {
+      // Up to 10000 items may wait for the disk, before items get dropped.
+      JsonlFileSink archive = new JsonlFileSink(archiveDirectory.toPath(), "recommendations",
+          archiveSizeMegabytes << 20, archiveMinutes * 60 * 1000, archiveSyncMillis,
+          archiveCompress, 10000);
+      if (freshnessTracker != null && sinks.isEmpty()) {
+        // The archive writes items on a thread of its own, so it records them itself.
+        archive.setFreshnessTracker(freshnessTracker);
+      }
+      sinks.add(archive);
+      printUtils.println("Archiving new content items to " + archiveDirectory);
+    }
+
+    if (storeDirectory != null) {
+      sinks.add(trackFirst(openStore(false)));
+      printUtils.println("Storing new content items in " + storeDirectory);
+    }
+
+    if (freshnessTracker != null && !sinks.isEmpty()) {
+      // Only registering arrivals if a sink writes them, so they do not pile up unwritten.
+      queryUtils.setFreshnessTracker(freshnessTracker);
+    }
+
+    if (!sinks.isEmpty() && latenessSeconds >= 0) {
+      long latenessMillis = latenessSeconds * 1000;
+      // Queries that came up empty for two polls no longer hold back other queries.
+      long idleMillis = latenessMillis + (live ? 0 : 2 * pauseSeconds * 1000);
+      eventTimeMerger = new EventTimeMerger(sinks, latenessMillis, idleMillis);
+      printUtils.println("Handing new content items to sinks in timestamp order, allowing "
+          + latenessMillis / 1000 + " seconds lateness");
+    }
+
+    // The aggregator ranks items as they arrive, so it does not wait for reordering. In server
+    // mode, the server ranks items itself, to serve them.
+    if (topK > 0 && servePort < 0) {
+      topKAggregator = createTopKAggregator();
+    }
+
+    if (!sinks.isEmpty()) {
+      // The demo typically gets stopped through Ctrl-C, so we close sinks upon shutdown to
+      // write out buffered items.
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          closeSinks();
+        }
+      });
+    }
+  }
+
+  /**
+   * Starts tracing requests and polls to the trace file.
+   *
+   * @throws IOException if the trace file cannot be opened.
+   */
+  private void startTracing() throws IOException {
+    tracer = new RequestTracer(traceFile.toPath());
+    requestUtils.setTracer(tracer);
+    printUtils.println("Tracing requests to " + traceFile);
+    // The demo typically gets stopped through Ctrl-C, so histograms get printed upon shutdown.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        for (Map.Entry<String, LatencyHistogram> entry
+            : tracer.getTotalHistograms().entrySet()) {
+          printUtils.println("Microseconds per " + entry.getKey() + ": " + entry.getValue());
+        }
+        for (RequestTracer.Phase phase : RequestTracer.Phase.values()) {
+          LatencyHistogram histogram = tracer.getHistogram(phase);
+          if (histogram.getCount() > 0) {
+            printUtils.println("Microseconds for " + phase + ": " + histogram);
+          }
+        }
+        try {
+          tracer.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts tracking the freshness of content items.
+   */
+  private void startTrackingFreshness() {
+    // Items of a few polls of all queries may wait to get written.
+    // Arrivals get registered once sinks are open (See openSinks).
+    freshnessTracker = new FreshnessTracker(10000);
+    // The demo typically gets stopped through Ctrl-C, so histograms get printed upon shutdown.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        printUtils.println("Tracked freshness of " + freshnessTracker.getWrittenCount()
+            + " content items.");
+        for (FreshnessTracker.Stage stage : FreshnessTracker.Stage.values()) {
+          for (Map.Entry<String, LatencyHistogram> entry
+              : freshnessTracker.getHistograms(stage).entrySet()) {
+            printUtils.println("Milliseconds " + stage + " for " + entry.getKey() + ": "
+                + entry.getValue());
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Creates the request hedger as configured on the command line.
+   *
+   * @return The created hedger.
+   */
+  private RequestHedger createRequestHedger() {
+    ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "hedged-request");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    return new RequestHedger(executor, hedgePercentile, hedgeBudgetPercent / 100);
+  }
+
+  /**
+   * Creates the response cache as configured on the command line.
+   *
+   * @return The created cache.
+   */
+  private ResponseCache createResponseCache() {
+    Executor refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ResponseCache ret = new ResponseCache(cacheSizeMegabytes << 20, QueryUtils.RESPONSE_WEIGHER,
+        refresher);
+    ret.setPolicy(QueryUtils.PATH_SOURCES, cacheTtlSeconds * 1000, cacheTtlSeconds * 1000);
+    ret.setPolicy(QueryUtils.PATH_DDS, cacheTtlSeconds * 1000, cacheTtlSeconds * 1000);
+    return ret;
+  }
+
+  /**
+   * Creates the top-K aggregator as configured on the command line.
+   *
+   * @return The created aggregator.
+   */
+  private TopKAggregator createTopKAggregator() {
+    return new TopKAggregator(topK, topHalfLifeMinutes * 60 * 1000,
+        topWindowMinutes * 60 * 1000);
+  }
+
+  /**
+   * Prints the current top-K items.
+   *
+   * @throws Exception, if any error occurs
+   */
+  private void printTopK() throws Exception {
+    List<TopKAggregator.Ranked> top = topKAggregator.snapshot();
+    printUtils.println("Top " + top.size() + " items by time-decayed score:");
+    int rank = 1;
+    for (TopKAggregator.Ranked ranked : top) {
+      Recommendation recommendation = ranked.getRecommendation().getRecommendation();
+      printUtils.println(String.format("%3d. %8.3f %s", rank++, ranked.getDecayedScore(),
+          recommendation.getHeadline()));
+    }
+  }
+
+  /**
+   * Opens the recommendation store given on the command line.
+   *
+   * @param readOnly If true, the store gets opened for queries only.
+   * @return The opened store.
+   * @throws IOException, if the store cannot be opened
+   */
+  private RecommendationStore openStore(boolean readOnly) throws IOException {
+    // 64 MiB segments keep retention reasonably fine-grained, while needing only few files.
+    return new RecommendationStore(storeDirectory.toPath(), 64 << 20,
+        retentionHours * 60 * 60 * 1000, readOnly);
+  }
+
+  /**
+   * Queries the recommendation store and prints the found items.
+   *
+   * @throws Exception, if any error occurs
+   */
+  private void printStoredRecommendations() throws Exception {
+    List<String> entityIds = new ArrayList<>(storeEntityIds);
+    for (String entityId : resolveQueryEntityIds()) {
+      entityIds.add(entityId);
+    }
+
+    long now = System.currentTimeMillis();
+    RecommendationStore.Order order = storeQueryByScore ? RecommendationStore.Order.SCORE
+        : RecommendationStore.Order.TIME;
+    // Opening read-only, so queries can run next to a polling demo that writes the store.
+    try (RecommendationStore store = openStore(true)) {
+      List<RawRecommendation> recommendations = store.query(entityIds,
+          now - storeQueryHours * 60 * 60 * 1000, Long.MAX_VALUE, order, storeQueryLimit);
+      printUtils.println("Found " + recommendations.size() + " stored recommendations.");
+      for (RawRecommendation recommendation : recommendations) {
+        printUtils.printRecommendation(recommendation.getRecommendation());
+      }
+    }
+  }
+
+  /**
+   * Closes all opened sinks.
+   *
+   * <p>Afterwards, the poll loop no longer hands items to sinks.
+   */
+  private synchronized void closeSinks() {
+    sinksClosed = true;
+    if (server != null) {
+      // Stopping the feeds first, so they no longer hand items to the sinks.
+      server.stop();
+    }
+    if (eventTimeMerger != null) {
+      // Closing the merger first, so it hands its buffered items to the sinks.
+      try {
+        eventTimeMerger.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      eventTimeMerger = null;
+    }
+    for (RecommendationSink sink : sinks) {
+      try {
+        sink.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    sinks.clear();
+  }
+
   /**
    * Spawns a demo object and runs it.
    * 
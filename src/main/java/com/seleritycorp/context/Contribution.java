@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+/**
+ * Score contribution of a recommended content item.
+ */
+public class Contribution {
+  String contributorType;
+  String contributor;
+  float value;
+
+  /**
+   * Gets the type of the contributor (E.g.: RELEVANCE_ENTITY).
+   *
+   * @return The contributor type, or null if the API did not provide it.
+   */
+  public String getContributorType() {
+    return contributorType;
+  }
+
+  /**
+   * Gets the contributor (E.g.: the entity id for RELEVANCE_ENTITY contributions).
+   *
+   * @return The contributor, or null if the API did not provide it.
+   */
+  public String getContributor() {
+    return contributor;
+  }
+
+  /**
+   * Gets the value this contributor added to the score.
+   *
+   * @return The contributed value.
+   */
+  public float getValue() {
+    return value;
+  }
+}
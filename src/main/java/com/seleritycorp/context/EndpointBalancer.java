@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Spreads requests across several equivalent endpoints.
+ *
+ * <p>Each endpoint tracks an exponentially weighted moving average (EWMA) of its latency. Per
+ * request, two random available endpoints get compared, and the one with the lower EWMA
+ * (scaled by its requests in flight) gets picked (power of two choices). This avoids the herd
+ * behaviour of always picking the single best endpoint, while still routing around slow ones.
+ * Endpoints without latency samples yet win comparisons, so they get probed early. Failed
+ * requests count at least with a penalty latency, so endpoints that fail fast do not look fast.
+ *
+ * <p>Requests of a session stick to the endpoint that served the session first, as only that
+ * endpoint knows the session's state. Only if that endpoint is not available anymore, the session
+ * moves to another endpoint.
+ *
+ * <p>Health gets checked passively: after a number of consecutive failed requests, an endpoint
+ * gets ejected for a while, and each further ejection in a row lasts longer. The last available
+ * endpoint never gets ejected, as failures then more likely stem from the requests than from
+ * the endpoints.
+ */
+public class EndpointBalancer {
+  private static final Log log = LogFactory.getLog(EndpointBalancer.class);
+
+  /**
+   * Ejections last at most this many times the base ejection time.
+   */
+  private static final int MAX_EJECTION_FACTOR = 10;
+
+  /**
+   * Endpoint and its statistics.
+   */
+  public static final class Endpoint {
+    private final String url;
+    private double ewmaMillis = 0;
+    private boolean sampled = false;
+    private int inFlight = 0;
+    private int consecutiveFailures = 0;
+    private int ejectionCount = 0;
+    private long ejectedUntilMillis = Long.MIN_VALUE;
+    private long requestCount = 0;
+    private long failureCount = 0;
+
+    Endpoint(String url) {
+      this.url = url;
+    }
+
+    /**
+     * Gets the endpoint's url.
+     *
+     * @return The url of the endpoint.
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * Gets the endpoint's average latency.
+     *
+     * @return The EWMA of the latency in milliseconds.
+     */
+    public synchronized double getEwmaLatencyMillis() {
+      return ewmaMillis;
+    }
+
+    /**
+     * Gets the number of requests sent to the endpoint.
+     *
+     * @return The number of requests.
+     */
+    public synchronized long getRequestCount() {
+      return requestCount;
+    }
+
+    /**
+     * Gets the number of failed requests of the endpoint.
+     *
+     * @return The number of failed requests.
+     */
+    public synchronized long getFailureCount() {
+      return failureCount;
+    }
+
+    /**
+     * Gets how often the endpoint got ejected in a row.
+     *
+     * @return The number of ejections since the last successful request.
+     */
+    public synchronized int getEjectionCount() {
+      return ejectionCount;
+    }
+
+    synchronized boolean isAvailable(long nowMillis) {
+      return nowMillis >= ejectedUntilMillis;
+    }
+
+    synchronized double getScore() {
+      return sampled ? ewmaMillis * (inFlight + 1) : 0;
+    }
+
+    @Override
+    public String toString() {
+      return url;
+    }
+  }
+
+  private final List<Endpoint> endpoints;
+  private final double alpha;
+  private final int failureThreshold;
+  private final long ejectionMillis;
+  private final Random random;
+
+  /**
+   * Minimum latency in milliseconds that failed requests count with.
+   */
+  private volatile long failurePenaltyMillis = 10000;
+
+  /**
+   * Endpoint each session is pinned to, keyed by session id.
+   */
+  private final Map<String, Endpoint> sessions = new HashMap<>();
+
+  /**
+   * Creates a balancer with default settings.
+   *
+   * <p>Each latency sample accounts for 30% of the EWMA. Endpoints get ejected for 30 seconds
+   * after 3 consecutive failures. Failed requests count as taking at least 10 seconds.
+   *
+   * @param urls The urls of the endpoints.
+   */
+  public EndpointBalancer(Collection<String> urls) {
+    this(urls, 0.3, 3, 30000, new Random());
+  }
+
+  /**
+   * Creates a balancer.
+   *
+   * @param urls The urls of the endpoints.
+   * @param alpha The weight of a new latency sample in the EWMA. Between 0 (exclusive) and 1.
+   * @param failureThreshold Eject endpoints after that many consecutive failures.
+   * @param ejectionMillis Milliseconds the first ejection in a row lasts.
+   * @param random The source of randomness for picking endpoints.
+   */
+  EndpointBalancer(Collection<String> urls, double alpha, int failureThreshold,
+      long ejectionMillis, Random random) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("Need at least one endpoint");
+    }
+    if (!(alpha > 0 && alpha <= 1) || failureThreshold < 1 || ejectionMillis < 0) {
+      throw new IllegalArgumentException("Invalid balancer settings: alpha " + alpha
+          + ", failure threshold " + failureThreshold + ", ejection " + ejectionMillis + " ms");
+    }
+    List<Endpoint> endpoints = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      endpoints.add(new Endpoint(url));
+    }
+    this.endpoints = Collections.unmodifiableList(endpoints);
+    this.alpha = alpha;
+    this.failureThreshold = failureThreshold;
+    this.ejectionMillis = ejectionMillis;
+    this.random = random;
+  }
+
+  /**
+   * Gets the endpoints.
+   *
+   * @return The endpoints along with their statistics.
+   */
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /**
+   * Sets the latency that failed requests count with at least.
+   *
+   * <p>Requests that fail fast (E.g.: as the endpoint refuses connections) would otherwise make
+   * the endpoint look fast, and thereby attract even more requests.
+   *
+   * @param failurePenaltyMillis The minimum latency in milliseconds for failed requests.
+   */
+  public void setFailurePenaltyMillis(long failurePenaltyMillis) {
+    if (failurePenaltyMillis < 0) {
+      throw new IllegalArgumentException("Failure penalty must not be negative");
+    }
+    this.failurePenaltyMillis = failurePenaltyMillis;
+  }
+
+  /**
+   * Gets the endpoint a session is pinned to.
+   *
+   * @param sessionId The id of the session.
+   * @return The endpoint that requests of the session go to, or null if the session did not
+   *     acquire an endpoint yet.
+   */
+  public Endpoint getSessionEndpoint(String sessionId) {
+    synchronized (sessions) {
+      return sessions.get(sessionId);
+    }
+  }
+
+  /**
+   * Forgets the endpoint a session is pinned to.
+   *
+   * <p>Pins are kept until the session gets unpinned, so sessions that are no longer used
+   * should get unpinned. Further requests of the session get pinned anew.
+   *
+   * @param sessionId The id of the session.
+   */
+  public void unpin(String sessionId) {
+    synchronized (sessions) {
+      sessions.remove(sessionId);
+    }
+  }
+
+  /**
+   * Picks an endpoint for a request.
+   *
+   * <p>Each picked endpoint has to be handed back through {@link #release} once the request
+   * completed.
+   *
+   * @param excluded Endpoints to avoid (E.g.: because the request failed on them already).
+   *     They only get picked, if no other endpoint is left.
+   * @return The picked endpoint.
+   */
+  public Endpoint acquire(Collection<Endpoint> excluded) {
+    return acquire(excluded, null);
+  }
+
+  /**
+   * Picks an endpoint for a request of a session.
+   *
+   * <p>If the endpoint the session is pinned to is available and not excluded, it gets picked.
+   * Otherwise, the session gets pinned to a newly picked endpoint. Each picked endpoint has to
+   * be handed back through {@link #release} or {@link #cancel}.
+   *
+   * @param excluded Endpoints to avoid (E.g.: because the request failed on them already).
+   *     They only get picked, if no other endpoint is left.
+   * @param sessionId The id of the request's session. null for requests without session.
+   * @return The picked endpoint.
+   */
+  public Endpoint acquire(Collection<Endpoint> excluded, String sessionId) {
+    return acquire(excluded, sessionId, System.currentTimeMillis());
+  }
+
+  /**
+   * Picks an endpoint for a request.
+   *
+   * @param nowMillis The current time.
+   */
+  Endpoint acquire(Collection<Endpoint> excluded, long nowMillis) {
+    return acquire(excluded, null, nowMillis);
+  }
+
+  /**
+   * Picks an endpoint for a request of a session.
+   *
+   * @param nowMillis The current time.
+   */
+  Endpoint acquire(Collection<Endpoint> excluded, String sessionId, long nowMillis) {
+    if (sessionId == null) {
+      return claim(pick(excluded, nowMillis));
+    }
+    synchronized (sessions) {
+      Endpoint ret = sessions.get(sessionId);
+      if (ret == null || !ret.isAvailable(nowMillis) || excluded.contains(ret)) {
+        ret = pick(excluded, nowMillis);
+        sessions.put(sessionId, ret);
+      }
+      return claim(ret);
+    }
+  }
+
+  /**
+   * Picks an endpoint by the power of two choices.
+   *
+   * @param excluded Endpoints to avoid.
+   * @param nowMillis The current time.
+   * @return The picked endpoint.
+   */
+  private Endpoint pick(Collection<Endpoint> excluded, long nowMillis) {
+    List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.isAvailable(nowMillis) && !excluded.contains(endpoint)) {
+        candidates.add(endpoint);
+      }
+    }
+    if (candidates.isEmpty()) {
+      // Better trying an ejected or excluded endpoint than not trying at all.
+      for (Endpoint endpoint : endpoints) {
+        if (!excluded.contains(endpoint)) {
+          candidates.add(endpoint);
+        }
+      }
+      if (candidates.isEmpty()) {
+        candidates.addAll(endpoints);
+      }
+    }
+
+    Endpoint ret;
+    synchronized (random) {
+      if (candidates.size() == 1) {
+        ret = candidates.get(0);
+      } else {
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+          second++;
+        }
+        Endpoint endpoint1 = candidates.get(first);
+        Endpoint endpoint2 = candidates.get(second);
+        ret = (endpoint2.getScore() < endpoint1.getScore()) ? endpoint2 : endpoint1;
+      }
+    }
+    return ret;
+  }
+
+  private Endpoint claim(Endpoint endpoint) {
+    synchronized (endpoint) {
+      endpoint.inFlight++;
+      endpoint.requestCount++;
+    }
+    return endpoint;
+  }
+
+  /**
+   * Hands back an endpoint without having sent the request to it.
+   *
+   * <p>The endpoint's statistics stay as if it never got picked.
+   *
+   * @param endpoint The endpoint to hand back.
+   */
+  public void cancel(Endpoint endpoint) {
+    synchronized (endpoint) {
+      endpoint.inFlight--;
+      endpoint.requestCount--;
+    }
+  }
+
+  /**
+   * Hands back an endpoint after a request completed.
+   *
+   * @param endpoint The endpoint the request got sent to.
+   * @param latencyMillis The milliseconds the request took.
+   * @param success Whether the request succeeded.
+   */
+  public void release(Endpoint endpoint, long latencyMillis, boolean success) {
+    release(endpoint, latencyMillis, success, System.currentTimeMillis());
+  }
+
+  /**
+   * Hands back an endpoint after a request completed.
+   *
+   * @param nowMillis The current time.
+   */
+  void release(Endpoint endpoint, long latencyMillis, boolean success, long nowMillis) {
+    boolean eject = false;
+    synchronized (endpoint) {
+      endpoint.inFlight--;
+      // Failed requests count at least with the penalty, so endpoints that fail fast (E.g.:
+      // refused connections) do not look fast, while those that fail slowly still look slow.
+      long sample = success ? latencyMillis : Math.max(latencyMillis, failurePenaltyMillis);
+      if (endpoint.sampled) {
+        endpoint.ewmaMillis += alpha * (sample - endpoint.ewmaMillis);
+      } else {
+        endpoint.ewmaMillis = sample;
+        endpoint.sampled = true;
+      }
+      if (success) {
+        endpoint.consecutiveFailures = 0;
+        endpoint.ejectionCount = 0;
+      } else {
+        endpoint.failureCount++;
+        endpoint.consecutiveFailures++;
+        eject = endpoint.consecutiveFailures >= failureThreshold;
+      }
+    }
+    if (eject) {
+      eject(endpoint, nowMillis);
+    }
+  }
+
+  private void eject(Endpoint endpoint, long nowMillis) {
+    for (Endpoint other : endpoints) {
+      if (other != endpoint && other.isAvailable(nowMillis)) {
+        long duration;
+        synchronized (endpoint) {
+          endpoint.consecutiveFailures = 0;
+          endpoint.ejectionCount++;
+          duration = ejectionMillis * Math.min(endpoint.ejectionCount, MAX_EJECTION_FACTOR);
+          endpoint.ejectedUntilMillis = nowMillis + duration;
+        }
+        log.warn("Ejecting endpoint " + endpoint + " for " + duration + " ms after "
+            + failureThreshold + " consecutive failures");
+        return;
+      }
+    }
+    log.debug("Not ejecting endpoint " + endpoint + ", as no other endpoint is available");
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+/**
+ * Entity as described by DDS.
+ */
+public class Entity {
+  String entityId;
+  String entityType;
+  String displayName;
+  String description;
+
+  /**
+   * Gets the entity's id.
+   *
+   * @return The entity id, or null if DDS did not provide it.
+   */
+  public String getEntityId() {
+    return entityId;
+  }
+
+  /**
+   * Gets the entity's type.
+   *
+   * @return The entity type, or null if DDS did not provide it.
+   */
+  public String getEntityType() {
+    return entityType;
+  }
+
+  /**
+   * Gets the entity's human readable name.
+   *
+   * @return The display name, or null if DDS did not provide it.
+   */
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  /**
+   * Gets the entity's description.
+   *
+   * @return The description, or null if DDS did not provide it.
+   */
+  public String getDescription() {
+    return description;
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local prefix index of entities for autocompletion.
+ *
+ * <p>Entities get indexed by their display name (both as a whole and from each word on), their
+ * entity id, and aliases (E.g.: tickers that resolved to them through exact matching). Keys are
+ * matched case-insensitively.
+ *
+ * <p>Keys are held in a radix trie: chains of nodes with a single child get merged into one
+ * edge, so the trie needs one node per branching point instead of one per character, and a
+ * lookup walks at most as many nodes as the prefix has characters.
+ *
+ * <p>The index only knows entities it got taught. So lookups that find nothing locally need to
+ * fall back to DDS, and teaching the DDS results grows the index over time.
+ */
+public class EntityIndex {
+  private static final char[] NO_LABEL = new char[0];
+  private static final Node[] NO_CHILDREN = new Node[0];
+  private static final String[] NO_VALUES = new String[0];
+
+  private static final class Node {
+    /**
+     * Characters of the edge leading into this node.
+     */
+    char[] label;
+
+    /**
+     * Child nodes, ordered by the first character of their label.
+     */
+    Node[] children = NO_CHILDREN;
+
+    /**
+     * Ids of the entities whose key ends at this node.
+     */
+    String[] values = NO_VALUES;
+
+    Node(char[] label) {
+      this.label = label;
+    }
+  }
+
+  private final Node root = new Node(NO_LABEL);
+  private final Map<String, Entity> entities = new HashMap<>();
+  private long nodeCount = 1;
+  private long lookupCount = 0;
+  private long hitCount = 0;
+
+  /**
+   * Adds an entity to the index, or updates its details.
+   *
+   * @param entity The entity to add. Entities without id get ignored.
+   * @param aliases Additional keys to find the entity by.
+   */
+  public synchronized void add(Entity entity, Collection<String> aliases) {
+    String entityId = entity.getEntityId();
+    if (entityId == null) {
+      return;
+    }
+    entities.put(entityId, entity);
+
+    insert(normalize(entityId), entityId);
+    for (String alias : aliases) {
+      insert(normalize(alias), entityId);
+    }
+    String name = normalize(entity.getDisplayName());
+    if (name != null) {
+      insert(name, entityId);
+      // Indexing from each word on, so "inc" finds "apple inc" as well.
+      for (int i = name.indexOf(' '); i >= 0; i = name.indexOf(' ', i + 1)) {
+        insert(name.substring(i + 1), entityId);
+      }
+    }
+  }
+
+  /**
+   * Adds an entity to the index, or updates its details.
+   *
+   * @param entity The entity to add. Entities without id get ignored.
+   */
+  public void add(Entity entity) {
+    add(entity, Collections.<String>emptyList());
+  }
+
+  /**
+   * Adds the entities of a DDS response.
+   *
+   * @param query The query that resolved to the entities.
+   * @param queryType The query type of the query. For EXACT_MATCH queries, the query becomes an
+   *     alias of the entities.
+   * @param found The entities DDS found for the query.
+   */
+  public void learn(String query, String queryType, Collection<Entity> found) {
+    List<String> aliases = "EXACT_MATCH".equals(queryType) ? Arrays.asList(query)
+        : Collections.<String>emptyList();
+    for (Entity entity : found) {
+      add(entity, aliases);
+    }
+  }
+
+  /**
+   * Adds the entities of a preload file.
+   *
+   * <p>Each line holds an entity as Json object in DDS format. An optional {@code aliases}
+   * array gives additional keys for the entity. Empty lines get skipped.
+   *
+   * @param file The file to read.
+   * @return The number of added entities.
+   * @throws IOException if reading or parsing the file fails.
+   */
+  public int preload(Path file) throws IOException {
+    int ret = 0;
+    JsonParser parser = new JsonParser();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        JsonObject json;
+        try {
+          json = parser.parse(line).getAsJsonObject();
+        } catch (RuntimeException e) {
+          throw new IOException("Could not parse entity '" + line + "' in " + file, e);
+        }
+        List<String> aliases = new ArrayList<>();
+        JsonElement aliasesJson = json.get("aliases");
+        if (aliasesJson != null && aliasesJson.isJsonArray()) {
+          for (JsonElement alias : aliasesJson.getAsJsonArray()) {
+            aliases.add(alias.getAsString());
+          }
+        }
+        add(ModelAdapters.ENTITY.fromJsonTree(json), aliases);
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Finds entities by key prefix.
+   *
+   * @param prefix The prefix to look up.
+   * @param maxResults The maximum number of entities to return.
+   * @return The found entities. Entities with shorter matching keys come first.
+   */
+  public synchronized List<Entity> lookup(String prefix, int maxResults) {
+    lookupCount++;
+    List<Entity> ret = new ArrayList<>();
+    String key = normalize(prefix);
+    if (key == null || key.isEmpty() || maxResults < 1) {
+      return ret;
+    }
+
+    // Walking down to the node covering the prefix.
+    Node node = root;
+    int matched = 0;
+    while (matched < key.length()) {
+      Node child = findChild(node, key.charAt(matched));
+      if (child == null) {
+        return ret;
+      }
+      int i = 0;
+      while (i < child.label.length && matched < key.length()
+          && child.label[i] == key.charAt(matched)) {
+        i++;
+        matched++;
+      }
+      if (i < child.label.length && matched < key.length()) {
+        // The prefix diverges in the middle of the edge.
+        return ret;
+      }
+      node = child;
+    }
+
+    // Collecting breadth-first, so shorter completions come first.
+    Set<String> found = new LinkedHashSet<>();
+    ArrayDeque<Node> queue = new ArrayDeque<>();
+    queue.add(node);
+    while (!queue.isEmpty() && found.size() < maxResults) {
+      Node current = queue.poll();
+      for (String entityId : current.values) {
+        found.add(entityId);
+        if (found.size() >= maxResults) {
+          break;
+        }
+      }
+      queue.addAll(Arrays.asList(current.children));
+    }
+    for (String entityId : found) {
+      ret.add(entities.get(entityId));
+    }
+    if (!ret.isEmpty()) {
+      hitCount++;
+    }
+    return ret;
+  }
+
+  private void insert(String key, String entityId) {
+    if (key == null || key.isEmpty()) {
+      return;
+    }
+    Node node = root;
+    int pos = 0;
+    while (pos < key.length()) {
+      Node child = findChild(node, key.charAt(pos));
+      if (child == null) {
+        Node leaf = new Node(key.substring(pos).toCharArray());
+        addChild(node, leaf);
+        nodeCount++;
+        node = leaf;
+        pos = key.length();
+        break;
+      }
+      int i = 0;
+      while (i < child.label.length && pos < key.length() && child.label[i] == key.charAt(pos)) {
+        i++;
+        pos++;
+      }
+      if (i < child.label.length) {
+        // Splitting the edge where the key diverges or ends.
+        Node middle = new Node(Arrays.copyOf(child.label, i));
+        node.children[childIndex(node, child.label[0])] = middle;
+        child.label = Arrays.copyOfRange(child.label, i, child.label.length);
+        middle.children = new Node[] {child};
+        nodeCount++;
+        child = middle;
+      }
+      node = child;
+    }
+    for (String value : node.values) {
+      if (value.equals(entityId)) {
+        return;
+      }
+    }
+    node.values = Arrays.copyOf(node.values, node.values.length + 1);
+    node.values[node.values.length - 1] = entityId;
+  }
+
+  private static int childIndex(Node node, char first) {
+    int low = 0;
+    int high = node.children.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midFirst = node.children[mid].label[0];
+      if (midFirst < first) {
+        low = mid + 1;
+      } else if (midFirst > first) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private static Node findChild(Node node, char first) {
+    int index = childIndex(node, first);
+    return index >= 0 ? node.children[index] : null;
+  }
+
+  private static void addChild(Node node, Node child) {
+    int index = -(childIndex(node, child.label[0]) + 1);
+    Node[] children = new Node[node.children.length + 1];
+    System.arraycopy(node.children, 0, children, 0, index);
+    children[index] = child;
+    System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+    node.children = children;
+  }
+
+  /**
+   * Normalizes a key for case-insensitive matching.
+   *
+   * @param key The key to normalize.
+   * @return The normalized key, or null for null keys.
+   */
+  private static String normalize(String key) {
+    if (key == null) {
+      return null;
+    }
+    return key.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Converts entities to the Json format of DDS responses.
+   *
+   * @param entities The entities to convert.
+   * @return The entities as Json array.
+   */
+  static JsonArray toJson(List<Entity> entities) {
+    JsonArray ret = new JsonArray();
+    for (Entity entity : entities) {
+      ret.add(ModelAdapters.ENTITY.toJsonTree(entity));
+    }
+    return ret;
+  }
+
+  /**
+   * Converts entities of a DDS response to typed entities.
+   *
+   * @param json The entities of a DDS response.
+   * @return The typed entities.
+   */
+  static List<Entity> fromJson(JsonArray json) {
+    List<Entity> ret = new ArrayList<>(json.size());
+    for (JsonElement element : json) {
+      Entity entity = ModelAdapters.ENTITY.fromJsonTree(element);
+      if (entity != null) {
+        ret.add(entity);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the number of indexed entities.
+   *
+   * @return The number of entities.
+   */
+  public synchronized int getEntityCount() {
+    return entities.size();
+  }
+
+  /**
+   * Gets the number of trie nodes.
+   *
+   * @return The number of nodes, including the root.
+   */
+  public synchronized long getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Gets the number of lookups.
+   *
+   * @return The number of lookups.
+   */
+  public synchronized long getLookupCount() {
+    return lookupCount;
+  }
+
+  /**
+   * Gets the number of lookups that found entities.
+   *
+   * @return The number of lookups answered locally.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+}
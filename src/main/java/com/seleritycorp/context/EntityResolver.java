@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves many entity queries concurrently.
+ *
+ * <p>All queries get handed to the executor at once, so the executor's thread count bounds how
+ * many queries are in flight. Resolution shares a single deadline. Queries that did not complete
+ * by then get cancelled, their requests get aborted (See
+ * {@link RequestUtils#attachDeadline(long)}), and resolution carries on with the entities of the
+ * others.
+ *
+ * <p>Entities get deduplicated by entity id, keeping the order of the queries.
+ */
+public class EntityResolver {
+  private static final Log log = LogFactory.getLog(EntityResolver.class);
+
+  /**
+   * Outcome of resolving queries.
+   */
+  public static final class Result {
+    private final List<Entity> entities;
+    private final List<String> failedQueries;
+    private final List<String> timedOutQueries;
+    private final long[] latenciesMillis;
+    private final long elapsedMillis;
+
+    Result(List<Entity> entities, List<String> failedQueries, List<String> timedOutQueries,
+        long[] latenciesMillis, long elapsedMillis) {
+      this.entities = entities;
+      this.failedQueries = failedQueries;
+      this.timedOutQueries = timedOutQueries;
+      this.latenciesMillis = latenciesMillis;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Gets the resolved entities.
+     *
+     * @return The entities, deduplicated by entity id, in query order.
+     */
+    public List<Entity> getEntities() {
+      return entities;
+    }
+
+    /**
+     * Gets the queries that failed.
+     *
+     * @return The failed queries.
+     */
+    public List<String> getFailedQueries() {
+      return failedQueries;
+    }
+
+    /**
+     * Gets the queries that missed the deadline.
+     *
+     * @return The timed out queries.
+     */
+    public List<String> getTimedOutQueries() {
+      return timedOutQueries;
+    }
+
+    /**
+     * Gets how long resolving took altogether.
+     *
+     * @return The wall-clock time of the resolution in milliseconds.
+     */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    /**
+     * Gets the median latency of the completed queries.
+     *
+     * @return The median latency in milliseconds, or -1 if no query completed.
+     */
+    public long getMedianLatencyMillis() {
+      return latenciesMillis.length == 0 ? -1 : latenciesMillis[latenciesMillis.length / 2];
+    }
+
+    /**
+     * Gets the maximum latency of the completed queries.
+     *
+     * @return The maximum latency in milliseconds, or -1 if no query completed.
+     */
+    public long getMaxLatencyMillis() {
+      return latenciesMillis.length == 0 ? -1 : latenciesMillis[latenciesMillis.length - 1];
+    }
+  }
+
+  private static final class Resolution {
+    final List<Entity> entities;
+    final long latencyMillis;
+
+    Resolution(List<Entity> entities, long latencyMillis) {
+      this.entities = entities;
+      this.latencyMillis = latencyMillis;
+    }
+  }
+
+  private final QueryUtils queryUtils;
+  private final ExecutorService executor;
+  private final long deadlineMillis;
+
+  /**
+   * Creates a resolver.
+   *
+   * @param queryUtils The query helpers to resolve through.
+   * @param executor The executor to run queries on. Its thread count bounds the parallelism.
+   * @param deadlineMillis Milliseconds resolution may take before outstanding queries get
+   *     cancelled.
+   */
+  public EntityResolver(QueryUtils queryUtils, ExecutorService executor, long deadlineMillis) {
+    if (deadlineMillis < 1) {
+      throw new IllegalArgumentException("Deadline has to be positive, but is "
+          + deadlineMillis);
+    }
+    this.queryUtils = queryUtils;
+    this.executor = executor;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Resolves queries to entities.
+   *
+   * @param queries The queries to resolve. Duplicate queries get resolved only once.
+   * @param queryType One of EXACT_MATCH, PARTIAL_MATCH, and ENTITY_ID.
+   * @param maxResults The maximum number of entities to request per query.
+   * @return The outcome of the resolution.
+   * @throws Exception if all queries failed or missed the deadline.
+   * @throws InterruptedException if interrupted while waiting for queries.
+   */
+  public Result resolve(Collection<String> queries, final String queryType,
+      final int maxResults) throws Exception {
+    List<String> distinctQueries = new ArrayList<>(new LinkedHashSet<>(queries));
+    final long deadline = System.currentTimeMillis() + deadlineMillis;
+    // Tasks run on pool threads, so the caller's trace has to get handed over explicitly.
+    final RequestTracer.Trace trace = RequestTracer.current();
+    List<Callable<Resolution>> tasks = new ArrayList<>(distinctQueries.size());
+    for (final String query : distinctQueries) {
+      tasks.add(new Callable<Resolution>() {
+        @Override
+        public Resolution call() throws Exception {
+          long start = System.nanoTime();
+          RequestTracer.Trace previousTrace = RequestTracer.attach(trace);
+          long previous = RequestUtils.attachDeadline(deadline);
+          try {
+            List<Entity> entities = queryUtils.fetchEntities(query, queryType, maxResults);
+            return new Resolution(entities, (System.nanoTime() - start) / 1000000);
+          } finally {
+            RequestUtils.attachDeadline(previous);
+            RequestTracer.attach(previousTrace);
+          }
+        }
+      });
+    }
+
+    long start = System.nanoTime();
+    // invokeAll cancels all tasks that did not complete before the deadline, including those
+    // that still wait for a thread.
+    List<Future<Resolution>> futures = executor.invokeAll(tasks, deadlineMillis,
+        TimeUnit.MILLISECONDS);
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+    Map<String, Entity> byEntityId = new LinkedHashMap<>();
+    List<String> failedQueries = new ArrayList<>();
+    List<String> timedOutQueries = new ArrayList<>();
+    List<Long> latencies = new ArrayList<>(futures.size());
+    Exception firstFailure = null;
+    for (int i = 0; i < futures.size(); i++) {
+      String query = distinctQueries.get(i);
+      Resolution resolution;
+      try {
+        resolution = futures.get(i).get();
+      } catch (CancellationException e) {
+        timedOutQueries.add(query);
+        if (firstFailure == null) {
+          firstFailure = new IOException("Resolving '" + query + "' missed the deadline");
+        }
+        continue;
+      } catch (ExecutionException e) {
+        failedQueries.add(query);
+        log.warn("Resolving '" + query + "' failed", e.getCause());
+        if (firstFailure == null) {
+          firstFailure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+        continue;
+      }
+      latencies.add(resolution.latencyMillis);
+      for (Entity entity : resolution.entities) {
+        String entityId = entity.getEntityId();
+        if (entityId != null && !byEntityId.containsKey(entityId)) {
+          byEntityId.put(entityId, entity);
+        }
+      }
+    }
+    if (!timedOutQueries.isEmpty()) {
+      log.warn(timedOutQueries.size() + " entity queries missed the deadline of "
+          + deadlineMillis + " ms");
+    }
+    if (latencies.isEmpty() && firstFailure != null) {
+      throw firstFailure;
+    }
+
+    Collections.sort(latencies);
+    long[] latenciesMillis = new long[latencies.size()];
+    for (int i = 0; i < latenciesMillis.length; i++) {
+      latenciesMillis[i] = latencies.get(i);
+    }
+    return new Result(new ArrayList<>(byEntityId.values()), failedQueries, timedOutQueries,
+        latenciesMillis, elapsedMillis);
+  }
+}
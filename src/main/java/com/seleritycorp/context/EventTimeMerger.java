@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges concurrent recommendation streams into a single stream ordered by item timestamp.
+ *
+ * <p>Each stream appends to its own {@link Source}. Items get buffered until the watermark
+ * passes their timestamp, and are then handed to the downstream sinks in timestamp order. A
+ * source's watermark trails the newest timestamp it delivered by the allowed lateness. The
+ * merged watermark is the lowest watermark of all sources that delivered items within the idle
+ * time, so a quiet query does not hold back the others. If all sources are idle, all buffered
+ * items get emitted.
+ *
+ * <p>Items arriving with a timestamp before the merged watermark would break the order
+ * downstream, so they are dropped and counted as late. Items without a usable timestamp cannot
+ * be ordered and are passed on right away.
+ */
+public class EventTimeMerger implements Closeable {
+  private static final Log log = LogFactory.getLog(EventTimeMerger.class);
+
+  private static final long UNKNOWN = TimestampUtils.UNKNOWN;
+
+  /**
+   * Single stream feeding into the merger.
+   *
+   * <p>Flushing a source advances the merger's watermark. Closing a source removes it from the
+   * watermark calculation.
+   */
+  public final class Source implements RecommendationSink {
+    private final String name;
+    private long maxItemMillis = UNKNOWN;
+    private long lastActivityMillis;
+
+    private Source(String name, long nowMillis) {
+      this.name = name;
+      this.lastActivityMillis = nowMillis;
+    }
+
+    @Override
+    public void append(RawRecommendation recommendation) throws IOException {
+      add(this, recommendation, System.currentTimeMillis());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      advance(System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() throws IOException {
+      removeSource(this, System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the name of the source.
+     *
+     * @return The source's name.
+     */
+    public String getName() {
+      return name;
+    }
+  }
+
+  private static final class Entry {
+    final RawRecommendation recommendation;
+    final long itemMillis;
+    final long sequence;
+
+    Entry(RawRecommendation recommendation, long itemMillis, long sequence) {
+      this.recommendation = recommendation;
+      this.itemMillis = itemMillis;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Orders by timestamp, and items of equal timestamp by arrival.
+   */
+  private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      int ret = Long.compare(o1.itemMillis, o2.itemMillis);
+      return (ret != 0) ? ret : Long.compare(o1.sequence, o2.sequence);
+    }
+  };
+
+  private final List<RecommendationSink> downstream;
+  private final long latenessMillis;
+  private final long idleMillis;
+  private final List<Source> sources = new ArrayList<>();
+  private final PriorityQueue<Entry> buffer = new PriorityQueue<>(64, BY_TIME);
+  private long watermark = UNKNOWN;
+  private long maxItemMillis = UNKNOWN;
+  private long sequence = 0;
+  private int maxBufferedCount = 0;
+  private long lateCount = 0;
+  private long emittedCount = 0;
+
+  /**
+   * Creates a merger.
+   *
+   * @param downstream The sinks to hand the ordered items to.
+   * @param latenessMillis How many milliseconds items may arrive late with respect to the newest
+   *     item of the same source.
+   * @param idleMillis Sources that did not deliver items for that many milliseconds no longer
+   *     hold back the watermark.
+   */
+  public EventTimeMerger(List<? extends RecommendationSink> downstream, long latenessMillis,
+      long idleMillis) {
+    if (latenessMillis < 0 || idleMillis < 0) {
+      throw new IllegalArgumentException("Lateness and idle time must not be negative, but are "
+          + latenessMillis + " and " + idleMillis);
+    }
+    this.downstream = new ArrayList<>(downstream);
+    this.latenessMillis = latenessMillis;
+    this.idleMillis = idleMillis;
+  }
+
+  /**
+   * Adds a stream to merge.
+   *
+   * <p>Until the new source delivers items or turns idle, it holds back the watermark, as its
+   * first items may be older than anything seen so far.
+   *
+   * @param name The name of the source, used for logging.
+   * @return The sink to append the stream's items to.
+   */
+  public Source addSource(String name) {
+    return addSource(name, System.currentTimeMillis());
+  }
+
+  synchronized Source addSource(String name, long nowMillis) {
+    Source source = new Source(name, nowMillis);
+    sources.add(source);
+    return source;
+  }
+
+  synchronized void removeSource(Source source, long nowMillis) throws IOException {
+    if (sources.remove(source)) {
+      advance(nowMillis);
+    }
+  }
+
+  /**
+   * Adds an item of a source.
+   *
+   * @param source The source that delivered the item.
+   * @param recommendation The item to add.
+   * @param nowMillis The current time.
+   * @throws IOException if passing on an item without timestamp fails.
+   */
+  synchronized void add(Source source, RawRecommendation recommendation, long nowMillis)
+      throws IOException {
+    long itemMillis = TimestampUtils.parseMillis(recommendation.getTimestamp());
+    if (itemMillis == UNKNOWN) {
+      emit(recommendation);
+      return;
+    }
+
+    source.lastActivityMillis = nowMillis;
+    source.maxItemMillis = Math.max(source.maxItemMillis, itemMillis);
+    maxItemMillis = Math.max(maxItemMillis, itemMillis);
+    if (itemMillis < watermark) {
+      lateCount++;
+      if (log.isDebugEnabled()) {
+        log.debug("Dropping item " + recommendation.getContentId() + " of source " + source.name
+            + " arriving " + (watermark - itemMillis) + " ms behind the watermark");
+      }
+      return;
+    }
+    buffer.add(new Entry(recommendation, itemMillis, sequence++));
+    maxBufferedCount = Math.max(maxBufferedCount, buffer.size());
+  }
+
+  /**
+   * Advances the watermark and hands items it passed downstream.
+   *
+   * @param nowMillis The current time, used to detect idle sources.
+   * @throws IOException if handing items downstream fails.
+   */
+  synchronized void advance(long nowMillis) throws IOException {
+    long candidate = Long.MAX_VALUE;
+    boolean hasActiveSource = false;
+    for (Source source : sources) {
+      if (nowMillis - source.lastActivityMillis < idleMillis) {
+        hasActiveSource = true;
+        candidate = Math.min(candidate, (source.maxItemMillis == UNKNOWN) ? UNKNOWN
+            : source.maxItemMillis - latenessMillis);
+      }
+    }
+    if (!hasActiveSource) {
+      candidate = maxItemMillis;
+    }
+    if (candidate > watermark) {
+      watermark = candidate;
+    }
+
+    int count = 0;
+    while (!buffer.isEmpty() && buffer.peek().itemMillis <= watermark) {
+      emit(buffer.poll().recommendation);
+      count++;
+    }
+    for (RecommendationSink sink : downstream) {
+      sink.flush();
+    }
+    if (count > 0 && log.isDebugEnabled()) {
+      log.debug("Emitted " + count + " items up to watermark " + watermark + ". "
+          + buffer.size() + " items remain buffered.");
+    }
+  }
+
+  private void emit(RawRecommendation recommendation) throws IOException {
+    for (RecommendationSink sink : downstream) {
+      sink.append(recommendation);
+    }
+    emittedCount++;
+  }
+
+  /**
+   * Hands all buffered items downstream regardless of the watermark.
+   *
+   * <p>The downstream sinks do not get closed.
+   *
+   * @throws IOException if handing items downstream fails.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    sources.clear();
+    advance(System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the current watermark.
+   *
+   * @return The epoch milliseconds up to which all items got emitted, or
+   *     {@link TimestampUtils#UNKNOWN} if no item got emitted yet.
+   */
+  public synchronized long getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * Gets the number of items waiting for the watermark.
+   *
+   * @return The number of currently buffered items.
+   */
+  public synchronized int getBufferedCount() {
+    return buffer.size();
+  }
+
+  /**
+   * Gets the highest number of items that waited for the watermark at the same time.
+   *
+   * @return The maximum number of buffered items.
+   */
+  public synchronized int getMaxBufferedCount() {
+    return maxBufferedCount;
+  }
+
+  /**
+   * Gets the number of items dropped, as they arrived behind the watermark.
+   *
+   * @return The number of late items.
+   */
+  public synchronized long getLateCount() {
+    return lateCount;
+  }
+
+  /**
+   * Gets the number of items handed downstream.
+   *
+   * @return The number of emitted items.
+   */
+  public synchronized long getEmittedCount() {
+    return emittedCount;
+  }
+}
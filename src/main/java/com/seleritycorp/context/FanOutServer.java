@@ -0,0 +1,747 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local server that fans out recommendations of shared upstream polls to many subscribers.
+ *
+ * <p>Clients subscribe through Server-Sent Events at {@code /recommendations}, optionally
+ * passing {@code query}, {@code querytype}, {@code contributions}, and {@code exact} as URL
+ * parameters (with the same meaning as the demo's command line options). All subscribers of
+ * the same parameters share a single {@link RecommendationFeed}, so each distinct query is
+ * polled only once regardless of the number of subscribers. A feed starts with its first
+ * subscriber and stops with its last.
+ *
+ * <p>Each event carries the content id as {@code id} and the recommendation's raw Json as
+ * {@code data}. Comments are sent as heartbeat if no items arrive for a while.
+ *
+ * <p>If a {@link LocalSearchIndex} is set, all items of all feeds get indexed, and
+ * {@code /search?q=TEXT&limit=N} answers with a Json array of the best matching recently
+ * received items without asking the API.
+ *
+ * <p>If a {@link TopKAggregator} is set, all items of all feeds get ranked, and {@code /top}
+ * answers with a Json array of the current top items along with their decayed score.
+ *
+ * <p>Added sinks get the items of all feeds directly, as they arrive. If an
+ * {@link EventTimeMerger} is set, each feed becomes one of its sources instead, so the merger's
+ * sinks get the items of all feeds in timestamp order.
+ *
+ * <p>If an {@link InterestCoalescer} is set, subscribers whose query resolves to entities no
+ * longer get a feed per distinct query. Instead, the coalescer packs subscriptions of the same
+ * query type and contribution mode into shared feeds for the union of their entities, and each
+ * subscriber only gets the items relevant to its own entities. As that needs the
+ * {@code RELEVANCE_ENTITY} contributions, shared feeds request at least DIRECT contributions.
+ *
+ * <p>UPDATE queries are incremental per session, so each feed polls on its own session
+ * {@code <session>-feed-<n>}.
+ */
+public class FanOutServer {
+  private static final Log log = LogFactory.getLog(FanOutServer.class);
+
+  /**
+   * Path at which subscribers connect.
+   */
+  public static final String PATH_RECOMMENDATIONS = "/recommendations";
+
+  /**
+   * Path for searching recently received items.
+   */
+  public static final String PATH_SEARCH = "/search";
+
+  /**
+   * Path for the top items across all feeds.
+   */
+  public static final String PATH_TOP = "/top";
+
+  /**
+   * Number of search results, if the request does not specify a limit.
+   */
+  private static final int DEFAULT_SEARCH_LIMIT = 20;
+
+  /**
+   * Seconds without items after which a heartbeat gets sent to subscribers.
+   */
+  private static final int HEARTBEAT_SECONDS = 15;
+
+  private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final QueryUtils queryUtils;
+  private final int batchSize;
+  private final int maxEntities;
+  private final long pauseMillis;
+  private final int bufferCapacity;
+  private final Subscriber.SlowConsumerPolicy policy;
+  private final Map<String, RecommendationFeed> feeds = new HashMap<>();
+  private final AtomicLong subscriberCounter = new AtomicLong();
+  private final AtomicLong feedCounter = new AtomicLong();
+  private LocalSearchIndex searchIndex;
+  private TopKAggregator topKAggregator;
+  private EventTimeMerger eventTimeMerger;
+  private final List<RecommendationSink> sinks = new ArrayList<>();
+  private final Map<RecommendationFeed, EventTimeMerger.Source> mergerSources = new HashMap<>();
+  private InterestCoalescer interestCoalescer;
+  private final Map<InterestCoalescer.Upstream, RecommendationFeed> coalescedFeeds =
+      new HashMap<>();
+  private final Map<InterestCoalescer.Upstream, Set<String>> coalescedEntityIds =
+      new HashMap<>();
+  private final AtomicLong retiredSavedRequestCount = new AtomicLong();
+  private ExecutorService executor;
+  private HttpServer server;
+
+  /**
+   * Creates a fan-out server.
+   *
+   * @param queryUtils The query helpers to poll through.
+   * @param batchSize The number of items to request per poll.
+   * @param maxEntities Upper bound for how many entities a query term should resolve to.
+   * @param pauseMillis Pause in milliseconds between polls of a feed.
+   * @param bufferCapacity How many items to buffer at most per subscriber.
+   * @param policy How to treat subscribers whose buffer is full.
+   */
+  public FanOutServer(QueryUtils queryUtils, int batchSize, int maxEntities, long pauseMillis,
+      int bufferCapacity, Subscriber.SlowConsumerPolicy policy) {
+    this.queryUtils = queryUtils;
+    this.batchSize = batchSize;
+    this.maxEntities = maxEntities;
+    this.pauseMillis = pauseMillis;
+    this.bufferCapacity = bufferCapacity;
+    this.policy = policy;
+  }
+
+  /**
+   * Sets the index that all feeds' items get added to and that serves searches.
+   *
+   * <p>Has to be called before starting the server.
+   *
+   * @param searchIndex The index to use.
+   */
+  public synchronized void setSearchIndex(LocalSearchIndex searchIndex) {
+    this.searchIndex = searchIndex;
+  }
+
+  /**
+   * Sets the aggregator that ranks all feeds' items and serves the top items.
+   *
+   * <p>Has to be called before starting the server.
+   *
+   * @param topKAggregator The aggregator to use.
+   */
+  public synchronized void setTopKAggregator(TopKAggregator topKAggregator) {
+    this.topKAggregator = topKAggregator;
+  }
+
+  /**
+   * Sets the merger that gets the items of all feeds.
+   *
+   * <p>Has to be called before starting the server. Closing the merger is up to the caller.
+   *
+   * @param eventTimeMerger The merger to use.
+   */
+  public synchronized void setEventTimeMerger(EventTimeMerger eventTimeMerger) {
+    this.eventTimeMerger = eventTimeMerger;
+  }
+
+  /**
+   * Adds a sink that gets the items of all feeds.
+   *
+   * <p>Has to be called before starting the server. The sink gets called from all feeds'
+   * threads, so it has to be thread-safe. Closing the sink is up to the caller.
+   *
+   * @param sink The sink to add.
+   */
+  public synchronized void addSink(RecommendationSink sink) {
+    sinks.add(sink);
+  }
+
+  /**
+   * Sets the coalescer that plans shared feeds for subscribers with overlapping interests.
+   *
+   * <p>Has to be called before starting the server.
+   *
+   * @param interestCoalescer The coalescer to use.
+   */
+  public synchronized void setInterestCoalescer(InterestCoalescer interestCoalescer) {
+    this.interestCoalescer = interestCoalescer;
+  }
+
+  /**
+   * Gets the number of upstream requests saved by coalescing subscriptions.
+   *
+   * @return The number of upstream requests that shared feeds saved so far.
+   */
+  public long getSavedRequestCount() {
+    synchronized (feeds) {
+      long ret = retiredSavedRequestCount.get();
+      for (RecommendationFeed feed : feeds.values()) {
+        ret += feed.getSavedRequestCount();
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Starts serving.
+   *
+   * @param address The address to listen on. Use a loopback address to serve only local
+   *     clients.
+   * @throws IOException if the server cannot be bound.
+   */
+  public synchronized void start(InetSocketAddress address) throws IOException {
+    // Each subscriber and each feed occupies a thread, so the pool has to grow unbounded.
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(address, 0);
+    server.createContext(PATH_RECOMMENDATIONS, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleSubscription(exchange);
+      }
+    });
+    if (searchIndex != null) {
+      server.createContext(PATH_SEARCH, new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          handleSearch(exchange);
+        }
+      });
+    }
+    if (topKAggregator != null) {
+      server.createContext(PATH_TOP, new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          handleTop(exchange);
+        }
+      });
+    }
+    server.setExecutor(executor);
+    server.start();
+    log.info("Serving recommendations at " + server.getAddress() + PATH_RECOMMENDATIONS);
+  }
+
+  /**
+   * Stops serving and stops all feeds.
+   */
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+    synchronized (feeds) {
+      for (RecommendationFeed feed : feeds.values()) {
+        stopFeed(feed);
+      }
+      feeds.clear();
+      coalescedFeeds.clear();
+      coalescedEntityIds.clear();
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Gets the address the server is listening on.
+   *
+   * @return The bound address. null, if the server is not started.
+   */
+  public synchronized InetSocketAddress getAddress() {
+    return (server == null) ? null : server.getAddress();
+  }
+
+  /**
+   * Gets the number of currently running feeds.
+   *
+   * @return The number of feeds.
+   */
+  public int getFeedCount() {
+    synchronized (feeds) {
+      return feeds.size();
+    }
+  }
+
+  private void handleSubscription(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, "Only GET is supported");
+        return;
+      }
+
+      String query = "";
+      String queryType = "FEED";
+      String contributions = "NONE";
+      boolean exact = false;
+      for (NameValuePair parameter : URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8")) {
+        switch (parameter.getName()) {
+          case "query":
+            query = parameter.getValue();
+            break;
+          case "querytype":
+            queryType = parameter.getValue();
+            break;
+          case "contributions":
+            contributions = parameter.getValue();
+            break;
+          case "exact":
+            exact = Boolean.parseBoolean(parameter.getValue());
+            break;
+          default:
+            // Unknown parameters are ignored to allow for future extensions.
+        }
+      }
+
+      switch (queryType) {
+        case "FEED":
+        case "RECOMMENDATION":
+        case "SURVEY":
+        case "SEARCH":
+        case "DISCOVERY":
+          break;
+        default:
+          sendError(exchange, 400, "Unknown query type " + queryType);
+          return;
+      }
+
+      switch (contributions) {
+        case "NONE":
+        case "DIRECT":
+        case "ALL":
+          break;
+        default:
+          sendError(exchange, 400, "Unknown contribution mode " + contributions);
+          return;
+      }
+
+      String feedKey = queryType + "|" + contributions + "|" + exact + "|"
+          + (query == null ? "" : query);
+      Subscriber subscriber = new Subscriber("subscriber-"
+          + subscriberCounter.incrementAndGet() + " (" + exchange.getRemoteAddress() + ")",
+          bufferCapacity, policy);
+
+      if (interestCoalescer != null && query != null && !query.isEmpty()) {
+        Set<String> entityIds;
+        try {
+          entityIds = new LinkedHashSet<>(resolveEntityIds(query, exact));
+        } catch (Exception e) {
+          log.warn("Failed to resolve entities for " + feedKey, e);
+          sendError(exchange, 502, "Failed to resolve entities: " + e.getMessage());
+          return;
+        }
+        // Queries without entities ask for all content, so they cannot be demultiplexed.
+        if (!entityIds.isEmpty()) {
+          String group = queryType + "|" + contributions;
+          InterestCoalescer.Upstream upstream;
+          try {
+            upstream = subscribeCoalesced(group, queryType, contributions, entityIds,
+                subscriber);
+          } catch (Exception e) {
+            log.warn("Failed to set up shared feed for " + feedKey, e);
+            sendError(exchange, 502, "Failed to set up feed: " + e.getMessage());
+            return;
+          }
+
+          try {
+            stream(exchange, subscriber);
+          } finally {
+            unsubscribeCoalesced(upstream, entityIds, subscriber);
+          }
+          return;
+        }
+      }
+
+      RecommendationFeed feed;
+      try {
+        feed = subscribe(feedKey, query, queryType, contributions, exact, subscriber);
+      } catch (Exception e) {
+        log.warn("Failed to set up feed " + feedKey, e);
+        sendError(exchange, 502, "Failed to set up feed: " + e.getMessage());
+        return;
+      }
+
+      try {
+        stream(exchange, subscriber);
+      } finally {
+        unsubscribe(feedKey, feed, subscriber);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleSearch(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, "Only GET is supported");
+        return;
+      }
+
+      String query = "";
+      int limit = DEFAULT_SEARCH_LIMIT;
+      for (NameValuePair parameter : URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8")) {
+        switch (parameter.getName()) {
+          case "q":
+            query = parameter.getValue();
+            break;
+          case "limit":
+            try {
+              limit = Integer.parseInt(parameter.getValue());
+            } catch (NumberFormatException e) {
+              sendError(exchange, 400, "Limit is not a number");
+              return;
+            }
+            break;
+          default:
+            // Unknown parameters are ignored to allow for future extensions.
+        }
+      }
+
+      List<RawRecommendation> results = searchIndex.search(query, limit);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      out.write('[');
+      for (int i = 0; i < results.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        results.get(i).writeTo(out);
+      }
+      out.write(']');
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleTop(HttpExchange exchange) throws IOException {
+    try {
+      List<TopKAggregator.Ranked> top = topKAggregator.snapshot();
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      out.write('[');
+      for (int i = 0; i < top.size(); i++) {
+        TopKAggregator.Ranked ranked = top.get(i);
+        double decayedScore = ranked.getDecayedScore();
+        // Json has no NaN, so unscored items get null.
+        String prefix = ((i > 0) ? "," : "") + "{\"decayedScore\":"
+            + (Double.isNaN(decayedScore) ? "null" : Double.toString(decayedScore))
+            + ",\"recommendation\":";
+        out.write(prefix.getBytes(StandardCharsets.UTF_8));
+        ranked.getRecommendation().writeTo(out);
+        out.write('}');
+      }
+      out.write(']');
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private List<String> resolveEntityIds(String query, boolean exact) throws Exception {
+    List<String> entityIds = new LinkedList<>();
+    if (query != null && !query.isEmpty()) {
+      String entityQueryMode = exact ? "EXACT_MATCH" : "PARTIAL_MATCH";
+      for (Entity entity : queryUtils.fetchEntities(query, entityQueryMode, maxEntities)) {
+        entityIds.add(entity.getEntityId());
+      }
+    }
+    return entityIds;
+  }
+
+  /**
+   * Creates a feed and hooks it up with the configured sinks.
+   *
+   * <p>Has to be called while holding the lock on {@code feeds}.
+   *
+   * @param feedKey The key of the feed.
+   * @param feedQueryUtils The query helpers of the feed's session.
+   * @param template The query to poll. It has to be compiled for the feed's session.
+   * @return The created feed. It is not yet started.
+   */
+  private RecommendationFeed createFeed(String feedKey, QueryUtils feedQueryUtils,
+      QueryTemplate template) {
+    RecommendationFeed feed = new RecommendationFeed(feedKey, feedQueryUtils, template,
+        pauseMillis);
+    if (searchIndex != null) {
+      feed.addSink(searchIndex);
+    }
+    if (topKAggregator != null) {
+      feed.addSink(topKAggregator);
+    }
+    for (RecommendationSink sink : sinks) {
+      feed.addSink(sink);
+    }
+    if (eventTimeMerger != null) {
+      EventTimeMerger.Source source = eventTimeMerger.addSource(feedKey);
+      mergerSources.put(feed, source);
+      feed.addSink(source);
+    }
+    return feed;
+  }
+
+  /**
+   * Creates query helpers for a new feed.
+   *
+   * <p>UPDATE queries are incremental per session, so each feed needs a session of its own.
+   *
+   * @return The query helpers of the new feed's session.
+   */
+  private QueryUtils createFeedSession() {
+    return queryUtils.forSession(queryUtils.getSessionId() + "-feed-"
+        + feedCounter.incrementAndGet());
+  }
+
+  private RecommendationFeed subscribe(String feedKey, String query, String queryType,
+      String contributions, boolean exact, Subscriber subscriber) throws Exception {
+    synchronized (feeds) {
+      RecommendationFeed feed = feeds.get(feedKey);
+      if (feed != null) {
+        feed.addSubscriber(subscriber);
+        log.info("Subscribed " + subscriber + " to feed " + feedKey);
+        return feed;
+      }
+    }
+
+    // Resolving entities asks the API, so it must not block other subscriptions.
+    List<String> entityIds = resolveEntityIds(query, exact);
+    QueryUtils feedQueryUtils = createFeedSession();
+    QueryTemplate template = feedQueryUtils.compileRecommendationsQuery(queryType, batchSize,
+        contributions, entityIds);
+
+    synchronized (feeds) {
+      RecommendationFeed feed = feeds.get(feedKey);
+      if (feed == null) {
+        feed = createFeed(feedKey, feedQueryUtils, template);
+        feeds.put(feedKey, feed);
+        // Adding the subscriber before starting the feed, so it sees the INITIAL items.
+        feed.addSubscriber(subscriber);
+        executor.execute(feed);
+        log.info("Started feed " + feedKey + " for " + entityIds.size() + " entities");
+      } else {
+        // Another subscriber started the feed meanwhile.
+        feed.addSubscriber(subscriber);
+      }
+      log.info("Subscribed " + subscriber + " to feed " + feedKey);
+      return feed;
+    }
+  }
+
+  private void unsubscribe(String feedKey, RecommendationFeed feed, Subscriber subscriber) {
+    subscriber.close();
+    synchronized (feeds) {
+      feed.removeSubscriber(subscriber);
+      if (feed.getSubscriberCount() == 0 && feeds.get(feedKey) == feed) {
+        feeds.remove(feedKey);
+        stopFeed(feed);
+        log.info("Stopped feed " + feedKey + " as it has no subscribers left");
+      }
+    }
+    log.info("Unsubscribed " + subscriber + " from feed " + feedKey + " after dropping "
+        + subscriber.getDroppedCount() + " items");
+  }
+
+  private InterestCoalescer.Upstream subscribeCoalesced(String group, String queryType,
+      String contributions, Set<String> entityIds, Subscriber subscriber) throws Exception {
+    synchronized (feeds) {
+      InterestCoalescer.Upstream upstream = interestCoalescer.add(group, entityIds);
+      RecommendationFeed feed = coalescedFeeds.get(upstream);
+      QueryUtils feedQueryUtils = (feed != null) ? feed.getQueryUtils() : createFeedSession();
+      QueryTemplate template = null;
+      if (!upstream.getEntityIds().equals(coalescedEntityIds.get(upstream))) {
+        try {
+          // Demultiplexing needs the RELEVANCE_ENTITY contributions.
+          template = feedQueryUtils.compileRecommendationsQuery(queryType, batchSize,
+              "NONE".equals(contributions) ? "DIRECT" : contributions,
+              new ArrayList<>(upstream.getEntityIds()));
+        } catch (RuntimeException e) {
+          interestCoalescer.remove(upstream, entityIds);
+          throw e;
+        }
+      }
+      if (feed == null) {
+        feed = createFeed("coalesced|" + upstream.getName(), feedQueryUtils, template);
+        coalescedFeeds.put(upstream, feed);
+        feeds.put(feed.getName(), feed);
+        feed.addSubscriber(subscriber, entityIds);
+        feed.setCoalescedQueryCount(upstream.getInterestCount());
+        executor.execute(feed);
+        log.info("Started shared feed " + feed.getName() + " for " + entityIds.size()
+            + " entities");
+      } else {
+        // Updating the count first, so the next poll already counts the added interest.
+        feed.setCoalescedQueryCount(upstream.getInterestCount());
+        if (template != null) {
+          feed.addSubscriber(subscriber, entityIds, template);
+          log.info("Re-planned shared feed " + feed.getName() + " for "
+              + upstream.getEntityIds().size() + " entities");
+        } else {
+          feed.addSubscriber(subscriber, entityIds);
+        }
+      }
+      coalescedEntityIds.put(upstream, upstream.getEntityIds());
+      log.info("Subscribed " + subscriber + " to shared feed " + feed.getName() + " serving "
+          + upstream.getInterestCount() + " distinct interests");
+      return upstream;
+    }
+  }
+
+  private void unsubscribeCoalesced(InterestCoalescer.Upstream upstream, Set<String> entityIds,
+      Subscriber subscriber) {
+    subscriber.close();
+    synchronized (feeds) {
+      RecommendationFeed feed = coalescedFeeds.get(upstream);
+      if (feed == null) {
+        // The server got stopped meanwhile.
+        return;
+      }
+      feed.removeSubscriber(subscriber);
+      if (interestCoalescer.remove(upstream, entityIds)) {
+        coalescedFeeds.remove(upstream);
+        coalescedEntityIds.remove(upstream);
+        feeds.remove(feed.getName());
+        stopFeed(feed);
+        log.info("Stopped shared feed " + feed.getName() + " as it has no subscribers left");
+      } else {
+        feed.setCoalescedQueryCount(upstream.getInterestCount());
+        if (!upstream.getEntityIds().equals(coalescedEntityIds.get(upstream))) {
+          try {
+            QueryTemplate template = feed.getQueryTemplate();
+            feed.setQueryTemplate(feed.getQueryUtils().compileRecommendationsQuery(
+                template.getQueryType(), batchSize, template.getContributionMode(),
+                new ArrayList<>(upstream.getEntityIds())));
+            coalescedEntityIds.put(upstream, upstream.getEntityIds());
+            log.info("Re-planned shared feed " + feed.getName() + " for "
+                + upstream.getEntityIds().size() + " entities");
+          } catch (RuntimeException e) {
+            // The feed's current query still covers all remaining subscribers.
+            log.warn("Failed to re-plan shared feed " + feed.getName(), e);
+          }
+        }
+      }
+    }
+    log.info("Unsubscribed " + subscriber + " from shared feed " + upstream.getName()
+        + " after dropping " + subscriber.getDroppedCount() + " items");
+  }
+
+  /**
+   * Stops a feed, ends its session, and detaches it from the merger.
+   *
+   * <p>Has to be called while holding the lock on {@code feeds}.
+   *
+   * @param feed The feed to stop.
+   */
+  private void stopFeed(RecommendationFeed feed) {
+    feed.stop();
+    // The feed's session does not get used again, so its endpoint pin would only take up memory.
+    feed.getQueryUtils().endSession();
+    retiredSavedRequestCount.addAndGet(feed.getSavedRequestCount());
+    EventTimeMerger.Source source = mergerSources.remove(feed);
+    if (source != null) {
+      try {
+        source.close();
+      } catch (IOException e) {
+        log.warn("Failed to detach feed " + feed.getName() + " from merger", e);
+      }
+    }
+  }
+
+  private void stream(HttpExchange exchange, Subscriber subscriber) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    out.flush();
+    try {
+      while (true) {
+        RawRecommendation recommendation = subscriber.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        if (recommendation != null) {
+          writeEvent(out, recommendation);
+        } else if (subscriber.isClosed()) {
+          break;
+        } else {
+          out.write(HEARTBEAT);
+        }
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      // The subscriber went away. This is the regular way for subscriptions to end.
+      log.debug("Failed to write to " + subscriber, e);
+    }
+  }
+
+  /**
+   * Writes a recommendation as Server-Sent Event.
+   *
+   * @param out The stream to write to.
+   * @param recommendation The recommendation to write.
+   * @throws IOException if writing fails.
+   */
+  static void writeEvent(OutputStream out, RawRecommendation recommendation)
+      throws IOException {
+    StringBuilder sb = new StringBuilder();
+    String contentId = recommendation.getContentId();
+    if (contentId != null) {
+      sb.append("id: ").append(contentId.replace('\r', ' ').replace('\n', ' ')).append('\n');
+    }
+    sb.append("data: ");
+    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    // Json strings cannot contain raw line breaks, so line breaks are only whitespace between
+    // tokens and can be blanked out to keep the item on a single data line.
+    byte[] data = recommendation.toByteArray();
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == '\n' || data[i] == '\r') {
+        data[i] = ' ';
+      }
+    }
+    out.write(data);
+    out.write('\n');
+    out.write('\n');
+  }
+
+  private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+  }
+}
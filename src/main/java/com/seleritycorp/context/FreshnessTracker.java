@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks how fresh content items are when they get written out.
+ *
+ * <p>For each item, the delay gets split into the stages between the item's {@code timestamp},
+ * the {@code requestSent} of the query that returned it, the response's arrival, and the item
+ * getting written out. Delays get aggregated into histograms in milliseconds per source and
+ * query type, so polling can get tuned against an end-to-end freshness objective.
+ *
+ * <p>Items get registered upon arrival through {@link #arrived}, and their delays get recorded
+ * once they get written out through {@link #written}, which the sink that writes them calls
+ * (See {@link #track}). Items that never get written (E.g.: as they were seen before) get
+ * forgotten once more than the configured number of items waits.
+ *
+ * <p>Delays rely on the clocks of the server and this host agreeing. Negative delays due to
+ * clock skew count as 0.
+ */
+public class FreshnessTracker {
+  private static final Log log = LogFactory.getLog(FreshnessTracker.class);
+
+  /**
+   * The stages of an item's way from being published to being written out.
+   */
+  public enum Stage {
+    /** From the item's timestamp to sending the query that returned it. */
+    PUBLISHED_TO_REQUEST,
+    /** From sending the query to the response's arrival. */
+    REQUEST_TO_ARRIVAL,
+    /** From the response's arrival to writing out the item. */
+    ARRIVAL_TO_WRITTEN,
+    /** From the item's timestamp to writing it out. */
+    PUBLISHED_TO_WRITTEN
+  }
+
+  /**
+   * What is known about an item that arrived but did not get written out yet.
+   */
+  private static final class Arrival {
+    private final String queryType;
+    private final long requestSentMillis;
+    private final long arrivalMillis;
+
+    private Arrival(String queryType, long requestSentMillis, long arrivalMillis) {
+      this.queryType = queryType;
+      this.requestSentMillis = requestSentMillis;
+      this.arrivalMillis = arrivalMillis;
+    }
+  }
+
+  private final Map<RawRecommendation, Arrival> pending;
+  private final Map<Stage, Map<String, LatencyHistogram>> histograms = new EnumMap<>(
+      Stage.class);
+  private long writtenCount = 0;
+  private long untrackedCount = 0;
+
+  /**
+   * Creates a tracker.
+   *
+   * @param maxPending The maximum number of arrived items to remember until they get written.
+   */
+  public FreshnessTracker(final int maxPending) {
+    this.pending = new LinkedHashMap<RawRecommendation, Arrival>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<RawRecommendation, Arrival> eldest) {
+        return size() > maxPending;
+      }
+    };
+    for (Stage stage : Stage.values()) {
+      histograms.put(stage, new TreeMap<String, LatencyHistogram>());
+    }
+  }
+
+  /**
+   * Registers items of a response.
+   *
+   * @param queryType The type of the query that returned the items.
+   * @param requestSentMillis The epoch millis the query got sent at.
+   * @param arrivalMillis The epoch millis the response arrived at.
+   * @param items The items of the response.
+   */
+  public synchronized void arrived(String queryType, long requestSentMillis, long arrivalMillis,
+      Collection<RawRecommendation> items) {
+    Arrival arrival = new Arrival(queryType, requestSentMillis, arrivalMillis);
+    for (RawRecommendation item : items) {
+      // Cached responses hand out the same items again. Their first arrival is the honest one.
+      if (!pending.containsKey(item)) {
+        pending.put(item, arrival);
+      }
+    }
+  }
+
+  /**
+   * Records the delays of an item that got written out.
+   *
+   * @param item The written item.
+   * @param writtenMillis The epoch millis the item got written at.
+   */
+  public void written(RawRecommendation item, long writtenMillis) {
+    Arrival arrival;
+    synchronized (this) {
+      arrival = pending.remove(item);
+      if (arrival == null) {
+        untrackedCount++;
+        return;
+      }
+      writtenCount++;
+    }
+
+    // Decoding happens outside the lock. Printed items got decoded already anyway.
+    String source = null;
+    try {
+      Source itemSource = item.getRecommendation().getSource();
+      source = (itemSource == null) ? null : itemSource.getName();
+    } catch (IOException e) {
+      log.debug("Could not decode source of " + item.getContentId(), e);
+    }
+    String key = ((source == null) ? "unknown" : source) + "/" + arrival.queryType;
+
+    long publishedMillis = TimestampUtils.parseMillis(item.getTimestamp());
+    synchronized (this) {
+      if (publishedMillis != TimestampUtils.UNKNOWN) {
+        histogram(Stage.PUBLISHED_TO_REQUEST, key).record(
+            arrival.requestSentMillis - publishedMillis);
+        histogram(Stage.PUBLISHED_TO_WRITTEN, key).record(writtenMillis - publishedMillis);
+      }
+      histogram(Stage.REQUEST_TO_ARRIVAL, key).record(
+          arrival.arrivalMillis - arrival.requestSentMillis);
+      histogram(Stage.ARRIVAL_TO_WRITTEN, key).record(writtenMillis - arrival.arrivalMillis);
+    }
+  }
+
+  /**
+   * Wraps a sink, to record items as written once the sink appended them.
+   *
+   * <p>Only suits sinks that write items within {@link RecommendationSink#append}. Sinks that
+   * write later (E.g.: on a thread of their own) have to call {@link #written} themselves.
+   *
+   * @param sink The sink to wrap.
+   * @return The wrapped sink.
+   */
+  public RecommendationSink track(final RecommendationSink sink) {
+    return new RecommendationSink() {
+      @Override
+      public void append(RawRecommendation recommendation) throws IOException {
+        sink.append(recommendation);
+        written(recommendation, System.currentTimeMillis());
+      }
+
+      @Override
+      public void flush() throws IOException {
+        sink.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        sink.close();
+      }
+    };
+  }
+
+  private LatencyHistogram histogram(Stage stage, String key) {
+    Map<String, LatencyHistogram> byKey = histograms.get(stage);
+    LatencyHistogram ret = byKey.get(key);
+    if (ret == null) {
+      ret = new LatencyHistogram();
+      byKey.put(key, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the histograms of a stage.
+   *
+   * @param stage The stage to get histograms for.
+   * @return The histograms in milliseconds by {@code source/queryType}. Items without a source
+   *     count as source {@code unknown}.
+   */
+  public synchronized Map<String, LatencyHistogram> getHistograms(Stage stage) {
+    return new TreeMap<>(histograms.get(stage));
+  }
+
+  /**
+   * Gets the number of written items whose delays got recorded.
+   *
+   * @return The number of tracked written items.
+   */
+  public synchronized long getWrittenCount() {
+    return writtenCount;
+  }
+
+  /**
+   * Gets the number of written items that did not get registered upon arrival, or that got
+   * forgotten before being written.
+   *
+   * @return The number of untracked written items.
+   */
+  public synchronized long getUntrackedCount() {
+    return untrackedCount;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans shared upstream queries for subscriptions with overlapping entity interests.
+ *
+ * <p>Subscriptions of the same group (i.e.: same query type and contribution mode) get packed
+ * into upstream queries whose interests are the union of the subscriptions' entity ids. A new
+ * subscription joins the upstream query that needs the fewest additional entities while staying
+ * within the entity limit of a query. Upstream queries that already cover all of its entities
+ * are reused unchanged. If no upstream query fits, a new one gets planned.
+ *
+ * <p>When subscriptions leave, the union of their upstream query shrinks to the entities of the
+ * remaining subscriptions.
+ */
+public class InterestCoalescer {
+  /**
+   * Planned upstream query.
+   */
+  public static final class Upstream {
+    private final String group;
+    private final int id;
+    private final Map<Set<String>, Integer> interests = new HashMap<>();
+    private Set<String> entityIds = Collections.emptySet();
+
+    private Upstream(String group, int id) {
+      this.group = group;
+      this.id = id;
+    }
+
+    /**
+     * Gets the group of the upstream query.
+     *
+     * @return The group of the subscriptions that share this query.
+     */
+    public String getGroup() {
+      return group;
+    }
+
+    /**
+     * Gets the name of the upstream query.
+     *
+     * @return The upstream query's name, made of its group and a number.
+     */
+    public String getName() {
+      return group + "#" + id;
+    }
+
+    /**
+     * Gets the entities to query for.
+     *
+     * @return The union of all the subscriptions' entity ids.
+     */
+    public Set<String> getEntityIds() {
+      return entityIds;
+    }
+
+    /**
+     * Gets the number of distinct interests that the upstream query serves.
+     *
+     * <p>Without coalescing, each of them would need its own upstream query.
+     *
+     * @return The number of distinct entity sets of the subscriptions.
+     */
+    public int getInterestCount() {
+      return interests.size();
+    }
+
+    private Set<String> union(Set<String> additionalEntityIds) {
+      Set<String> ret = new LinkedHashSet<>(entityIds);
+      ret.addAll(additionalEntityIds);
+      return ret;
+    }
+
+    private void recomputeEntityIds() {
+      Set<String> union = new LinkedHashSet<>();
+      for (Set<String> interest : interests.keySet()) {
+        union.addAll(interest);
+      }
+      entityIds = Collections.unmodifiableSet(union);
+    }
+  }
+
+  private final int maxEntities;
+  private final Map<String, List<Upstream>> groups = new HashMap<>();
+  private int upstreamCounter = 0;
+
+  /**
+   * Creates a coalescer.
+   *
+   * @param maxEntities The maximum number of entities of an upstream query.
+   */
+  public InterestCoalescer(int maxEntities) {
+    if (maxEntities < 1) {
+      throw new IllegalArgumentException("Upstream queries have to allow at least one entity, "
+          + "but allow " + maxEntities);
+    }
+    this.maxEntities = maxEntities;
+  }
+
+  /**
+   * Plans a subscription into an upstream query.
+   *
+   * <p>Callers can detect whether the upstream query's entities changed through
+   * {@link Upstream#getEntityIds()} returning a different set.
+   *
+   * @param group The group of compatible subscriptions.
+   * @param entityIds The subscription's entity ids. Must not be empty.
+   * @return The upstream query that serves the subscription.
+   */
+  public synchronized Upstream add(String group, Set<String> entityIds) {
+    if (entityIds.isEmpty() || entityIds.size() > maxEntities) {
+      throw new IllegalArgumentException("Subscriptions need between 1 and " + maxEntities
+          + " entities, but got " + entityIds.size());
+    }
+    List<Upstream> upstreams = groups.get(group);
+    if (upstreams == null) {
+      upstreams = new ArrayList<>();
+      groups.put(group, upstreams);
+    }
+
+    Upstream best = null;
+    int bestSize = Integer.MAX_VALUE;
+    for (Upstream upstream : upstreams) {
+      int size = upstream.union(entityIds).size();
+      if (size <= maxEntities && size < bestSize) {
+        best = upstream;
+        bestSize = size;
+      }
+    }
+    if (best == null) {
+      best = new Upstream(group, ++upstreamCounter);
+      upstreams.add(best);
+    }
+
+    Set<String> interest = Collections.unmodifiableSet(new LinkedHashSet<>(entityIds));
+    Integer count = best.interests.get(interest);
+    best.interests.put(interest, (count == null) ? 1 : count + 1);
+    if (!best.entityIds.containsAll(interest)) {
+      best.entityIds = Collections.unmodifiableSet(best.union(interest));
+    }
+    return best;
+  }
+
+  /**
+   * Removes a subscription from its upstream query.
+   *
+   * @param upstream The upstream query the subscription got planned into.
+   * @param entityIds The subscription's entity ids.
+   * @return true, if the upstream query serves no subscriptions anymore and got dropped.
+   */
+  public synchronized boolean remove(Upstream upstream, Set<String> entityIds) {
+    Set<String> interest = new LinkedHashSet<>(entityIds);
+    Integer count = upstream.interests.get(interest);
+    if (count == null) {
+      return false;
+    }
+    if (count > 1) {
+      upstream.interests.put(interest, count - 1);
+      return false;
+    }
+    upstream.interests.remove(interest);
+    if (upstream.interests.isEmpty()) {
+      List<Upstream> upstreams = groups.get(upstream.group);
+      upstreams.remove(upstream);
+      if (upstreams.isEmpty()) {
+        groups.remove(upstream.group);
+      }
+      return true;
+    }
+    upstream.recomputeEntityIds();
+    return false;
+  }
+
+  /**
+   * Gets the number of planned upstream queries.
+   *
+   * @return The number of upstream queries across all groups.
+   */
+  public synchronized int getUpstreamCount() {
+    int ret = 0;
+    for (List<Upstream> upstreams : groups.values()) {
+      ret += upstreams.size();
+    }
+    return ret;
+  }
+}
@@ -16,20 +16,134 @@
 
 package com.seleritycorp.context;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Utility Methods for working with Json objects.  
+ * 
+ * <p>None of the accessors throws on missing fields, Json nulls, or values of unexpected types.
+ * Instead, they check types up front and fall back to a default value or an empty marker. Feed
+ * items routinely lack optional fields (like {@code socialInfo} or {@code summary}), so
+ * handling misses through exceptions would fill stack traces over and over in the rendering
+ * hot path. Empty markers are computed once per field and reused afterwards.
  */
 public class JsonUtils {
+  /**
+   * Upper bound for the number of cached empty markers.
+   * 
+   * <p>Field names come from code, so only few distinct markers are used. The bound guards
+   * against unbounded growth if callers pass dynamic field names.
+   */
+  private static final int MAX_CACHED_MARKERS = 1024;
+
+  private static final ConcurrentMap<String, String> MARKERS = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, ConcurrentMap<String, String>> SUB_MARKERS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Precompiled path of nested fields.
+   * 
+   * <p>Compile paths once (e.g.: as constants) and pass them to the path accessors, to access
+   * nested fields without allocating on each access.
+   */
+  public static final class FieldPath {
+    private final String[] fields;
+    private final String emptyMarker;
+
+    private FieldPath(String[] fields) {
+      this.fields = fields;
+      StringBuilder joined = new StringBuilder();
+      for (String field : fields) {
+        if (joined.length() > 0) {
+          joined.append("->");
+        }
+        joined.append(field);
+      }
+      this.emptyMarker = buildEmptyMarker(joined.toString());
+    }
+
+    /**
+     * Compiles a path of nested fields.
+     * 
+     * @param fields The field names from the outermost to the innermost field.
+     * @return The compiled path.
+     */
+    public static FieldPath of(String... fields) {
+      if (fields.length == 0) {
+        throw new IllegalArgumentException("A path needs at least one field");
+      }
+      return new FieldPath(fields.clone());
+    }
+
+    /**
+     * Gets the empty marker for this path.
+     * 
+     * @return The empty marker for this path.
+     */
+    public String getEmptyMarker() {
+      return emptyMarker;
+    }
+  }
+
+  private static String buildEmptyMarker(String field) {
+    return "<no proper " + field + ">";    
+  }
+
+  private static String cachedMarker(ConcurrentMap<String, String> cache, String key,
+      String marker) {
+    if (cache.size() < MAX_CACHED_MARKERS) {
+      String existing = cache.putIfAbsent(key, marker);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return marker;
+  }
+
   /**
    * Gets the value that marks that the Json object does not have a given field.
    * 
    * @param field The field to get the empty marker for.
    * @return The empty marker.
    */
-  private String getEmptyMarker(String field) {
-    return "<no proper " + field + ">";    
+  public String getEmptyMarker(String field) {
+    String ret = MARKERS.get(field);
+    if (ret == null) {
+      ret = cachedMarker(MARKERS, field, buildEmptyMarker(field));
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the value that marks that the Json object does not have a given subfield of a field.
+   * 
+   * @param field The field to get the empty marker for.
+   * @param subfield The subfield of the field to get the empty marker for.
+   * @return The empty marker.
+   */
+  public String getEmptyMarker(String field, String subfield) {
+    ConcurrentMap<String, String> subMarkers = SUB_MARKERS.get(field);
+    if (subMarkers == null) {
+      subMarkers = new ConcurrentHashMap<>();
+      if (SUB_MARKERS.size() < MAX_CACHED_MARKERS) {
+        ConcurrentMap<String, String> existing = SUB_MARKERS.putIfAbsent(field, subMarkers);
+        if (existing != null) {
+          subMarkers = existing;
+        }
+      }
+    }
+    String ret = subMarkers.get(subfield);
+    if (ret == null) {
+      ret = cachedMarker(subMarkers, subfield, buildEmptyMarker(field + "->" + subfield));
+    }
+    return ret;
   }
 
   /**
@@ -41,14 +155,8 @@ public class JsonUtils {
    *     field.
    */
   public String getAsString(JsonObject object, String field) {
-    String ret;
-    try {
-      ret = object.get(field).getAsString();
-    } catch (Exception e) {
-      // Failed to get the field.
-      ret = getEmptyMarker(field);
-    }
-    return ret;
+    String ret = getString(object, field, null);
+    return ret != null ? ret : getEmptyMarker(field);
   }
 
   /**
@@ -61,13 +169,158 @@ public class JsonUtils {
    *     given field.
    */
   public String getAsString(JsonObject object, String field, String subfield) {
-    String ret;
-    try {
-      ret = object.get(field).getAsJsonObject().get(subfield).getAsString();
-    } catch (Exception e) {
-      // Failed to get the field.
-      ret = getEmptyMarker(field + "->" + subfield);
+    String ret = getString(getObject(object, field), subfield, null);
+    return ret != null ? ret : getEmptyMarker(field, subfield);
+  }
+
+  /**
+   * Gets a nested field as string.
+   * 
+   * @param object The object to start the path at.
+   * @param path The path to the field.
+   * @return The field's value as string or the path's empty marker, if the object does not have
+   *     the field.
+   */
+  public String getAsString(JsonObject object, FieldPath path) {
+    String ret = getString(object, path, null);
+    return ret != null ? ret : path.getEmptyMarker();
+  }
+
+  /**
+   * Gets a Json object's field.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @return The field's value, or null if object is null, lacks the field, or the field is Json
+   *     null.
+   */
+  public JsonElement get(JsonObject object, String field) {
+    if (object == null) {
+      return null;
     }
-    return ret;
+    JsonElement ret = object.get(field);
+    return (ret == null || ret.isJsonNull()) ? null : ret;
+  }
+
+  /**
+   * Gets a nested field.
+   * 
+   * @param object The object to start the path at. May be null.
+   * @param path The path to the field.
+   * @return The field's value, or null if some part of the path is missing, Json null, or
+   *     (except for the last field) not a Json object.
+   */
+  public JsonElement get(JsonObject object, FieldPath path) {
+    JsonObject current = object;
+    String[] fields = path.fields;
+    int last = fields.length - 1;
+    for (int i = 0; i < last; i++) {
+      current = getObject(current, fields[i]);
+    }
+    return get(current, fields[last]);
+  }
+
+  /**
+   * Gets a Json object's field if it is a primitive.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @return The field's value, or null if it is missing or not a primitive.
+   */
+  public JsonPrimitive getPrimitive(JsonObject object, String field) {
+    JsonElement element = get(object, field);
+    return (element != null && element.isJsonPrimitive()) ? element.getAsJsonPrimitive() : null;
+  }
+
+  /**
+   * Gets a Json object's field if it is an object.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @return The field's value, or null if it is missing or not an object.
+   */
+  public JsonObject getObject(JsonObject object, String field) {
+    JsonElement element = get(object, field);
+    return (element != null && element.isJsonObject()) ? element.getAsJsonObject() : null;
+  }
+
+  /**
+   * Gets a Json object's field if it is an array.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @return The field's value, or null if it is missing or not an array.
+   */
+  public JsonArray getArray(JsonObject object, String field) {
+    JsonElement element = get(object, field);
+    return (element != null && element.isJsonArray()) ? element.getAsJsonArray() : null;
+  }
+
+  /**
+   * Gets a Json object's primitive field as string.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @param defaultValue The value to return, if the field is not a proper primitive.
+   * @return The field's value as string, or defaultValue, if the field is missing or not a
+   *     primitive.
+   */
+  public String getString(JsonObject object, String field, String defaultValue) {
+    JsonPrimitive primitive = getPrimitive(object, field);
+    return primitive != null ? primitive.getAsString() : defaultValue;
+  }
+
+  /**
+   * Gets a nested primitive field as string.
+   * 
+   * @param object The object to start the path at. May be null.
+   * @param path The path to the field.
+   * @param defaultValue The value to return, if the field is not a proper primitive.
+   * @return The field's value as string, or defaultValue, if the field is missing or not a
+   *     primitive.
+   */
+  public String getString(JsonObject object, FieldPath path, String defaultValue) {
+    JsonElement element = get(object, path);
+    return (element != null && element.isJsonPrimitive()) ? element.getAsString() : defaultValue;
+  }
+
+  /**
+   * Gets a Json object's numeric field as double.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @param defaultValue The value to return, if the field is not a proper number.
+   * @return The field's value, or defaultValue, if the field is missing or not a number.
+   */
+  public double getDouble(JsonObject object, String field, double defaultValue) {
+    JsonPrimitive primitive = getPrimitive(object, field);
+    return (primitive != null && primitive.isNumber()) ? primitive.getAsDouble() : defaultValue;
+  }
+
+  /**
+   * Gets a Json object's numeric field as long.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @param defaultValue The value to return, if the field is not a proper number.
+   * @return The field's value, or defaultValue, if the field is missing or not a number.
+   */
+  public long getLong(JsonObject object, String field, long defaultValue) {
+    JsonPrimitive primitive = getPrimitive(object, field);
+    return (primitive != null && primitive.isNumber()) ? primitive.getAsLong() : defaultValue;
+  }
+
+  /**
+   * Gets a Json object's boolean field.
+   * 
+   * @param object The object to get the field on. May be null.
+   * @param field The field to get on the object
+   * @param defaultValue The value to return, if the field is not a proper boolean.
+   * @return The field's value, or defaultValue, if the field is missing or not a boolean.
+   */
+  public boolean getBoolean(JsonObject object, String field, boolean defaultValue) {
+    JsonPrimitive primitive = getPrimitive(object, field);
+    return (primitive != null && primitive.isBoolean()) ? primitive.getAsBoolean()
+        : defaultValue;
   }
 }
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sink that archives recommendations as Json lines into rotating files.
+ *
+ * <p>Each recommendation is written as its original response bytes on a line of its own. Items
+ * are handed to a background thread through a bounded queue, so appending never blocks the poll
+ * loop. If the queue is full (e.g.: the disk stalls), items are dropped and counted instead.
+ *
+ * <p>The background thread drains all queued items at once, collects them in a direct buffer,
+ * and writes them with a single write call (group commit). Files get synced to disk at most
+ * once per sync interval. Files are rotated when they reach a size or an age limit. With
+ * compression enabled, each written block becomes a gzip member of its own. Concatenated gzip
+ * members form a valid gzip file, so the files can be read by the usual tools.
+ */
+public class JsonlFileSink implements RecommendationSink {
+  private static final Log log = LogFactory.getLog(JsonlFileSink.class);
+
+  /**
+   * Size of the buffer that collects items before they get written.
+   */
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Upper bound for waiting on new items, so time-based rotation and syncing also happen for
+   * idle feeds.
+   */
+  private static final long IDLE_WAKEUP_MILLIS = 1000;
+
+  /**
+   * Queued by {@link #close()} to stop the writer thread after all items got written.
+   */
+  private static final RawRecommendation CLOSE_MARKER = new RawRecommendation(new byte[0], 0, 0,
+      null, null, Double.NaN);
+
+  private final Path directory;
+  private final String prefix;
+  private final long maxFileBytes;
+  private final long maxFileMillis;
+  private final long syncIntervalMillis;
+  private final boolean compress;
+  private final BlockingQueue<RawRecommendation> queue;
+  private final Thread writer;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private final Object closingLock = new Object();
+  private boolean closing = false; // Guarded by closingLock
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong writtenCount = new AtomicLong();
+
+  // The following fields are only accessed by the writer thread.
+  private FileChannel channel;
+  private Path currentFile;
+  private long fileBytes;
+  private long fileOpenedMillis;
+  private long lastSyncMillis;
+  private boolean unsynced;
+  private int fileCounter = 0;
+  private final List<RawRecommendation> buffered = new ArrayList<>(); // Not yet written
+  private volatile FreshnessTracker freshnessTracker;
+  private int batchPosition; // Items of the current batch that got buffered or written
+
+  /**
+   * Creates a sink and starts its writer thread.
+   *
+   * @param directory The directory to write the files to. It gets created if needed.
+   * @param prefix The prefix for file names.
+   * @param maxFileBytes Rotate files after this many (uncompressed) bytes.
+   * @param maxFileMillis Rotate files after this many milliseconds.
+   * @param syncIntervalMillis Minimum time in milliseconds between syncing files to disk. 0
+   *     syncs after each group commit. Negative values never sync explicitly and leave it to
+   *     the operating system.
+   * @param compress If true, files get gzip compressed.
+   * @param queueCapacity How many items may wait for the writer thread at most.
+   * @throws IOException if the directory cannot be created.
+   */
+  public JsonlFileSink(Path directory, String prefix, long maxFileBytes, long maxFileMillis,
+      long syncIntervalMillis, boolean compress, int queueCapacity) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.prefix = prefix;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFileMillis = maxFileMillis;
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.compress = compress;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.writer = new Thread("jsonl-sink-" + prefix) {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    };
+    // Daemon, so the sink does not keep the process alive. close() drains the queue.
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a recommendation for writing without blocking.
+   *
+   * @param recommendation The recommendation to write.
+   */
+  @Override
+  public void append(RawRecommendation recommendation) {
+    synchronized (closingLock) {
+      // Checking and queueing atomically, so no item can get queued behind the close marker.
+      if (!closing && queue.offer(recommendation)) {
+        return;
+      }
+    }
+    long dropped = droppedCount.incrementAndGet();
+    log.warn("Dropping recommendation " + recommendation.getContentId() + ", as the archive "
+        + "writer does not keep up (" + dropped + " dropped so far)");
+  }
+
+  /**
+   * Does not wait for anything, as the writer thread writes items as soon as they arrive.
+   */
+  @Override
+  public void flush() {
+    // Nothing to do. Waiting for the writer thread would block the poll loop.
+  }
+
+  /**
+   * Writes all queued items, syncs, closes the current file, and stops the writer thread.
+   *
+   * @throws IOException if the thread got interrupted while waiting for the writer.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (closingLock) {
+      closing = true;
+    }
+    try {
+      // Interrupting the writer would close its file channel, so we queue a marker instead.
+      queue.put(CLOSE_MARKER);
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for archive writer", e);
+    }
+  }
+
+  /**
+   * Gets the number of items that got dropped as the queue was full or writing failed.
+   *
+   * @return The number of dropped items.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Gets the number of items that got written.
+   *
+   * @return The number of written items.
+   */
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  /**
+   * Sets the tracker to record items with once they got written.
+   *
+   * <p>Items get written on the writer thread, so appending does not mean being written yet.
+   *
+   * @param freshnessTracker The tracker to use. null disables tracking.
+   */
+  public void setFreshnessTracker(FreshnessTracker freshnessTracker) {
+    this.freshnessTracker = freshnessTracker;
+  }
+
+  private void writeLoop() {
+    List<RawRecommendation> batch = new ArrayList<>();
+    boolean stop = false;
+    while (!stop) {
+      batch.clear();
+      batchPosition = 0;
+      try {
+        RawRecommendation first = queue.poll(IDLE_WAKEUP_MILLIS, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+        }
+      } catch (InterruptedException e) {
+        log.warn("Archive writer got interrupted. Stopping.");
+        stop = true;
+      }
+      queue.drainTo(batch);
+      // No items follow the marker, as appending is refused once closing.
+      stop |= batch.remove(CLOSE_MARKER);
+
+      try {
+        if (!batch.isEmpty()) {
+          writeBatch(batch);
+        }
+        long now = System.currentTimeMillis();
+        if (channel != null && now - fileOpenedMillis >= maxFileMillis) {
+          closeFile();
+        } else {
+          maybeSync(now, false);
+        }
+      } catch (IOException e) {
+        // Items that made it to the file stay written. Buffered items get dropped with the file.
+        int unwritten = batch.size() - batchPosition + buffered.size();
+        droppedCount.addAndGet(batch.size() - batchPosition);
+        log.error("Failed to write " + unwritten + " recommendations to " + currentFile, e);
+        // Starting over with a fresh file, as the current one might be broken.
+        abandonFile();
+      }
+
+    }
+
+    try {
+      closeFile();
+    } catch (IOException e) {
+      log.error("Failed to close " + currentFile, e);
+      abandonFile();
+    }
+  }
+
+  private void writeBatch(List<RawRecommendation> batch) throws IOException {
+    for (RawRecommendation recommendation : batch) {
+      int lineLength = recommendation.getLength() + 1;
+      if (channel != null && (fileBytes + lineLength > maxFileBytes && fileBytes > 0)) {
+        closeFile();
+      }
+      if (channel == null) {
+        openFile();
+      }
+      if (buffer.remaining() < lineLength) {
+        writeBuffer();
+      }
+      if (buffer.remaining() < lineLength) {
+        // Item exceeds the whole buffer, so it gets written as a block of its own.
+        ByteBuffer line = ByteBuffer.allocate(lineLength);
+        putLine(line, recommendation);
+        line.flip();
+        writeBlock(line);
+        writtenCount.incrementAndGet();
+        FreshnessTracker tracker = freshnessTracker;
+        if (tracker != null) {
+          tracker.written(recommendation, System.currentTimeMillis());
+        }
+      } else {
+        putLine(buffer, recommendation);
+        buffered.add(recommendation);
+      }
+      fileBytes += lineLength;
+      batchPosition++;
+    }
+    // Group commit of all items of this batch.
+    writeBuffer();
+  }
+
+  /**
+   * Puts a recommendation's bytes as Json line into a buffer.
+   *
+   * @param target The buffer to write to. It needs room for the recommendation and a newline.
+   * @param recommendation The recommendation to write.
+   */
+  static void putLine(ByteBuffer target, RawRecommendation recommendation) {
+    int start = target.position();
+    target.put(recommendation.asByteBuffer());
+    // Json strings cannot contain raw line breaks, so line breaks are only whitespace between
+    // tokens and can be blanked out to keep the item on a single line.
+    for (int i = start; i < target.position(); i++) {
+      byte b = target.get(i);
+      if (b == '\n' || b == '\r') {
+        target.put(i, (byte) ' ');
+      }
+    }
+    target.put((byte) '\n');
+  }
+
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+    try {
+      if (buffer.hasRemaining()) {
+        writeBlock(buffer);
+      }
+      writtenCount.addAndGet(buffered.size());
+      FreshnessTracker tracker = freshnessTracker;
+      if (tracker != null) {
+        long now = System.currentTimeMillis();
+        for (RawRecommendation recommendation : buffered) {
+          tracker.written(recommendation, now);
+        }
+      }
+      buffered.clear();
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private void writeBlock(ByteBuffer block) throws IOException {
+    if (compress) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.remaining() / 4);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        byte[] chunk = new byte[8192];
+        while (block.hasRemaining()) {
+          int length = Math.min(chunk.length, block.remaining());
+          block.get(chunk, 0, length);
+          gzip.write(chunk, 0, length);
+        }
+      }
+      block = ByteBuffer.wrap(compressed.toByteArray());
+    }
+    while (block.hasRemaining()) {
+      channel.write(block);
+    }
+    unsynced = true;
+  }
+
+  private void maybeSync(long now, boolean force) throws IOException {
+    if (channel != null && unsynced && syncIntervalMillis >= 0
+        && (force || now - lastSyncMillis >= syncIntervalMillis)) {
+      channel.force(false);
+      lastSyncMillis = now;
+      unsynced = false;
+    }
+  }
+
+  private void openFile() throws IOException {
+    long now = System.currentTimeMillis();
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String name = prefix + "-" + format.format(new Date(now)) + "-" + (fileCounter++)
+        + (compress ? ".jsonl.gz" : ".jsonl");
+    currentFile = directory.resolve(name);
+    channel = FileChannel.open(currentFile, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+    fileBytes = 0;
+    fileOpenedMillis = now;
+    lastSyncMillis = now;
+    unsynced = false;
+    log.debug("Opened archive file " + currentFile);
+  }
+
+  private void closeFile() throws IOException {
+    if (channel != null) {
+      writeBuffer();
+      maybeSync(System.currentTimeMillis(), true);
+      channel.close();
+      channel = null;
+      log.debug("Closed archive file " + currentFile);
+    }
+  }
+
+  private void abandonFile() {
+    buffer.clear();
+    droppedCount.addAndGet(buffered.size());
+    buffered.clear();
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Failed to close abandoned archive file " + currentFile, e);
+      }
+      channel = null;
+    }
+  }
+}
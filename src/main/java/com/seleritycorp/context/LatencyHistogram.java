@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.Locale;
+
+/**
+ * Histogram of non-negative values (E.g.: latencies in microseconds).
+ *
+ * <p>Each power of two gets split into eight equally wide buckets, so
+ * percentiles are accurate to within 12.5% at constant memory, regardless of the range of the
+ * values.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] counts = new long[bucketOf(Long.MAX_VALUE) + 1];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  /**
+   * Gets the bucket of a value.
+   *
+   * @param value The non-negative value.
+   * @return The index of the value's bucket.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Gets the smallest value of a bucket.
+   *
+   * @param bucket The index of the bucket.
+   * @return The smallest value that falls into the bucket.
+   */
+  static long lowestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return (SUB_BUCKETS | subBucket) << shift;
+  }
+
+  /**
+   * Adds a value.
+   *
+   * @param value The value to add. Negative values count as 0.
+   */
+  public synchronized void record(long value) {
+    long clamped = Math.max(0, value);
+    counts[bucketOf(clamped)]++;
+    count++;
+    sum += clamped;
+    max = Math.max(max, clamped);
+  }
+
+  /**
+   * Gets the number of added values.
+   *
+   * @return The number of values.
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the mean of the added values.
+   *
+   * @return The mean, or 0 if no values got added.
+   */
+  public synchronized double getMean() {
+    return (count == 0) ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Gets the largest added value.
+   *
+   * @return The largest value, or 0 if no values got added.
+   */
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Gets a percentile of the added values.
+   *
+   * @param percentile The percentile to get. Between 0 and 100. (E.g.: 99)
+   * @return The smallest value of the bucket holding the percentile, but at most the largest
+   *     added value. 0 if no values got added.
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < counts.length; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        return Math.min(max, lowestValueOf(bucket));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Summarizes the histogram for humans.
+   *
+   * @return The count, mean, median, 90th, 99th percentile, and maximum of the values.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.ROOT, "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", count,
+        getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over headlines and summaries of recently received recommendations.
+ *
+ * <p>Items are indexed incrementally as they arrive and are evicted once they are older than
+ * the index window or once the index holds its maximum number of items. Items get increasing
+ * document ids, so each term's posting list is a sorted primitive int array and eviction just
+ * drops posting list heads.
+ *
+ * <p>A search returns the items that contain all query terms. Items are ranked by the product
+ * of a text score (term weights in headline and summary, scaled by the inverse document
+ * frequency of the term) and a boost of {@code 1 + ln(1 + score)} for the API-provided score.
+ *
+ * <p>Tokenizing happens outside of any lock, and the write lock is only held for adding
+ * postings. Searches run concurrently with each other.
+ */
+public class LocalSearchIndex implements RecommendationSink {
+  private static final Log log = LogFactory.getLog(LocalSearchIndex.class);
+
+  /**
+   * Weight of a term occurrence in the headline. Occurrences in the summary weigh 1.
+   */
+  static final int HEADLINE_WEIGHT = 3;
+
+  /**
+   * Number of appends after which all posting lists get trimmed from evicted items.
+   */
+  private static final int SWEEP_INTERVAL = 4096;
+
+  private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList("a", "an", "and",
+      "are", "as", "at", "be", "by", "for", "from", "has", "in", "is", "it", "of", "on", "or",
+      "that", "the", "to", "was", "were", "will", "with"));
+
+  private final long windowMillis;
+  private final int mask;
+  private final RawRecommendation[] docs;
+  private final long[] docTimes;
+  private final Map<String, Postings> postings = new HashMap<>();
+  private final Map<String, Integer> contentIdToDoc = new HashMap<>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int nextDoc = 0;
+  private int firstLiveDoc = 0;
+  private int appendsSinceSweep = 0;
+
+  /**
+   * Creates an index.
+   *
+   * @param windowMillis Evict items after this many milliseconds.
+   * @param maxItems Upper bound for the number of indexed items. Gets rounded up to a power of
+   *     two.
+   */
+  public LocalSearchIndex(long windowMillis, int maxItems) {
+    int capacity = Integer.highestOneBit(Math.max(maxItems, 2) - 1) << 1;
+    this.windowMillis = windowMillis;
+    this.mask = capacity - 1;
+    this.docs = new RawRecommendation[capacity];
+    this.docTimes = new long[capacity];
+  }
+
+  /**
+   * Splits text into lower-cased terms, dropping stop words and single characters.
+   *
+   * @param text The text to tokenize. May be null.
+   * @param weight The weight to add for each occurrence of a term.
+   * @param termWeights The map to add the term weights to.
+   */
+  static void tokenize(String text, int weight, Map<String, Integer> termWeights) {
+    if (text == null) {
+      return;
+    }
+    int length = text.length();
+    int pos = 0;
+    while (pos < length) {
+      while (pos < length && !Character.isLetterOrDigit(text.charAt(pos))) {
+        pos++;
+      }
+      int start = pos;
+      while (pos < length && Character.isLetterOrDigit(text.charAt(pos))) {
+        pos++;
+      }
+      if (pos - start > 1) {
+        String term = text.substring(start, pos).toLowerCase(Locale.ROOT);
+        if (!STOP_WORDS.contains(term)) {
+          Integer previous = termWeights.get(term);
+          termWeights.put(term, (previous == null) ? weight : previous + weight);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void append(RawRecommendation recommendation) {
+    append(recommendation, System.currentTimeMillis());
+  }
+
+  /**
+   * Indexes a recommendation.
+   *
+   * @param recommendation The recommendation to index.
+   * @param nowMillis The time of receiving the recommendation.
+   */
+  void append(RawRecommendation recommendation, long nowMillis) {
+    Map<String, Integer> termWeights = new LinkedHashMap<>();
+    try {
+      Recommendation decoded = recommendation.getRecommendation();
+      tokenize(decoded.getHeadline(), HEADLINE_WEIGHT, termWeights);
+      tokenize(decoded.getSummary(), 1, termWeights);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not decode " + recommendation.getContentId() + " for indexing", e);
+      return;
+    }
+
+    lock.writeLock().lock();
+    try {
+      evict(nowMillis);
+      String contentId = recommendation.getContentId();
+      if (contentId != null && contentIdToDoc.containsKey(contentId)) {
+        // Already indexed (e.g.: through another feed)
+        return;
+      }
+      if (nextDoc - firstLiveDoc > mask) {
+        evictDoc();
+      }
+      if (nextDoc == Integer.MAX_VALUE) {
+        rebase();
+      }
+
+      int doc = nextDoc++;
+      docs[doc & mask] = recommendation;
+      docTimes[doc & mask] = nowMillis;
+      if (contentId != null) {
+        contentIdToDoc.put(contentId, doc);
+      }
+      for (Map.Entry<String, Integer> entry : termWeights.entrySet()) {
+        Postings termPostings = postings.get(entry.getKey());
+        if (termPostings == null) {
+          termPostings = new Postings();
+          postings.put(entry.getKey(), termPostings);
+        }
+        termPostings.add(doc, entry.getValue(), firstLiveDoc);
+      }
+
+      if (++appendsSinceSweep >= SWEEP_INTERVAL) {
+        sweep();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Evicts items that fell out of the window. Has to be called with the write lock held.
+   */
+  private void evict(long nowMillis) {
+    long threshold = nowMillis - windowMillis;
+    while (firstLiveDoc < nextDoc && docTimes[firstLiveDoc & mask] < threshold) {
+      evictDoc();
+    }
+  }
+
+  private void evictDoc() {
+    int slot = firstLiveDoc & mask;
+    String contentId = docs[slot].getContentId();
+    if (contentId != null) {
+      contentIdToDoc.remove(contentId);
+    }
+    docs[slot] = null;
+    firstLiveDoc++;
+  }
+
+  /**
+   * Renumbers documents, so document ids do not overflow on long running indexes.
+   *
+   * <p>Ids are shifted by a multiple of the capacity, so documents keep their slots.
+   */
+  private void rebase() {
+    sweep();
+    int offset = firstLiveDoc & ~mask;
+    for (Postings termPostings : postings.values()) {
+      termPostings.rebase(offset);
+    }
+    for (Map.Entry<String, Integer> entry : contentIdToDoc.entrySet()) {
+      entry.setValue(entry.getValue() - offset);
+    }
+    firstLiveDoc -= offset;
+    nextDoc -= offset;
+  }
+
+  /**
+   * Trims evicted items from all posting lists and drops empty ones.
+   */
+  private void sweep() {
+    appendsSinceSweep = 0;
+    Iterator<Postings> iterator = postings.values().iterator();
+    while (iterator.hasNext()) {
+      Postings termPostings = iterator.next();
+      termPostings.trim(firstLiveDoc);
+      if (termPostings.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Does nothing, as items are searchable right after appending.
+   */
+  @Override
+  public void flush() {
+    // Nothing to do.
+  }
+
+  /**
+   * Does nothing, as the index holds no external resources.
+   */
+  @Override
+  public void close() {
+    // Nothing to do.
+  }
+
+  /**
+   * Searches for items containing all terms of a query.
+   *
+   * @param query The query text. It is tokenized like headlines and summaries.
+   * @param limit The maximum number of items to return.
+   * @return The best ranked matching items, best first.
+   */
+  public List<RawRecommendation> search(String query, int limit) {
+    return search(query, limit, System.currentTimeMillis());
+  }
+
+  /**
+   * Searches for items containing all terms of a query.
+   *
+   * @param query The query text. It is tokenized like headlines and summaries.
+   * @param limit The maximum number of items to return.
+   * @param nowMillis The current time, used to skip items that fell out of the window.
+   * @return The best ranked matching items, best first.
+   */
+  List<RawRecommendation> search(String query, int limit, long nowMillis) {
+    Map<String, Integer> queryTerms = new LinkedHashMap<>();
+    tokenize(query, 1, queryTerms);
+    if (queryTerms.isEmpty() || limit < 1) {
+      return Collections.emptyList();
+    }
+
+    lock.readLock().lock();
+    try {
+      long threshold = nowMillis - windowMillis;
+      int liveDocs = nextDoc - firstLiveDoc;
+      List<Postings> lists = new ArrayList<>(queryTerms.size());
+      for (String term : queryTerms.keySet()) {
+        Postings termPostings = postings.get(term);
+        if (termPostings == null) {
+          return Collections.emptyList();
+        }
+        lists.add(termPostings);
+      }
+      // Driving the intersection by the shortest list keeps the number of lookups low.
+      Postings shortest = lists.get(0);
+      double[] idfs = new double[lists.size()];
+      for (int i = 0; i < lists.size(); i++) {
+        Postings list = lists.get(i);
+        idfs[i] = Math.log(1 + (double) liveDocs / Math.max(1, list.liveCount(firstLiveDoc)));
+        if (list.size < shortest.size) {
+          shortest = list;
+        }
+      }
+
+      PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, Hit.BY_RANK);
+      int begin = shortest.firstIndexAtLeast(firstLiveDoc);
+      for (int i = begin; i < shortest.size; i++) {
+        int doc = shortest.docs[i];
+        if (docTimes[doc & mask] < threshold) {
+          continue;
+        }
+        double textScore = 0;
+        for (int j = 0; j < lists.size() && textScore >= 0; j++) {
+          int weight = lists.get(j).weightOf(doc);
+          if (weight == 0) {
+            textScore = -1;
+          } else {
+            textScore += idfs[j] * (1 + Math.log(weight));
+          }
+        }
+        if (textScore < 0) {
+          continue;
+        }
+        RawRecommendation recommendation = docs[doc & mask];
+        double apiScore = recommendation.getScore();
+        double boost = 1 + Math.log1p(Double.isNaN(apiScore) ? 0 : Math.max(0, apiScore));
+        top.add(new Hit(textScore * boost, doc, recommendation));
+        if (top.size() > limit) {
+          top.poll();
+        }
+      }
+
+      List<Hit> hits = new ArrayList<>(top);
+      Collections.sort(hits, Collections.reverseOrder(Hit.BY_RANK));
+      List<RawRecommendation> ret = new ArrayList<>(hits.size());
+      for (Hit hit : hits) {
+        ret.add(hit.recommendation);
+      }
+      return ret;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the number of indexed items that have not yet been evicted.
+   *
+   * @return The number of items.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return nextDoc - firstLiveDoc;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the number of distinct terms in the index.
+   *
+   * @return The number of terms.
+   */
+  int getTermCount() {
+    lock.readLock().lock();
+    try {
+      return postings.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Posting list of a term: increasing document ids along with the term's weight per document.
+   */
+  private static final class Postings {
+    int[] docs = new int[4];
+    int[] weights = new int[4];
+    int size = 0;
+
+    void add(int doc, int weight, int firstLiveDoc) {
+      if (size == docs.length) {
+        trim(firstLiveDoc);
+        if (size == docs.length) {
+          docs = Arrays.copyOf(docs, size * 2);
+          weights = Arrays.copyOf(weights, size * 2);
+        }
+      }
+      docs[size] = doc;
+      weights[size] = weight;
+      size++;
+    }
+
+    /**
+     * Drops evicted documents from the head and compacts the arrays.
+     */
+    void trim(int firstLiveDoc) {
+      int first = firstIndexAtLeast(firstLiveDoc);
+      if (first > 0) {
+        System.arraycopy(docs, first, docs, 0, size - first);
+        System.arraycopy(weights, first, weights, 0, size - first);
+        size -= first;
+      }
+    }
+
+    /**
+     * Shifts all document ids down by an offset.
+     */
+    void rebase(int offset) {
+      for (int i = 0; i < size; i++) {
+        docs[i] -= offset;
+      }
+    }
+
+    int firstIndexAtLeast(int doc) {
+      int ret = Arrays.binarySearch(docs, 0, size, doc);
+      return (ret >= 0) ? ret : -ret - 1;
+    }
+
+    int liveCount(int firstLiveDoc) {
+      return size - firstIndexAtLeast(firstLiveDoc);
+    }
+
+    int weightOf(int doc) {
+      int index = Arrays.binarySearch(docs, 0, size, doc);
+      return (index >= 0) ? weights[index] : 0;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+
+  /**
+   * Ranked search result.
+   */
+  private static final class Hit {
+    /**
+     * Orders hits by increasing rank. Among equally ranked hits, older ones go first.
+     */
+    static final Comparator<Hit> BY_RANK = new Comparator<Hit>() {
+      @Override
+      public int compare(Hit o1, Hit o2) {
+        int ret = Double.compare(o1.rank, o2.rank);
+        return (ret != 0) ? ret : Integer.compare(o1.doc, o2.doc);
+      }
+    };
+
+    final double rank;
+    final int doc;
+    final RawRecommendation recommendation;
+
+    Hit(double rank, int doc, RawRecommendation recommendation) {
+      this.rank = rank;
+      this.doc = doc;
+      this.recommendation = recommendation;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lock-free reader that tails a ring file written by {@link MappedRingSink}.
+ *
+ * <p>The reader maps the ring file read-only and spins on the published write cursor, so
+ * reading an item does not need any system call or any coordination with the writer. Readers
+ * are independent from each other, and the writer never waits for readers. If a reader falls
+ * behind by more than half the ring's capacity, it skips to the writer's cursor, as the
+ * records in between may already get overwritten. {@link #poll()} reports such overruns.
+ *
+ * <p>A reader instance is not thread-safe. Use one instance per consuming thread.
+ */
+public class MappedRingReader implements Closeable {
+  private final RandomAccessFile file;
+  private final MappedByteBuffer buffer;
+  private final ByteBuffer payloadView;
+  private final int capacity;
+  private final int lagLimit;
+  private final int mask;
+  private long position;
+  private long skippedBytes = 0;
+
+  /**
+   * Read before reading records and after copying them. See {@link MappedRingSink} on why a
+   * volatile access serves as fence.
+   */
+  private volatile long fence;
+
+  /**
+   * Opens a ring file for reading, starting at the current write cursor.
+   *
+   * @param path The ring file.
+   * @throws IOException if the file cannot be mapped or is no ring file.
+   */
+  public MappedRingReader(File path) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    try {
+      if (file.length() < MappedRingSink.HEADER_SIZE) {
+        throw new IOException("File " + path + " is too short for a ring file");
+      }
+      FileChannel channel = file.getChannel();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          MappedRingSink.HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt(MappedRingSink.MAGIC_OFFSET) != MappedRingSink.MAGIC) {
+        throw new IOException("File " + path + " is no ring file");
+      }
+      int version = header.getInt(MappedRingSink.VERSION_OFFSET);
+      if (version != MappedRingSink.VERSION) {
+        throw new IOException("Ring file " + path + " has unsupported version " + version);
+      }
+      long ringCapacity = header.getLong(MappedRingSink.CAPACITY_OFFSET);
+      if (Long.bitCount(ringCapacity) != 1
+          || ringCapacity > Integer.MAX_VALUE - MappedRingSink.HEADER_SIZE
+          || file.length() < MappedRingSink.HEADER_SIZE + ringCapacity) {
+        throw new IOException("Ring file " + path + " has invalid capacity " + ringCapacity);
+      }
+      this.capacity = (int) ringCapacity;
+      this.mask = this.capacity - 1;
+      this.lagLimit = this.capacity / 2;
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          MappedRingSink.HEADER_SIZE + this.capacity);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      payloadView = buffer.duplicate();
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+    position = readCursor();
+  }
+
+  private long readCursor() {
+    long ret = buffer.getLong(MappedRingSink.CURSOR_OFFSET);
+    fence = ret;
+    return ret;
+  }
+
+  /**
+   * Reads the next record's payload if one is available.
+   *
+   * @return The payload of the next record. null, if the reader caught up with the writer.
+   * @throws IOException if the writer overran the reader. The reader then continues at the
+   *     writer's current cursor, so calling {@code poll} again reads on.
+   */
+  public byte[] poll() throws IOException {
+    long cursor = readCursor();
+    if (position >= cursor) {
+      return null;
+    }
+    if (cursor - position > lagLimit) {
+      throw overrun(cursor);
+    }
+
+    int offset = (int) (position & mask);
+    int length = buffer.getInt(MappedRingSink.HEADER_SIZE + offset);
+    long next = position;
+    if (length == MappedRingSink.PADDING) {
+      next += capacity - offset;
+      offset = 0;
+      length = buffer.getInt(MappedRingSink.HEADER_SIZE);
+    }
+    long size = MappedRingSink.recordSize(length);
+    if (length < 0 || size > capacity - offset) {
+      // Writer lapped us while we were reading the length.
+      throw overrun(readCursor());
+    }
+
+    byte[] ret = new byte[length];
+    payloadView.position(MappedRingSink.HEADER_SIZE + offset + MappedRingSink.LENGTH_SIZE);
+    payloadView.get(ret);
+
+    // Payload got copied, so we can check whether the writer overwrote it in the meantime.
+    fence = next;
+    long cursorAfter = buffer.getLong(MappedRingSink.CURSOR_OFFSET);
+    next += size;
+    if (cursorAfter - position > lagLimit) {
+      throw overrun(cursorAfter);
+    }
+    position = next;
+    return ret;
+  }
+
+  /**
+   * Reads the next recommendation if one is available.
+   *
+   * @return The next recommendation. null, if the reader caught up with the writer.
+   * @throws IOException if the writer overran the reader.
+   */
+  public RawRecommendation pollRecommendation() throws IOException {
+    byte[] payload = poll();
+    return (payload == null) ? null : RawRecommendation.of(payload);
+  }
+
+  private IOException overrun(long cursor) {
+    long skipped = cursor - position;
+    skippedBytes += skipped;
+    position = cursor;
+    return new IOException("Reader got overrun by writer and skipped " + skipped + " bytes");
+  }
+
+  /**
+   * Gets the reader's position in the ring.
+   *
+   * @return The number of bytes written to the data region before the next record to read.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Gets how many bytes got skipped due to the writer overrunning the reader.
+   *
+   * @return The number of skipped bytes.
+   */
+  public long getSkippedBytes() {
+    return skippedBytes;
+  }
+
+  /**
+   * Closes the file.
+   *
+   * <p>The mapping itself is released by the garbage collector, as Java 7 offers no way to
+   * unmap explicitly.
+   */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Sink that appends recommendations to a memory-mapped ring file for same-host consumers.
+ *
+ * <p>Consumers in other processes tail the file through {@link MappedRingReader}. Handing over
+ * an item thereby boils down to a memory copy on both sides. Neither side needs a system call
+ * per item.
+ *
+ * <p>File layout (all numbers little endian):
+ * <ul>
+ * <li>Offset 0: int magic ({@link #MAGIC})</li>
+ * <li>Offset 4: int layout version ({@link #VERSION})</li>
+ * <li>Offset 8: long capacity of the data region in bytes (a power of two)</li>
+ * <li>Offset 64: long write cursor, i.e.: the total number of bytes ever written to the data
+ *     region. It sits on a cache line of its own, as readers spin on it.</li>
+ * <li>Offset {@link #HEADER_SIZE}: data region</li>
+ * </ul>
+ *
+ * <p>A record starts at {@code cursor % capacity} with an int holding the payload length,
+ * followed by the payload (the recommendation's raw Json). Records are padded to multiples of
+ * 8 bytes. If a record does not fit before the end of the data region, an int
+ * {@link #PADDING} is written instead and the record starts at the beginning of the data
+ * region. The write cursor is only advanced after a record is complete.
+ *
+ * <p>Only a single writer may use a ring file at a time. This is enforced through a file lock.
+ */
+public class MappedRingSink implements RecommendationSink {
+  private static final Log log = LogFactory.getLog(MappedRingSink.class);
+
+  static final int MAGIC = 0x43545852;
+  static final int VERSION = 1;
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 4;
+  static final int CAPACITY_OFFSET = 8;
+  static final int CURSOR_OFFSET = 64;
+  static final int HEADER_SIZE = 128;
+  static final int LENGTH_SIZE = 4;
+  static final int ALIGNMENT = 8;
+  static final int PADDING = -1;
+
+  /**
+   * Smallest supported capacity of the data region.
+   */
+  public static final int MIN_CAPACITY = 4096;
+
+  private final RandomAccessFile file;
+  private final FileLock lock;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final int mask;
+  private long cursor;
+  private long droppedCount = 0;
+
+  /**
+   * Written after a record and before publishing the cursor. On HotSpot, volatile writes are
+   * full fences, so they keep the record's stores from getting reordered past the cursor's
+   * store. Java 7 offers no cheaper ordered store on mapped buffers.
+   */
+  @SuppressWarnings("unused")
+  private volatile long fence;
+
+  /**
+   * Opens a ring file for writing.
+   *
+   * <p>If the file already is a ring file of the same capacity, writing continues at its write
+   * cursor, so attached readers keep on reading. Otherwise, the file is initialized from
+   * scratch.
+   *
+   * @param path The ring file.
+   * @param capacity The capacity of the data region in bytes. Has to be a power of two of at
+   *     least {@link #MIN_CAPACITY}.
+   * @throws IOException if the file cannot be mapped or is already used by another writer.
+   */
+  public MappedRingSink(File path, int capacity) throws IOException {
+    if (capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1
+        || capacity > Integer.MAX_VALUE - HEADER_SIZE) {
+      throw new IllegalArgumentException("Capacity has to be a power of two of at least "
+          + MIN_CAPACITY + ", but is " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+
+    file = new RandomAccessFile(path, "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      FileLock fileLock;
+      try {
+        fileLock = channel.tryLock(0, HEADER_SIZE, false);
+      } catch (OverlappingFileLockException e) {
+        // The lock is held within this JVM already.
+        fileLock = null;
+      }
+      lock = fileLock;
+      if (lock == null) {
+        throw new IOException("Ring file " + path + " is already used by another writer");
+      }
+      boolean reuse = file.length() == HEADER_SIZE + capacity;
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      reuse &= buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(VERSION_OFFSET) == VERSION
+          && buffer.getLong(CAPACITY_OFFSET) == capacity;
+      if (reuse) {
+        cursor = buffer.getLong(CURSOR_OFFSET);
+      } else {
+        cursor = 0;
+        buffer.putLong(CURSOR_OFFSET, cursor);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        fence = cursor;
+        // Magic goes last, so readers never accept a half-initialized header.
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+    log.debug("Opened ring file " + path + " with capacity " + capacity + " at cursor "
+        + cursor);
+  }
+
+  /**
+   * Gets the size a record for a payload takes up in the data region.
+   *
+   * @param payloadLength The length of the payload in bytes.
+   * @return The padded size of the record.
+   */
+  static long recordSize(int payloadLength) {
+    return (LENGTH_SIZE + (long) payloadLength + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+  }
+
+  /**
+   * Gets the largest record size the ring accepts.
+   *
+   * <p>Records and padding in flight then reach at most half the capacity beyond the
+   * published cursor. This leaves readers half the capacity to lag behind, before they get
+   * overrun.
+   *
+   * @return The maximum size of a record in bytes, including its length and padding.
+   */
+  public int getMaxRecordSize() {
+    return capacity / 4;
+  }
+
+  /**
+   * Appends a recommendation and publishes it to readers right away.
+   *
+   * <p>Recommendations larger than {@link #getMaxRecordSize()} are dropped, as they would
+   * overrun readers right away.
+   *
+   * @param recommendation The recommendation to append.
+   */
+  @Override
+  public synchronized void append(RawRecommendation recommendation) {
+    int length = recommendation.getLength();
+    long size = recordSize(length);
+    if (size > getMaxRecordSize()) {
+      droppedCount++;
+      log.warn("Dropping recommendation " + recommendation.getContentId() + " of " + length
+          + " bytes, as it does not fit into the ring");
+      return;
+    }
+
+    int position = (int) (cursor & mask);
+    long next = cursor;
+    if (position + size > capacity) {
+      // Record would wrap around, so we pad till the end of the data region.
+      buffer.putInt(HEADER_SIZE + position, PADDING);
+      next += capacity - position;
+      position = 0;
+    }
+
+    ByteBuffer target = buffer.duplicate();
+    target.position(HEADER_SIZE + position + LENGTH_SIZE);
+    target.put(recommendation.asByteBuffer());
+    buffer.putInt(HEADER_SIZE + position, length);
+    next += size;
+
+    fence = next;
+    buffer.putLong(CURSOR_OFFSET, next);
+    cursor = next;
+  }
+
+  /**
+   * Does nothing, as appended recommendations are visible to readers right away.
+   */
+  @Override
+  public void flush() {
+    // Nothing to do. Readers see records as soon as the cursor got published.
+  }
+
+  /**
+   * Gets the current write cursor.
+   *
+   * @return The total number of bytes written to the data region.
+   */
+  public synchronized long getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Gets the number of recommendations that got dropped as they were too large.
+   *
+   * @return The number of dropped recommendations.
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Releases the writer lock and closes the file.
+   *
+   * <p>The mapping itself is released by the garbage collector, as Java 7 offers no way to
+   * unmap explicitly.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      lock.release();
+    } finally {
+      file.close();
+    }
+  }
+}
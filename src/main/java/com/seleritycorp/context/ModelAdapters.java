@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming Gson adapters for the typed Context API model.
+ *
+ * <p>The adapters decode straight from a {@link JsonReader}, without building intermediate Json
+ * trees. Unknown fields are skipped at the token level. Fields of unexpected types are treated
+ * as missing, just as {@link JsonUtils} does.
+ */
+public final class ModelAdapters {
+  private ModelAdapters() {
+  }
+
+  /**
+   * Adapter for score contributions.
+   */
+  public static final TypeAdapter<Contribution> CONTRIBUTION = new TypeAdapter<Contribution>() {
+    @Override
+    public Contribution read(JsonReader in) throws IOException {
+      if (!beginObjectOrSkip(in)) {
+        return null;
+      }
+      Contribution ret = new Contribution();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "contributorType":
+            ret.contributorType = nextStringOrNull(in);
+            break;
+          case "contributor":
+            ret.contributor = nextStringOrNull(in);
+            break;
+          case "value":
+            ret.value = (float) nextDoubleOrNaN(in);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return ret;
+    }
+
+    @Override
+    public void write(JsonWriter out, Contribution value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("contributorType").value(value.contributorType);
+      out.name("contributor").value(value.contributor);
+      out.name("value").value(value.value);
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for recommended content items.
+   */
+  public static final TypeAdapter<Recommendation> RECOMMENDATION =
+      new TypeAdapter<Recommendation>() {
+        @Override
+        public Recommendation read(JsonReader in) throws IOException {
+          if (!beginObjectOrSkip(in)) {
+            return null;
+          }
+          Recommendation ret = new Recommendation();
+          while (in.hasNext()) {
+            switch (in.nextName()) {
+              case "contentID":
+                ret.contentId = nextStringOrNull(in);
+                break;
+              case "contentType":
+                ret.contentType = nextStringOrNull(in);
+                break;
+              case "headline":
+                ret.headline = nextStringOrNull(in);
+                break;
+              case "source":
+                ret.source = Source.of(nextStringOrNull(in));
+                break;
+              case "timestamp":
+                ret.timestamp = nextStringOrNull(in);
+                break;
+              case "score":
+                ret.score = nextDoubleOrNaN(in);
+                break;
+              case "contributions":
+                ret.contributions = readList(in, CONTRIBUTION);
+                break;
+              case "summary":
+                ret.summary = nextStringOrNull(in);
+                break;
+              case "socialInfo":
+                ret.author = readAuthor(in);
+                break;
+              case "linkURL":
+                ret.linkUrl = nextStringOrNull(in);
+                break;
+              case "relatedContent":
+                ret.relatedContent = readList(in, RELATED_CONTENT);
+                break;
+              default:
+                in.skipValue();
+            }
+          }
+          in.endObject();
+          return ret;
+        }
+
+        @Override
+        public void write(JsonWriter out, Recommendation value) throws IOException {
+          if (value == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          out.name("contentID").value(value.contentId);
+          out.name("contentType").value(value.contentType);
+          out.name("headline").value(value.headline);
+          out.name("source").value(value.source == null ? null : value.source.getName());
+          out.name("timestamp").value(value.timestamp);
+          if (!Double.isNaN(value.score)) {
+            out.name("score").value(value.score);
+          }
+          out.name("contributions");
+          writeList(out, value.contributions, CONTRIBUTION);
+          out.name("summary").value(value.summary);
+          if (value.author != null) {
+            out.name("socialInfo").beginObject().name("author").value(value.author).endObject();
+          }
+          out.name("linkURL").value(value.linkUrl);
+          out.name("relatedContent");
+          writeList(out, value.relatedContent, RELATED_CONTENT);
+          out.endObject();
+        }
+      };
+
+  /**
+   * Adapter for related content.
+   */
+  public static final TypeAdapter<RelatedContent> RELATED_CONTENT =
+      new TypeAdapter<RelatedContent>() {
+        @Override
+        public RelatedContent read(JsonReader in) throws IOException {
+          if (!beginObjectOrSkip(in)) {
+            return null;
+          }
+          RelatedContent ret = new RelatedContent();
+          while (in.hasNext()) {
+            switch (in.nextName()) {
+              case "relationship":
+                ret.relationship = nextStringOrNull(in);
+                break;
+              case "contentItem":
+                ret.contentItem = RECOMMENDATION.read(in);
+                break;
+              default:
+                in.skipValue();
+            }
+          }
+          in.endObject();
+          return ret;
+        }
+
+        @Override
+        public void write(JsonWriter out, RelatedContent value) throws IOException {
+          if (value == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          out.name("relationship").value(value.relationship);
+          out.name("contentItem");
+          RECOMMENDATION.write(out, value.contentItem);
+          out.endObject();
+        }
+      };
+
+  /**
+   * Adapter for DDS entities.
+   */
+  public static final TypeAdapter<Entity> ENTITY = new TypeAdapter<Entity>() {
+    @Override
+    public Entity read(JsonReader in) throws IOException {
+      if (!beginObjectOrSkip(in)) {
+        return null;
+      }
+      Entity ret = new Entity();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "entityID":
+            ret.entityId = nextStringOrNull(in);
+            break;
+          case "entityType":
+            ret.entityType = nextStringOrNull(in);
+            break;
+          case "displayName":
+            ret.displayName = nextStringOrNull(in);
+            break;
+          case "description":
+            ret.description = nextStringOrNull(in);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return ret;
+    }
+
+    @Override
+    public void write(JsonWriter out, Entity value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("entityID").value(value.entityId);
+      out.name("entityType").value(value.entityType);
+      out.name("displayName").value(value.displayName);
+      out.name("description").value(value.description);
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for sources.
+   */
+  public static final TypeAdapter<Source> SOURCE = new TypeAdapter<Source>() {
+    @Override
+    public Source read(JsonReader in) throws IOException {
+      return Source.of(nextStringOrNull(in));
+    }
+
+    @Override
+    public void write(JsonWriter out, Source value) throws IOException {
+      out.value(value == null ? null : value.getName());
+    }
+  };
+
+  /**
+   * Creates an adapter that decodes a Json array into a list.
+   *
+   * @param elementAdapter The adapter for the array's elements.
+   * @return The adapter for the list.
+   */
+  public static <T> TypeAdapter<List<T>> listOf(final TypeAdapter<T> elementAdapter) {
+    return new TypeAdapter<List<T>>() {
+      @Override
+      public List<T> read(JsonReader in) throws IOException {
+        return readList(in, elementAdapter);
+      }
+
+      @Override
+      public void write(JsonWriter out, List<T> value) throws IOException {
+        writeList(out, value, elementAdapter);
+      }
+    };
+  }
+
+  /**
+   * Creates an adapter that extracts a single field of a Json object.
+   *
+   * <p>This allows to decode for example only the {@code recommendations} of a query response,
+   * while skipping all other fields.
+   *
+   * @param field The name of the field to extract.
+   * @param fieldAdapter The adapter to decode the field's value with.
+   * @return The adapter for the field.
+   */
+  public static <T> TypeAdapter<T> field(final String field, final TypeAdapter<T> fieldAdapter) {
+    return new TypeAdapter<T>() {
+      @Override
+      public T read(JsonReader in) throws IOException {
+        boolean found = false;
+        T ret = null;
+        in.beginObject();
+        while (in.hasNext()) {
+          if (!found && field.equals(in.nextName())) {
+            ret = fieldAdapter.read(in);
+            found = true;
+          } else {
+            in.skipValue();
+          }
+        }
+        in.endObject();
+        if (!found) {
+          throw new JsonParseException("Response does not contain field '" + field + "'");
+        }
+        return ret;
+      }
+
+      @Override
+      public void write(JsonWriter out, T value) throws IOException {
+        out.beginObject();
+        out.name(field);
+        fieldAdapter.write(out, value);
+        out.endObject();
+      }
+    };
+  }
+
+  /**
+   * Starts reading an object, or skips the value if it is not an object.
+   *
+   * @param in The reader to read from.
+   * @return true, if an object got started. false, if the value got skipped.
+   * @throws IOException if reading fails.
+   */
+  static boolean beginObjectOrSkip(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.BEGIN_OBJECT) {
+      in.beginObject();
+      return true;
+    }
+    in.skipValue();
+    return false;
+  }
+
+  /**
+   * Reads a primitive value as string.
+   *
+   * @param in The reader to read from.
+   * @return The value as string. null, if the value is null, an object, or an array.
+   * @throws IOException if reading fails.
+   */
+  static String nextStringOrNull(JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case STRING:
+      case NUMBER:
+        return in.nextString();
+      case BOOLEAN:
+        return in.nextBoolean() ? "true" : "false";
+      default:
+        in.skipValue();
+        return null;
+    }
+  }
+
+  /**
+   * Reads a numeric value.
+   *
+   * @param in The reader to read from.
+   * @return The value as double. NaN, if the value is not numeric.
+   * @throws IOException if reading fails.
+   */
+  static double nextDoubleOrNaN(JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case NUMBER:
+        return in.nextDouble();
+      case STRING:
+        String str = in.nextString();
+        try {
+          return Double.parseDouble(str);
+        } catch (NumberFormatException e) {
+          return Double.NaN;
+        }
+      default:
+        in.skipValue();
+        return Double.NaN;
+    }
+  }
+
+  /**
+   * Reads the author from a socialInfo object.
+   *
+   * @param in The reader to read from.
+   * @return The author, or null if there is no proper author.
+   * @throws IOException if reading fails.
+   */
+  private static String readAuthor(JsonReader in) throws IOException {
+    if (!beginObjectOrSkip(in)) {
+      return null;
+    }
+    String ret = null;
+    while (in.hasNext()) {
+      if ("author".equals(in.nextName())) {
+        ret = nextStringOrNull(in);
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return ret;
+  }
+
+  /**
+   * Reads an array into a list, dropping null elements.
+   *
+   * @param in The reader to read from.
+   * @param elementAdapter The adapter for the elements.
+   * @return The list. Empty, if the value is not a non-empty array.
+   * @throws IOException if reading fails.
+   */
+  static <T> List<T> readList(JsonReader in, TypeAdapter<T> elementAdapter)
+      throws IOException {
+    if (in.peek() != JsonToken.BEGIN_ARRAY) {
+      in.skipValue();
+      return Collections.emptyList();
+    }
+    in.beginArray();
+    if (!in.hasNext()) {
+      in.endArray();
+      return Collections.emptyList();
+    }
+    List<T> ret = new ArrayList<>();
+    while (in.hasNext()) {
+      T element = elementAdapter.read(in);
+      if (element != null) {
+        ret.add(element);
+      }
+    }
+    in.endArray();
+    return ret;
+  }
+
+  private static <T> void writeList(JsonWriter out, List<T> list, TypeAdapter<T> elementAdapter)
+      throws IOException {
+    out.beginArray();
+    if (list != null) {
+      for (T element : list) {
+        elementAdapter.write(out, element);
+      }
+    }
+    out.endArray();
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls several recommendation queries concurrently and merges their results.
+ *
+ * <p>All queries of a poll are sent at once and share a single deadline, so a poll takes as
+ * long as the slowest query instead of the sum of all queries. Queries that miss the deadline
+ * get cancelled, their requests get aborted (See {@link RequestUtils#attachDeadline(long)}),
+ * and the poll carries on with the results of the others.
+ *
+ * <p>Results are deduplicated by content id, keeping the item with the best score, and merged
+ * by score, best first. Items without content id are all kept.
+ *
+ * <p>Each query keeps its own INITIAL/UPDATE state. UPDATE queries are incremental per
+ * session, so each template has to be compiled for a session of its own. A cancelled or failed
+ * UPDATE query may still have advanced the session on the server, so its items would be
+ * lost. Therefore, only successful queries
+ * move on to UPDATE, and a query that failed or missed the deadline starts over with INITIAL on
+ * the next poll. Such restarts are counted.
+ */
+public class MultiQueryFetcher {
+  private static final Log log = LogFactory.getLog(MultiQueryFetcher.class);
+
+  /**
+   * Orders by score, best first, and unscored items last.
+   */
+  private static final Comparator<RawRecommendation> BY_SCORE =
+      new Comparator<RawRecommendation>() {
+        @Override
+        public int compare(RawRecommendation o1, RawRecommendation o2) {
+          double score1 = o1.getScore();
+          double score2 = o2.getScore();
+          if (Double.isNaN(score1) || Double.isNaN(score2)) {
+            return Boolean.compare(Double.isNaN(score1), Double.isNaN(score2));
+          }
+          return Double.compare(score2, score1);
+        }
+      };
+
+  private final QueryUtils queryUtils;
+  private final List<QueryTemplate> templates;
+  private final boolean[] isInitial;
+  private final ExecutorService executor;
+  private final long deadlineMillis;
+  private long failedCount = 0;
+  private long timedOutCount = 0;
+  private long restartCount = 0;
+
+  /**
+   * Creates a fetcher.
+   *
+   * @param queryUtils The query helpers to poll through.
+   * @param templates The compiled queries to poll. Each needs a session of its own.
+   * @param executor The executor to run queries on. It needs to be able to run all queries at
+   *     once, to not serialize them.
+   * @param deadlineMillis Milliseconds a poll may take before outstanding queries get cancelled.
+   */
+  public MultiQueryFetcher(QueryUtils queryUtils, List<QueryTemplate> templates,
+      ExecutorService executor, long deadlineMillis) {
+    if (templates.isEmpty() || deadlineMillis < 1) {
+      throw new IllegalArgumentException("Need at least one query and a positive deadline, "
+          + "but got " + templates.size() + " queries and " + deadlineMillis + " ms");
+    }
+    this.queryUtils = queryUtils;
+    this.templates = new ArrayList<>(templates);
+    this.isInitial = new boolean[templates.size()];
+    for (int i = 0; i < isInitial.length; i++) {
+      isInitial[i] = true;
+    }
+    this.executor = executor;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Polls all queries and merges their results.
+   *
+   * @return The merged recommendations.
+   * @throws Exception if all queries failed or missed the deadline.
+   * @throws InterruptedException if interrupted while waiting for queries.
+   */
+  public List<RawRecommendation> fetch() throws Exception {
+    return merge(fetchEach());
+  }
+
+  /**
+   * Polls all queries without merging their results.
+   *
+   * <p>This allows to tell which query delivered an item. (E.g.: to reorder each query's items
+   * separately by event time)
+   *
+   * @return The recommendations of each query, in the order of the templates. Queries that
+   *     failed or missed the deadline yield an empty list.
+   * @throws Exception if all queries failed or missed the deadline.
+   * @throws InterruptedException if interrupted while waiting for queries.
+   */
+  public synchronized List<List<RawRecommendation>> fetchEach() throws Exception {
+    // Requests still in flight when the poll gives up get aborted, so they do not hold
+    // connections until the request layer's own deadline.
+    final long deadline = System.currentTimeMillis() + deadlineMillis;
+    // Tasks run on pool threads, so the poll's trace has to get handed over explicitly.
+    final RequestTracer.Trace trace = RequestTracer.current();
+    List<Callable<List<RawRecommendation>>> tasks = new ArrayList<>(templates.size());
+    for (int i = 0; i < templates.size(); i++) {
+      final QueryTemplate template = templates.get(i);
+      final boolean initial = isInitial[i];
+      tasks.add(new Callable<List<RawRecommendation>>() {
+        @Override
+        public List<RawRecommendation> call() throws Exception {
+          RequestTracer.Trace previousTrace = RequestTracer.attach(trace);
+          long previous = RequestUtils.attachDeadline(deadline);
+          try {
+            return queryUtils.fetchRawRecommendations(template, initial);
+          } finally {
+            RequestUtils.attachDeadline(previous);
+            RequestTracer.attach(previousTrace);
+          }
+        }
+      });
+    }
+
+    // invokeAll cancels all tasks that did not complete before the deadline.
+    List<Future<List<RawRecommendation>>> futures = executor.invokeAll(tasks, deadlineMillis,
+        TimeUnit.MILLISECONDS);
+
+    List<List<RawRecommendation>> ret = new ArrayList<>(futures.size());
+    Exception firstFailure = null;
+    int succeeded = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      QueryTemplate template = templates.get(i);
+      ret.add(Collections.<RawRecommendation>emptyList());
+      List<RawRecommendation> recommendations;
+      try {
+        recommendations = futures.get(i).get();
+      } catch (CancellationException e) {
+        timedOutCount++;
+        restart(i);
+        log.warn("Query " + describe(template) + " missed the deadline of " + deadlineMillis
+            + " ms");
+        if (firstFailure == null) {
+          firstFailure = new IOException("Query " + describe(template) + " missed the deadline");
+        }
+        continue;
+      } catch (ExecutionException e) {
+        failedCount++;
+        restart(i);
+        log.warn("Query " + describe(template) + " failed", e.getCause());
+        if (firstFailure == null) {
+          firstFailure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+        continue;
+      }
+      isInitial[i] = false;
+      succeeded++;
+      ret.set(i, recommendations);
+    }
+    if (succeeded == 0) {
+      throw firstFailure;
+    }
+    return ret;
+  }
+
+  /**
+   * Merges the results of several queries.
+   *
+   * <p>Results are deduplicated by content id, keeping the item with the best score, and
+   * sorted by score, best first. Items without content id are all kept. The returned items are
+   * the instances of the passed lists.
+   *
+   * @param results The recommendations of each query.
+   * @return The merged recommendations.
+   */
+  public static List<RawRecommendation> merge(List<List<RawRecommendation>> results) {
+    Map<String, RawRecommendation> byContentId = new LinkedHashMap<>();
+    List<RawRecommendation> withoutContentId = new ArrayList<>();
+    for (List<RawRecommendation> recommendations : results) {
+      for (RawRecommendation recommendation : recommendations) {
+        String contentId = recommendation.getContentId();
+        if (contentId == null) {
+          withoutContentId.add(recommendation);
+        } else {
+          RawRecommendation existing = byContentId.get(contentId);
+          if (existing == null || isBetter(recommendation, existing)) {
+            byContentId.put(contentId, recommendation);
+          }
+        }
+      }
+    }
+
+    List<RawRecommendation> ret = new ArrayList<>(byContentId.size() + withoutContentId.size());
+    ret.addAll(byContentId.values());
+    ret.addAll(withoutContentId);
+    // Sorting is stable, so items of equal score stay in query order.
+    Collections.sort(ret, BY_SCORE);
+    return ret;
+  }
+
+  /**
+   * Makes a query start over with INITIAL, as its session's state is unknown.
+   */
+  private void restart(int index) {
+    if (!isInitial[index]) {
+      isInitial[index] = true;
+      restartCount++;
+      log.warn("Restarting query " + describe(templates.get(index)) + " with INITIAL, as its "
+          + "UPDATE may have advanced the session without delivering items");
+    }
+  }
+
+  private static boolean isBetter(RawRecommendation candidate, RawRecommendation existing) {
+    // Comparisons with NaN are false, so unscored items never replace others, and scored items
+    // replace unscored ones.
+    return candidate.getScore() > existing.getScore()
+        || (Double.isNaN(existing.getScore()) && !Double.isNaN(candidate.getScore()));
+  }
+
+  private static String describe(QueryTemplate template) {
+    return template.getQueryType() + "/" + template.getContributionMode();
+  }
+
+  /**
+   * Gets the number of queries that failed.
+   *
+   * @return The number of failed queries across all polls.
+   */
+  public synchronized long getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * Gets the number of queries that missed the deadline.
+   *
+   * @return The number of timed out queries across all polls.
+   */
+  public synchronized long getTimedOutCount() {
+    return timedOutCount;
+  }
+
+  /**
+   * Gets the number of queries that started over with INITIAL after an UPDATE failed or missed
+   * the deadline.
+   *
+   * <p>Items that such UPDATE queries advanced past are lost, unless the INITIAL query
+   * delivers them again.
+   *
+   * @return The number of restarted queries across all polls.
+   */
+  public synchronized long getRestartCount() {
+    return restartCount;
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming near-duplicate detector for recommendations based on SimHash fingerprints.
+ *
+ * <p>Syndicated stories show up through several sources with different content ids, but with
+ * (nearly) the same headline and summary. This filter computes a 64-bit SimHash over the terms
+ * of headline and summary, and considers items duplicates if their fingerprints differ in at
+ * most a few bits.
+ *
+ * <p>Fingerprints of the most recent items are kept in a bounded window. To find near
+ * duplicates without comparing against the whole window, fingerprints are split into
+ * {@code maxDistance + 1} bands. By the pigeonhole principle, two fingerprints within the
+ * distance agree on at least one band, so only items sharing a band value need comparing. As
+ * band buckets are bounded as well, the cost per item stays constant regardless of the window
+ * size.
+ *
+ * <p>By default, the first item of a group of near duplicates is kept and later ones are
+ * dropped. When collapsing, the highest scored item is kept instead: Within a batch, a better
+ * scored duplicate replaces the earlier one. Across batches, a later duplicate is only passed
+ * on if it scores higher than all duplicates seen before.
+ */
+public class NearDuplicateFilter {
+  private static final Log log = LogFactory.getLog(NearDuplicateFilter.class);
+
+  /**
+   * Largest supported Hamming distance. Larger distances would need narrow bands, whose
+   * buckets would hold mostly unrelated items.
+   */
+  public static final int MAX_DISTANCE = 7;
+
+  /**
+   * Upper bound for how many window entries a band bucket references.
+   */
+  static final int BUCKET_CAPACITY = 8;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final int maxDistance;
+  private final boolean collapse;
+  private final int bandCount;
+  private final int[] bandShifts;
+  private final long[] bandMasks;
+  private final List<Map<Long, Bucket>> bands;
+  private final long[] fingerprints;
+  private final double[] scores;
+  private final boolean[] used;
+  private int nextSlot = 0;
+  private long suppressedCount = 0;
+
+  /**
+   * Creates a filter.
+   *
+   * @param similarity The minimum similarity (share of equal fingerprint bits) of near
+   *     duplicates. Has to be between {@code 1 - MAX_DISTANCE / 64} and 1.
+   * @param windowSize How many recent items to compare against.
+   * @param collapse If true, keep the highest scored of near duplicates instead of the first.
+   */
+  public NearDuplicateFilter(double similarity, int windowSize, boolean collapse) {
+    int distance = (int) Math.floor((1 - similarity) * 64 + 1e-9);
+    if (similarity > 1 || distance > MAX_DISTANCE) {
+      throw new IllegalArgumentException("Similarity has to be between "
+          + (1 - MAX_DISTANCE / 64.0) + " and 1, but is " + similarity);
+    }
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size has to be positive, but is "
+          + windowSize);
+    }
+    this.maxDistance = distance;
+    this.collapse = collapse;
+    this.bandCount = distance + 1;
+    this.bandShifts = new int[bandCount];
+    this.bandMasks = new long[bandCount];
+    this.bands = new ArrayList<>(bandCount);
+    for (int band = 0; band < bandCount; band++) {
+      int from = band * 64 / bandCount;
+      int to = (band + 1) * 64 / bandCount;
+      bandShifts[band] = from;
+      bandMasks[band] = (to - from == 64) ? -1L : (1L << (to - from)) - 1;
+      bands.add(new HashMap<Long, Bucket>());
+    }
+    this.fingerprints = new long[windowSize];
+    this.scores = new double[windowSize];
+    this.used = new boolean[windowSize];
+  }
+
+  /**
+   * Computes the SimHash fingerprint of a text.
+   *
+   * @param headline The headline. May be null.
+   * @param summary The summary. May be null.
+   * @return The fingerprint. 0, if the texts hold no terms.
+   */
+  static long fingerprint(String headline, String summary) {
+    Map<String, Integer> termWeights = new LinkedHashMap<>();
+    LocalSearchIndex.tokenize(headline, 1, termWeights);
+    LocalSearchIndex.tokenize(summary, 1, termWeights);
+
+    int[] votes = new int[64];
+    for (Map.Entry<String, Integer> entry : termWeights.entrySet()) {
+      long hash = hash(entry.getKey());
+      int weight = entry.getValue();
+      for (int bit = 0; bit < 64; bit++) {
+        votes[bit] += ((hash >>> bit) & 1) != 0 ? weight : -weight;
+      }
+    }
+    long ret = 0;
+    for (int bit = 0; bit < 64; bit++) {
+      if (votes[bit] > 0) {
+        ret |= 1L << bit;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Hashes a term to 64 well-mixed bits (FNV-1a followed by MurmurHash3's finalizer).
+   */
+  private static long hash(String term) {
+    long ret = FNV_OFFSET;
+    for (int i = 0; i < term.length(); i++) {
+      ret ^= term.charAt(i);
+      ret *= FNV_PRIME;
+    }
+    ret ^= ret >>> 33;
+    ret *= 0xff51afd7ed558ccdL;
+    ret ^= ret >>> 33;
+    ret *= 0xc4ceb9fe1a85ec53L;
+    ret ^= ret >>> 33;
+    return ret;
+  }
+
+  /**
+   * Filters near duplicates out of a batch of recommendations.
+   *
+   * @param recommendations The recommendations to filter.
+   * @return The recommendations that are no near duplicates, in their original order.
+   */
+  public synchronized List<RawRecommendation> filter(List<RawRecommendation> recommendations) {
+    List<RawRecommendation> ret = new ArrayList<>(recommendations.size());
+    // Window slots of the items of this batch that got passed on, mapped to their index in ret
+    Map<Integer, Integer> batchSlots = new HashMap<>();
+    for (RawRecommendation recommendation : recommendations) {
+      long fingerprint;
+      try {
+        Recommendation decoded = recommendation.getRecommendation();
+        fingerprint = fingerprint(decoded.getHeadline(), decoded.getSummary());
+      } catch (IOException | RuntimeException e) {
+        log.warn("Could not decode " + recommendation.getContentId() + " for fingerprinting", e);
+        ret.add(recommendation);
+        continue;
+      }
+      if (fingerprint == 0) {
+        // No text to compare, so we cannot tell duplicates.
+        ret.add(recommendation);
+        continue;
+      }
+
+      double score = scoreOf(recommendation);
+      int bestSlot = findBestMatch(fingerprint);
+      if (bestSlot < 0) {
+        batchSlots.put(insert(fingerprint, score), ret.size());
+        ret.add(recommendation);
+      } else if (collapse && score > scores[bestSlot]) {
+        Integer index = batchSlots.remove(bestSlot);
+        if (index != null) {
+          // The duplicate got passed on in this very batch, so we replace it.
+          ret.set(index, recommendation);
+          suppressedCount++;
+        } else {
+          index = ret.size();
+          ret.add(recommendation);
+        }
+        batchSlots.put(insert(fingerprint, score), index);
+      } else {
+        suppressedCount++;
+      }
+    }
+    return ret;
+  }
+
+  private static double scoreOf(RawRecommendation recommendation) {
+    double score = recommendation.getScore();
+    return Double.isNaN(score) ? Double.NEGATIVE_INFINITY : score;
+  }
+
+  /**
+   * Finds the best scored window entry within the maximum distance of a fingerprint.
+   *
+   * @return The entry's slot. -1, if there is none.
+   */
+  private int findBestMatch(long fingerprint) {
+    int ret = -1;
+    for (int band = 0; band < bandCount; band++) {
+      Bucket bucket = bands.get(band).get(bandKey(fingerprint, band));
+      for (int i = 0; bucket != null && i < bucket.size; i++) {
+        int slot = bucket.slots[i];
+        if (Long.bitCount(fingerprints[slot] ^ fingerprint) <= maxDistance
+            && (ret < 0 || scores[slot] > scores[ret])) {
+          ret = slot;
+        }
+      }
+    }
+    return ret;
+  }
+
+  private long bandKey(long fingerprint, int band) {
+    return (fingerprint >>> bandShifts[band]) & bandMasks[band];
+  }
+
+  /**
+   * Adds a fingerprint to the window, evicting the oldest entry if needed.
+   *
+   * @return The slot of the new entry.
+   */
+  private int insert(long fingerprint, double score) {
+    int slot = nextSlot;
+    nextSlot = (nextSlot + 1) % fingerprints.length;
+    if (used[slot]) {
+      for (int band = 0; band < bandCount; band++) {
+        Long key = bandKey(fingerprints[slot], band);
+        Bucket bucket = bands.get(band).get(key);
+        if (bucket != null && bucket.remove(slot)) {
+          bands.get(band).remove(key);
+        }
+      }
+    }
+    fingerprints[slot] = fingerprint;
+    scores[slot] = score;
+    used[slot] = true;
+    for (int band = 0; band < bandCount; band++) {
+      Long key = bandKey(fingerprint, band);
+      Bucket bucket = bands.get(band).get(key);
+      if (bucket == null) {
+        bucket = new Bucket();
+        bands.get(band).put(key, bucket);
+      }
+      bucket.add(slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Gets the number of items that got dropped or replaced as near duplicates.
+   *
+   * @return The number of suppressed items.
+   */
+  public synchronized long getSuppressedCount() {
+    return suppressedCount;
+  }
+
+  /**
+   * Window slots sharing a band value. Holds only the most recent ones if full.
+   */
+  private static final class Bucket {
+    final int[] slots = new int[BUCKET_CAPACITY];
+    int size = 0;
+
+    void add(int slot) {
+      if (size == slots.length) {
+        // Dropping the oldest slot. Its entry remains findable through its other bands.
+        System.arraycopy(slots, 1, slots, 0, size - 1);
+        size--;
+      }
+      slots[size++] = slot;
+    }
+
+    /**
+     * Removes a slot.
+     *
+     * @return true, if the bucket is empty afterwards.
+     */
+    boolean remove(int slot) {
+      for (int i = 0; i < size; i++) {
+        if (slots[i] == slot) {
+          System.arraycopy(slots, i + 1, slots, i, size - i - 1);
+          size--;
+          break;
+        }
+      }
+      return size == 0;
+    }
+  }
+}
@@ -30,6 +30,13 @@ import java.util.concurrent.TimeUnit;
  * Methods for printing query results.
  */
 public class PrintUtils {
+  private static final JsonUtils.FieldPath SOCIAL_INFO_AUTHOR =
+      JsonUtils.FieldPath.of("socialInfo", "author");
+  private static final JsonUtils.FieldPath RELATED_CONTENT_TYPE =
+      JsonUtils.FieldPath.of("contentItem", "contentType");
+  private static final JsonUtils.FieldPath RELATED_LINK_URL =
+      JsonUtils.FieldPath.of("contentItem", "linkURL");
+
   /**
    * The PrintStream to print everything to.
    */
@@ -137,7 +144,7 @@ public class PrintUtils {
    * @throws Exception if errors occur
    */
   private void printContribution(JsonObject contribution) throws Exception {
-    float value = contribution.get("value").getAsFloat();
+    float value = (float) jsonUtils.getDouble(contribution, "value", Double.NaN);
     String type = jsonUtils.getAsString(contribution, "contributorType");
     String contributor = jsonUtils.getAsString(contribution, "contributor");
 
@@ -158,6 +165,7 @@ public class PrintUtils {
    * @throws Exception if errors occur
    */
   public void printRecommendation(JsonObject recommendation) throws Exception {
+    long start = System.nanoTime();
     printer.println("");
     printer.println("* " + jsonUtils.getAsString(recommendation, "headline"));
     printer.println("");
@@ -166,26 +174,131 @@ public class PrintUtils {
     printer.println("  source: " + jsonUtils.getAsString(recommendation, "source"));
     printer.println("  timestamp: " + jsonUtils.getAsString(recommendation, "timestamp"));
     printer.println("  score: " + jsonUtils.getAsString(recommendation, "score"));
-    JsonElement contributions = recommendation.get("contributions");
+    JsonArray contributions = jsonUtils.getArray(recommendation, "contributions");
     if (contributions != null) {
-      for (JsonElement contribution : contributions.getAsJsonArray()) {
-        printContribution(contribution.getAsJsonObject());
+      for (JsonElement contribution : contributions) {
+        if (contribution.isJsonObject()) {
+          printContribution(contribution.getAsJsonObject());
+        }
       }
     }
     printer.println("  summary: " + jsonUtils.getAsString(recommendation, "summary"));
     printer.println("  socialInfo->author: " + jsonUtils.getAsString(recommendation,
-        "socialInfo", "author"));
+        SOCIAL_INFO_AUTHOR));
     printer.println("  linkURL: " + jsonUtils.getAsString(recommendation, "linkURL"));
 
-    JsonArray relatedContentArray = recommendation.get("relatedContent").getAsJsonArray();
-    for (JsonElement relatedContentElement: relatedContentArray) {
-      JsonObject relatedContentObject = relatedContentElement.getAsJsonObject();
+    JsonArray relatedContentArray = jsonUtils.getArray(recommendation, "relatedContent");
+    if (relatedContentArray != null) {
+      for (JsonElement relatedContentElement: relatedContentArray) {
+        if (!relatedContentElement.isJsonObject()) {
+          continue;
+        }
+        JsonObject relatedContentObject = relatedContentElement.getAsJsonObject();
+        String line = "  related content:";
+        line += " " + jsonUtils.getAsString(relatedContentObject, "relationship");
+        line += " " + jsonUtils.getAsString(relatedContentObject, RELATED_CONTENT_TYPE);
+        line += " " + jsonUtils.getAsString(relatedContentObject, RELATED_LINK_URL);
+        
+        printer.println(line);
+      }
+    }
+    RequestTracer.record(RequestTracer.Phase.RENDER, start);
+  }
+
+  /**
+   * Prints details for a typed entity.
+   * 
+   * @param details The details of the entity to print
+   */
+  public void printEntityDetails(Entity details) {
+    printer.println(" (i.e.: " + orMarker(details.getEntityType(), "entityType")
+        + ", " + orMarker(details.getDisplayName(), "displayName")
+        + ", " + orMarker(details.getDescription(), "description")
+        + ")");
+  }
+
+  /**
+   * Prints a typed score contribution.
+   * 
+   * @param contribution The contribution to print
+   */
+  private void printContribution(Contribution contribution) {
+    String type = orMarker(contribution.getContributorType(), "contributorType");
+    String contributor = orMarker(contribution.getContributor(), "contributor");
+
+    String format = "  score-contribution: %1$.3f %2$-18s %3$s";
+    printer.print(String.format(format, contribution.getValue(), type, contributor));
+
+    if ("RELEVANCE_ENTITY".equals(type)) {
+      printEntityDetails(contributor);
+    } else {
+      printer.println();
+    }
+  }
+
+  /**
+   * Prints a typed recommended content item.
+   * 
+   * @param recommendation The recommended content item
+   */
+  public void printRecommendation(Recommendation recommendation) {
+    long start = System.nanoTime();
+    Source source = recommendation.getSource();
+    printer.println("");
+    printer.println("* " + orMarker(recommendation.getHeadline(), "headline"));
+    printer.println("");
+    printer.println("  contentID: " + orMarker(recommendation.getContentId(), "contentID"));
+    printer.println("  contentType: " + orMarker(recommendation.getContentType(),
+        "contentType"));
+    printer.println("  source: " + orMarker(source == null ? null : source.getName(), "source"));
+    printer.println("  timestamp: " + orMarker(recommendation.getTimestamp(), "timestamp"));
+    printer.println("  score: " + formatScore(recommendation.getScore()));
+    for (Contribution contribution : recommendation.getContributions()) {
+      printContribution(contribution);
+    }
+    printer.println("  summary: " + orMarker(recommendation.getSummary(), "summary"));
+    printer.println("  socialInfo->author: " + orMarker(recommendation.getAuthor(),
+        "socialInfo->author"));
+    printer.println("  linkURL: " + orMarker(recommendation.getLinkUrl(), "linkURL"));
+
+    for (RelatedContent relatedContent : recommendation.getRelatedContent()) {
+      Recommendation contentItem = relatedContent.getContentItem();
       String line = "  related content:";
-      line += " " + jsonUtils.getAsString(relatedContentObject, "relationship");
-      line += " " + jsonUtils.getAsString(relatedContentObject, "contentItem", "contentType");
-      line += " " + jsonUtils.getAsString(relatedContentObject, "contentItem", "linkURL");
+      line += " " + orMarker(relatedContent.getRelationship(), "relationship");
+      line += " " + orMarker(contentItem == null ? null : contentItem.getContentType(),
+          "contentItem->contentType");
+      line += " " + orMarker(contentItem == null ? null : contentItem.getLinkUrl(),
+          "contentItem->linkURL");
       
       printer.println(line);
     }
+    RequestTracer.record(RequestTracer.Phase.RENDER, start);
+  }
+
+  /**
+   * Formats a score like the API sent it, i.e.: without trailing ".0" for integral scores.
+   * 
+   * @param score The score to format
+   * @return The formatted score or the empty marker, if the score is NaN.
+   */
+  private String formatScore(double score) {
+    if (Double.isNaN(score)) {
+      return orMarker(null, "score");
+    }
+    if (score == Math.rint(score) && !Double.isInfinite(score) && Math.abs(score) < 1e15) {
+      return Long.toString((long) score);
+    }
+    return Double.toString(score);
+  }
+
+  /**
+   * Yields a value or the empty marker for a field, if the value is null.
+   * 
+   * @param value The value to yield.
+   * @param field The field that value belongs to.
+   * @return The value, if it is not null. Otherwise the empty marker for the field.
+   */
+  private String orMarker(String value, String field) {
+    return value != null ? value : jsonUtils.getEmptyMarker(field);
   }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of field paths a consumer needs from Json objects.
+ *
+ * <p>Reading through a projection only builds the projected values. Everything else is skipped
+ * at the token level, so for example large {@code contributions} or {@code relatedContent}
+ * arrays never turn into Json trees unless a path asks for them.
+ *
+ * <p>Paths are dot-separated field names (E.g.: {@code socialInfo.author}). Arrays are
+ * transparent, so {@code contributions.contributor} projects the {@code contributor} of each
+ * element of the {@code contributions} array. A path that ends at an object or array keeps
+ * that value as a whole.
+ */
+public class Projection {
+  /**
+   * Projection for deduplicating recommendations.
+   */
+  public static final Projection CONTENT_ID = of("contentID");
+
+  /**
+   * Projection for showing recommendation overviews.
+   */
+  public static final Projection HEADLINES = of("contentID", "headline", "score", "timestamp");
+
+  /**
+   * Node in the tree of projected paths.
+   */
+  private static class Node {
+    /**
+     * Projected fields below this node. null, if the whole value is projected.
+     */
+    Map<String, Node> children = new HashMap<>();
+  }
+
+  private final Node root;
+
+  private final TypeAdapter<JsonObject> adapter = new TypeAdapter<JsonObject>() {
+    @Override
+    public JsonObject read(JsonReader in) throws IOException {
+      return Projection.this.read(in);
+    }
+
+    @Override
+    public void write(JsonWriter out, JsonObject value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+      } else {
+        out.jsonValue(RequestUtils.toJson(value));
+      }
+    }
+  };
+
+  private Projection(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Creates a projection for the given paths.
+   *
+   * @param paths The dot-separated paths to project.
+   * @return The projection.
+   */
+  public static Projection of(String... paths) {
+    Node root = new Node();
+    for (String path : paths) {
+      if (path == null || path.isEmpty()) {
+        throw new IllegalArgumentException("Projection paths must not be empty");
+      }
+      Node node = root;
+      for (String field : path.split("\\.")) {
+        if (node.children == null) {
+          // A shorter path already projects the whole value.
+          break;
+        }
+        Node child = node.children.get(field);
+        if (child == null) {
+          child = new Node();
+          node.children.put(field, child);
+        }
+        node = child;
+      }
+      // The path ends here, so the whole value is projected.
+      node.children = null;
+    }
+    return new Projection(root);
+  }
+
+  /**
+   * Gets an adapter that reads Json objects through this projection.
+   *
+   * @return The adapter. Writing serializes the projected object as is.
+   */
+  public TypeAdapter<JsonObject> adapter() {
+    return adapter;
+  }
+
+  /**
+   * Reads the projected fields of a Json object.
+   *
+   * @param in The reader positioned before the object.
+   * @return The object holding only the projected fields, or null if the value is not an object.
+   * @throws IOException if reading fails.
+   */
+  public JsonObject read(JsonReader in) throws IOException {
+    if (!ModelAdapters.beginObjectOrSkip(in)) {
+      return null;
+    }
+    return readObjectFields(in, root);
+  }
+
+  private JsonObject readObjectFields(JsonReader in, Node node) throws IOException {
+    JsonObject ret = new JsonObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      Node child = node.children.get(name);
+      if (child == null) {
+        in.skipValue();
+      } else {
+        JsonElement value = readValue(in, child);
+        if (value != null) {
+          ret.add(name, value);
+        }
+      }
+    }
+    in.endObject();
+    return ret;
+  }
+
+  /**
+   * Reads the projected part of a value.
+   *
+   * @param in The reader positioned before the value.
+   * @param node The projection node for the value.
+   * @return The projected value. null, if nothing of the value is projected.
+   * @throws IOException if reading fails.
+   */
+  private JsonElement readValue(JsonReader in, Node node) throws IOException {
+    if (node.children == null) {
+      return new JsonParser().parse(in);
+    }
+    switch (in.peek()) {
+      case BEGIN_OBJECT:
+        in.beginObject();
+        JsonObject object = readObjectFields(in, node);
+        return object.entrySet().isEmpty() ? null : object;
+      case BEGIN_ARRAY:
+        JsonArray array = new JsonArray();
+        in.beginArray();
+        while (in.hasNext()) {
+          JsonElement element = readValue(in, node);
+          if (element != null) {
+            array.add(element);
+          }
+        }
+        in.endArray();
+        return array;
+      default:
+        // Sub-fields are projected, but the value is a primitive.
+        in.skipValue();
+        return null;
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.http.Consts;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pre-serialized recommendation query.
+ *
+ * <p>Repeated polls for recommendations only differ in the {@code requestSent} timestamp and the
+ * {@code queryMode} of the query. A template serializes and form-encodes all the remaining parts
+ * of the request once up front. Rendering a request thereby boils down to copying a few byte
+ * arrays, instead of building a Json tree and serializing it again for each poll.
+ */
+public class QueryTemplate {
+  /**
+   * Placeholder for the {@code requestSent} value in the Json passed to the constructor.
+   */
+  static final String REQUEST_SENT_PLACEHOLDER = "@@requestSent@@";
+
+  /**
+   * Placeholder for the {@code queryMode} value in the Json passed to the constructor.
+   */
+  static final String QUERY_MODE_PLACEHOLDER = "@@queryMode@@";
+
+  private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+  private final String queryType;
+  private final String contributionMode;
+  private final String sessionId;
+
+  /**
+   * Encoded request up to the {@code requestSent} value.
+   */
+  private final byte[] prefix;
+
+  /**
+   * Encoded request between the {@code requestSent} value and the {@code queryMode} value.
+   */
+  private final byte[] infix;
+
+  /**
+   * Encoded request after the {@code queryMode} value.
+   */
+  private final byte[] suffix;
+
+  private final byte[] initialMode;
+  private final byte[] updateMode;
+
+  /**
+   * Compiles a template from a Json query.
+   *
+   * <p>The Json query has to contain {@link #REQUEST_SENT_PLACEHOLDER} followed by
+   * {@link #QUERY_MODE_PLACEHOLDER} exactly once each. Those get replaced when rendering.
+   *
+   * @param queryType The query type of the query (FEED, RECOMMENDATION, ...)
+   * @param contributionMode The contribution mode of the query (NONE, DIRECT, ALL)
+   * @param sessionId The session id of the query.
+   * @param json The serialized query containing the placeholders.
+   */
+  QueryTemplate(String queryType, String contributionMode, String sessionId, String json) {
+    this.queryType = queryType;
+    this.contributionMode = contributionMode;
+    this.sessionId = sessionId;
+
+    String encoded = formEncode(json);
+    String requestSentMarker = formEncode(REQUEST_SENT_PLACEHOLDER);
+    String queryModeMarker = formEncode(QUERY_MODE_PLACEHOLDER);
+
+    int requestSentStart = findUnique(encoded, requestSentMarker);
+    int requestSentEnd = requestSentStart + requestSentMarker.length();
+    int queryModeStart = findUnique(encoded, queryModeMarker);
+    int queryModeEnd = queryModeStart + queryModeMarker.length();
+    if (queryModeStart < requestSentEnd) {
+      throw new IllegalArgumentException("queryMode placeholder does not follow requestSent "
+          + "placeholder");
+    }
+
+    this.prefix = toBytes("json=" + encoded.substring(0, requestSentStart));
+    this.infix = toBytes(encoded.substring(requestSentEnd, queryModeStart));
+    this.suffix = toBytes(encoded.substring(queryModeEnd));
+    this.initialMode = toBytes(formEncode("INITIAL"));
+    this.updateMode = toBytes(formEncode("UPDATE"));
+  }
+
+  /**
+   * Form-encodes a string as value of the {@code json} form field.
+   *
+   * <p>Encoding is done exactly as {@link RequestUtils#post(String, com.google.gson.JsonObject)}
+   * does, so rendered templates are byte-for-byte identical to ad-hoc serialized queries.
+   *
+   * @param value The string to encode.
+   * @return the encoded string without the leading {@code json=}.
+   */
+  private static String formEncode(String value) {
+    List<NameValuePair> parameters = Collections.<NameValuePair>singletonList(
+        new BasicNameValuePair("json", value));
+    return URLEncodedUtils.format(parameters, Consts.ISO_8859_1).substring("json=".length());
+  }
+
+  private static int findUnique(String haystack, String needle) {
+    int ret = haystack.indexOf(needle);
+    if (ret < 0 || haystack.indexOf(needle, ret + 1) >= 0) {
+      throw new IllegalArgumentException("Query does not contain '" + needle + "' exactly once");
+    }
+    return ret;
+  }
+
+  private static byte[] toBytes(String encoded) {
+    // Form-encoded strings are pure ASCII.
+    return encoded.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Gets the query type of this template.
+   *
+   * @return The query type (FEED, RECOMMENDATION, ...)
+   */
+  public String getQueryType() {
+    return queryType;
+  }
+
+  /**
+   * Gets the contribution mode of this template.
+   *
+   * @return The contribution mode (NONE, DIRECT, ALL)
+   */
+  public String getContributionMode() {
+    return contributionMode;
+  }
+
+  /**
+   * Gets the session id of this template.
+   *
+   * <p>Requests of the template have to stick to the session's endpoint, as UPDATE queries are
+   * incremental per session.
+   *
+   * @return The session id that the query got compiled for.
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Renders the form-encoded request body for a poll.
+   *
+   * @param requestSent The timestamp to use as {@code requestSent} value.
+   * @param isInitial If true, an INITIAL query is rendered. Otherwise, an UPDATE query.
+   * @return The form-encoded request body (including the {@code json=} field name).
+   */
+  public byte[] render(String requestSent, boolean isInitial) {
+    byte[] mode = isInitial ? initialMode : updateMode;
+
+    int requestSentLength = 0;
+    for (int i = 0; i < requestSent.length(); i++) {
+      requestSentLength += isUnreserved(requestSent.charAt(i)) ? 1 : 3;
+    }
+
+    byte[] ret = new byte[prefix.length + requestSentLength + infix.length + mode.length
+        + suffix.length];
+    int pos = 0;
+    System.arraycopy(prefix, 0, ret, pos, prefix.length);
+    pos += prefix.length;
+    for (int i = 0; i < requestSent.length(); i++) {
+      char c = requestSent.charAt(i);
+      if (isUnreserved(c)) {
+        ret[pos++] = (byte) c;
+      } else {
+        // Timestamps are ASCII, so a single percent-encoded byte suffices.
+        ret[pos++] = '%';
+        ret[pos++] = HEX_DIGITS[(c >> 4) & 0xf];
+        ret[pos++] = HEX_DIGITS[c & 0xf];
+      }
+    }
+    System.arraycopy(infix, 0, ret, pos, infix.length);
+    pos += infix.length;
+    System.arraycopy(mode, 0, ret, pos, mode.length);
+    pos += mode.length;
+    System.arraycopy(suffix, 0, ret, pos, suffix.length);
+    return ret;
+  }
+
+  /**
+   * Checks whether a character needs no form-encoding.
+   *
+   * @param c The character to check
+   * @return true, if the character can be used as is. false otherwise.
+   */
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '-' || c == '_' || c == '.' || c == '*';
+  }
+}
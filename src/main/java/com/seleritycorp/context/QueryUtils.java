@@ -17,34 +17,131 @@
 package com.seleritycorp.context;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import org.apache.http.client.ResponseHandler;
+
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 /**
  * Context API methods.
+ *
+ * <p>Source and entity (DDS) requests are idempotent. So concurrent identical requests of those
+ * (ignoring {@code requestSent}) share a single call to the API and its result. Such results
+ * must not be modified. Content queries are never shared, as UPDATE queries advance the
+ * session's state.
+ *
+ * <p>With a {@link ResponseCache} set, responses of source and entity requests get cached as
+ * well. Content queries never get cached, as they reset (INITIAL) or advance (UPDATE) the
+ * session's state on the server. So they always reach the API.
+ *
+ * <p>Content queries are sent for the session. If an UPDATE query cannot resume the session, as
+ * the session moved to another endpoint (See {@link RequestUtils.SessionMovedException}), an
+ * INITIAL query gets sent instead, and its items get returned.
+ *
+ * <p>With an {@link EntityIndex} set, PARTIAL_MATCH entity queries get answered from the index,
+ * and only go to DDS if the index does not know matching entities. The entities of DDS
+ * responses get added to the index.
  */
 public class QueryUtils {
   /**
    * Endpoint for source queries.
    */
-  private static String PATH_SOURCES = "/v2/sources";
+  public static final String PATH_SOURCES = "/v2/sources";
 
   /**
    * Endpoint for queries for content.
    */
-  private static String PATH_QUERY = "/v2/query";
+  public static final String PATH_QUERY = "/v2/query";
 
   /**
    * Endpoint for entity data and disambiguation.
    */
-  private static String PATH_DDS = "/v2/dds/";
-  
+  public static final String PATH_DDS = "/v2/dds/";
+
+  /**
+   * Decodes the sources of a source query response.
+   */
+  private static final TypedResponseHandler<List<Source>> SOURCES_HANDLER =
+      new TypedResponseHandler<>(ModelAdapters.field("sources",
+          ModelAdapters.listOf(ModelAdapters.SOURCE)));
+
+  /**
+   * Decodes the recommendations of a content query response.
+   */
+  private static final TypedResponseHandler<List<Recommendation>> RECOMMENDATIONS_HANDLER =
+      new TypedResponseHandler<>(ModelAdapters.field("recommendations",
+          ModelAdapters.listOf(ModelAdapters.RECOMMENDATION)));
+
+  /**
+   * Splits a content query response into raw recommendations.
+   */
+  private static final RawRecommendationsHandler RAW_RECOMMENDATIONS_HANDLER =
+      new RawRecommendationsHandler();
+
+  /**
+   * Decodes the entities of a DDS response.
+   */
+  private static final TypedResponseHandler<List<Entity>> ENTITIES_HANDLER =
+      new TypedResponseHandler<>(ModelAdapters.field("result",
+          ModelAdapters.listOf(ModelAdapters.ENTITY)));
+
+  /**
+   * Formats timestamps in ISO format, as requests typically require them.
+   *
+   * <p>SimpleDateFormat is not thread-safe, but queries get sent from concurrent threads (E.g.:
+   * by {@link MultiQueryFetcher}). So each thread gets its own formatter.
+   */
+  private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          SimpleDateFormat ret = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+          ret.setTimeZone(TimeZone.getTimeZone("UTC"));
+          return ret;
+        }
+      };
+
   private final String apiKey;
   private final String sessionId;
   private final RequestUtils requestUtils;
-  private final SimpleDateFormat timestampFormat;
+  private final SingleFlight<List<Object>> singleFlight;
+  private ResponseCache responseCache;
+  private EntityIndex entityIndex;
+  private FreshnessTracker freshnessTracker;
+
+  /**
+   * Weighs responses by their approximate size in bytes, for use with a {@link ResponseCache}.
+   */
+  public static final ResponseCache.Weigher RESPONSE_WEIGHER = new ResponseCache.Weigher() {
+    @Override
+    public long weigh(Object response) {
+      if (response instanceof JsonElement) {
+        return response.toString().length();
+      }
+      if (response instanceof Collection) {
+        long ret = 0;
+        for (Object item : (Collection<?>) response) {
+          if (item instanceof JsonElement) {
+            ret += item.toString().length();
+          } else {
+            // Decoded model objects do not know their size, so we go with a typical one.
+            ret += 512;
+          }
+        }
+        return ret;
+      }
+      return 512;
+    }
+  };
 
   /**
    * Constructs a query layer for a given api key and session id on top of the basic request layer.
@@ -54,13 +151,228 @@ public class QueryUtils {
    * @param requestUtils request layer to perform the queries on.
    */
   public QueryUtils(String apiKey, String sessionId, RequestUtils requestUtils) {
+    this(apiKey, sessionId, requestUtils, new SingleFlight<List<Object>>(), null, null, null);
+  }
+
+  private QueryUtils(String apiKey, String sessionId, RequestUtils requestUtils,
+      SingleFlight<List<Object>> singleFlight, ResponseCache responseCache,
+      EntityIndex entityIndex, FreshnessTracker freshnessTracker) {
     this.apiKey = apiKey;
     this.sessionId = sessionId;
     this.requestUtils = requestUtils;
+    this.singleFlight = singleFlight;
+    this.responseCache = responseCache;
+    this.entityIndex = entityIndex;
+    this.freshnessTracker = freshnessTracker;
+  }
 
-    // Requests typically require timestamps in ISO format. So we prepare a formatter for those.
-    this.timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-    this.timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  /**
+   * Creates query helpers that use the same api key and request layer, but another session.
+   *
+   * <p>UPDATE queries are incremental with respect to the session. So concurrent queries for
+   * different interests need their own session each.
+   *
+   * @param sessionId session id to use for queries.
+   * @return The query helpers for the session.
+   */
+  public QueryUtils forSession(String sessionId) {
+    return new QueryUtils(apiKey, sessionId, requestUtils, singleFlight, responseCache,
+        entityIndex, freshnessTracker);
+  }
+
+  /**
+   * Gets the session id used for queries.
+   *
+   * @return The session id.
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Ends the session, as no further queries get sent for it.
+   *
+   * <p>This releases the session's pin to an endpoint (See
+   * {@link RequestUtils#endSession(String)}). Queries sent for the session afterwards have to
+   * start over with INITIAL.
+   */
+  public void endSession() {
+    requestUtils.endSession(sessionId);
+  }
+
+  /**
+   * Sets the local index to answer PARTIAL_MATCH entity queries from.
+   *
+   * <p>Query helpers created afterwards through {@link #forSession(String)} share the index.
+   *
+   * @param entityIndex The index to use. null disables the index.
+   */
+  public void setEntityIndex(EntityIndex entityIndex) {
+    this.entityIndex = entityIndex;
+  }
+
+  /**
+   * Sets the tracker to register raw recommendations with upon arrival.
+   *
+   * <p>Query helpers created afterwards through {@link #forSession(String)} share the tracker.
+   *
+   * @param freshnessTracker The tracker to use. null disables tracking.
+   */
+  public void setFreshnessTracker(FreshnessTracker freshnessTracker) {
+    this.freshnessTracker = freshnessTracker;
+  }
+
+  /**
+   * Sets the cache for responses.
+   *
+   * <p>Only sources and DDS responses get cached. Content queries always reach the API, as
+   * they reset (INITIAL) or advance (UPDATE) the session's state on the server.
+   *
+   * <p>Query helpers created afterwards through {@link #forSession(String)} share the cache.
+   *
+   * @param responseCache The cache to use. Its policies for {@link #PATH_SOURCES} and
+   *     {@link #PATH_DDS} decide how long responses of the endpoints get cached. null disables
+   *     caching.
+   */
+  public void setResponseCache(ResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  /**
+   * Gets the number of requests that shared an identical request in flight.
+   *
+   * @return The number of requests that did not hit the API, as they got collapsed.
+   */
+  public long getCollapsedRequestCount() {
+    return singleFlight.getCollapsedCount();
+  }
+
+  /**
+   * Performs an idempotent POST request, sharing the call with identical requests in flight.
+   *
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @return Context API's response json. It must not be modified.
+   * @throws Exception if the request failed.
+   */
+  private JsonObject postShared(final String path, final JsonObject payload) throws Exception {
+    final List<Object> key = requestKey(path, "json", payload);
+    return cached(path, key, new Callable<JsonObject>() {
+      @Override
+      public JsonObject call() throws Exception {
+        return singleFlight.execute(key, new Callable<JsonObject>() {
+          @Override
+          public JsonObject call() throws Exception {
+            return requestUtils.post(path, payload, true);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Performs an idempotent POST request, sharing the call with identical requests in flight.
+   *
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @param handler The handler to turn the response into the result.
+   * @return The result of the handler. It must not be modified.
+   * @throws Exception if the request failed.
+   */
+  private <T> T postShared(final String path, final JsonObject payload,
+      final ResponseHandler<T> handler) throws Exception {
+    final List<Object> key = requestKey(path, handler, payload);
+    return cached(path, key, new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return singleFlight.execute(key, new Callable<T>() {
+          @Override
+          public T call() throws Exception {
+            return requestUtils.post(path, payload, handler, true);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Serves a response from the response cache, if one is set.
+   *
+   * @param path The path of the request.
+   * @param key The key of the request.
+   * @param loader Fetches the response.
+   * @return The (possibly cached) response. It must not be modified.
+   * @throws Exception if fetching the response failed.
+   */
+  private <T> T cached(String path, List<Object> key, Callable<T> loader) throws Exception {
+    ResponseCache cache = responseCache;
+    if (cache == null) {
+      return loader.call();
+    }
+    return cache.get(path, key, loader);
+  }
+
+  /**
+   * Builds the key under which identical requests get collapsed.
+   *
+   * <p>Only used for sources and DDS requests. Their responses do not depend on the session,
+   * so identical requests of different sessions share a key.
+   *
+   * @param path The path of the request.
+   * @param responseKind Identifies how the response gets handled, as identical requests with
+   *     different handlers yield different results.
+   * @param payload The payload of the request.
+   * @return The key for the request.
+   */
+  private static List<Object> requestKey(String path, Object responseKind, JsonObject payload) {
+    JsonObject normalized = new JsonObject();
+    for (Map.Entry<String, JsonElement> entry : payload.entrySet()) {
+      // requestSent differs for each request and sessionID for each session, although the
+      // response depends on neither.
+      if (!"requestSent".equals(entry.getKey()) && !"sessionID".equals(entry.getKey())) {
+        normalized.add(entry.getKey(), entry.getValue());
+      }
+    }
+    return Arrays.asList(path, responseKind, RequestUtils.toJson(normalized));
+  }
+
+  /**
+   * Splits entity ids into shards that fit into a single query.
+   *
+   * <p>Shards get balanced, so their sizes differ by at most one. For a given list of entity
+   * ids, the shards are always the same, so each shard can keep its own update state.
+   *
+   * @param entityIds The entity ids to split.
+   * @param maxShardSize The maximum number of entity ids per shard.
+   * @return The shards. If {@code entityIds} is empty, a single empty shard.
+   */
+  public static List<List<String>> shardEntityIds(Collection<String> entityIds,
+      int maxShardSize) {
+    if (maxShardSize < 1) {
+      throw new IllegalArgumentException("Shards have to hold at least one entity, but may "
+          + "only hold " + maxShardSize);
+    }
+    int shardCount = Math.max(1, (entityIds.size() + maxShardSize - 1) / maxShardSize);
+    List<List<String>> ret = new ArrayList<>(shardCount);
+    int shardIndex = 0;
+    int remaining = entityIds.size();
+    List<String> shard = null;
+    int shardSize = 0;
+    for (String entityId : entityIds) {
+      if (shard == null || shard.size() == shardSize) {
+        // Spreading the remaining entities evenly across the remaining shards.
+        shardSize = (remaining + shardCount - shardIndex - 1) / (shardCount - shardIndex);
+        shard = new ArrayList<>(shardSize);
+        ret.add(shard);
+        shardIndex++;
+      }
+      shard.add(entityId);
+      remaining--;
+    }
+    if (ret.isEmpty()) {
+      ret.add(new ArrayList<String>());
+    }
+    return ret;
   }
 
   /**
@@ -69,7 +381,17 @@ public class QueryUtils {
    * @return current timestamp in ISO format at millisecond precision.
    */
   private String getTimestamp() {
-    return timestampFormat.format(System.currentTimeMillis());
+    return getTimestamp(System.currentTimeMillis());
+  }
+
+  /**
+   * Formats a timestamp in ISO format at millisecond precision.
+   *
+   * @param millis The epoch millis to format.
+   * @return The timestamp in ISO format at millisecond precision.
+   */
+  private String getTimestamp(long millis) {
+    return TIMESTAMP_FORMAT.get().format(millis);
   }
 
   /**
@@ -78,10 +400,20 @@ public class QueryUtils {
    * @return The constructed base query Json object. 
    */
   private JsonObject buildQueryStub() {
+    return buildQueryStub(getTimestamp());
+  }
+
+  /**
+   * Constructs a base query Json object for a given requestSent value.
+   * 
+   * @param requestSent The value to use for the requestSent field.
+   * @return The constructed base query Json object. 
+   */
+  private JsonObject buildQueryStub(String requestSent) {
     JsonObject ret = new JsonObject();
     ret.addProperty("apiKey", apiKey);
     ret.addProperty("sessionID", sessionId);
-    ret.addProperty("requestSent", getTimestamp());
+    ret.addProperty("requestSent", requestSent);
     return ret;
   }
 
@@ -95,11 +427,23 @@ public class QueryUtils {
   public JsonArray queryEntitledSources() throws Exception {
     JsonObject query = buildQueryStub();
     
-    JsonObject response = requestUtils.post(PATH_SOURCES, query);
+    JsonObject response = postShared(PATH_SOURCES, query);
 
     return response.get("sources").getAsJsonArray();
   }
 
+  /**
+   * Queries for sources that are entitled for the api key and decodes them to typed sources.
+   * 
+   * @return The entitled sources.
+   * @throws Exception if an error occurs.
+   */
+  public List<Source> fetchEntitledSources() throws Exception {
+    JsonObject query = buildQueryStub();
+    
+    return postShared(PATH_SOURCES, query, SOURCES_HANDLER);
+  }
+
   /**
    * Queries for content item recommendations.
    * 
@@ -117,9 +461,173 @@ public class QueryUtils {
    */
   public JsonArray queryRecommendations(String queryType, boolean isInitial, int numItems,
       String contributionMode, Iterable<String> entityIds) throws Exception {
+    JsonObject query = buildRecommendationsQuery(getTimestamp(), queryType,
+        isInitial ? "INITIAL" : "UPDATE", numItems, contributionMode, entityIds);
+
+    JsonObject response;
+    try {
+      response = requestUtils.post(PATH_QUERY, query, new RequestResponseHandler(), false,
+          sessionId, !isInitial);
+    } catch (RequestUtils.SessionMovedException e) {
+      // The session's new endpoint does not know the session, so it has to start over.
+      query = buildRecommendationsQuery(getTimestamp(), queryType, "INITIAL", numItems,
+          contributionMode, entityIds);
+      response = requestUtils.post(PATH_QUERY, query, new RequestResponseHandler(), false,
+          sessionId, false);
+    }
+
+    return response.get("recommendations").getAsJsonArray();
+  }
+
+  /**
+   * Compiles a reusable template for content item recommendation queries.
+   * 
+   * <p>The returned template can be passed to {@link #queryRecommendations(QueryTemplate,
+   * boolean)} over and over again to avoid rebuilding and reserializing the query for each poll.
+   * 
+   * @param queryType The type of query to perform FEED, RECOMMENDATION, ...
+   * @param numItems The maximum number of items to return.
+   * @param contributionMode Whether or not to request information about score contributions.
+   *     NONE does not request any information. DIRECT request information only about direct
+   *     contributors. ALL requests information about all contributors.
+   * @param entityIds The entity ids to search for. Can be the empty list to avoid filtering to
+   *     entities.
+   * @return The compiled template.
+   */
+  public QueryTemplate compileRecommendationsQuery(String queryType, int numItems,
+      String contributionMode, Iterable<String> entityIds) {
+    JsonObject query = buildRecommendationsQuery(QueryTemplate.REQUEST_SENT_PLACEHOLDER,
+        queryType, QueryTemplate.QUERY_MODE_PLACEHOLDER, numItems, contributionMode, entityIds);
+
+    return new QueryTemplate(queryType, contributionMode, sessionId,
+        RequestUtils.toJson(query));
+  }
+
+  /**
+   * Queries for content item recommendations using a compiled template.
+   * 
+   * @param template The compiled query to send.
+   * @param isInitial If true, an INITIAL query is made. Otherwise, an UPDATE query is made.
+   * @return The recommended content items. Please find the structure of the array elements in the
+   *     Selerity Context API documentation.
+   * @throws Exception if errors occur
+   */
+  public JsonArray queryRecommendations(QueryTemplate template, boolean isInitial)
+      throws Exception {
+    JsonObject response = postQuery(template, System.currentTimeMillis(), isInitial,
+        new RequestResponseHandler());
+
+    return response.get("recommendations").getAsJsonArray();
+  }
+
+  /**
+   * Queries for content item recommendations using a compiled template and decodes them to
+   * typed recommendations.
+   * 
+   * <p>Recommendations are decoded directly from the response stream without building
+   * intermediate Json trees.
+   * 
+   * @param template The compiled query to send.
+   * @param isInitial If true, an INITIAL query is made. Otherwise, an UPDATE query is made.
+   * @return The recommended content items.
+   * @throws Exception if errors occur
+   */
+  public List<Recommendation> fetchRecommendations(QueryTemplate template,
+      boolean isInitial) throws Exception {
+    return postQuery(template, System.currentTimeMillis(), isInitial, RECOMMENDATIONS_HANDLER);
+  }
+
+  /**
+   * Queries for content item recommendations using a compiled template and keeps them as raw
+   * bytes.
+   * 
+   * <p>Only contentID, timestamp, and score get decoded eagerly. Other fields are decoded on
+   * first access, and the original bytes can be forwarded without reserializing.
+   * 
+   * @param template The compiled query to send.
+   * @param isInitial If true, an INITIAL query is made. Otherwise, an UPDATE query is made.
+   * @return The recommended content items.
+   * @throws Exception if errors occur
+   */
+  public List<RawRecommendation> fetchRawRecommendations(QueryTemplate template,
+      boolean isInitial) throws Exception {
+    long requestSentMillis = System.currentTimeMillis();
+    List<RawRecommendation> ret = postQuery(template, requestSentMillis, isInitial,
+        RAW_RECOMMENDATIONS_HANDLER);
+
+    if (freshnessTracker != null) {
+      freshnessTracker.arrived(template.getQueryType(), requestSentMillis,
+          System.currentTimeMillis(), ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Queries for content item recommendations using a compiled template and decodes only the
+   * projected fields.
+   * 
+   * <p>All fields that are not part of the projection are skipped while the response streams in,
+   * so consumers that only need a few fields (E.g.: {@link Projection#CONTENT_ID} for
+   * deduplication) do not pay for building full Json trees.
+   * 
+   * @param template The compiled query to send.
+   * @param isInitial If true, an INITIAL query is made. Otherwise, an UPDATE query is made.
+   * @param projection The fields to decode.
+   * @return The projected recommended content items.
+   * @throws Exception if errors occur
+   */
+  public List<JsonObject> fetchRecommendations(QueryTemplate template, boolean isInitial,
+      Projection projection) throws Exception {
+    TypedResponseHandler<List<JsonObject>> handler = new TypedResponseHandler<>(
+        ModelAdapters.field("recommendations", ModelAdapters.listOf(projection.adapter())));
+    return postQuery(template, System.currentTimeMillis(), isInitial, handler);
+  }
+
+  /**
+   * Sends a content query using a compiled template, on the session it got compiled for.
+   *
+   * <p>If an UPDATE query cannot resume the session, as the session moved to another endpoint,
+   * an INITIAL query gets sent instead.
+   *
+   * <p>Content queries never get hedged. A duplicate INITIAL query would reset the session
+   * again after the first one got answered, so the next UPDATE query would miss items.
+   *
+   * @param template The compiled query to send.
+   * @param requestSentMillis The epoch millis to use for the requestSent field.
+   * @param isInitial If true, an INITIAL query is made. Otherwise, an UPDATE query is made.
+   * @param handler The handler to turn the response into the result.
+   * @return The result of the handler.
+   * @throws Exception if errors occur
+   */
+  private <T> T postQuery(QueryTemplate template, long requestSentMillis, boolean isInitial,
+      ResponseHandler<T> handler) throws Exception {
+    String requestSent = getTimestamp(requestSentMillis);
+    try {
+      return requestUtils.postForm(PATH_QUERY, template.render(requestSent, isInitial), handler,
+          false, template.getSessionId(), !isInitial);
+    } catch (RequestUtils.SessionMovedException e) {
+      // The session's new endpoint does not know the session, so it has to start over.
+      return requestUtils.postForm(PATH_QUERY, template.render(requestSent, true), handler,
+          false, template.getSessionId(), false);
+    }
+  }
+
+  /**
+   * Builds the Json object for a recommendation query.
+   * 
+   * @param requestSent The value of the requestSent field.
+   * @param queryType The type of query to perform FEED, RECOMMENDATION, ...
+   * @param queryMode The query mode (INITIAL, UPDATE).
+   * @param numItems The maximum number of items to return.
+   * @param contributionMode The contribution mode (NONE, DIRECT, ALL).
+   * @param entityIds The entity ids to search for.
+   * @return The query Json object
+   */
+  private JsonObject buildRecommendationsQuery(String requestSent, String queryType,
+      String queryMode, int numItems, String contributionMode, Iterable<String> entityIds) {
     JsonObject parameters = new JsonObject();
     parameters.addProperty("queryType", queryType);
-    parameters.addProperty("queryMode", isInitial ? "INITIAL" : "UPDATE");
+    parameters.addProperty("queryMode", queryMode);
     parameters.addProperty("numItems", numItems);
     parameters.addProperty("contributionMode", contributionMode);
 
@@ -136,13 +644,10 @@ public class QueryUtils {
       interests.add("entities", entities);
     }
 
-    JsonObject query = buildQueryStub();
+    JsonObject query = buildQueryStub(requestSent);
     query.add("parameters", parameters);
     query.add("interests", interests);
-
-    JsonObject response = requestUtils.post(PATH_QUERY, query);
-
-    return response.get("recommendations").getAsJsonArray();
+    return query;
   }
 
   /**
@@ -157,13 +662,66 @@ public class QueryUtils {
    */
   public JsonArray queryEntities(String query, String queryType, int maxResults)
       throws Exception {
+    EntityIndex index = entityIndex;
+    if (index != null && "PARTIAL_MATCH".equals(queryType)) {
+      List<Entity> local = index.lookup(query, maxResults);
+      if (!local.isEmpty()) {
+        return EntityIndex.toJson(local);
+      }
+    }
+
+    JsonObject queryObj = buildEntitiesQuery(query, queryType, maxResults);
+
+    JsonObject response = postShared(PATH_DDS, queryObj);
+
+    JsonArray ret = response.get("result").getAsJsonArray();
+    if (index != null) {
+      index.learn(query, queryType, EntityIndex.fromJson(ret));
+    }
+    return ret;
+  }
+
+  /**
+   * Query for entity information and decodes it to typed entities.
+   * 
+   * @param query The string to query DDS for
+   * @param queryType One of EXACT_MATCH, PARTIAL_MATCH, and ENTITY_ID.
+   * @param maxResults The maximum numbers of results to request
+   * @return The found entities.
+   * @throws Exception if errors occur.
+   */
+  public List<Entity> fetchEntities(String query, String queryType, int maxResults)
+      throws Exception {
+    EntityIndex index = entityIndex;
+    if (index != null && "PARTIAL_MATCH".equals(queryType)) {
+      List<Entity> local = index.lookup(query, maxResults);
+      if (!local.isEmpty()) {
+        return local;
+      }
+    }
+
+    JsonObject queryObj = buildEntitiesQuery(query, queryType, maxResults);
+
+    List<Entity> ret = postShared(PATH_DDS, queryObj, ENTITIES_HANDLER);
+    if (index != null) {
+      index.learn(query, queryType, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Builds the Json object for an entity query.
+   * 
+   * @param query The string to query DDS for
+   * @param queryType One of EXACT_MATCH, PARTIAL_MATCH, and ENTITY_ID.
+   * @param maxResults The maximum numbers of results to request
+   * @return The query Json object
+   */
+  private JsonObject buildEntitiesQuery(String query, String queryType, int maxResults) {
     JsonObject queryObj = new JsonObject();
     queryObj.addProperty("query", query);
     queryObj.addProperty("queryType", queryType);
     queryObj.addProperty("maxResults", maxResults);
-
-    JsonObject response = requestUtils.post(PATH_DDS, queryObj);
-
-    return response.get("result").getAsJsonArray();
+    return queryObj;
   }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal scanner over UTF-8 encoded Json bytes.
+ *
+ * <p>Unlike Gson's {@code JsonReader}, this scanner works directly on a byte array and exposes
+ * offsets. That allows to find the byte range of values without decoding them. Only the parts
+ * that callers explicitly read (e.g.: field names) get decoded to strings.
+ */
+class RawJsonScanner {
+  private final byte[] buffer;
+  private final int limit;
+  private int pos;
+
+  /**
+   * Creates a scanner for a range of a buffer.
+   *
+   * @param buffer The buffer holding UTF-8 encoded Json.
+   * @param offset The offset to start scanning at.
+   * @param length The number of bytes to scan.
+   */
+  RawJsonScanner(byte[] buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.pos = offset;
+    this.limit = offset + length;
+  }
+
+  /**
+   * Gets the current position.
+   *
+   * @return The offset into the buffer of the next byte to scan.
+   */
+  int position() {
+    return pos;
+  }
+
+  /**
+   * Skips whitespace and yields the next byte without consuming it.
+   *
+   * @return The next non-whitespace byte.
+   * @throws IllegalArgumentException if the end of the range got reached.
+   */
+  byte peek() {
+    skipWhitespace();
+    if (pos >= limit) {
+      throw malformed("Unexpected end of Json");
+    }
+    return buffer[pos];
+  }
+
+  /**
+   * Skips whitespace and consumes the given byte.
+   *
+   * @param expected The byte that is expected next.
+   * @throws IllegalArgumentException if the next byte is not the expected one.
+   */
+  void consume(char expected) {
+    if (peek() != expected) {
+      throw malformed("Expected '" + expected + "'");
+    }
+    pos++;
+  }
+
+  /**
+   * Consumes the given byte if it is next.
+   *
+   * @param expected The byte to consume.
+   * @return true, if the byte got consumed. false otherwise.
+   */
+  boolean consumeIf(char expected) {
+    if (peek() == expected) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reads a Json string and decodes it.
+   *
+   * @return The decoded string.
+   * @throws IllegalArgumentException if the next value is not a string.
+   */
+  String readString() {
+    consume('"');
+    int start = pos;
+    boolean escaped = false;
+    while (true) {
+      if (pos >= limit) {
+        throw malformed("Unterminated string");
+      }
+      byte b = buffer[pos];
+      if (b == '"') {
+        break;
+      } else if (b == '\\') {
+        escaped = true;
+        pos += 2;
+      } else {
+        pos++;
+      }
+    }
+    int end = pos;
+    pos++; // closing quote
+    if (!escaped) {
+      return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+    return unescape(start, end);
+  }
+
+  /**
+   * Decodes a string that contains escape sequences.
+   */
+  private String unescape(int start, int end) {
+    StringBuilder ret = new StringBuilder(end - start);
+    int runStart = start;
+    int i = start;
+    while (i < end) {
+      if (buffer[i] != '\\') {
+        i++;
+        continue;
+      }
+      ret.append(new String(buffer, runStart, i - runStart, StandardCharsets.UTF_8));
+      byte escape = buffer[i + 1];
+      i += 2;
+      switch (escape) {
+        case 'b':
+          ret.append('\b');
+          break;
+        case 'f':
+          ret.append('\f');
+          break;
+        case 'n':
+          ret.append('\n');
+          break;
+        case 'r':
+          ret.append('\r');
+          break;
+        case 't':
+          ret.append('\t');
+          break;
+        case 'u':
+          if (i + 4 > end) {
+            throw malformed("Truncated unicode escape");
+          }
+          ret.append((char) Integer.parseInt(new String(buffer, i, 4,
+              StandardCharsets.US_ASCII), 16));
+          i += 4;
+          break;
+        default:
+          // ", \, /, and anything else stand for themselves.
+          ret.append((char) escape);
+      }
+      runStart = i;
+    }
+    ret.append(new String(buffer, runStart, end - runStart, StandardCharsets.UTF_8));
+    return ret.toString();
+  }
+
+  /**
+   * Reads a primitive value as string.
+   *
+   * @return The string for string values, the literal text for numbers and booleans, and null
+   *     for Json null, objects, and arrays (which get skipped).
+   */
+  String readPrimitiveOrSkip() {
+    byte b = peek();
+    if (b == '"') {
+      return readString();
+    }
+    int start = pos;
+    skipValue();
+    if (b == '{' || b == '[' || b == 'n') {
+      return null;
+    }
+    return new String(buffer, start, pos - start, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Skips the next value.
+   *
+   * @return The offset of the first byte of the skipped value.
+   * @throws IllegalArgumentException if the value is malformed.
+   */
+  int skipValue() {
+    byte b = peek();
+    int start = pos;
+    if (b == '"') {
+      skipString();
+    } else if (b == '{' || b == '[') {
+      int depth = 0;
+      do {
+        if (pos >= limit) {
+          throw malformed("Unterminated " + (b == '{' ? "object" : "array"));
+        }
+        byte c = buffer[pos];
+        if (c == '"') {
+          skipString();
+          continue;
+        }
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+        pos++;
+      } while (depth > 0);
+    } else {
+      while (pos < limit && !isDelimiter(buffer[pos])) {
+        pos++;
+      }
+      if (pos == start) {
+        throw malformed("Unexpected character '" + (char) b + "'");
+      }
+    }
+    return start;
+  }
+
+  private void skipString() {
+    pos++; // opening quote
+    while (true) {
+      if (pos >= limit) {
+        throw malformed("Unterminated string");
+      }
+      byte b = buffer[pos];
+      if (b == '"') {
+        pos++;
+        return;
+      }
+      pos += (b == '\\') ? 2 : 1;
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < limit) {
+      byte b = buffer[pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b == ',' || b == '}' || b == ']' || b == ':' || b == ' ' || b == '\n' || b == '\r'
+        || b == '\t';
+  }
+
+  private IllegalArgumentException malformed(String message) {
+    return new IllegalArgumentException(message + " at offset " + pos);
+  }
+}
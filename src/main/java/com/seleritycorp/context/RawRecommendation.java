@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Recommended content item that is kept as raw bytes of the response.
+ *
+ * <p>Only {@code contentID}, {@code timestamp}, and {@code score} are decoded eagerly. All other
+ * fields are parsed only when first accessed through {@link #getRecommendation()} or
+ * {@link #getJson()}. Sinks that only forward or archive items can write the original bytes
+ * through {@link #writeTo(OutputStream)} or {@link #asByteBuffer()} without any parsing or
+ * reserializing.
+ */
+public class RawRecommendation {
+  private final byte[] buffer;
+  private final int offset;
+  private final int length;
+
+  private final String contentId;
+  private final String timestamp;
+  private final double score;
+
+  private volatile Recommendation recommendation;
+  private volatile JsonObject json;
+
+  /**
+   * Creates a raw recommendation for a slice of a response buffer.
+   *
+   * @param buffer The buffer holding the UTF-8 encoded response. It must not get modified
+   *     afterwards.
+   * @param offset The offset of the recommendation's Json object in the buffer.
+   * @param length The length of the recommendation's Json object in bytes.
+   * @param contentId The content id of the recommendation. null, if it has none.
+   * @param timestamp The timestamp of the recommendation. null, if it has none.
+   * @param score The score of the recommendation. NaN, if it has none.
+   */
+  RawRecommendation(byte[] buffer, int offset, int length, String contentId, String timestamp,
+      double score) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    this.contentId = contentId;
+    this.timestamp = timestamp;
+    this.score = score;
+  }
+
+  /**
+   * Scans a single recommendation from UTF-8 encoded Json bytes.
+   *
+   * @param bytes The bytes of the recommendation's Json object.
+   * @return The raw recommendation.
+   * @throws IllegalArgumentException if the bytes are not a Json object.
+   */
+  public static RawRecommendation of(byte[] bytes) {
+    return RawRecommendationsHandler.scanRecommendation(new RawJsonScanner(bytes, 0,
+        bytes.length), bytes);
+  }
+
+  /**
+   * Gets the id of the content item.
+   *
+   * @return The content id, or null if the item has none.
+   */
+  public String getContentId() {
+    return contentId;
+  }
+
+  /**
+   * Gets the timestamp of the content item as sent by the API.
+   *
+   * @return The timestamp, or null if the item has none.
+   */
+  public String getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Gets the score of the content item.
+   *
+   * @return The score, or NaN if the item has none.
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * Gets the number of bytes of the raw Json object.
+   *
+   * @return The length in bytes.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Gets the typed recommendation, decoding it on first access.
+   *
+   * @return The typed recommendation.
+   * @throws IOException if decoding fails.
+   */
+  public Recommendation getRecommendation() throws IOException {
+    Recommendation ret = recommendation;
+    if (ret == null) {
+      try (Reader reader = openReader()) {
+        ret = ModelAdapters.RECOMMENDATION.read(new JsonReader(reader));
+      }
+      recommendation = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the recommendation as Json object, parsing it on first access.
+   *
+   * <p>Callers must not modify the returned object, as it is shared between callers.
+   *
+   * @return The Json object.
+   * @throws IOException if parsing fails.
+   */
+  public JsonObject getJson() throws IOException {
+    JsonObject ret = json;
+    if (ret == null) {
+      try (Reader reader = openReader()) {
+        ret = new JsonParser().parse(reader).getAsJsonObject();
+      }
+      json = ret;
+    }
+    return ret;
+  }
+
+  private Reader openReader() {
+    return new InputStreamReader(new ByteArrayInputStream(buffer, offset, length),
+        StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the original UTF-8 encoded Json bytes.
+   *
+   * @param out The stream to write to.
+   * @throws IOException if writing fails.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, offset, length);
+  }
+
+  /**
+   * Gets a read-only view on the original UTF-8 encoded Json bytes.
+   *
+   * <p>The view shares the response buffer, so no bytes get copied.
+   *
+   * @return The view on the bytes.
+   */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Copies the original UTF-8 encoded Json bytes.
+   *
+   * @return A copy of the bytes.
+   */
+  public byte[] toByteArray() {
+    byte[] ret = new byte[length];
+    System.arraycopy(buffer, offset, ret, 0, length);
+    return ret;
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, offset, length, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits query responses into {@link RawRecommendation}s without parsing them.
+ *
+ * <p>Error handling is the same as for {@link RequestResponseHandler}. The response body is read
+ * into a single buffer, and each recommendation references its byte range in that buffer.
+ */
+public class RawRecommendationsHandler implements ResponseHandler<List<RawRecommendation>> {
+  @Override
+  public List<RawRecommendation> handleResponse(HttpResponse response)
+      throws ClientProtocolException, IOException {
+    HttpEntity entity = RequestResponseHandler.getJsonEntity(response);
+    byte[] body = EntityUtils.toByteArray(entity);
+
+    Charset charset = ContentType.getOrDefault(entity).getCharset();
+    if (charset != null && !StandardCharsets.UTF_8.equals(charset)
+        && !StandardCharsets.US_ASCII.equals(charset)) {
+      // Raw recommendations are UTF-8, so we transcode the rare other responses.
+      body = new String(body, charset).getBytes(StandardCharsets.UTF_8);
+    }
+
+    try {
+      return scanResponse(body);
+    } catch (IllegalArgumentException e) {
+      throw new ClientProtocolException("Could not scan response: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Splits a query response into raw recommendations.
+   *
+   * @param body The UTF-8 encoded response body.
+   * @return The raw recommendations of the response.
+   * @throws IllegalArgumentException if the response is malformed or lacks recommendations.
+   */
+  static List<RawRecommendation> scanResponse(byte[] body) {
+    RawJsonScanner scanner = new RawJsonScanner(body, 0, body.length);
+    List<RawRecommendation> ret = null;
+    scanner.consume('{');
+    if (!scanner.consumeIf('}')) {
+      do {
+        String name = scanner.readString();
+        scanner.consume(':');
+        if (ret == null && "recommendations".equals(name) && scanner.peek() == '[') {
+          ret = scanRecommendations(scanner, body);
+        } else {
+          scanner.skipValue();
+        }
+      } while (scanner.consumeIf(','));
+      scanner.consume('}');
+    }
+    if (ret == null) {
+      throw new IllegalArgumentException("Response does not contain field 'recommendations'");
+    }
+    return ret;
+  }
+
+  private static List<RawRecommendation> scanRecommendations(RawJsonScanner scanner,
+      byte[] body) {
+    scanner.consume('[');
+    if (scanner.consumeIf(']')) {
+      return Collections.emptyList();
+    }
+    List<RawRecommendation> ret = new ArrayList<>();
+    do {
+      if (scanner.peek() == '{') {
+        ret.add(scanRecommendation(scanner, body));
+      } else {
+        scanner.skipValue();
+      }
+    } while (scanner.consumeIf(','));
+    scanner.consume(']');
+    return ret;
+  }
+
+  /**
+   * Scans a recommendation object and indexes its eagerly decoded fields.
+   *
+   * @param scanner The scanner positioned before the recommendation object.
+   * @param body The buffer the scanner works on.
+   * @return The raw recommendation.
+   */
+  static RawRecommendation scanRecommendation(RawJsonScanner scanner, byte[] body) {
+    String contentId = null;
+    String timestamp = null;
+    double score = Double.NaN;
+
+    scanner.consume('{');
+    int start = scanner.position() - 1;
+    if (!scanner.consumeIf('}')) {
+      do {
+        String name = scanner.readString();
+        scanner.consume(':');
+        switch (name) {
+          case "contentID":
+            contentId = scanner.readPrimitiveOrSkip();
+            break;
+          case "timestamp":
+            timestamp = scanner.readPrimitiveOrSkip();
+            break;
+          case "score":
+            String scoreString = scanner.readPrimitiveOrSkip();
+            if (scoreString != null) {
+              try {
+                score = Double.parseDouble(scoreString);
+              } catch (NumberFormatException e) {
+                score = Double.NaN;
+              }
+            }
+            break;
+          default:
+            scanner.skipValue();
+        }
+      } while (scanner.consumeIf(','));
+      scanner.consume('}');
+    }
+    int end = scanner.position();
+    return new RawRecommendation(body, start, end - start, contentId, timestamp, score);
+  }
+}
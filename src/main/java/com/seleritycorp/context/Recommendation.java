@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recommended content item.
+ *
+ * <p>Instances get decoded straight from the response stream by
+ * {@link ModelAdapters#RECOMMENDATION}. Fields that the API did not provide are null (or NaN for
+ * the score).
+ */
+public class Recommendation {
+  String contentId;
+  String contentType;
+  String headline;
+  Source source;
+  String timestamp;
+  double score = Double.NaN;
+  List<Contribution> contributions = Collections.emptyList();
+  String summary;
+  String author;
+  String linkUrl;
+  List<RelatedContent> relatedContent = Collections.emptyList();
+
+  /**
+   * Gets the id of the content item.
+   *
+   * @return The content id.
+   */
+  public String getContentId() {
+    return contentId;
+  }
+
+  /**
+   * Gets the type of the content item (E.g.: TWEET).
+   *
+   * @return The content type.
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Gets the headline of the content item.
+   *
+   * @return The headline.
+   */
+  public String getHeadline() {
+    return headline;
+  }
+
+  /**
+   * Gets the source of the content item.
+   *
+   * @return The source.
+   */
+  public Source getSource() {
+    return source;
+  }
+
+  /**
+   * Gets the timestamp of the content item as sent by the API.
+   *
+   * @return The timestamp.
+   */
+  public String getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Gets the score of the content item.
+   *
+   * @return The score, or NaN if the API did not provide one.
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * Gets the contributions to the score.
+   *
+   * @return The contributions. Empty if none got requested.
+   */
+  public List<Contribution> getContributions() {
+    return contributions;
+  }
+
+  /**
+   * Gets the summary of the content item.
+   *
+   * @return The summary.
+   */
+  public String getSummary() {
+    return summary;
+  }
+
+  /**
+   * Gets the author from the content item's social information.
+   *
+   * @return The author.
+   */
+  public String getAuthor() {
+    return author;
+  }
+
+  /**
+   * Gets the link to the content item.
+   *
+   * @return The link.
+   */
+  public String getLinkUrl() {
+    return linkUrl;
+  }
+
+  /**
+   * Gets content related to this item.
+   *
+   * @return The related content. Empty if there is none.
+   */
+  public List<RelatedContent> getRelatedContent() {
+    return relatedContent;
+  }
+}
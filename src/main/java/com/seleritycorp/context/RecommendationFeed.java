@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single upstream poll for a query that publishes unseen recommendations to many subscribers.
+ *
+ * <p>The feed polls the Context API with an INITIAL query followed by UPDATE queries, filters
+ * out already seen items, and offers the remaining ones to all of its {@link Subscriber}s.
+ * Subscribers that got closed are dropped from the feed upon the next publish.
+ *
+ * <p>Feeds can serve subscribers with different entity interests through a single query for
+ * the union of their entities. Such subscribers only get the items whose
+ * {@code RELEVANCE_ENTITY} contributions name one of their entities. When the union changes,
+ * the feed's query gets replaced and polling restarts with an INITIAL query. Subscribers that
+ * joined since the last INITIAL query get all of its items, the others only unseen ones.
+ */
+public class RecommendationFeed implements Runnable {
+  private static final Log log = LogFactory.getLog(RecommendationFeed.class);
+
+  private final String name;
+  private final QueryUtils queryUtils;
+  private QueryTemplate queryTemplate;
+  private final long pauseMillis;
+  private final SeenContentFilter seenContentFilter;
+  private final List<Subscriber> subscribers;
+  private final List<RecommendationSink> sinks;
+  private final Map<Subscriber, Set<String>> interests;
+  private final Set<Subscriber> pendingInitial;
+  private final AtomicLong savedRequestCount = new AtomicLong();
+  private volatile int coalescedQueryCount = 1;
+  private boolean isInitial = true;
+  private volatile boolean stopped = false;
+
+  /**
+   * Creates a feed.
+   *
+   * @param name The name of the feed, used for logging.
+   * @param queryUtils The query helpers to poll through.
+   * @param queryTemplate The compiled query to poll.
+   * @param pauseMillis Pause in milliseconds between polls.
+   */
+  public RecommendationFeed(String name, QueryUtils queryUtils, QueryTemplate queryTemplate,
+      long pauseMillis) {
+    this.name = name;
+    this.queryUtils = queryUtils;
+    this.queryTemplate = queryTemplate;
+    this.pauseMillis = pauseMillis;
+    // Upstream answers with at most a few batches of items that have not yet been seen, so
+    // remembering a few hundred content ids is plenty.
+    this.seenContentFilter = new SeenContentFilter(512);
+    this.subscribers = new CopyOnWriteArrayList<>();
+    this.sinks = new CopyOnWriteArrayList<>();
+    this.interests = new ConcurrentHashMap<>();
+    this.pendingInitial = new HashSet<>();
+  }
+
+  /**
+   * Adds a sink that gets all unseen items of this feed besides the subscribers.
+   *
+   * @param sink The sink to add.
+   */
+  public void addSink(RecommendationSink sink) {
+    sinks.add(sink);
+  }
+
+  /**
+   * Adds a subscriber to the feed.
+   *
+   * @param subscriber The subscriber to add.
+   */
+  public void addSubscriber(Subscriber subscriber) {
+    subscribers.add(subscriber);
+  }
+
+  /**
+   * Adds a subscriber that only gets items relevant to some entities.
+   *
+   * <p>If the next poll is an INITIAL query, the subscriber gets all of its items that are
+   * relevant to its entities, even if other subscribers saw them already.
+   *
+   * @param subscriber The subscriber to add.
+   * @param entityIds The entity ids the subscriber is interested in.
+   */
+  public synchronized void addSubscriber(Subscriber subscriber, Set<String> entityIds) {
+    interests.put(subscriber, entityIds);
+    if (isInitial) {
+      pendingInitial.add(subscriber);
+    }
+    subscribers.add(subscriber);
+  }
+
+  /**
+   * Switches to a new query and adds a subscriber that only gets items relevant to some
+   * entities.
+   *
+   * <p>Both happen at once, so the subscriber gets all relevant items of the new query's
+   * INITIAL poll.
+   *
+   * @param subscriber The subscriber to add.
+   * @param entityIds The entity ids the subscriber is interested in.
+   * @param queryTemplate The new query to poll.
+   */
+  public synchronized void addSubscriber(Subscriber subscriber, Set<String> entityIds,
+      QueryTemplate queryTemplate) {
+    setQueryTemplate(queryTemplate);
+    addSubscriber(subscriber, entityIds);
+  }
+
+  /**
+   * Replaces the feed's query, so the next poll is an INITIAL query of the new template.
+   *
+   * @param queryTemplate The new query to poll.
+   */
+  public synchronized void setQueryTemplate(QueryTemplate queryTemplate) {
+    this.queryTemplate = queryTemplate;
+    this.isInitial = true;
+  }
+
+  /**
+   * Gets the feed's current query.
+   *
+   * @return The query that the feed polls.
+   */
+  public synchronized QueryTemplate getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * Sets how many queries this feed's query stands in for.
+   *
+   * @param coalescedQueryCount The number of distinct interests served by this feed.
+   */
+  public void setCoalescedQueryCount(int coalescedQueryCount) {
+    this.coalescedQueryCount = coalescedQueryCount;
+  }
+
+  /**
+   * Gets the number of upstream requests saved by serving several interests per poll.
+   *
+   * @return The number of saved upstream requests.
+   */
+  public long getSavedRequestCount() {
+    return savedRequestCount.get();
+  }
+
+  /**
+   * Removes a subscriber from the feed.
+   *
+   * @param subscriber The subscriber to remove.
+   */
+  public void removeSubscriber(Subscriber subscriber) {
+    subscribers.remove(subscriber);
+    interests.remove(subscriber);
+    synchronized (this) {
+      pendingInitial.remove(subscriber);
+    }
+  }
+
+  /**
+   * Gets the number of subscribers of this feed.
+   *
+   * @return The number of subscribers.
+   */
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Performs a single poll and publishes unseen items.
+   *
+   * @return The number of published (i.e.: unseen) items.
+   * @throws Exception if the poll fails.
+   */
+  public int pollOnce() throws Exception {
+    QueryTemplate template;
+    boolean initial;
+    List<Subscriber> initialSubscribers = Collections.emptyList();
+    synchronized (this) {
+      template = queryTemplate;
+      initial = isInitial;
+      isInitial = false; // From now on, all queries are UPDATES
+      if (initial) {
+        initialSubscribers = new ArrayList<>(pendingInitial);
+        pendingInitial.clear();
+      }
+    }
+    List<RawRecommendation> recommendations;
+    try {
+      recommendations = queryUtils.fetchRawRecommendations(template, initial);
+    } catch (Exception e) {
+      synchronized (this) {
+        if (initial && queryTemplate == template) {
+          // Retrying the INITIAL query with the next poll.
+          isInitial = true;
+          pendingInitial.addAll(initialSubscribers);
+        }
+      }
+      throw e;
+    }
+    savedRequestCount.addAndGet(coalescedQueryCount - 1);
+
+    List<RawRecommendation> unseenRecommendations;
+    // Publishing under the lock, so subscribers joining meanwhile either get this poll's items
+    // or are known to have missed them. Offering to subscribers does not block.
+    synchronized (this) {
+      unseenRecommendations = seenContentFilter.filterUnseen(recommendations);
+      Map<RawRecommendation, Set<String>> entityIdsCache = new HashMap<>();
+      for (Subscriber subscriber : subscribers) {
+        Set<String> entityIds = interests.get(subscriber);
+        boolean sendAll = initialSubscribers.contains(subscriber);
+        for (RawRecommendation recommendation : sendAll ? recommendations
+            : unseenRecommendations) {
+          if (entityIds != null && !isRelevant(recommendation, entityIds, entityIdsCache)) {
+            continue;
+          }
+          if (!subscriber.offer(recommendation)) {
+            removeSubscriber(subscriber);
+            break;
+          }
+        }
+      }
+    }
+    // Sinks go last, so a failing sink does not hold back subscribers.
+    for (RecommendationSink sink : sinks) {
+      for (RawRecommendation recommendation : unseenRecommendations) {
+        sink.append(recommendation);
+      }
+      sink.flush();
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("Feed " + name + " received " + recommendations.size() + " recommendations. "
+          + unseenRecommendations.size() + " of those got published to " + subscribers.size()
+          + " subscribers.");
+    }
+    return unseenRecommendations.size();
+  }
+
+  private static boolean isRelevant(RawRecommendation recommendation, Set<String> entityIds,
+      Map<RawRecommendation, Set<String>> entityIdsCache) {
+    Set<String> relevantEntityIds = entityIdsCache.get(recommendation);
+    if (relevantEntityIds == null) {
+      relevantEntityIds = RecommendationStore.getEntityIds(recommendation);
+      entityIdsCache.put(recommendation, relevantEntityIds);
+    }
+    for (String entityId : relevantEntityIds) {
+      if (entityIds.contains(entityId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Polls until {@link #stop()} is called.
+   *
+   * <p>The session of the feed gets ended afterwards, as a poll that was still running when
+   * the feed got stopped may have pinned it again.
+   */
+  @Override
+  public void run() {
+    try {
+      pollUntilStopped();
+    } finally {
+      queryUtils.endSession();
+    }
+  }
+
+  private void pollUntilStopped() {
+    while (!stopped) {
+      try {
+        pollOnce();
+      } catch (Exception e) {
+        log.warn("Feed " + name + " failed to poll", e);
+      }
+
+      if (!stopped && pauseMillis > 0) {
+        try {
+          Thread.sleep(pauseMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          stopped = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops polling after the current poll and closes all subscribers.
+   */
+  public void stop() {
+    stopped = true;
+    for (Subscriber subscriber : subscribers) {
+      subscriber.close();
+    }
+  }
+
+  /**
+   * Gets the query helpers the feed polls through.
+   *
+   * @return The feed's query helpers.
+   */
+  public QueryUtils getQueryUtils() {
+    return queryUtils;
+  }
+
+  /**
+   * Gets the name of the feed.
+   *
+   * @return The feed's name.
+   */
+  public String getName() {
+    return name;
+  }
+}
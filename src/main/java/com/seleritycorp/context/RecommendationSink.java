@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for unseen recommendations besides printing them.
+ *
+ * <p>Sinks are handed {@link RawRecommendation}s, so they can pass on the original bytes
+ * without decoding or reserializing items.
+ */
+public interface RecommendationSink extends Closeable {
+  /**
+   * Appends a recommendation to the sink.
+   *
+   * @param recommendation The recommendation to append.
+   * @throws IOException if appending fails.
+   */
+  void append(RawRecommendation recommendation) throws IOException;
+
+  /**
+   * Makes recommendations appended so far available to the sink's consumers.
+   *
+   * @throws IOException if flushing fails.
+   */
+  void flush() throws IOException;
+}
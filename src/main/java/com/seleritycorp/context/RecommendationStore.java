@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Embedded append-only store for received recommendations.
+ *
+ * <p>Recommendations are appended as their raw response bytes to segment files in a directory.
+ * Each record consists of an int payload length, a long timestamp (epoch millis of the item's
+ * timestamp, or of the time it got stored if the item has no usable timestamp), and the
+ * payload. Once a segment reaches its size limit, a new segment is started. Segments whose
+ * items are all older than the retention period get deleted as a whole.
+ *
+ * <p>Per segment, two in-memory indexes are kept, which are rebuilt from the segment files upon
+ * opening the store:
+ * <ul>
+ * <li>A sparse time index holding every {@link #INDEX_INTERVAL}th record's position along with
+ * the maximum timestamp of all records up to it. As items do not arrive strictly ordered by
+ * timestamp, the running maximum is what keeps the index monotonic and allows to skip all
+ * records before a queried time range.</li>
+ * <li>A posting index from entity ids to the positions of records with a
+ * {@code RELEVANCE_ENTITY} contribution for that entity.</li>
+ * </ul>
+ * Queries read records through read-only memory mappings of the segments.
+ *
+ * <p>Only the active segment is kept open for writing. A store opened for writing holds an
+ * exclusive lock on a lock file in the directory, so only one process at a time writes to a
+ * directory. Stores opened read-only take no lock and never modify the directory.
+ */
+public class RecommendationStore implements RecommendationSink {
+  private static final Log log = LogFactory.getLog(RecommendationStore.class);
+
+  /**
+   * Sort order of query results.
+   */
+  public enum Order {
+    /**
+     * Newest items first.
+     */
+    TIME,
+
+    /**
+     * Highest scoring items first. Items without score go last.
+     */
+    SCORE
+  }
+
+  static final int RECORD_HEADER_SIZE = 12;
+  static final int INDEX_INTERVAL = 32;
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String LOCK_FILE_NAME = "writer.lock";
+
+  private final Path directory;
+  private final long maxSegmentBytes;
+  private final long retentionMillis;
+  private final boolean readOnly;
+  private FileChannel lockChannel;
+  private final LinkedList<Segment> segments = new LinkedList<>();
+  private final ByteBuffer headerBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+      .order(ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Opens a store for writing, creating it if needed.
+   *
+   * @param directory The directory holding the segment files.
+   * @param maxSegmentBytes Start a new segment once a segment reaches this size.
+   * @param retentionMillis Delete segments once all their items are older than this many
+   *     milliseconds.
+   * @throws IOException if the segments cannot be read, or another process writes to the
+   *     store.
+   */
+  public RecommendationStore(Path directory, long maxSegmentBytes, long retentionMillis)
+      throws IOException {
+    this(directory, maxSegmentBytes, retentionMillis, false);
+  }
+
+  /**
+   * Opens a store.
+   *
+   * @param directory The directory holding the segment files.
+   * @param maxSegmentBytes Start a new segment once a segment reaches this size.
+   * @param retentionMillis Delete segments once all their items are older than this many
+   *     milliseconds.
+   * @param readOnly If true, the store only answers queries. It neither creates, truncates,
+   *     nor deletes segments, and the directory has to exist. Otherwise, the store gets
+   *     created if needed.
+   * @throws IOException if the segments cannot be read, or the store is opened for writing
+   *     while another process writes to it.
+   */
+  public RecommendationStore(Path directory, long maxSegmentBytes, long retentionMillis,
+      boolean readOnly) throws IOException {
+    if (maxSegmentBytes <= RECORD_HEADER_SIZE || maxSegmentBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Segment size has to be between "
+          + RECORD_HEADER_SIZE + " and " + Integer.MAX_VALUE + ", but is " + maxSegmentBytes);
+    }
+    this.directory = readOnly ? directory : Files.createDirectories(directory);
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.retentionMillis = retentionMillis;
+    this.readOnly = readOnly;
+
+    if (!readOnly) {
+      lock();
+    }
+    try {
+      List<Long> ids = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+          "*" + SEGMENT_SUFFIX)) {
+        for (Path path : stream) {
+          String name = path.getFileName().toString();
+          try {
+            ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            log.warn("Ignoring unexpected file " + path);
+          }
+        }
+      }
+      Collections.sort(ids);
+      for (long id : ids) {
+        segments.add(loadSegment(id));
+      }
+      if (!readOnly) {
+        if (segments.isEmpty()) {
+          segments.add(createSegment(0));
+        } else {
+          Segment active = segments.getLast();
+          active.channel = FileChannel.open(active.path, StandardOpenOption.WRITE);
+          active.channel.position(active.size);
+        }
+        enforceRetention(System.currentTimeMillis());
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Takes the writer lock of the directory.
+   *
+   * @throws IOException if another writer holds the lock.
+   */
+  private void lock() throws IOException {
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Another store of this process writes to the directory.
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      lockChannel = null;
+      throw new IOException("Store " + directory + " is already opened for writing");
+    }
+  }
+
+  private Path segmentPath(long id) {
+    return directory.resolve(String.format("%020d", id) + SEGMENT_SUFFIX);
+  }
+
+  private Segment createSegment(long id) throws IOException {
+    Path path = segmentPath(id);
+    Segment ret = new Segment(id, path);
+    ret.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+    return ret;
+  }
+
+  /**
+   * Loads an existing segment and rebuilds its indexes.
+   *
+   * <p>A partially written record at the end of the segment (e.g.: from a crash) gets truncated,
+   * unless the store is read-only. Read-only stores ignore it instead.
+   */
+  private Segment loadSegment(long id) throws IOException {
+    Path path = segmentPath(id);
+    Segment segment = new Segment(id, path);
+    long fileSize;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      fileSize = channel.size();
+      if (fileSize > Integer.MAX_VALUE) {
+        throw new IOException("Segment " + path + " is too large");
+      }
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      int position = 0;
+      while (position + RECORD_HEADER_SIZE <= fileSize) {
+        int length = buffer.getInt(position);
+        if (length < 0 || position + RECORD_HEADER_SIZE + (long) length > fileSize) {
+          break;
+        }
+        long timestamp = buffer.getLong(position + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.get(payload);
+        segment.index(position, timestamp, getEntityIds(RawRecommendation.of(payload)));
+        position += RECORD_HEADER_SIZE + length;
+      }
+      segment.size = position;
+    }
+    if (segment.size < fileSize) {
+      if (readOnly) {
+        log.warn("Ignoring partial record at " + segment.size + " of segment " + path);
+      } else {
+        log.warn("Truncating partial record at " + segment.size + " of segment " + path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+          channel.truncate(segment.size);
+        }
+      }
+    }
+    return segment;
+  }
+
+  /**
+   * Gets the entity ids of a recommendation's {@code RELEVANCE_ENTITY} contributions.
+   *
+   * @param recommendation The recommendation to get the entity ids for.
+   * @return The entity ids.
+   */
+  static Set<String> getEntityIds(RawRecommendation recommendation) {
+    Set<String> ret = new HashSet<>();
+    try {
+      for (Contribution contribution : recommendation.getRecommendation().getContributions()) {
+        if ("RELEVANCE_ENTITY".equals(contribution.getContributorType())
+            && contribution.getContributor() != null) {
+          ret.add(contribution.getContributor());
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not decode contributions of " + recommendation.getContentId(), e);
+    }
+    return ret;
+  }
+
+  /**
+   * Appends a recommendation to the store.
+   *
+   * @param recommendation The recommendation to append.
+   * @throws IOException if writing fails.
+   */
+  @Override
+  public synchronized void append(RawRecommendation recommendation) throws IOException {
+    if (readOnly) {
+      throw new IOException("Store " + directory + " is opened read-only");
+    }
+    long timestamp = TimestampUtils.parseMillis(recommendation.getTimestamp());
+    if (timestamp == TimestampUtils.UNKNOWN) {
+      timestamp = System.currentTimeMillis();
+    }
+    int length = recommendation.getLength();
+    long recordSize = RECORD_HEADER_SIZE + (long) length;
+    if (recordSize > maxSegmentBytes) {
+      throw new IOException("Recommendation " + recommendation.getContentId() + " of " + length
+          + " bytes exceeds the segment size");
+    }
+
+    Segment active = segments.getLast();
+    if (active.size + recordSize > maxSegmentBytes) {
+      active = roll();
+    }
+
+    headerBuffer.clear();
+    headerBuffer.putInt(length).putLong(timestamp).flip();
+    ByteBuffer[] record = new ByteBuffer[] {headerBuffer, recommendation.asByteBuffer()};
+    long written = 0;
+    while (written < recordSize) {
+      written += active.channel.write(record);
+    }
+    active.index((int) active.size, timestamp, getEntityIds(recommendation));
+    active.size += recordSize;
+  }
+
+  /**
+   * Seals the active segment and starts a new one.
+   */
+  private Segment roll() throws IOException {
+    Segment sealed = segments.getLast();
+    sealed.channel.force(false);
+    sealed.close();
+    Segment ret = createSegment(sealed.id + 1);
+    segments.add(ret);
+    enforceRetention(System.currentTimeMillis());
+    return ret;
+  }
+
+  /**
+   * Syncs the active segment to disk.
+   *
+   * @throws IOException if syncing fails.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (!readOnly) {
+      segments.getLast().channel.force(false);
+    }
+  }
+
+  /**
+   * Deletes sealed segments whose items are all older than the retention period.
+   *
+   * <p>Read-only stores never delete segments.
+   *
+   * @param nowMillis The current time in epoch milliseconds.
+   * @return The number of deleted segments.
+   * @throws IOException if deleting fails.
+   */
+  public synchronized int enforceRetention(long nowMillis) throws IOException {
+    int ret = 0;
+    if (readOnly) {
+      return ret;
+    }
+    long threshold = nowMillis - retentionMillis;
+    // The last segment is the active one and never gets deleted.
+    while (segments.size() > 1 && segments.getFirst().maxTimestamp < threshold) {
+      Segment segment = segments.removeFirst();
+      segment.close();
+      Files.delete(segment.path);
+      ret++;
+      log.debug("Deleted segment " + segment.path + " as it exceeds retention");
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the number of segments.
+   *
+   * @return The number of segments.
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Queries the store for recommendations.
+   *
+   * <p>Multiple recommendations with the same content id are collapsed to the first one in
+   * the requested order.
+   *
+   * @param entityIds Only return items relevant to one of those entities. If empty, items are
+   *     not filtered by entity.
+   * @param fromMillis Only return items with timestamp at or after this epoch millis.
+   * @param toMillis Only return items with timestamp before this epoch millis.
+   * @param order The order of the returned items.
+   * @param limit The maximum number of items to return.
+   * @return The matching items.
+   * @throws IOException if reading segments fails.
+   */
+  public synchronized List<RawRecommendation> query(Collection<String> entityIds,
+      long fromMillis, long toMillis, Order order, int limit) throws IOException {
+    final List<Hit> hits = new ArrayList<>();
+    for (Segment segment : segments) {
+      if (segment.maxTimestamp < fromMillis || segment.minTimestamp >= toMillis) {
+        continue;
+      }
+      ByteBuffer buffer = segment.map();
+      if (entityIds.isEmpty()) {
+        int position = segment.findStart(fromMillis);
+        while (position < segment.size) {
+          position += collect(buffer, position, fromMillis, toMillis, hits);
+        }
+      } else {
+        Set<Integer> visited = new HashSet<>();
+        for (String entityId : entityIds) {
+          Postings postings = segment.postings.get(entityId);
+          for (int i = 0; postings != null && i < postings.size; i++) {
+            if (visited.add(postings.positions[i])) {
+              collect(buffer, postings.positions[i], fromMillis, toMillis, hits);
+            }
+          }
+        }
+      }
+    }
+
+    Collections.sort(hits, order == Order.SCORE ? Hit.BY_SCORE : Hit.BY_TIME);
+    List<RawRecommendation> ret = new ArrayList<>(Math.min(limit, hits.size()));
+    Set<String> contentIds = new HashSet<>();
+    for (Hit hit : hits) {
+      if (ret.size() >= limit) {
+        break;
+      }
+      String contentId = hit.recommendation.getContentId();
+      if (contentId == null || contentIds.add(contentId)) {
+        ret.add(hit.recommendation);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Adds the record at a position to the hits, if it is within the time range.
+   *
+   * @return The size of the record.
+   */
+  private int collect(ByteBuffer buffer, int position, long fromMillis, long toMillis,
+      List<Hit> hits) {
+    int length = buffer.getInt(position);
+    long timestamp = buffer.getLong(position + 4);
+    if (timestamp >= fromMillis && timestamp < toMillis) {
+      byte[] payload = new byte[length];
+      ByteBuffer view = buffer.duplicate();
+      view.position(position + RECORD_HEADER_SIZE);
+      view.get(payload);
+      hits.add(new Hit(timestamp, RawRecommendation.of(payload)));
+    }
+    return RECORD_HEADER_SIZE + length;
+  }
+
+  /**
+   * Closes the store and releases the writer lock.
+   *
+   * @throws IOException if closing the active segment fails.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (!segments.isEmpty()) {
+        Segment active = segments.getLast();
+        if (active.channel != null) {
+          active.channel.force(false);
+        }
+      }
+    } finally {
+      for (Segment segment : segments) {
+        segment.close();
+      }
+      if (lockChannel != null) {
+        // Closing the channel releases the lock.
+        lockChannel.close();
+        lockChannel = null;
+      }
+    }
+  }
+
+  /**
+   * Matching record of a query.
+   */
+  private static final class Hit {
+    static final Comparator<Hit> BY_TIME = new Comparator<Hit>() {
+      @Override
+      public int compare(Hit o1, Hit o2) {
+        return Long.compare(o2.timestamp, o1.timestamp);
+      }
+    };
+
+    static final Comparator<Hit> BY_SCORE = new Comparator<Hit>() {
+      @Override
+      public int compare(Hit o1, Hit o2) {
+        double score1 = o1.recommendation.getScore();
+        double score2 = o2.recommendation.getScore();
+        // Double.compare sorts NaN above all, but items without score should go last.
+        int ret = Double.compare(Double.isNaN(score2) ? Double.NEGATIVE_INFINITY : score2,
+            Double.isNaN(score1) ? Double.NEGATIVE_INFINITY : score1);
+        return (ret != 0) ? ret : BY_TIME.compare(o1, o2);
+      }
+    };
+
+    final long timestamp;
+    final RawRecommendation recommendation;
+
+    Hit(long timestamp, RawRecommendation recommendation) {
+      this.timestamp = timestamp;
+      this.recommendation = recommendation;
+    }
+  }
+
+  /**
+   * Growable list of record positions.
+   */
+  private static final class Postings {
+    int[] positions = new int[4];
+    int size = 0;
+
+    void add(int position) {
+      if (size == positions.length) {
+        positions = Arrays.copyOf(positions, size * 2);
+      }
+      positions[size++] = position;
+    }
+  }
+
+  /**
+   * A single segment file along with its indexes.
+   */
+  private static final class Segment {
+    final long id;
+    final Path path;
+    FileChannel channel; // Only open for the active segment of a writable store
+    long size = 0;
+    long minTimestamp = Long.MAX_VALUE;
+    long maxTimestamp = Long.MIN_VALUE;
+    int recordCount = 0;
+    long[] indexMaxTimestamps = new long[16];
+    int[] indexPositions = new int[16];
+    int indexSize = 0;
+    final Map<String, Postings> postings = new HashMap<>();
+    MappedByteBuffer mapped;
+
+    Segment(long id, Path path) {
+      this.id = id;
+      this.path = path;
+    }
+
+    /**
+     * Adds a record to the segment's indexes.
+     */
+    void index(int position, long timestamp, Collection<String> entityIds) {
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+      if (recordCount % INDEX_INTERVAL == 0) {
+        if (indexSize == indexPositions.length) {
+          indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+          indexMaxTimestamps = Arrays.copyOf(indexMaxTimestamps, indexSize * 2);
+        }
+        indexPositions[indexSize] = position;
+        indexMaxTimestamps[indexSize] = maxTimestamp;
+        indexSize++;
+      }
+      recordCount++;
+      for (String entityId : entityIds) {
+        Postings entityPostings = postings.get(entityId);
+        if (entityPostings == null) {
+          entityPostings = new Postings();
+          postings.put(entityId, entityPostings);
+        }
+        entityPostings.add(position);
+      }
+    }
+
+    /**
+     * Finds the position from which on records may have a timestamp at or after a given time.
+     */
+    int findStart(long fromMillis) {
+      // Binary search for the last index entry, up to which all records are older.
+      int low = 0;
+      int high = indexSize - 1;
+      int ret = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (indexMaxTimestamps[mid] < fromMillis) {
+          ret = indexPositions[mid];
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return ret;
+    }
+
+    /**
+     * Maps the segment for reading. Mappings get reused until the segment grows.
+     */
+    ByteBuffer map() throws IOException {
+      if (mapped == null || mapped.capacity() != size) {
+        try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+          mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return mapped;
+    }
+
+    /**
+     * Closes the segment's channel, if it is open, and drops its mapping.
+     */
+    void close() throws IOException {
+      mapped = null;
+      if (channel != null) {
+        FileChannel closing = channel;
+        channel = null;
+        closing.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+/**
+ * Content related to a recommended content item.
+ */
+public class RelatedContent {
+  String relationship;
+  Recommendation contentItem;
+
+  /**
+   * Gets how the content relates to the recommendation.
+   *
+   * @return The relationship, or null if the API did not provide it.
+   */
+  public String getRelationship() {
+    return relationship;
+  }
+
+  /**
+   * Gets the related content item.
+   *
+   * @return The related content item, or null if the API did not provide it.
+   */
+  public Recommendation getContentItem() {
+    return contentItem;
+  }
+}
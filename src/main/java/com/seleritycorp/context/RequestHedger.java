@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges slow read-only requests by sending a duplicate.
+ *
+ * <p>If a request did not complete within the configured percentile of the recent latencies
+ * of its kind, a second, identical request gets sent. Whichever completes first wins, and the
+ * other one gets aborted. So a single slow response no longer determines the latency, while
+ * only the slowest few percent of requests cause extra load.
+ *
+ * <p>A hedge budget caps the extra load: each request earns a fraction of a hedge, and each
+ * hedge spends a whole one. So when an endpoint is slow altogether, hedging does not double
+ * the load on it.
+ *
+ * <p>Only requests that can be sent twice without harm must get hedged. (E.g.: not content
+ * queries, as INITIAL queries reset and UPDATE queries advance the session's state)
+ */
+public class RequestHedger {
+  private static final Log log = LogFactory.getLog(RequestHedger.class);
+
+  /**
+   * Number of recent latencies to derive the delay from.
+   */
+  private static final int WINDOW = 256;
+
+  /**
+   * Requests do not get hedged until that many latencies of their kind are known.
+   */
+  private static final int MIN_SAMPLES = 20;
+
+  /**
+   * Minimum delay before hedging a request. Hedging earlier mostly adds load, as a duplicate
+   * can then hardly beat the original request.
+   */
+  private static final long MIN_DELAY_MILLIS = 10;
+
+  /**
+   * Maximum number of unspent hedges, so quiet periods do not allow for bursts of hedges.
+   */
+  private static final double MAX_BUDGET = 10;
+
+  /**
+   * One try of a request.
+   *
+   * @param <T> The type of the request's result.
+   */
+  public interface Attempt<T> {
+    /**
+     * Performs the request.
+     *
+     * @return The result of the request.
+     * @throws Exception if the request failed.
+     */
+    T call() throws Exception;
+
+    /**
+     * Aborts the request, if it is in flight. Called from another thread than {@link #call()}.
+     */
+    void abort();
+  }
+
+  private static final class Latencies {
+    final long[] samples = new long[WINDOW];
+    int count = 0;
+    int next = 0;
+
+    void add(long latencyMillis) {
+      samples[next] = latencyMillis;
+      next = (next + 1) % WINDOW;
+      count = Math.min(count + 1, WINDOW);
+    }
+
+    long delayMillis(double percentile) {
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * count) - 1;
+      return Math.max(MIN_DELAY_MILLIS, sorted[Math.max(0, Math.min(count - 1, index))]);
+    }
+  }
+
+  private final ExecutorService executor;
+  private final double percentile;
+  private final double budgetRatio;
+  private final Map<String, Latencies> latencies = new HashMap<>();
+  private double budget = 1;
+  private long requestCount = 0;
+  private long hedgeCount = 0;
+  private long hedgeWinCount = 0;
+  private long budgetExhaustedCount = 0;
+
+  /**
+   * Creates a hedger.
+   *
+   * @param executor The executor to run requests on. It needs to be able to run two requests
+   *     per caller at once.
+   * @param percentile Hedge requests that take longer than this percentile of recent requests
+   *     of their kind. Between 0 (exclusive) and 100 (exclusive). (E.g.: 95)
+   * @param budgetRatio The maximum share of requests that may get hedged. Between 0 (exclusive)
+   *     and 1. (E.g.: 0.05)
+   */
+  public RequestHedger(ExecutorService executor, double percentile, double budgetRatio) {
+    if (!(percentile > 0 && percentile < 100) || !(budgetRatio > 0 && budgetRatio <= 1)) {
+      throw new IllegalArgumentException("Percentile has to be between 0 and 100, and budget "
+          + "between 0 and 1, but got " + percentile + " and " + budgetRatio);
+    }
+    this.executor = executor;
+    this.percentile = percentile;
+    this.budgetRatio = budgetRatio;
+  }
+
+  /**
+   * Performs a request, hedging it if it is slow.
+   *
+   * @param kind The kind of the request (E.g.: its path). Requests of the same kind share
+   *     latency statistics.
+   * @param primary The attempt to send first.
+   * @param hedge The attempt to send if the primary attempt is slow.
+   * @return The result of the attempt that completed first.
+   * @throws Exception if the attempts failed.
+   */
+  public <T> T execute(String kind, Attempt<T> primary, Attempt<T> hedge) throws Exception {
+    long delayMillis = startRequest(kind);
+
+    CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+    Future<T> primaryFuture = completionService.submit(timed(kind, primary));
+    Future<T> hedgeFuture = null;
+    try {
+      Future<T> done = null;
+      if (delayMillis >= 0) {
+        done = completionService.poll(delayMillis, TimeUnit.MILLISECONDS);
+        if (done == null && spendBudget()) {
+          log.debug("Hedging " + kind + " request after " + delayMillis + " ms");
+          hedgeFuture = completionService.submit(timed(kind, hedge));
+        }
+      }
+
+      int pending = (hedgeFuture == null) ? 1 : 2;
+      Exception failure = null;
+      while (pending > 0) {
+        Future<T> future = (done != null) ? done : completionService.take();
+        done = null;
+        pending--;
+        try {
+          T ret = future.get();
+          if (future == hedgeFuture) {
+            synchronized (this) {
+              hedgeWinCount++;
+            }
+          }
+          return ret;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (failure == null) {
+            failure = (cause instanceof Exception) ? (Exception) cause : e;
+          }
+        }
+      }
+      throw failure;
+    } finally {
+      // Aborting whichever attempt is still in flight. Aborting completed ones does no harm.
+      primary.abort();
+      primaryFuture.cancel(true);
+      if (hedgeFuture != null) {
+        hedge.abort();
+        hedgeFuture.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Accounts for a new request.
+   *
+   * @param kind The kind of the request.
+   * @return The delay after which to hedge the request in milliseconds, or -1 to not hedge.
+   */
+  private synchronized long startRequest(String kind) {
+    requestCount++;
+    budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+    Latencies kindLatencies = latencies.get(kind);
+    if (kindLatencies == null || kindLatencies.count < MIN_SAMPLES) {
+      return -1;
+    }
+    return kindLatencies.delayMillis(percentile);
+  }
+
+  private synchronized boolean spendBudget() {
+    if (budget < 1) {
+      budgetExhaustedCount++;
+      return false;
+    }
+    budget--;
+    hedgeCount++;
+    return true;
+  }
+
+  private synchronized void recordLatency(String kind, long latencyMillis) {
+    Latencies kindLatencies = latencies.get(kind);
+    if (kindLatencies == null) {
+      kindLatencies = new Latencies();
+      latencies.put(kind, kindLatencies);
+    }
+    kindLatencies.add(latencyMillis);
+  }
+
+  private <T> Callable<T> timed(final String kind, final Attempt<T> attempt) {
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        long start = System.nanoTime();
+        T ret = attempt.call();
+        recordLatency(kind, (System.nanoTime() - start) / 1000000);
+        return ret;
+      }
+    };
+  }
+
+  /**
+   * Gets the current hedge delay for a kind of request.
+   *
+   * @param kind The kind of request.
+   * @return The delay in milliseconds, or -1 if too few latencies are known to hedge.
+   */
+  public synchronized long getDelayMillis(String kind) {
+    Latencies kindLatencies = latencies.get(kind);
+    if (kindLatencies == null || kindLatencies.count < MIN_SAMPLES) {
+      return -1;
+    }
+    return kindLatencies.delayMillis(percentile);
+  }
+
+  /**
+   * Gets the number of hedgeable requests.
+   *
+   * @return The number of requests.
+   */
+  public synchronized long getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Gets the number of sent hedges.
+   *
+   * @return The number of hedges.
+   */
+  public synchronized long getHedgeCount() {
+    return hedgeCount;
+  }
+
+  /**
+   * Gets the number of hedges that completed before the primary request.
+   *
+   * @return The number of winning hedges.
+   */
+  public synchronized long getHedgeWinCount() {
+    return hedgeWinCount;
+  }
+
+  /**
+   * Gets the number of slow requests that did not get hedged, as the budget was spent.
+   *
+   * @return The number of requests not hedged for budget.
+   */
+  public synchronized long getBudgetExhaustedCount() {
+    return budgetExhaustedCount;
+  }
+}
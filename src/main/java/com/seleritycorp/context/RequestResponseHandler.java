@@ -38,22 +38,45 @@ public class RequestResponseHandler implements org.apache.http.client.ResponseHa
   @Override
   public JsonObject handleResponse(HttpResponse response)
       throws ClientProtocolException, IOException {
+    HttpEntity entity = getJsonEntity(response);
+
+    // At this point, response got sent as JSON
+    
+    // Parse the string to JSON
+    String responseString = EntityUtils.toString(entity);
+    JsonObject ret = new JsonParser().parse(responseString).getAsJsonObject();
+    return ret;
+  }    
+
+  /**
+   * Checks that a response is a successful JSON response and yields its entity.
+   * 
+   * <p>If the response is not a successful JSON response, a descriptive error message is
+   * extracted from the response and thrown. Otherwise, the response's entity is returned
+   * without consuming it, so callers can parse it in the way that fits them best.
+   * 
+   * @param response The response to check.
+   * @return The unconsumed entity of the response.
+   * @throws ClientProtocolException if the response is not a successful JSON response.
+   * @throws IOException if reading the response fails.
+   */
+  static HttpEntity getJsonEntity(HttpResponse response)
+      throws ClientProtocolException, IOException {
     StatusLine statusLine = response.getStatusLine();
     int statusCode = statusLine.getStatusCode();
     HttpEntity entity = response.getEntity();
-    String responseString = EntityUtils.toString(entity);
-    JsonParser parser = new JsonParser();
 
     // The API does not return partials or some such, so any response that is not a 200,
     // indicates issues.
     if (statusCode != 200) {
+      String responseString = EntityUtils.toString(entity);
       log.trace("Raw response: " + responseString);
       String errorMessage = statusCode + " " + statusLine.getReasonPhrase();
       // Instead of the pure HTTP status information, we try to get a descriptive error
       // message. Context API returns JSON objects that indicate the error. So we
       // opportunistically parse the content and drill down to get the error message. 
       try {
-        JsonObject json = parser.parse(responseString).getAsJsonObject();
+        JsonObject json = new JsonParser().parse(responseString).getAsJsonObject();
         String hint = "";
           
         if (json.has("errorCode")) {
@@ -78,15 +101,11 @@ public class RequestResponseHandler implements org.apache.http.client.ResponseHa
     String parameterlessContentType = contentType.split("[; ]", 2)[0];
     if (!"application/json".equals(parameterlessContentType)) {
       // Response is not Json
-      log.trace("Raw response: " + responseString);
+      log.trace("Raw response: " + EntityUtils.toString(entity));
       throw new ClientProtocolException("Received content type '" +  contentType
           + "' instead of 'application/json'");
     }
 
-    // At this point, response got sent as JSON
-    
-    // Parse the string to JSON
-    JsonObject ret = parser.parse(responseString).getAsJsonObject();
-    return ret;
-  }    
+    return entity;
+  }
 }
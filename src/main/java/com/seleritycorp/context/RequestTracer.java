@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traces where time goes, per request and phase.
+ *
+ * <p>A trace gets started per request (See {@link RequestUtils#setTracer}) or for other units
+ * of work (E.g.: a poll). While a trace is open on a thread, code records phases through
+ * {@link #record}, which is a cheap no-op if no trace is open. So instrumented code does not
+ * need to know whether tracing is on.
+ *
+ * <p>Traces started while another one is open on the same thread are children of it, so
+ * requests can be correlated with the poll that sent them. Finished traces get aggregated into
+ * a histogram per phase, and optionally get written as Json lines to a trace file. Phase times
+ * are in microseconds.
+ *
+ * <p>Phases recorded repeatedly within a trace (E.g.: connecting to several endpoints, or the
+ * two attempts of a hedged request) add up. Phases recorded after the trace ended (E.g.: by the
+ * losing attempt of a hedged request) get ignored.
+ */
+public class RequestTracer implements Closeable {
+  private static final Log log = LogFactory.getLog(RequestTracer.class);
+
+  /**
+   * The phases of handling a request.
+   */
+  public enum Phase {
+    /** Resolving the server's name. */
+    DNS,
+    /** Establishing the TCP connection. */
+    CONNECT,
+    /** TLS handshake. */
+    TLS,
+    /** Writing the request. */
+    WRITE,
+    /** Waiting for the response's head, after the request got written. */
+    TTFB,
+    /** Reading the response body. */
+    BODY,
+    /** Parsing the response body, apart from reading it. */
+    PARSE,
+    /** Filtering seen items and near duplicates. */
+    DEDUP,
+    /** Printing items. */
+    RENDER
+  }
+
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+  /**
+   * Resolves names through the system while recording {@link Phase#DNS}.
+   */
+  private static final DnsResolver DNS_RESOLVER = new DnsResolver() {
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      long start = System.nanoTime();
+      try {
+        return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+      } finally {
+        record(Phase.DNS, start);
+      }
+    }
+  };
+
+  /**
+   * Trace of one request or other unit of work.
+   */
+  public static final class Trace {
+    private final long id;
+    private final Trace parent;
+    private final String name;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final long[] nanos = new long[Phase.values().length];
+    private final boolean[] recorded = new boolean[Phase.values().length];
+    private boolean ended = false;
+
+    private Trace(long id, Trace parent, String name) {
+      this.id = id;
+      this.parent = parent;
+      this.name = name;
+    }
+
+    private synchronized void add(Phase phase, long phaseNanos) {
+      if (!ended) {
+        nanos[phase.ordinal()] += phaseNanos;
+        recorded[phase.ordinal()] = true;
+      }
+    }
+
+    private synchronized void finish() {
+      ended = true;
+    }
+
+    /**
+     * Gets the trace's id.
+     *
+     * @return The id. Unique per tracer.
+     */
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * Gets the trace's name.
+     *
+     * @return The name. (E.g.: the path of the request)
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the time spent in a phase.
+     *
+     * @param phase The phase to get the time for.
+     * @return The time in nanoseconds, or -1 if the phase did not get recorded.
+     */
+    public synchronized long getNanos(Phase phase) {
+      return recorded[phase.ordinal()] ? nanos[phase.ordinal()] : -1;
+    }
+  }
+
+  private final Writer traceWriter;
+  private final AtomicLong idCounter = new AtomicLong();
+  private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+  private final ConcurrentMap<String, LatencyHistogram> totalHistograms =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a tracer that only aggregates histograms.
+   */
+  public RequestTracer() {
+    this((Writer) null);
+  }
+
+  /**
+   * Creates a tracer that appends traces to a file.
+   *
+   * @param traceFile The file to append traces to as Json lines.
+   * @throws IOException if the file cannot be opened.
+   */
+  public RequestTracer(Path traceFile) throws IOException {
+    this(Files.newBufferedWriter(traceFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND));
+  }
+
+  /**
+   * Creates a tracer that writes traces to a writer.
+   *
+   * @param traceWriter The writer to write traces to as Json lines. Null to not write traces.
+   */
+  public RequestTracer(Writer traceWriter) {
+    this.traceWriter = traceWriter;
+    for (Phase phase : Phase.values()) {
+      histograms.put(phase, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Starts a trace on the current thread.
+   *
+   * <p>Each started trace has to get ended through {@link #end(Trace)} on the same thread.
+   *
+   * @param name The name of the trace. (E.g.: the path of the request)
+   * @return The started trace.
+   */
+  public Trace begin(String name) {
+    Trace trace = new Trace(idCounter.incrementAndGet(), CURRENT.get(), name);
+    CURRENT.set(trace);
+    return trace;
+  }
+
+  /**
+   * Ends a trace, and makes its parent the current trace again.
+   *
+   * @param trace The trace to end.
+   */
+  public void end(Trace trace) {
+    long totalNanos = System.nanoTime() - trace.startNanos;
+    trace.finish();
+    attach(trace.parent);
+
+    JsonObject line = new JsonObject();
+    line.addProperty("id", trace.id);
+    if (trace.parent != null) {
+      line.addProperty("parent", trace.parent.id);
+    }
+    line.addProperty("name", trace.name);
+    line.addProperty("start", trace.startMillis);
+    line.addProperty("totalMicros", totalNanos / 1000);
+    JsonObject phases = new JsonObject();
+    for (Phase phase : Phase.values()) {
+      long phaseNanos = trace.getNanos(phase);
+      if (phaseNanos >= 0) {
+        histograms.get(phase).record(phaseNanos / 1000);
+        phases.addProperty(phase.name(), phaseNanos / 1000);
+      }
+    }
+    line.add("phases", phases);
+    LatencyHistogram totalHistogram = totalHistograms.get(trace.name);
+    if (totalHistogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      totalHistogram = totalHistograms.putIfAbsent(trace.name, created);
+      if (totalHistogram == null) {
+        totalHistogram = created;
+      }
+    }
+    totalHistogram.record(totalNanos / 1000);
+
+    if (traceWriter != null) {
+      synchronized (traceWriter) {
+        try {
+          traceWriter.write(RequestUtils.toJson(line));
+          traceWriter.write('\n');
+          traceWriter.flush();
+        } catch (IOException e) {
+          log.warn("Could not write trace " + trace.id, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the trace that is open on the current thread.
+   *
+   * @return The current trace, or null if none is open.
+   */
+  public static Trace current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Makes a trace the current one of this thread. This allows to record phases for a trace on
+   * other threads than the one that started it.
+   *
+   * @param trace The trace to make current. Null for no current trace.
+   * @return The trace that was current before.
+   */
+  public static Trace attach(Trace trace) {
+    Trace previous = CURRENT.get();
+    if (trace == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(trace);
+    }
+    return previous;
+  }
+
+  /**
+   * Records a phase for the current trace. Does nothing if no trace is open on this thread.
+   *
+   * @param phase The phase to record.
+   * @param startNanos The {@link System#nanoTime()} at which the phase started. It ends now.
+   */
+  public static void record(Phase phase, long startNanos) {
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.add(phase, System.nanoTime() - startNanos);
+    }
+  }
+
+  private static void add(Phase phase, long nanos) {
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.add(phase, nanos);
+    }
+  }
+
+  /**
+   * Gets the histogram of a phase across ended traces.
+   *
+   * @param phase The phase to get the histogram for.
+   * @return The histogram in microseconds.
+   */
+  public LatencyHistogram getHistogram(Phase phase) {
+    return histograms.get(phase);
+  }
+
+  /**
+   * Gets the histograms of the total time of ended traces.
+   *
+   * @return The histograms in microseconds by the name of the traces.
+   */
+  public Map<String, LatencyHistogram> getTotalHistograms() {
+    return new TreeMap<>(totalHistograms);
+  }
+
+  /**
+   * Closes the trace file, if traces get written.
+   *
+   * @throws IOException if closing fails.
+   */
+  @Override
+  public void close() throws IOException {
+    if (traceWriter != null) {
+      synchronized (traceWriter) {
+        traceWriter.close();
+      }
+    }
+  }
+
+  /**
+   * Creates an http client that records network phases of its requests.
+   *
+   * <p>The client honors system properties like {@code HttpClients.createSystem()} does, apart
+   * from the size of its connection pool.
+   *
+   * @param maxPerRoute The maximum number of pooled connections per endpoint.
+   * @param maxTotal The maximum number of pooled connections overall.
+   * @return The created client.
+   */
+  public CloseableHttpClient createHttpClient(int maxPerRoute, int maxTotal) {
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", new TracingPlainSocketFactory())
+        .register("https", new TracingTlsSocketFactory())
+        .build();
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(registry, DNS_RESOLVER);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setMaxTotal(maxTotal);
+    return HttpClients.custom()
+        .useSystemProperties()
+        .setConnectionManager(connectionManager)
+        .setRequestExecutor(new TracingRequestExecutor())
+        .build();
+  }
+
+  /**
+   * Wraps a response handler, to record reading and parsing the response body.
+   *
+   * <p>Time spent reading the response body's stream counts as {@link Phase#BODY}, and the
+   * remaining time of the handler as {@link Phase#PARSE}. As handlers parse while streaming,
+   * {@link Phase#BODY} includes waiting for the network.
+   *
+   * @param handler The handler to wrap.
+   * @return The wrapped handler.
+   */
+  public <T> ResponseHandler<T> wrap(final ResponseHandler<T> handler) {
+    return new ResponseHandler<T>() {
+      @Override
+      public T handleResponse(HttpResponse response) throws IOException {
+        final long[] readNanos = new long[1];
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+          response.setEntity(new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+              return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                  long start = System.nanoTime();
+                  try {
+                    return super.read();
+                  } finally {
+                    readNanos[0] += System.nanoTime() - start;
+                  }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                  long start = System.nanoTime();
+                  try {
+                    return super.read(buffer, offset, length);
+                  } finally {
+                    readNanos[0] += System.nanoTime() - start;
+                  }
+                }
+              };
+            }
+          });
+        }
+
+        long start = System.nanoTime();
+        try {
+          return handler.handleResponse(response);
+        } finally {
+          long handlerNanos = System.nanoTime() - start;
+          add(Phase.BODY, readNanos[0]);
+          add(Phase.PARSE, handlerNanos - readNanos[0]);
+        }
+      }
+    };
+  }
+
+  /**
+   * Connects plain sockets while recording {@link Phase#CONNECT}.
+   */
+  private static class TracingPlainSocketFactory implements ConnectionSocketFactory {
+    private final ConnectionSocketFactory plain = PlainConnectionSocketFactory.getSocketFactory();
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+      return plain.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+        InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context)
+        throws IOException {
+      long start = System.nanoTime();
+      try {
+        return plain.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress,
+            context);
+      } finally {
+        record(Phase.CONNECT, start);
+      }
+    }
+  }
+
+  /**
+   * Connects TLS sockets while recording {@link Phase#CONNECT} and {@link Phase#TLS}
+   * separately.
+   */
+  private static class TracingTlsSocketFactory extends TracingPlainSocketFactory
+      implements LayeredConnectionSocketFactory {
+    private final LayeredConnectionSocketFactory tls =
+        SSLConnectionSocketFactory.getSystemSocketFactory();
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+        InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context)
+        throws IOException {
+      Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress,
+          localAddress, context);
+      // Like SSLConnectionSocketFactory, bounding the handshake by the connect timeout.
+      if (connectTimeout > 0 && connected.getSoTimeout() == 0) {
+        connected.setSoTimeout(connectTimeout);
+      }
+      return createLayeredSocket(connected, host.getHostName(), remoteAddress.getPort(),
+          context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port,
+        HttpContext context) throws IOException {
+      long start = System.nanoTime();
+      try {
+        return tls.createLayeredSocket(socket, target, port, context);
+      } finally {
+        record(Phase.TLS, start);
+      }
+    }
+  }
+
+  /**
+   * Executes requests while recording {@link Phase#WRITE} and {@link Phase#TTFB}.
+   */
+  private static class TracingRequestExecutor extends HttpRequestExecutor {
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection connection,
+        HttpContext context) throws IOException, HttpException {
+      long start = System.nanoTime();
+      try {
+        return super.doSendRequest(request, connection, context);
+      } finally {
+        record(Phase.WRITE, start);
+      }
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request,
+        HttpClientConnection connection, HttpContext context) throws IOException, HttpException {
+      long start = System.nanoTime();
+      try {
+        return super.doReceiveResponse(request, connection, context);
+      } finally {
+        record(Phase.TTFB, start);
+      }
+    }
+  }
+}
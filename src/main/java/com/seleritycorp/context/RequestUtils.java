@@ -22,31 +22,131 @@ import com.google.gson.JsonObject;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Low-level Utilities to make actual requests to the Context API endpoint.
+ *
+ * <p>Requests can get spread across several equivalent endpoints through an
+ * {@link EndpointBalancer}. If connecting to an endpoint fails, the request fails over to
+ * another endpoint. As the request did not reach the server in that case, this is safe for all
+ * requests, including UPDATE queries.
+ *
+ * <p>Requests of a session stick to the session's endpoint (See {@link EndpointBalancer}). If a
+ * request resumes a session, but the session has to move to another endpoint, the request does
+ * not get sent and fails with a {@link SessionMovedException} instead, as the other endpoint does
+ * not know the session.
+ *
+ * <p>Read-only requests can get hedged through a {@link RequestHedger}. If such a request is
+ * slow, a duplicate gets sent (which the balancer typically routes to another endpoint), and the
+ * slower of the two gets aborted.
+ *
+ * <p>Requests can be limited by connect, connection lease, and socket timeouts, and by a
+ * deadline for the whole call, at which requests still in flight get aborted. Callers that give
+ * up on requests earlier can set a tighter deadline for their thread through
+ * {@link #attachDeadline(long)}.
+ *
+ * <p>All requests share a single http client and thereby its pool of connections.
  */
 public class RequestUtils {
   private static final Log log = LogFactory.getLog(RequestUtils.class);
 
   private static final Gson GSON = new GsonBuilder().serializeNulls().create();
 
-  protected CloseableHttpClient getHttpClient() {
-    return HttpClients.createSystem();
+  /**
+   * Signals that a request could not resume its session, as the session moved to another
+   * endpoint.
+   *
+   * <p>The request did not get sent. The session has to get started anew (E.g.: through an
+   * INITIAL query), which then goes to the session's new endpoint.
+   */
+  public static class SessionMovedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception.
+     *
+     * @param message The detail message.
+     */
+    public SessionMovedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Content type of form-encoded request bodies.
+   * 
+   * <p>Matches the content type that {@link UrlEncodedFormEntity} uses for {@link #post}.
+   */
+  private static final ContentType FORM_CONTENT_TYPE = ContentType.create(
+      URLEncodedUtils.CONTENT_TYPE, (Charset) null);
+
+  /**
+   * Default for the maximum number of pooled connections per endpoint.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+  /**
+   * Deadline (in epoch millis) that the calling thread set for its requests, if any.
+   */
+  private static final ThreadLocal<Long> CALLER_DEADLINE = new ThreadLocal<>();
+
+  /**
+   * Gets the http client that all requests share.
+   *
+   * <p>The client gets created upon the first request, so the tracer and the pool size have to
+   * be set before.
+   *
+   * @return The shared http client.
+   */
+  protected synchronized CloseableHttpClient getHttpClient() {
+    if (httpClient == null) {
+      int endpointCount = (balancer != null) ? balancer.getEndpoints().size() : 1;
+      int maxTotal = maxConnections * endpointCount;
+      if (tracer != null) {
+        httpClient = tracer.createHttpClient(maxConnections, maxTotal);
+      } else {
+        httpClient = HttpClients.custom()
+            .useSystemProperties()
+            .setMaxConnPerRoute(maxConnections)
+            .setMaxConnTotal(maxTotal)
+            .build();
+      }
+    }
+    return httpClient;
   }
 
   /**
@@ -57,6 +157,52 @@ public class RequestUtils {
    */
   private final String apiServerRootUrl;
 
+  /**
+   * Balancer across endpoints, or null if there is only {@link #apiServerRootUrl}.
+   */
+  private final EndpointBalancer balancer;
+
+  /**
+   * Hedger for read-only requests, or null to not hedge requests.
+   */
+  private RequestHedger hedger;
+
+  /**
+   * Tracer for the phases of requests, or null to not trace requests.
+   */
+  private RequestTracer tracer;
+
+  /**
+   * Maximum number of pooled connections per endpoint.
+   */
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+  /**
+   * The http client that all requests share, or null if no request got sent yet.
+   */
+  private CloseableHttpClient httpClient;
+
+  /**
+   * Connect, connection lease, and socket timeouts for requests, or null for the system's
+   * defaults.
+   */
+  private RequestConfig requestConfig;
+
+  /**
+   * Milliseconds a call may take in total before it gets aborted, or 0 for no limit.
+   */
+  private long deadlineMillis;
+
+  /**
+   * Timer to abort requests at their deadline, or null if there is no deadline.
+   */
+  private ScheduledExecutorService deadlineTimer;
+
+  private final AtomicLong connectTimeoutCount = new AtomicLong();
+  private final AtomicLong leaseTimeoutCount = new AtomicLong();
+  private final AtomicLong socketTimeoutCount = new AtomicLong();
+  private final AtomicLong deadlineExceededCount = new AtomicLong();
+
   /**
    * User agent to use for requests.
    */
@@ -71,9 +217,133 @@ public class RequestUtils {
    */
   public RequestUtils(String apiServerRootUrl) {
     this.apiServerRootUrl = apiServerRootUrl;
+    this.balancer = null;
     this.userAgent = getUserAgent();
   }
 
+  /**
+   * Constructs RequestUtils for several equivalent Context API endpoints.
+   * 
+   * @param balancer The balancer across the Context API endpoints to use for requests. The
+   *     endpoint urls have to contain both protocol and path.
+   */
+  public RequestUtils(EndpointBalancer balancer) {
+    this.apiServerRootUrl = null;
+    this.balancer = balancer;
+    this.userAgent = getUserAgent();
+  }
+
+  /**
+   * Sets the hedger for read-only requests.
+   *
+   * @param hedger The hedger to use for read-only requests. Null to not hedge requests.
+   */
+  public void setHedger(RequestHedger hedger) {
+    this.hedger = hedger;
+  }
+
+  /**
+   * Sets the tracer for requests.
+   *
+   * <p>Each call to {@link #post} or {@link #postForm} gets traced under its path, as a child
+   * of the trace that is open on the calling thread, if any. Has to be set before the first
+   * request, as the shared http client records network phases only if it got created with the
+   * tracer.
+   *
+   * @param tracer The tracer to use for requests. Null to not trace requests.
+   */
+  public synchronized void setTracer(RequestTracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * Sets the size of the connection pool.
+   *
+   * <p>Requests wait for a pooled connection (up to the connection lease timeout), if all
+   * connections to their endpoint are in use. Has to be set before the first request.
+   *
+   * @param maxConnections The maximum number of connections per endpoint.
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("Need at least one connection, but got "
+          + maxConnections);
+    }
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Sets a deadline for the requests of the calling thread.
+   *
+   * <p>Requests of the thread that are still in flight at the deadline get aborted, even if
+   * the deadline set through {@link #setTimeouts} is later. This allows callers that give up
+   * on requests (E.g.: {@link MultiQueryFetcher}) to free the requests' connections right away.
+   *
+   * @param deadline The deadline in epoch millis. 0 for no deadline.
+   * @return The deadline the thread had before. 0 for no deadline.
+   */
+  public static long attachDeadline(long deadline) {
+    Long previous = CALLER_DEADLINE.get();
+    if (deadline > 0) {
+      CALLER_DEADLINE.set(deadline);
+    } else {
+      CALLER_DEADLINE.remove();
+    }
+    return (previous != null) ? previous : 0;
+  }
+
+  /**
+   * Sets the timeouts for requests.
+   *
+   * <p>Without timeouts, a hung connection blocks the caller indefinitely.
+   *
+   * @param connectMillis Milliseconds to wait for a connection to get established. 0 for no
+   *     limit.
+   * @param leaseMillis Milliseconds to wait for a connection from the pool. 0 for no limit.
+   * @param socketMillis Milliseconds to wait for data from the server. 0 for no limit.
+   * @param deadlineMillis Milliseconds a call to {@link #post} or {@link #postForm} may take in
+   *     total, including reading the response, fail-overs, and hedges. Requests still in flight
+   *     at the deadline get aborted. 0 for no limit.
+   */
+  public void setTimeouts(int connectMillis, int leaseMillis, int socketMillis,
+      long deadlineMillis) {
+    if (connectMillis < 0 || leaseMillis < 0 || socketMillis < 0 || deadlineMillis < 0) {
+      throw new IllegalArgumentException("Timeouts must not be negative");
+    }
+    this.requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectMillis)
+        .setConnectionRequestTimeout(leaseMillis)
+        .setSocketTimeout(socketMillis)
+        .build();
+    this.deadlineMillis = deadlineMillis;
+    if (balancer != null) {
+      // A failed request counts as slow as a request that takes until it gets given up on.
+      long penaltyMillis = (deadlineMillis > 0) ? deadlineMillis : socketMillis;
+      if (penaltyMillis > 0) {
+        balancer.setFailurePenaltyMillis(penaltyMillis);
+      }
+    }
+  }
+
+  /**
+   * Gets the timer to abort requests at their deadline.
+   *
+   * @return The timer, which gets created upon first use.
+   */
+  private synchronized ScheduledExecutorService getDeadlineTimer() {
+    if (deadlineTimer == null) {
+      deadlineTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "request-deadline");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return deadlineTimer;
+  }
+
   /**
    * Builds a User-Agent header value that identifies this build.
    *
@@ -94,6 +364,16 @@ public class RequestUtils {
       + properties.getProperty("build.time") + ")";
   }
 
+  /**
+   * Serializes a payload the same way {@link #post(String, JsonObject)} does.
+   * 
+   * @param payload The payload to serialize
+   * @return The serialized payload
+   */
+  static String toJson(JsonObject payload) {
+    return GSON.toJson(payload);
+  }
+
   /**
    * Performs a POST request
    * 
@@ -103,30 +383,488 @@ public class RequestUtils {
    * @throws Exception if server did not indicate success, or the response did not parse as JSON.
    */
   public JsonObject post(String path, JsonObject payload) throws Exception {
-    String requestUrl = apiServerRootUrl + path;
+    return post(path, payload, false);
+  }
+
+  /**
+   * Performs a POST request that may be read-only.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @return Context API's response json 
+   * @throws Exception if server did not indicate success, or the response did not parse as JSON.
+   */
+  public JsonObject post(String path, JsonObject payload, boolean readOnly) throws Exception {
+    JsonObject ret = post(path, payload, new RequestResponseHandler(), readOnly);
+    log.trace("Rarsed response: " + GSON.toJson(ret));
+    return ret;
+  }
+
+  /**
+   * Performs a POST request and handles the response with a custom handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @param handler The handler to turn the response into the result.
+   * @return The result of the handler
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T post(String path, JsonObject payload, ResponseHandler<T> handler)
+      throws Exception {
+    return post(path, payload, handler, false);
+  }
+
+  /**
+   * Performs a POST request that may be read-only and handles the response with a custom
+   * handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @param handler The handler to turn the response into the result.
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @return The result of the handler
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T post(String path, JsonObject payload, ResponseHandler<T> handler,
+      boolean readOnly) throws Exception {
+    return post(path, payload, handler, readOnly, null, false);
+  }
+
+  /**
+   * Performs a POST request of a session and handles the response with a custom handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param payload Request's payload to send with the request
+   * @param handler The handler to turn the response into the result.
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @param sessionId The id of the request's session. null for requests without session.
+   * @param resumesSession True, if the request relies on the session's state on the server.
+   * @return The result of the handler
+   * @throws SessionMovedException if the request resumes the session, but the session moved to
+   *     another endpoint.
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T post(String path, JsonObject payload, ResponseHandler<T> handler,
+      boolean readOnly, String sessionId, boolean resumesSession) throws Exception {
     String payloadString = GSON.toJson(payload);
 
     List<NameValuePair> urlParameters = new ArrayList<NameValuePair>(1);
     urlParameters.add(new BasicNameValuePair("json", payloadString));
 
+    return execute(path, new UrlEncodedFormEntity(urlParameters), "json=" + payloadString,
+        handler, readOnly, sessionId, resumesSession);
+  }
+
+  /**
+   * Performs a POST request for an already form-encoded payload.
+   * 
+   * <p>This allows to send pre-rendered requests (See {@link QueryTemplate}) without
+   * re-serializing them.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param formPayload The form-encoded request body (e.g.: {@code json=%7B...%7D})
+   * @return Context API's response json 
+   * @throws Exception if server did not indicate success, or the response did not parse as JSON.
+   */
+  public JsonObject postForm(String path, byte[] formPayload) throws Exception {
+    return postForm(path, formPayload, false);
+  }
+
+  /**
+   * Performs a POST request that may be read-only for an already form-encoded payload.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param formPayload The form-encoded request body (e.g.: {@code json=%7B...%7D})
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @return Context API's response json 
+   * @throws Exception if server did not indicate success, or the response did not parse as JSON.
+   */
+  public JsonObject postForm(String path, byte[] formPayload, boolean readOnly)
+      throws Exception {
+    JsonObject ret = postForm(path, formPayload, new RequestResponseHandler(), readOnly);
+    log.trace("Rarsed response: " + GSON.toJson(ret));
+    return ret;
+  }
+
+  /**
+   * Performs a POST request for an already form-encoded payload and handles the response with a
+   * custom handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param formPayload The form-encoded request body (e.g.: {@code json=%7B...%7D})
+   * @param handler The handler to turn the response into the result.
+   * @return The result of the handler
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T postForm(String path, byte[] formPayload, ResponseHandler<T> handler)
+      throws Exception {
+    return postForm(path, formPayload, handler, false);
+  }
+
+  /**
+   * Performs a POST request that may be read-only for an already form-encoded payload and
+   * handles the response with a custom handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param formPayload The form-encoded request body (e.g.: {@code json=%7B...%7D})
+   * @param handler The handler to turn the response into the result.
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @return The result of the handler
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T postForm(String path, byte[] formPayload, ResponseHandler<T> handler,
+      boolean readOnly) throws Exception {
+    return postForm(path, formPayload, handler, readOnly, null, false);
+  }
+
+  /**
+   * Performs a POST request of a session for an already form-encoded payload and handles the
+   * response with a custom handler.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param formPayload The form-encoded request body (e.g.: {@code json=%7B...%7D})
+   * @param handler The handler to turn the response into the result.
+   * @param readOnly True, if the request can be sent twice without harm, and may hence get
+   *     hedged.
+   * @param sessionId The id of the request's session. null for requests without session.
+   * @param resumesSession True, if the request relies on the session's state on the server.
+   * @return The result of the handler
+   * @throws SessionMovedException if the request resumes the session, but the session moved to
+   *     another endpoint.
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  public <T> T postForm(String path, byte[] formPayload, ResponseHandler<T> handler,
+      boolean readOnly, String sessionId, boolean resumesSession) throws Exception {
+    HttpEntity entity = new ByteArrayEntity(formPayload, FORM_CONTENT_TYPE);
+    String description = null;
+    if (log.isDebugEnabled()) {
+      description = new String(formPayload, StandardCharsets.US_ASCII);
+    }
+    return execute(path, entity, description, handler, readOnly, sessionId, resumesSession);
+  }
+
+  /**
+   * Sends a request entity as POST and handles the response.
+   * 
+   * @param path The path for the post request (relative to the Context API endpoint)
+   * @param entity The request body. Has to be repeatable.
+   * @param payloadDescription Description of the payload for logging. May be null, if debug
+   *     logging is off.
+   * @param handler The handler to turn the response into the result.
+   * @param readOnly True, if the request may get hedged.
+   * @param sessionId The id of the request's session, or null.
+   * @param resumesSession True, if the request relies on the session's state on the server.
+   * @return The result of the handler
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  private <T> T execute(String path, HttpEntity entity, String payloadDescription,
+      ResponseHandler<T> handler, boolean readOnly, String sessionId, boolean resumesSession)
+      throws Exception {
+    RequestTracer.Trace trace = (tracer != null) ? tracer.begin(path) : null;
+    try {
+      // The deadline covers the whole call, including fail-overs and hedges.
+      long now = System.currentTimeMillis();
+      long deadline = (deadlineMillis > 0) ? now + deadlineMillis : 0;
+      Long callerDeadline = CALLER_DEADLINE.get();
+      if (callerDeadline != null && (deadline == 0 || callerDeadline < deadline)) {
+        deadline = callerDeadline;
+      }
+      Attempt<T> attempt = new Attempt<T>(path, entity, payloadDescription, handler, now,
+          deadline, trace, sessionId, resumesSession);
+      if (hedger == null || !readOnly) {
+        return attempt.call();
+      }
+      return hedger.execute(path, attempt, new Attempt<T>(path, entity, payloadDescription,
+          handler, now, deadline, trace, sessionId, resumesSession));
+    } finally {
+      if (trace != null) {
+        tracer.end(trace);
+      }
+    }
+  }
+
+  /**
+   * Sends a request entity as POST, failing over to other endpoints, and handles the response.
+   * 
+   * @param attempt The attempt to send.
+   * @return The result of the handler
+   * @throws SessionMovedException if the attempt resumes a session, but the session moved to
+   *     another endpoint.
+   * @throws Exception if server did not indicate success, or the handler failed.
+   */
+  private <T> T execute(Attempt<T> attempt) throws Exception {
+    if (balancer == null) {
+      return executeAt(apiServerRootUrl + attempt.path, attempt);
+    }
+
+    List<EndpointBalancer.Endpoint> tried = new ArrayList<>();
+    while (true) {
+      EndpointBalancer.Endpoint pinned = null;
+      if (attempt.sessionId != null) {
+        pinned = balancer.getSessionEndpoint(attempt.sessionId);
+      }
+      EndpointBalancer.Endpoint endpoint = balancer.acquire(tried, attempt.sessionId);
+      if (attempt.resumesSession && pinned != null && endpoint != pinned) {
+        // Only the session's previous endpoint knows the session's state.
+        balancer.cancel(endpoint);
+        throw new SessionMovedException("Session " + attempt.sessionId + " moved from "
+            + pinned + " to " + endpoint);
+      }
+      tried.add(endpoint);
+      long before = System.currentTimeMillis();
+      boolean success = false;
+      try {
+        T ret = executeAt(endpoint.getUrl() + attempt.path, attempt);
+        success = true;
+        return ret;
+      } catch (IOException e) {
+        if (!isConnectFailure(e) || attempt.isAborted()
+            || tried.size() >= balancer.getEndpoints().size()) {
+          throw e;
+        }
+        log.warn("Connecting to " + endpoint + " failed. Failing over to another endpoint", e);
+      } finally {
+        // Aborting a hedged attempt is no fault of the endpoint, but missing the deadline is.
+        boolean hedgeAborted = attempt.isAborted() && !attempt.isExpired();
+        balancer.release(endpoint, System.currentTimeMillis() - before,
+            success || hedgeAborted);
+      }
+    }
+  }
+
+  /**
+   * Checks whether a request failed before reaching the server.
+   *
+   * @param e The failure of the request.
+   * @return True, if the request failed to connect, and can thereby be retried safely.
+   */
+  private static boolean isConnectFailure(IOException e) {
+    return e instanceof ConnectException || e instanceof ConnectTimeoutException
+        || e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+  }
+
+  /**
+   * Sends a request entity as POST to a url and handles the response.
+   * 
+   * @param requestUrl The url to post to
+   * @param attempt The attempt to send.
+   * @return The result of the handler
+   * @throws IOException if server did not indicate success, the handler failed, a timeout
+   *     passed, or the attempt got aborted.
+   */
+  private <T> T executeAt(String requestUrl, final Attempt<T> attempt) throws IOException {
     HttpPost httpPost = new HttpPost(requestUrl);
     httpPost.setHeader("Accept", "application/json");
     httpPost.setHeader("User-Agent", userAgent);
-    httpPost.setEntity(new UrlEncodedFormEntity(urlParameters));
+    httpPost.setEntity(attempt.entity);
+    if (requestConfig != null) {
+      httpPost.setConfig(requestConfig);
+    }
+    attempt.setRequest(httpPost);
 
-    ResponseHandler<JsonObject> handler = new RequestResponseHandler();
+    ScheduledFuture<?> expiry = null;
+    if (attempt.deadline > 0) {
+      long remaining = attempt.deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        attempt.expire();
+      } else {
+        expiry = getDeadlineTimer().schedule(new Runnable() {
+          @Override
+          public void run() {
+            attempt.expire();
+          }
+        }, remaining, TimeUnit.MILLISECONDS);
+      }
+    }
 
-    JsonObject ret;
-    try (CloseableHttpClient httpclient = getHttpClient()) {
-      log.debug("POSTing request to " + requestUrl + " with payload json=" + payloadString);
+    T ret;
+    CloseableHttpClient httpclient = getHttpClient();
+    try {
+      log.debug("POSTing request to " + requestUrl + " with payload "
+          + attempt.payloadDescription);
 
       long before = System.currentTimeMillis();
+      ResponseHandler<T> handler = attempt.handler;
+      if (tracer != null) {
+        handler = tracer.wrap(handler);
+      }
       ret = httpclient.execute(httpPost, handler);
       long after = System.currentTimeMillis();
       
       log.debug("Request took: " + (after - before) + "ms");
-      log.trace("Rarsed response: " + GSON.toJson(ret));
+    } catch (IOException e) {
+      if (attempt.isExpired()) {
+        deadlineExceededCount.incrementAndGet();
+        InterruptedIOException timeout = new InterruptedIOException("Request to " + requestUrl
+            + " did not complete within " + (attempt.deadline - attempt.start) + " ms");
+        timeout.initCause(e);
+        throw timeout;
+      }
+      // ConnectionPoolTimeoutException is a ConnectTimeoutException, so it gets checked first.
+      if (e instanceof ConnectionPoolTimeoutException) {
+        leaseTimeoutCount.incrementAndGet();
+      } else if (e instanceof ConnectTimeoutException) {
+        connectTimeoutCount.incrementAndGet();
+      } else if (e instanceof SocketTimeoutException) {
+        socketTimeoutCount.incrementAndGet();
+      }
+      throw e;
+    } finally {
+      if (expiry != null) {
+        expiry.cancel(false);
+      }
     }
     return ret;
   }
+
+  /**
+   * Gets the number of requests that failed to connect in time.
+   *
+   * @return The number of connect timeouts.
+   */
+  public long getConnectTimeoutCount() {
+    return connectTimeoutCount.get();
+  }
+
+  /**
+   * Gets the number of requests that failed to lease a pooled connection in time.
+   *
+   * @return The number of connection lease timeouts.
+   */
+  public long getLeaseTimeoutCount() {
+    return leaseTimeoutCount.get();
+  }
+
+  /**
+   * Gets the number of requests that failed as the server did not send data in time.
+   *
+   * @return The number of socket timeouts.
+   */
+  public long getSocketTimeoutCount() {
+    return socketTimeoutCount.get();
+  }
+
+  /**
+   * Gets the number of requests that got aborted as they did not complete by their deadline.
+   *
+   * <p>Each hedged duplicate counts separately.
+   *
+   * @return The number of requests aborted at their deadline.
+   */
+  public long getDeadlineExceededCount() {
+    return deadlineExceededCount.get();
+  }
+
+  /**
+   * Ends a session, so its requests no longer stick to an endpoint.
+   *
+   * <p>Sessions stay pinned to their endpoint until they get ended. So sessions that are no
+   * longer used (E.g.: of stopped feeds) should get ended.
+   *
+   * @param sessionId The id of the session.
+   */
+  public void endSession(String sessionId) {
+    if (balancer != null) {
+      balancer.unpin(sessionId);
+    }
+  }
+
+  /**
+   * One try of a request.
+   *
+   * @param <T> The type of the request's result.
+   */
+  private class Attempt<T> implements RequestHedger.Attempt<T> {
+    private final String path;
+    private final HttpEntity entity;
+    private final String payloadDescription;
+    private final ResponseHandler<T> handler;
+    private final long start;
+    private final long deadline;
+    private final RequestTracer.Trace trace;
+    private final String sessionId;
+    private final boolean resumesSession;
+    private HttpPost request = null;
+    private boolean aborted = false;
+    private boolean expired = false;
+
+    /**
+     * Creates an attempt.
+     *
+     * @param path The path for the post request (relative to the Context API endpoint)
+     * @param entity The request body. Has to be repeatable.
+     * @param payloadDescription Description of the payload for logging. May be null, if debug
+     *     logging is off.
+     * @param handler The handler to turn the response into the result.
+     * @param start Epoch millis at which the call started.
+     * @param deadline Epoch millis at which to abort the attempt, or 0 to not abort it.
+     * @param trace The trace to record the attempt's phases in, or null to not trace it.
+     * @param sessionId The id of the request's session, or null.
+     * @param resumesSession True, if the request relies on the session's state on the server.
+     */
+    Attempt(String path, HttpEntity entity, String payloadDescription,
+        ResponseHandler<T> handler, long start, long deadline, RequestTracer.Trace trace,
+        String sessionId, boolean resumesSession) {
+      this.path = path;
+      this.entity = entity;
+      this.payloadDescription = payloadDescription;
+      this.handler = handler;
+      this.start = start;
+      this.deadline = deadline;
+      this.trace = trace;
+      this.sessionId = sessionId;
+      this.resumesSession = resumesSession;
+    }
+
+    @Override
+    public T call() throws Exception {
+      if (trace == null) {
+        return execute(this);
+      }
+      // Hedged attempts run on other threads, so the trace gets attached to the running one.
+      RequestTracer.Trace previous = RequestTracer.attach(trace);
+      try {
+        return execute(this);
+      } finally {
+        RequestTracer.attach(previous);
+      }
+    }
+
+    @Override
+    public synchronized void abort() {
+      aborted = true;
+      if (request != null) {
+        request.abort();
+      }
+    }
+
+    /**
+     * Aborts the attempt, as its deadline passed.
+     */
+    synchronized void expire() {
+      expired = true;
+      abort();
+    }
+
+    synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    synchronized boolean isExpired() {
+      return expired;
+    }
+
+    synchronized void setRequest(HttpPost request) {
+      this.request = request;
+      if (aborted) {
+        request.abort();
+      }
+    }
+  }
 }
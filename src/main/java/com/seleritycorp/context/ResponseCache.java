@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache for API responses with per-endpoint time to live.
+ *
+ * <p>Each endpoint gets its own policy of how long responses stay fresh and for how much longer
+ * they may be served stale. Fresh responses get served from the cache. Stale responses get
+ * served from the cache as well, while a single background refresh re-fetches them
+ * (stale-while-revalidate). Older responses, and responses of endpoints without policy, get
+ * fetched by the caller.
+ *
+ * <p>The cache holds responses up to a total weight (typically their size in bytes). Once
+ * exceeded, the least recently used responses get evicted. Responses that alone exceed the
+ * bound do not get cached.
+ *
+ * <p>As callers get the very same cached objects, responses must not be modified.
+ */
+public class ResponseCache {
+  private static final Log log = LogFactory.getLog(ResponseCache.class);
+
+  /**
+   * Computes the weight of a response.
+   */
+  public interface Weigher {
+    /**
+     * Computes the weight of a response.
+     *
+     * @param response The response to weigh.
+     * @return The response's weight. Not negative.
+     */
+    long weigh(Object response);
+  }
+
+  private static final class Policy {
+    final long ttlMillis;
+    final long staleMillis;
+
+    Policy(long ttlMillis, long staleMillis) {
+      this.ttlMillis = ttlMillis;
+      this.staleMillis = staleMillis;
+    }
+  }
+
+  private static final class Entry {
+    final Object response;
+    final long weight;
+    final long loadedMillis;
+    boolean refreshing = false;
+
+    Entry(Object response, long weight, long loadedMillis) {
+      this.response = response;
+      this.weight = weight;
+      this.loadedMillis = loadedMillis;
+    }
+  }
+
+  private final long maxWeight;
+  private final Weigher weigher;
+  private final Executor refresher;
+  private final Map<String, Policy> policies = new HashMap<>();
+  // Access order, so iteration starts at the least recently used entry.
+  private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long weight = 0;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong staleHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxWeight The maximum total weight of the cached responses.
+   * @param weigher Computes the weight of responses.
+   * @param refresher Runs the background refreshes of stale responses.
+   */
+  public ResponseCache(long maxWeight, Weigher weigher, Executor refresher) {
+    if (maxWeight < 1) {
+      throw new IllegalArgumentException("Maximum weight has to be positive, but is "
+          + maxWeight);
+    }
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.refresher = refresher;
+  }
+
+  /**
+   * Sets how long responses of an endpoint get cached.
+   *
+   * @param endpoint The endpoint to set the policy for.
+   * @param ttlMillis How long responses stay fresh. 0 disables caching for the endpoint.
+   * @param staleMillis How long responses get served after they turned stale, while they get
+   *     refreshed in the background. 0 disables serving stale responses.
+   */
+  public synchronized void setPolicy(String endpoint, long ttlMillis, long staleMillis) {
+    if (ttlMillis < 0 || staleMillis < 0) {
+      throw new IllegalArgumentException("Time to live and stale time must not be negative, but "
+          + "are " + ttlMillis + " and " + staleMillis);
+    }
+    if (ttlMillis > 0) {
+      policies.put(endpoint, new Policy(ttlMillis, staleMillis));
+    } else {
+      policies.remove(endpoint);
+    }
+  }
+
+  /**
+   * Gets a response from the cache, or loads it.
+   *
+   * @param endpoint The endpoint the response is for.
+   * @param key Identifies the request. Keys have to differ across endpoints and need proper
+   *     {@code equals} and {@code hashCode}.
+   * @param loader Fetches the response.
+   * @return The (possibly cached) response.
+   * @throws Exception if loading the response failed.
+   */
+  public <T> T get(String endpoint, Object key, Callable<T> loader) throws Exception {
+    return get(endpoint, key, loader, System.currentTimeMillis());
+  }
+
+  /**
+   * Gets a response from the cache, or loads it.
+   *
+   * @param nowMillis The current time.
+   */
+  <T> T get(String endpoint, Object key, Callable<T> loader, long nowMillis) throws Exception {
+    Policy policy;
+    Entry stale = null;
+    synchronized (this) {
+      policy = policies.get(endpoint);
+      Entry entry = (policy != null) ? entries.get(key) : null;
+      if (entry != null) {
+        long age = nowMillis - entry.loadedMillis;
+        if (age < policy.ttlMillis) {
+          hitCount.incrementAndGet();
+          return cast(entry.response);
+        }
+        if (age < policy.ttlMillis + policy.staleMillis) {
+          staleHitCount.incrementAndGet();
+          if (!entry.refreshing) {
+            entry.refreshing = true;
+            stale = entry;
+          } else {
+            return cast(entry.response);
+          }
+        }
+      }
+    }
+
+    if (policy == null) {
+      // Loading outside the lock, so uncached requests do not block each other.
+      return loader.call();
+    }
+
+    if (stale != null) {
+      refresh(key, loader, stale);
+      return cast(stale.response);
+    }
+
+    missCount.incrementAndGet();
+    T ret = loader.call();
+    put(key, ret, nowMillis);
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T cast(Object response) {
+    return (T) response;
+  }
+
+  /**
+   * Re-fetches a stale response in the background.
+   *
+   * @param key The key of the response.
+   * @param loader Fetches the response.
+   * @param stale The stale entry to replace.
+   */
+  private void refresh(final Object key, final Callable<?> loader, final Entry stale) {
+    try {
+      refresher.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            put(key, loader.call(), System.currentTimeMillis());
+          } catch (Exception e) {
+            log.debug("Refreshing stale response failed", e);
+            synchronized (ResponseCache.this) {
+              // Allowing the next caller to try again.
+              stale.refreshing = false;
+            }
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      log.debug("Could not schedule refreshing stale response", e);
+      synchronized (this) {
+        stale.refreshing = false;
+      }
+    }
+  }
+
+  /**
+   * Adds a response to the cache, evicting least recently used responses as needed.
+   *
+   * @param key The key of the response.
+   * @param response The response to add.
+   * @param nowMillis The time the response got loaded.
+   */
+  private void put(Object key, Object response, long nowMillis) {
+    long responseWeight = weigher.weigh(response);
+    synchronized (this) {
+      Entry previous = entries.remove(key);
+      if (previous != null) {
+        weight -= previous.weight;
+      }
+      if (responseWeight > maxWeight) {
+        return;
+      }
+      entries.put(key, new Entry(response, responseWeight, nowMillis));
+      weight += responseWeight;
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (weight > maxWeight) {
+        Entry eldest = iterator.next();
+        iterator.remove();
+        weight -= eldest.weight;
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Gets the total weight of the cached responses.
+   *
+   * @return The total weight.
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * Gets the number of requests that got served a fresh cached response.
+   *
+   * @return The number of fresh hits.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of requests that got served a stale cached response.
+   *
+   * @return The number of stale hits.
+   */
+  public long getStaleHitCount() {
+    return staleHitCount.get();
+  }
+
+  /**
+   * Gets the number of cacheable requests that had to be fetched.
+   *
+   * @return The number of misses.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Gets the number of responses that got evicted to stay within the weight bound.
+   *
+   * @return The number of evicted responses.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Filters recommendations down to the ones whose content id has not been seen recently.
+ *
+ * <p>Only the most recently seen content ids are remembered, so memory stays bounded also for
+ * endlessly running polls. Recommendations without content id are dropped.
+ */
+public class SeenContentFilter {
+  private final int capacity;
+  private final Deque<String> seenOrder;
+  private final Set<String> seen;
+
+  /**
+   * Creates a filter.
+   *
+   * @param capacity How many content ids to remember at most.
+   */
+  public SeenContentFilter(int capacity) {
+    this.capacity = capacity;
+    this.seenOrder = new ArrayDeque<>(capacity + 1);
+    this.seen = new HashSet<>(capacity * 2);
+  }
+
+  /**
+   * Filters recommendations down to unseen ones and marks them as seen.
+   *
+   * @param recommendations The recommendations to filter.
+   * @return The recommendations that have not been seen before, in their original order.
+   */
+  public synchronized List<RawRecommendation> filterUnseen(
+      List<RawRecommendation> recommendations) {
+    List<RawRecommendation> ret = new ArrayList<>(recommendations.size());
+    for (RawRecommendation recommendation : recommendations) {
+      String contentId = recommendation.getContentId();
+      if (contentId != null && seen.add(contentId)) {
+        ret.add(recommendation);
+        seenOrder.addFirst(contentId);
+
+        // To avoid keeping too many items in memory, we prune old items.
+        if (seenOrder.size() > capacity) {
+          seen.remove(seenOrder.removeLast());
+        }
+      }
+    }
+    return ret;
+  }
+}
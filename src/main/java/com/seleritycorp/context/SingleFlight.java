@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical calls into a single call.
+ *
+ * <p>The first caller for a key runs the call. Callers that arrive with the same key while the
+ * call is in flight wait for it and get the same result (or exception) instead of running the
+ * call again. Once the call completed, the next caller for the key runs a fresh call, so
+ * results are shared but never cached.
+ *
+ * <p>As callers of a collapsed call get the very same result object, results must not be
+ * modified.
+ *
+ * @param <K> The type of the keys. Keys need proper {@code equals} and {@code hashCode}.
+ */
+public class SingleFlight<K> {
+  private final ConcurrentMap<K, FutureTask<?>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong executedCount = new AtomicLong();
+  private final AtomicLong collapsedCount = new AtomicLong();
+
+  /**
+   * Runs a call, unless an identical call is in flight already.
+   *
+   * @param key The key that identifies identical calls.
+   * @param callable The call to run.
+   * @return The result of the call.
+   * @throws Exception if the call failed.
+   */
+  public <T> T execute(K key, Callable<T> callable) throws Exception {
+    FutureTask<T> task = new FutureTask<>(callable);
+    @SuppressWarnings("unchecked")
+    FutureTask<T> existing = (FutureTask<T>) inFlight.putIfAbsent(key, task);
+    if (existing != null) {
+      collapsedCount.incrementAndGet();
+      return getResult(existing);
+    }
+
+    executedCount.incrementAndGet();
+    try {
+      task.run();
+    } finally {
+      inFlight.remove(key, task);
+    }
+    return getResult(task);
+  }
+
+  private static <T> T getResult(FutureTask<T> task) throws Exception {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the number of calls that actually ran.
+   *
+   * @return The number of run calls.
+   */
+  public long getExecutedCount() {
+    return executedCount.get();
+  }
+
+  /**
+   * Gets the number of calls that shared the result of a call in flight.
+   *
+   * @return The number of collapsed calls.
+   */
+  public long getCollapsedCount() {
+    return collapsedCount.get();
+  }
+}
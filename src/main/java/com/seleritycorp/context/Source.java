@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Source of content items.
+ *
+ * <p>Only a handful of sources exist, while each of them shows up on many content items. So
+ * instances are interned and can be compared by reference.
+ */
+public class Source {
+  /**
+   * Upper bound for the number of interned sources.
+   *
+   * <p>Guards against unbounded growth if the API starts to send unexpected source names.
+   */
+  private static final int MAX_INTERNED = 1024;
+
+  private static final ConcurrentMap<String, Source> INTERNED = new ConcurrentHashMap<>();
+
+  private final String name;
+
+  private Source(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the source for a name.
+   *
+   * @param name The name of the source.
+   * @return The source for the name. null, if name is null.
+   */
+  public static Source of(String name) {
+    if (name == null) {
+      return null;
+    }
+    Source ret = INTERNED.get(name);
+    if (ret == null) {
+      ret = new Source(name);
+      if (INTERNED.size() < MAX_INTERNED) {
+        Source existing = INTERNED.putIfAbsent(name, ret);
+        if (existing != null) {
+          ret = existing;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Gets the name of the source.
+   *
+   * @return The name of the source.
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Source && name.equals(((Source) obj).name);
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
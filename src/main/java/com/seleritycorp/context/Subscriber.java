@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downstream consumer of a {@link RecommendationFeed} with a bounded buffer.
+ *
+ * <p>Publishing to a subscriber never blocks. If the subscriber does not keep up and its buffer
+ * is full, the {@link SlowConsumerPolicy} decides whether the oldest buffered item gets dropped
+ * or whether the subscriber gets disconnected. That way, one lagging client cannot stall the
+ * feed for all other clients.
+ */
+public class Subscriber {
+  private static final Log log = LogFactory.getLog(Subscriber.class);
+
+  /**
+   * How to treat a subscriber whose buffer is full.
+   */
+  public enum SlowConsumerPolicy {
+    /**
+     * Drop the oldest buffered item to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Close the subscriber. Buffered items are still handed out.
+     */
+    DISCONNECT
+  }
+
+  private final String name;
+  private final int capacity;
+  private final SlowConsumerPolicy policy;
+  private final Deque<RawRecommendation> buffer;
+  private long droppedCount = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates a subscriber.
+   *
+   * @param name The name of the subscriber, used for logging.
+   * @param capacity How many items to buffer at most.
+   * @param policy How to react if the buffer is full.
+   */
+  public Subscriber(String name, int capacity, SlowConsumerPolicy policy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity has to be positive, but is " + capacity);
+    }
+    this.name = name;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.buffer = new ArrayDeque<>(capacity);
+  }
+
+  /**
+   * Offers a recommendation to the subscriber without blocking.
+   *
+   * @param recommendation The recommendation to offer.
+   * @return true, if the subscriber is still open. false, if it is closed.
+   */
+  public synchronized boolean offer(RawRecommendation recommendation) {
+    if (closed) {
+      return false;
+    }
+    if (buffer.size() >= capacity) {
+      if (policy == SlowConsumerPolicy.DISCONNECT) {
+        log.info("Disconnecting slow subscriber " + name + " after " + capacity
+            + " buffered items");
+        close();
+        return false;
+      }
+      buffer.removeFirst();
+      droppedCount++;
+      if (log.isDebugEnabled()) {
+        log.debug("Dropped oldest item of slow subscriber " + name + " (" + droppedCount
+            + " dropped so far)");
+      }
+    }
+    buffer.addLast(recommendation);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Takes the next buffered recommendation, waiting if needed.
+   *
+   * @param timeout How long to wait at most.
+   * @param unit The unit of the timeout.
+   * @return The next recommendation. null, if none arrived within the timeout or if the
+   *     subscriber is closed and its buffer is drained.
+   * @throws InterruptedException if the thread gets interrupted while waiting.
+   */
+  public synchronized RawRecommendation poll(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (buffer.isEmpty() && !closed) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return buffer.pollFirst();
+  }
+
+  /**
+   * Closes the subscriber. Waiting {@link #poll(long, TimeUnit)} calls get woken up.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Checks whether the subscriber got closed.
+   *
+   * @return true, if the subscriber is closed.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Gets how many items got dropped due to a full buffer.
+   *
+   * @return The number of dropped items.
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Gets the name of the subscriber.
+   *
+   * @return The subscriber's name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+/**
+ * Helpers for the ISO timestamps used by the Context API.
+ */
+public class TimestampUtils {
+  /**
+   * Returned for timestamps that cannot be parsed.
+   */
+  public static final long UNKNOWN = Long.MIN_VALUE;
+
+  private TimestampUtils() {
+  }
+
+  /**
+   * Parses an ISO-8601 timestamp to epoch milliseconds without allocating.
+   *
+   * <p>Accepted are timestamps like {@code 2017-03-29T12:34:56}, optionally followed by a
+   * fraction of a second (of any precision) and a zone designator ({@code Z}, {@code +02:00},
+   * {@code -0500}, ...). Timestamps without zone designator are taken as UTC, as the Context API
+   * uses UTC throughout. A space is accepted instead of the {@code T}.
+   *
+   * @param timestamp The timestamp to parse.
+   * @return The epoch milliseconds of the timestamp. {@link #UNKNOWN}, if timestamp is null or
+   *     cannot be parsed.
+   */
+  public static long parseMillis(CharSequence timestamp) {
+    if (timestamp == null || timestamp.length() < 19) {
+      return UNKNOWN;
+    }
+    int year = digits(timestamp, 0, 4);
+    int month = digits(timestamp, 5, 2);
+    int day = digits(timestamp, 8, 2);
+    int hour = digits(timestamp, 11, 2);
+    int minute = digits(timestamp, 14, 2);
+    int second = digits(timestamp, 17, 2);
+    char separator = timestamp.charAt(10);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+        || second > 60 || timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-'
+        || (separator != 'T' && separator != ' ') || timestamp.charAt(13) != ':'
+        || timestamp.charAt(16) != ':') {
+      // Negative values from digits() fail the range checks above as well.
+      return UNKNOWN;
+    }
+
+    int pos = 19;
+    int length = timestamp.length();
+    int millis = 0;
+    if (pos < length && timestamp.charAt(pos) == '.') {
+      pos++;
+      int scale = 100;
+      int start = pos;
+      while (pos < length && isDigit(timestamp.charAt(pos))) {
+        millis += (timestamp.charAt(pos) - '0') * scale;
+        scale /= 10;
+        pos++;
+      }
+      if (pos == start) {
+        return UNKNOWN;
+      }
+    }
+
+    int offsetMinutes = 0;
+    if (pos < length) {
+      char zone = timestamp.charAt(pos);
+      if (zone == 'Z' && pos + 1 == length) {
+        pos++;
+      } else if (zone == '+' || zone == '-') {
+        int offsetHours = digits(timestamp, pos + 1, 2);
+        pos += 3;
+        if (pos < length && timestamp.charAt(pos) == ':') {
+          pos++;
+        }
+        int offsetMinutesPart = (pos < length) ? digits(timestamp, pos, 2) : 0;
+        pos += (pos < length) ? 2 : 0;
+        if (offsetHours < 0 || offsetMinutesPart < 0 || pos != length) {
+          return UNKNOWN;
+        }
+        offsetMinutes = offsetHours * 60 + offsetMinutesPart;
+        if (zone == '-') {
+          offsetMinutes = -offsetMinutes;
+        }
+      } else {
+        return UNKNOWN;
+      }
+    }
+
+    long days = daysFromCivil(year, month, day);
+    long seconds = days * 86400 + hour * 3600 + minute * 60 + second - offsetMinutes * 60L;
+    return seconds * 1000 + millis;
+  }
+
+  /**
+   * Parses a fixed number of decimal digits.
+   *
+   * @return The parsed number. -1, if the characters are not all digits.
+   */
+  private static int digits(CharSequence str, int start, int count) {
+    if (start + count > str.length()) {
+      return -1;
+    }
+    int ret = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = str.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      ret = ret * 10 + (c - '0');
+    }
+    return ret;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Computes the days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+   *
+   * <p>See Howard Hinnant's "chrono-Compatible Low-Level Date Algorithms".
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = (month <= 2) ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
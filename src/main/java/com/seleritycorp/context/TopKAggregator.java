@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Streaming aggregator of the K most important recommendations across all queries.
+ *
+ * <p>Items are ranked by their score decayed over time: an item's score halves with each
+ * half-life that passed since the item's timestamp. Decaying is done through forward decay:
+ * each item gets the static key {@code ln(score) + t * ln(2) / halfLife}, where {@code t} is
+ * the item's timestamp. Ordering by that key is the same as ordering by decayed score at any
+ * point in time, so entries never need to be re-ranked as time passes, and adding an item
+ * costs {@code O(log K)}.
+ *
+ * <p>Items whose timestamp is older than the window get evicted. Besides the top K, the
+ * aggregator therefore keeps the items that may still move up once better items got evicted.
+ * Items that are outranked by K items staying in the window at least as long can never make it
+ * into the top K, and get pruned once the candidates grow beyond twice their last pruned count.
+ * Timestamps in the future are treated as the current time, so they cannot inflate keys.
+ *
+ * <p>Items with the same content id are only held once, with their best key.
+ */
+public class TopKAggregator implements RecommendationSink {
+  private static final double LN2 = Math.log(2);
+
+  /**
+   * Score to use for items without positive score, so they rank below all scored items.
+   */
+  private static final double MIN_SCORE = Double.MIN_NORMAL;
+
+  /**
+   * Ranked item of a snapshot.
+   */
+  public static final class Ranked {
+    private final RawRecommendation recommendation;
+    private final double decayedScore;
+
+    Ranked(RawRecommendation recommendation, double decayedScore) {
+      this.recommendation = recommendation;
+      this.decayedScore = decayedScore;
+    }
+
+    /**
+     * Gets the ranked recommendation.
+     *
+     * @return The recommendation.
+     */
+    public RawRecommendation getRecommendation() {
+      return recommendation;
+    }
+
+    /**
+     * Gets the score decayed to the time of the snapshot.
+     *
+     * @return The decayed score.
+     */
+    public double getDecayedScore() {
+      return decayedScore;
+    }
+  }
+
+  private static final class Entry {
+    final RawRecommendation recommendation;
+    final long itemMillis;
+    final double key;
+    final long sequence;
+
+    Entry(RawRecommendation recommendation, long itemMillis, double key, long sequence) {
+      this.recommendation = recommendation;
+      this.itemMillis = itemMillis;
+      this.key = key;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      int ret = Double.compare(o1.key, o2.key);
+      return (ret != 0) ? ret : Long.compare(o1.sequence, o2.sequence);
+    }
+  };
+
+  private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      int ret = Long.compare(o1.itemMillis, o2.itemMillis);
+      return (ret != 0) ? ret : Long.compare(o1.sequence, o2.sequence);
+    }
+  };
+
+  private final int k;
+  private final long halfLifeMillis;
+  private final long windowMillis;
+  private final long epochMillis;
+  private final TreeSet<Entry> byKey = new TreeSet<>(BY_KEY);
+  private final TreeSet<Entry> byTime = new TreeSet<>(BY_TIME);
+  private final Map<String, Entry> byContentId = new HashMap<>();
+  private long sequence = 0;
+  private int pruneThreshold;
+
+  /**
+   * Creates an aggregator.
+   *
+   * @param k The number of items to keep.
+   * @param halfLifeMillis The time in milliseconds after which an item's score halves.
+   * @param windowMillis Evict items whose timestamp is older than this many milliseconds.
+   */
+  public TopKAggregator(int k, long halfLifeMillis, long windowMillis) {
+    this(k, halfLifeMillis, windowMillis, System.currentTimeMillis());
+  }
+
+  /**
+   * Creates an aggregator with an explicit reference time for keys.
+   *
+   * @param epochMillis Reference time for keys. Keeping it near the items' timestamps keeps
+   *     keys small and precise.
+   */
+  TopKAggregator(int k, long halfLifeMillis, long windowMillis, long epochMillis) {
+    if (k < 1 || halfLifeMillis < 1) {
+      throw new IllegalArgumentException("K and half-life have to be positive, but are " + k
+          + " and " + halfLifeMillis);
+    }
+    this.k = k;
+    this.halfLifeMillis = halfLifeMillis;
+    this.windowMillis = windowMillis;
+    this.epochMillis = epochMillis;
+    this.pruneThreshold = 4 * k;
+  }
+
+  @Override
+  public void append(RawRecommendation recommendation) {
+    append(recommendation, System.currentTimeMillis());
+  }
+
+  /**
+   * Adds a recommendation.
+   *
+   * @param recommendation The recommendation to add.
+   * @param nowMillis The current time. Used for items without usable timestamp and for
+   *     eviction.
+   */
+  synchronized void append(RawRecommendation recommendation, long nowMillis) {
+    evict(nowMillis);
+
+    long itemMillis = TimestampUtils.parseMillis(recommendation.getTimestamp());
+    if (itemMillis == TimestampUtils.UNKNOWN || itemMillis > nowMillis) {
+      itemMillis = nowMillis;
+    }
+    if (itemMillis < nowMillis - windowMillis) {
+      return;
+    }
+    double score = recommendation.getScore();
+    if (!(score > 0)) {
+      score = MIN_SCORE;
+    }
+    double key = Math.log(score) + (itemMillis - epochMillis) * LN2 / halfLifeMillis;
+
+    String contentId = recommendation.getContentId();
+    if (contentId != null) {
+      Entry existing = byContentId.get(contentId);
+      if (existing != null) {
+        if (existing.key >= key) {
+          return;
+        }
+        remove(existing);
+      }
+    }
+
+    Entry entry = new Entry(recommendation, itemMillis, key, sequence++);
+    byKey.add(entry);
+    byTime.add(entry);
+    if (contentId != null) {
+      byContentId.put(contentId, entry);
+    }
+    if (byKey.size() >= pruneThreshold) {
+      prune();
+    }
+  }
+
+  /**
+   * Drops candidates that are outranked by K items that stay in the window at least as long.
+   */
+  private void prune() {
+    // Walking from newest to oldest, while tracking the best K keys seen so far.
+    PriorityQueue<Entry> newerBest = new PriorityQueue<>(k, BY_KEY);
+    List<Entry> outranked = new ArrayList<>();
+    Iterator<Entry> iterator = byTime.descendingIterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (newerBest.size() < k) {
+        newerBest.add(entry);
+      } else if (BY_KEY.compare(entry, newerBest.peek()) > 0) {
+        newerBest.poll();
+        newerBest.add(entry);
+      } else {
+        outranked.add(entry);
+      }
+    }
+    for (Entry entry : outranked) {
+      remove(entry);
+    }
+    pruneThreshold = Math.max(2 * byKey.size(), 4 * k);
+  }
+
+  /**
+   * Gets the number of items held, including those currently outside the top K.
+   *
+   * @return The number of held items.
+   */
+  synchronized int getCandidateCount() {
+    return byKey.size();
+  }
+
+  private void remove(Entry entry) {
+    byKey.remove(entry);
+    byTime.remove(entry);
+    String contentId = entry.recommendation.getContentId();
+    if (contentId != null && byContentId.get(contentId) == entry) {
+      byContentId.remove(contentId);
+    }
+  }
+
+  private void evict(long nowMillis) {
+    long threshold = nowMillis - windowMillis;
+    while (!byTime.isEmpty() && byTime.first().itemMillis < threshold) {
+      remove(byTime.first());
+    }
+  }
+
+  /**
+   * Does nothing, as items are ranked right when appending.
+   */
+  @Override
+  public void flush() {
+    // Nothing to do.
+  }
+
+  /**
+   * Does nothing, as the aggregator holds no external resources.
+   */
+  @Override
+  public void close() {
+    // Nothing to do.
+  }
+
+  /**
+   * Takes a snapshot of the current top items.
+   *
+   * @return The top items, best first.
+   */
+  public List<Ranked> snapshot() {
+    return snapshot(System.currentTimeMillis());
+  }
+
+  /**
+   * Takes a snapshot of the current top items.
+   *
+   * @param nowMillis The current time, used for eviction and decaying scores.
+   * @return The top items, best first.
+   */
+  synchronized List<Ranked> snapshot(long nowMillis) {
+    evict(nowMillis);
+    List<Ranked> ret = new ArrayList<>(Math.min(k, byKey.size()));
+    Iterator<Entry> iterator = byKey.descendingIterator();
+    while (iterator.hasNext() && ret.size() < k) {
+      Entry entry = iterator.next();
+      double score = entry.recommendation.getScore();
+      double decayed = Double.isNaN(score) ? score
+          : score * Math.pow(2, -(double) (nowMillis - entry.itemMillis) / halfLifeMillis);
+      ret.add(new Ranked(entry.recommendation, decayed));
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes query responses directly from the response stream through a Gson TypeAdapter.
+ *
+ * <p>Error handling is the same as for {@link RequestResponseHandler}. But instead of buffering
+ * the response as string and building a Json tree from it, the response gets decoded while
+ * it streams in.
+ *
+ * @param <T> The type to decode the response to.
+ */
+public class TypedResponseHandler<T> implements ResponseHandler<T> {
+  private final TypeAdapter<T> adapter;
+
+  /**
+   * Constructs a handler that decodes responses with the given adapter.
+   *
+   * @param adapter The adapter to decode responses with.
+   */
+  public TypedResponseHandler(TypeAdapter<T> adapter) {
+    this.adapter = adapter;
+  }
+
+  @Override
+  public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+    HttpEntity entity = RequestResponseHandler.getJsonEntity(response);
+
+    Charset charset = ContentType.getOrDefault(entity).getCharset();
+    if (charset == null) {
+      // JSON defaults to UTF-8
+      charset = StandardCharsets.UTF_8;
+    }
+
+    try (Reader reader = new InputStreamReader(entity.getContent(), charset)) {
+      return adapter.read(new JsonReader(reader));
+    } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+      throw new ClientProtocolException("Could not decode response: " + e.getMessage(), e);
+    }
+  }
+}
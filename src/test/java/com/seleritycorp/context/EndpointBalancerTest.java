@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EndpointBalancerTest {
+  private static final long NOW = 1000000;
+
+  @Test
+  public void testProbesUnsampledEndpoints() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint first = balancer.acquire(none(), NOW);
+    balancer.release(first, 100, true, NOW);
+
+    EndpointBalancer.Endpoint second = balancer.acquire(none(), NOW);
+
+    assertThat(second).isNotSameAs(first);
+  }
+
+  @Test
+  public void testPrefersFastEndpoint() {
+    EndpointBalancer balancer = createBalancer("fast", "slow");
+    EndpointBalancer.Endpoint fast = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint slow = balancer.getEndpoints().get(1);
+    balancer.acquire(Arrays.asList(slow), NOW);
+    balancer.release(fast, 10, true, NOW);
+    balancer.acquire(Arrays.asList(fast), NOW);
+    balancer.release(slow, 500, true, NOW);
+
+    Map<String, Integer> picks = pick(balancer, 100, 10, 500);
+
+    assertThat(picks.get("fast")).isEqualTo(100);
+    assertThat(fast.getEwmaLatencyMillis()).isEqualTo(10);
+  }
+
+  @Test
+  public void testSpreadsAcrossEqualEndpoints() {
+    EndpointBalancer balancer = createBalancer("foo", "bar", "baz");
+
+    Map<String, Integer> picks = pick(balancer, 300, 50, 50);
+
+    assertThat(picks.get("foo")).isGreaterThan(50);
+    assertThat(picks.get("bar")).isGreaterThan(50);
+    assertThat(picks.get("baz")).isGreaterThan(50);
+  }
+
+  @Test
+  public void testConsidersRequestsInFlight() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint bar = balancer.getEndpoints().get(1);
+    balancer.acquire(Arrays.asList(bar), NOW);
+    balancer.release(foo, 10, true, NOW);
+    balancer.acquire(Arrays.asList(foo), NOW);
+    balancer.release(bar, 15, true, NOW);
+    // Two requests in flight make foo look three times as slow.
+    balancer.acquire(Arrays.asList(bar), NOW);
+    balancer.acquire(Arrays.asList(bar), NOW);
+
+    assertThat(balancer.acquire(none(), NOW)).isSameAs(bar);
+  }
+
+  @Test
+  public void testEjectsAfterConsecutiveFailures() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint bar = balancer.getEndpoints().get(1);
+    for (int i = 0; i < 3; i++) {
+      balancer.acquire(Arrays.asList(bar), NOW);
+      balancer.release(foo, 1, false, NOW);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      EndpointBalancer.Endpoint actual = balancer.acquire(none(), NOW + 999);
+      balancer.release(actual, 100, true, NOW + 999);
+      assertThat(actual).isSameAs(bar);
+    }
+    assertThat(foo.getEjectionCount()).isEqualTo(1);
+    assertThat(foo.getFailureCount()).isEqualTo(3);
+
+    // After the ejection, foo is available again, but its failures still make it look slow.
+    assertThat(foo.isAvailable(NOW + 1000)).isTrue();
+    assertThat(balancer.acquire(none(), NOW + 1000)).isSameAs(bar);
+  }
+
+  @Test
+  public void testRepeatedEjectionsLastLonger() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint bar = balancer.getEndpoints().get(1);
+    for (int i = 0; i < 6; i++) {
+      balancer.acquire(Arrays.asList(bar), NOW);
+      balancer.release(foo, 1, false, NOW);
+    }
+
+    assertThat(foo.getEjectionCount()).isEqualTo(2);
+    assertThat(balancer.acquire(none(), NOW + 1999)).isSameAs(bar);
+    assertThat(foo.isAvailable(NOW + 1999)).isFalse();
+    assertThat(foo.isAvailable(NOW + 2000)).isTrue();
+  }
+
+  @Test
+  public void testDoesNotEjectLastAvailableEndpoint() {
+    EndpointBalancer balancer = createBalancer("foo");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    for (int i = 0; i < 3; i++) {
+      balancer.acquire(none(), NOW);
+      balancer.release(foo, 1, false, NOW);
+    }
+
+    assertThat(foo.getEjectionCount()).isEqualTo(0);
+    assertThat(foo.isAvailable(NOW)).isTrue();
+  }
+
+  @Test
+  public void testExcludedOnlyAsLastResort() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint bar = balancer.getEndpoints().get(1);
+
+    assertThat(balancer.acquire(Arrays.asList(foo), NOW)).isSameAs(bar);
+    assertThat(balancer.acquire(Arrays.asList(foo, bar), NOW)).isIn(foo, bar);
+  }
+
+  @Test
+  public void testSuccessResetsEjections() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint foo = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint bar = balancer.getEndpoints().get(1);
+    for (int i = 0; i < 3; i++) {
+      balancer.acquire(Arrays.asList(bar), NOW);
+      balancer.release(foo, 1, false, NOW);
+    }
+    balancer.acquire(Arrays.asList(bar), NOW + 1000);
+    balancer.release(foo, 1, true, NOW + 1000);
+
+    assertThat(foo.getEjectionCount()).isEqualTo(0);
+    assertThat(foo.getRequestCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testFailedRequestsCountWithPenalty() {
+    EndpointBalancer balancer = createBalancer("fast", "slow");
+    balancer.setFailurePenaltyMillis(1000);
+    EndpointBalancer.Endpoint fast = balancer.getEndpoints().get(0);
+    EndpointBalancer.Endpoint slow = balancer.getEndpoints().get(1);
+    balancer.acquire(Arrays.asList(slow), NOW);
+    balancer.release(fast, 1, false, NOW);
+    balancer.acquire(Arrays.asList(fast), NOW);
+    balancer.release(slow, 500, true, NOW);
+
+    Map<String, Integer> picks = pick(balancer, 10, 10, 500);
+
+    assertThat(picks.get("slow")).isEqualTo(10);
+    assertThat(fast.getEwmaLatencyMillis()).isEqualTo(1000);
+  }
+
+  @Test
+  public void testFailedRequestsKeepHigherLatency() {
+    EndpointBalancer balancer = createBalancer("foo");
+    balancer.setFailurePenaltyMillis(1000);
+    EndpointBalancer.Endpoint foo = balancer.acquire(none(), NOW);
+    balancer.release(foo, 3000, false, NOW);
+
+    assertThat(foo.getEwmaLatencyMillis()).isEqualTo(3000);
+  }
+
+  @Test
+  public void testSessionSticksToEndpoint() {
+    EndpointBalancer balancer = createBalancer("foo", "bar", "baz");
+    EndpointBalancer.Endpoint first = balancer.acquire(none(), "sessionFoo", NOW);
+    balancer.release(first, 500, true, NOW);
+
+    for (int i = 0; i < 20; i++) {
+      EndpointBalancer.Endpoint endpoint = balancer.acquire(none(), "sessionFoo", NOW);
+      balancer.release(endpoint, 500, true, NOW);
+      assertThat(endpoint).isSameAs(first);
+    }
+    assertThat(balancer.getSessionEndpoint("sessionFoo")).isSameAs(first);
+    assertThat(balancer.getSessionEndpoint("sessionBar")).isNull();
+  }
+
+  @Test
+  public void testSessionMovesOffEjectedEndpoint() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint first = balancer.acquire(none(), "sessionFoo", NOW);
+    for (int i = 0; i < 3; i++) {
+      balancer.release(first, 1, false, NOW);
+      balancer.acquire(none(), "sessionFoo", NOW);
+    }
+
+    EndpointBalancer.Endpoint second = balancer.acquire(none(), "sessionFoo", NOW);
+
+    assertThat(second).isNotSameAs(first);
+    assertThat(balancer.getSessionEndpoint("sessionFoo")).isSameAs(second);
+    assertThat(balancer.acquire(none(), "sessionFoo", NOW + 1000)).isSameAs(second);
+  }
+
+  @Test
+  public void testSessionMovesOffExcludedEndpoint() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint first = balancer.acquire(none(), "sessionFoo", NOW);
+
+    EndpointBalancer.Endpoint second = balancer.acquire(Arrays.asList(first), "sessionFoo",
+        NOW);
+
+    assertThat(second).isNotSameAs(first);
+    assertThat(balancer.getSessionEndpoint("sessionFoo")).isSameAs(second);
+  }
+
+  @Test
+  public void testUnpinForgetsSession() {
+    EndpointBalancer balancer = createBalancer("foo", "bar");
+    EndpointBalancer.Endpoint first = balancer.acquire(none(), "sessionFoo", NOW);
+    balancer.acquire(none(), "sessionBar", NOW);
+
+    balancer.unpin("sessionFoo");
+
+    assertThat(balancer.getSessionEndpoint("sessionFoo")).isNull();
+    assertThat(balancer.getSessionEndpoint("sessionBar")).isNotNull();
+    EndpointBalancer.Endpoint second = balancer.acquire(Arrays.asList(first), "sessionFoo",
+        NOW);
+    assertThat(balancer.getSessionEndpoint("sessionFoo")).isSameAs(second);
+  }
+
+  @Test
+  public void testCancelKeepsStatistics() {
+    EndpointBalancer balancer = createBalancer("foo");
+    EndpointBalancer.Endpoint foo = balancer.acquire(none(), NOW);
+
+    balancer.cancel(foo);
+
+    assertThat(foo.getRequestCount()).isEqualTo(0);
+    assertThat(foo.getScore()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      new EndpointBalancer(Collections.<String>emptyList());
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("at least one");
+    }
+    try {
+      new EndpointBalancer(Arrays.asList("foo"), 0, 3, 1000, new Random(1));
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("alpha");
+    }
+  }
+
+  private EndpointBalancer createBalancer(String... urls) {
+    return new EndpointBalancer(Arrays.asList(urls), 0.5, 3, 1000, new Random(42));
+  }
+
+  private Map<String, Integer> pick(EndpointBalancer balancer, int count, long fastMillis,
+      long slowMillis) {
+    Map<String, Integer> ret = new HashMap<>();
+    for (EndpointBalancer.Endpoint endpoint : balancer.getEndpoints()) {
+      ret.put(endpoint.getUrl(), 0);
+    }
+    for (int i = 0; i < count; i++) {
+      EndpointBalancer.Endpoint endpoint = balancer.acquire(none(), NOW);
+      ret.put(endpoint.getUrl(), ret.get(endpoint.getUrl()) + 1);
+      balancer.release(endpoint, "slow".equals(endpoint.getUrl()) ? slowMillis : fastMillis,
+          true, NOW);
+    }
+    return ret;
+  }
+
+  private static List<EndpointBalancer.Endpoint> none() {
+    return Collections.emptyList();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EntityIndexTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLookupByNamePrefix() {
+    EntityIndex index = new EntityIndex();
+    Entity apple = entity("idApple", "Apple Inc.");
+    Entity applied = entity("idApplied", "Applied Materials");
+    Entity google = entity("idGoogle", "Google");
+    index.add(apple);
+    index.add(applied);
+    index.add(google);
+
+    assertThat(index.lookup("app", 10)).containsExactlyInAnyOrder(apple, applied);
+    assertThat(index.lookup("APPLE", 10)).containsExactly(apple);
+    assertThat(index.lookup("apples", 10)).isEmpty();
+    assertThat(index.lookup("goo", 10)).containsExactly(google);
+    assertThat(index.lookup("x", 10)).isEmpty();
+  }
+
+  @Test
+  public void testLookupByWord() {
+    EntityIndex index = new EntityIndex();
+    Entity applied = entity("idApplied", "Applied  Materials");
+    index.add(applied);
+
+    assertThat(index.lookup("mat", 10)).containsExactly(applied);
+    assertThat(index.lookup("applied mat", 10)).containsExactly(applied);
+  }
+
+  @Test
+  public void testLookupByEntityIdAndAlias() {
+    EntityIndex index = new EntityIndex();
+    Entity apple = entity("idApple", "Apple Inc.");
+    index.add(apple, Arrays.asList("AAPL"));
+
+    assertThat(index.lookup("aap", 10)).containsExactly(apple);
+    assertThat(index.lookup("idapp", 10)).containsExactly(apple);
+  }
+
+  @Test
+  public void testLookupShorterKeysFirst() {
+    EntityIndex index = new EntityIndex();
+    Entity long1 = entity("id1", "Foo Bar Baz");
+    Entity short1 = entity("id2", "Foo");
+    Entity medium = entity("id3", "Foo Bar");
+    index.add(long1);
+    index.add(short1);
+    index.add(medium);
+
+    assertThat(index.lookup("foo", 10)).containsExactly(short1, medium, long1);
+    assertThat(index.lookup("foo", 2)).containsExactly(short1, medium);
+  }
+
+  @Test
+  public void testAddUpdatesDetails() {
+    EntityIndex index = new EntityIndex();
+    index.add(entity("idFoo", "Foo"));
+    Entity updated = entity("idFoo", "Foo");
+    updated.description = "bar";
+    index.add(updated);
+
+    List<Entity> actual = index.lookup("foo", 10);
+
+    assertThat(actual).containsExactly(updated);
+    assertThat(index.getEntityCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLearnExactMatchAddsAlias() {
+    EntityIndex index = new EntityIndex();
+    Entity apple = entity("idApple", "Apple Inc.");
+    Entity google = entity("idGoogle", "Google");
+    index.learn("AAPL", "EXACT_MATCH", Arrays.asList(apple));
+    index.learn("GOOG", "PARTIAL_MATCH", Arrays.asList(google));
+
+    assertThat(index.lookup("aapl", 10)).containsExactly(apple);
+    assertThat(index.lookup("goog", 10)).containsExactly(google);
+    assertThat(index.lookup("googl", 10)).containsExactly(google);
+  }
+
+  @Test
+  public void testSplitsEdges() {
+    EntityIndex index = new EntityIndex();
+    Entity foobar = entity("1", "foobar");
+    Entity foobaz = entity("2", "foobaz");
+    Entity foo = entity("3", "foo");
+    index.add(foobar, Collections.<String>emptyList());
+    long nodesBefore = index.getNodeCount();
+    index.add(foobaz);
+    index.add(foo);
+
+    assertThat(index.lookup("fooba", 10)).containsExactlyInAnyOrder(foobar, foobaz);
+    assertThat(index.lookup("foo", 10)).containsExactly(foo, foobar, foobaz);
+    assertThat(index.lookup("foobaz", 10)).containsExactly(foobaz);
+    // Splitting "foobar" at "fooba" adds the branching node and the "z" leaf.
+    assertThat(index.getNodeCount()).isGreaterThan(nodesBefore);
+  }
+
+  @Test
+  public void testPreload() throws Exception {
+    File file = folder.newFile();
+    Files.write(file.toPath(), ("{\"entityID\":\"idApple\",\"displayName\":\"Apple Inc.\","
+        + "\"aliases\":[\"AAPL\"]}\n"
+        + "\n"
+        + "{\"entityID\":\"idGoogle\",\"displayName\":\"Google\"}\n")
+        .getBytes(StandardCharsets.UTF_8));
+    EntityIndex index = new EntityIndex();
+
+    int actual = index.preload(file.toPath());
+
+    assertThat(actual).isEqualTo(2);
+    assertThat(index.lookup("aapl", 10)).hasSize(1);
+    assertThat(index.lookup("aapl", 10).get(0).getDisplayName()).isEqualTo("Apple Inc.");
+    assertThat(index.lookup("goo", 10).get(0).getEntityId()).isEqualTo("idGoogle");
+  }
+
+  @Test
+  public void testPreloadInvalid() throws Exception {
+    File file = folder.newFile();
+    Files.write(file.toPath(), "foo\n".getBytes(StandardCharsets.UTF_8));
+    EntityIndex index = new EntityIndex();
+
+    try {
+      index.preload(file.toPath());
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("foo");
+    }
+  }
+
+  @Test
+  public void testCounters() {
+    EntityIndex index = new EntityIndex();
+    index.add(entity("idFoo", "Foo"));
+
+    index.lookup("foo", 10);
+    index.lookup("bar", 10);
+
+    assertThat(index.getLookupCount()).isEqualTo(2);
+    assertThat(index.getHitCount()).isEqualTo(1);
+  }
+
+  private Entity entity(String entityId, String displayName) {
+    Entity ret = new Entity();
+    ret.entityId = entityId;
+    ret.displayName = displayName;
+    return ret;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.makeThreadSafe;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntityResolverTest extends EasyMockSupport {
+  private QueryUtils queryUtils;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    queryUtils = createMock(QueryUtils.class);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testResolveDeduplicates() throws Exception {
+    Entity foo = entity("idFoo");
+    Entity bar = entity("idBar");
+    Entity baz = entity("idBaz");
+    expect(queryUtils.fetchEntities("Foo", "EXACT_MATCH", 7)).andReturn(Arrays.asList(foo,
+        bar));
+    expect(queryUtils.fetchEntities("Bar", "EXACT_MATCH", 7)).andReturn(Arrays.asList(
+        entity("idBar"), baz));
+    expect(queryUtils.fetchEntities("Baz", "EXACT_MATCH", 7)).andReturn(
+        Collections.<Entity>emptyList());
+
+    replayAll();
+
+    EntityResolver resolver = new EntityResolver(queryUtils, executor, 10000);
+    EntityResolver.Result actual = resolver.resolve(Arrays.asList("Foo", "Bar", "Foo", "Baz"),
+        "EXACT_MATCH", 7);
+
+    verifyAll();
+
+    assertThat(actual.getEntities()).containsExactly(foo, bar, baz);
+    assertThat(actual.getFailedQueries()).isEmpty();
+    assertThat(actual.getTimedOutQueries()).isEmpty();
+    assertThat(actual.getMedianLatencyMillis()).isGreaterThanOrEqualTo(0);
+    assertThat(actual.getMaxLatencyMillis()).isGreaterThanOrEqualTo(
+        actual.getMedianLatencyMillis());
+    assertThat(actual.getElapsedMillis()).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void testResolvePartialFailure() throws Exception {
+    Entity foo = entity("idFoo");
+    expect(queryUtils.fetchEntities("Foo", "PARTIAL_MATCH", 7)).andReturn(Arrays.asList(foo));
+    expect(queryUtils.fetchEntities("Bar", "PARTIAL_MATCH", 7)).andThrow(
+        new IOException("catch me"));
+
+    replayAll();
+
+    EntityResolver resolver = new EntityResolver(queryUtils, executor, 10000);
+    EntityResolver.Result actual = resolver.resolve(Arrays.asList("Foo", "Bar"),
+        "PARTIAL_MATCH", 7);
+
+    verifyAll();
+
+    assertThat(actual.getEntities()).containsExactly(foo);
+    assertThat(actual.getFailedQueries()).containsExactly("Bar");
+  }
+
+  @Test
+  public void testResolveCancelsAfterDeadline() throws Exception {
+    Entity foo = entity("idFoo");
+    expect(queryUtils.fetchEntities("Foo", "EXACT_MATCH", 7)).andReturn(Arrays.asList(foo));
+    expect(queryUtils.fetchEntities("Bar", "EXACT_MATCH", 7)).andAnswer(
+        new IAnswer<List<Entity>>() {
+          @Override
+          public List<Entity> answer() throws Throwable {
+            Thread.sleep(60000);
+            return Collections.emptyList();
+          }
+        });
+    // Mocks serialize calls by default, which would block the other query behind the sleep.
+    makeThreadSafe(queryUtils, false);
+
+    replayAll();
+
+    EntityResolver resolver = new EntityResolver(queryUtils, executor, 200);
+    long start = System.currentTimeMillis();
+    EntityResolver.Result actual = resolver.resolve(Arrays.asList("Foo", "Bar"),
+        "EXACT_MATCH", 7);
+    long duration = System.currentTimeMillis() - start;
+
+    verifyAll();
+
+    assertThat(actual.getEntities()).containsExactly(foo);
+    assertThat(actual.getTimedOutQueries()).containsExactly("Bar");
+    assertThat(duration).isLessThan(10000);
+  }
+
+  @Test
+  public void testResolveAllFailing() throws Exception {
+    IOException expected = new IOException("catch me");
+    expect(queryUtils.fetchEntities("Foo", "EXACT_MATCH", 7)).andThrow(expected);
+    expect(queryUtils.fetchEntities("Bar", "EXACT_MATCH", 7)).andThrow(
+        new IOException("catch me too"));
+
+    replayAll();
+
+    EntityResolver resolver = new EntityResolver(queryUtils, executor, 10000);
+    try {
+      resolver.resolve(Arrays.asList("Foo", "Bar"), "EXACT_MATCH", 7);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).isSameAs(expected);
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testResolveNoQueries() throws Exception {
+    replayAll();
+
+    EntityResolver resolver = new EntityResolver(queryUtils, executor, 10000);
+    EntityResolver.Result actual = resolver.resolve(Collections.<String>emptyList(),
+        "EXACT_MATCH", 7);
+
+    verifyAll();
+
+    assertThat(actual.getEntities()).isEmpty();
+    assertThat(actual.getMedianLatencyMillis()).isEqualTo(-1);
+    assertThat(actual.getMaxLatencyMillis()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testInvalidDeadline() {
+    try {
+      new EntityResolver(queryUtils, executor, 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("positive");
+    }
+  }
+
+  private Entity entity(String entityId) {
+    Entity ret = new Entity();
+    ret.entityId = entityId;
+    return ret;
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventTimeMergerTest {
+  private static final long NOW = TimestampUtils.parseMillis("2017-06-01T12:00:00Z");
+
+  private CollectingSink sink;
+
+  @Before
+  public void setUp() {
+    sink = new CollectingSink();
+  }
+
+  @Test
+  public void testSingleSourceReorders() throws Exception {
+    EventTimeMerger merger = createMerger(60000, 600000);
+    EventTimeMerger.Source source = merger.addSource("foo", NOW);
+
+    merger.add(source, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.add(source, raw("b", "2017-06-01T11:58:00Z"), NOW);
+    merger.add(source, raw("c", "2017-06-01T11:59:50Z"), NOW);
+    merger.advance(NOW);
+
+    assertThat(sink.contentIds).containsExactly("b");
+    assertThat(sink.flushCount).isEqualTo(1);
+    assertThat(merger.getBufferedCount()).isEqualTo(2);
+    assertThat(merger.getWatermark()).isEqualTo(NOW - 70000);
+
+    merger.add(source, raw("d", "2017-06-01T12:01:00Z"), NOW + 1000);
+    merger.advance(NOW + 1000);
+
+    assertThat(sink.contentIds).containsExactly("b", "a", "c");
+    assertThat(merger.getBufferedCount()).isEqualTo(1);
+    assertThat(merger.getMaxBufferedCount()).isEqualTo(3);
+    assertThat(merger.getEmittedCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testSlowestSourceHoldsBackWatermark() throws Exception {
+    EventTimeMerger merger = createMerger(0, 600000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+    EventTimeMerger.Source bar = merger.addSource("bar", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:00Z"), NOW);
+    merger.add(foo, raw("b", "2017-06-01T11:59:40Z"), NOW);
+    merger.advance(NOW);
+
+    assertThat(sink.contentIds).isEmpty();
+
+    merger.add(bar, raw("c", "2017-06-01T11:59:20Z"), NOW);
+    merger.advance(NOW);
+
+    assertThat(sink.contentIds).containsExactly("a", "c");
+
+    merger.add(bar, raw("d", "2017-06-01T11:59:50Z"), NOW);
+    merger.advance(NOW);
+
+    assertThat(sink.contentIds).containsExactly("a", "c", "b");
+    assertThat(merger.getBufferedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testIdleSourceDoesNotHoldBackWatermark() throws Exception {
+    EventTimeMerger merger = createMerger(0, 10000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+    merger.addSource("bar", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:00Z"), NOW);
+    merger.advance(NOW + 5000);
+
+    assertThat(sink.contentIds).isEmpty();
+
+    merger.add(foo, raw("b", "2017-06-01T11:59:30Z"), NOW + 10000);
+    merger.advance(NOW + 10000);
+
+    assertThat(sink.contentIds).containsExactly("a", "b");
+  }
+
+  @Test
+  public void testAllSourcesIdleEmitsAll() throws Exception {
+    EventTimeMerger merger = createMerger(60000, 10000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.add(foo, raw("b", "2017-06-01T11:59:00Z"), NOW);
+    merger.advance(NOW + 10000);
+
+    assertThat(sink.contentIds).containsExactly("b", "a");
+  }
+
+  @Test
+  public void testLateItemsDropped() throws Exception {
+    EventTimeMerger merger = createMerger(10000, 600000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.add(foo, raw("b", "2017-06-01T11:59:50Z"), NOW);
+    merger.advance(NOW);
+    merger.add(foo, raw("c", "2017-06-01T11:59:35Z"), NOW);
+    merger.add(foo, raw("d", "2017-06-01T11:59:45Z"), NOW);
+    merger.advance(NOW);
+
+    assertThat(sink.contentIds).containsExactly("a");
+    assertThat(merger.getLateCount()).isEqualTo(1);
+    assertThat(merger.getBufferedCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testItemsWithoutTimestampPassedOn() throws Exception {
+    EventTimeMerger merger = createMerger(60000, 600000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.add(foo, RawRecommendation.of("{\"contentID\":\"b\"}".getBytes(
+        StandardCharsets.UTF_8)), NOW);
+
+    assertThat(sink.contentIds).containsExactly("b");
+    assertThat(merger.getBufferedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRemovingSourceReleasesWatermark() throws Exception {
+    EventTimeMerger merger = createMerger(0, 600000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+    EventTimeMerger.Source bar = merger.addSource("bar", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.advance(NOW);
+    merger.removeSource(bar, NOW);
+
+    assertThat(sink.contentIds).containsExactly("a");
+  }
+
+  @Test
+  public void testCloseEmitsBufferedItems() throws Exception {
+    EventTimeMerger merger = createMerger(60000, 600000);
+    EventTimeMerger.Source foo = merger.addSource("foo", NOW);
+
+    merger.add(foo, raw("a", "2017-06-01T11:59:30Z"), NOW);
+    merger.add(foo, raw("b", "2017-06-01T11:59:10Z"), NOW);
+    merger.close();
+
+    assertThat(sink.contentIds).containsExactly("b", "a");
+    assertThat(sink.closed).isFalse();
+  }
+
+  @Test
+  public void testSourceAppendAndFlush() throws Exception {
+    EventTimeMerger merger = createMerger(0, 0);
+    EventTimeMerger.Source foo = merger.addSource("foo");
+
+    foo.append(raw("a", "2017-06-01T11:59:30Z"));
+    foo.append(raw("b", "2017-06-01T11:59:10Z"));
+    foo.flush();
+
+    assertThat(foo.getName()).isEqualTo("foo");
+    assertThat(sink.contentIds).containsExactly("b", "a");
+  }
+
+  @Test
+  public void testNegativeLateness() {
+    try {
+      createMerger(-1, 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("negative");
+    }
+  }
+
+  private EventTimeMerger createMerger(long latenessMillis, long idleMillis) {
+    return new EventTimeMerger(Collections.singletonList(sink), latenessMillis, idleMillis);
+  }
+
+  private RawRecommendation raw(String contentId, String timestamp) {
+    String json = "{\"contentID\":\"" + contentId + "\",\"timestamp\":\"" + timestamp + "\"}";
+    return RawRecommendation.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static class CollectingSink implements RecommendationSink {
+    private final List<String> contentIds = new ArrayList<>();
+    private int flushCount = 0;
+    private boolean closed = false;
+
+    @Override
+    public void append(RawRecommendation recommendation) {
+      contentIds.add(recommendation.getContentId());
+    }
+
+    @Override
+    public void flush() {
+      flushCount++;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FanOutServerTest extends EasyMockSupport {
+  private QueryUtils queryUtils;
+  private QueryUtils feedQueryUtils;
+  private QueryTemplate template;
+  private FanOutServer server;
+
+  @Before
+  public void setUp() {
+    queryUtils = createMock(QueryUtils.class);
+    feedQueryUtils = createMock(QueryUtils.class);
+    template = new QueryTemplate("FEED", "NONE", "sessionIdFoo",
+        "{\"requestSent\":\"@@requestSent@@\",\"queryMode\":\"@@queryMode@@\"}");
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testSubscribe() throws Exception {
+    Entity entity = new Entity();
+    entity.entityId = "idFoo";
+    expect(queryUtils.fetchEntities("Foo", "EXACT_MATCH", 7)).andReturn(
+        Collections.singletonList(entity));
+    expect(feedQueryUtils.compileRecommendationsQuery(eq("SEARCH"), eq(3), eq("ALL"),
+        eq(Arrays.asList("idFoo")))).andReturn(template);
+    expect(queryUtils.getSessionId()).andReturn("session");
+    expect(queryUtils.forSession("session-feed-1")).andReturn(feedQueryUtils);
+    feedQueryUtils.endSession();
+    expectLastCall().atLeastOnce();
+    expect(feedQueryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(
+        RawRecommendation.of("{\"contentID\":\"foo\",\n\"headline\":\"bar\"}".getBytes(
+            StandardCharsets.UTF_8))));
+    expect(feedQueryUtils.fetchRawRecommendations(template, false)).andReturn(
+        new ArrayList<RawRecommendation>()).anyTimes();
+
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = connect("query=Foo&querytype=SEARCH&contributions=ALL"
+        + "&exact=true");
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getContentType()).startsWith("text/event-stream");
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        connection.getInputStream(), StandardCharsets.UTF_8))) {
+      assertThat(reader.readLine()).isEqualTo("id: foo");
+      assertThat(reader.readLine()).isEqualTo(
+          "data: {\"contentID\":\"foo\", \"headline\":\"bar\"}");
+      assertThat(reader.readLine()).isEmpty();
+    }
+    assertThat(server.getFeedCount()).isEqualTo(1);
+    server.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSubscribeHandsItemsToSinks() throws Exception {
+    expect(feedQueryUtils.compileRecommendationsQuery(eq("FEED"), eq(3), eq("NONE"),
+        eq(Collections.<String>emptyList()))).andReturn(template);
+    expect(queryUtils.getSessionId()).andReturn("session");
+    expect(queryUtils.forSession("session-feed-1")).andReturn(feedQueryUtils);
+    feedQueryUtils.endSession();
+    expectLastCall().atLeastOnce();
+    expect(feedQueryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(
+        RawRecommendation.of("{\"contentID\":\"foo\"}".getBytes(StandardCharsets.UTF_8))));
+    expect(feedQueryUtils.fetchRawRecommendations(template, false)).andReturn(
+        new ArrayList<RawRecommendation>()).anyTimes();
+
+    replayAll();
+
+    TopKAggregator sink = new TopKAggregator(5, 60000, 60000);
+    server = new FanOutServer(queryUtils, 3, 7, 10, 5, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    server.addSink(sink);
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    HttpURLConnection connection = connect("");
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        connection.getInputStream(), StandardCharsets.UTF_8))) {
+      assertThat(reader.readLine()).isEqualTo("id: foo");
+    }
+    // Sinks get the items after the subscribers.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (sink.snapshot().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    server.stop();
+
+    verifyAll();
+
+    assertThat(sink.snapshot()).hasSize(1);
+  }
+
+  @Test
+  public void testSubscribeCoalesced() throws Exception {
+    QueryTemplate templateBoth = new QueryTemplate("SEARCH", "DIRECT", "sessionIdFoo",
+        "{\"requestSent\":\"@@requestSent@@\",\"queryMode\":\"@@queryMode@@\"}");
+    Entity entityFoo = new Entity();
+    entityFoo.entityId = "idFoo";
+    Entity entityBar = new Entity();
+    entityBar.entityId = "idBar";
+    expect(queryUtils.fetchEntities("Foo", "PARTIAL_MATCH", 7)).andReturn(
+        Collections.singletonList(entityFoo));
+    expect(queryUtils.fetchEntities("Bar", "PARTIAL_MATCH", 7)).andReturn(
+        Collections.singletonList(entityBar));
+    expect(feedQueryUtils.compileRecommendationsQuery(eq("SEARCH"), eq(3), eq("DIRECT"),
+        eq(Arrays.asList("idFoo")))).andReturn(template);
+    expect(feedQueryUtils.compileRecommendationsQuery(eq("SEARCH"), eq(3), eq("DIRECT"),
+        eq(Arrays.asList("idFoo", "idBar")))).andReturn(templateBoth);
+    expect(queryUtils.getSessionId()).andReturn("session");
+    expect(queryUtils.forSession("session-feed-1")).andReturn(feedQueryUtils);
+    feedQueryUtils.endSession();
+    expectLastCall().atLeastOnce();
+    expect(feedQueryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(
+        relevantTo("foo", "idFoo")));
+    expect(feedQueryUtils.fetchRawRecommendations(template, false)).andReturn(
+        new ArrayList<RawRecommendation>()).anyTimes();
+    expect(feedQueryUtils.fetchRawRecommendations(templateBoth, true)).andReturn(Arrays.asList(
+        relevantTo("foo", "idFoo"), relevantTo("bar", "idBar")));
+    expect(feedQueryUtils.fetchRawRecommendations(templateBoth, false)).andReturn(
+        new ArrayList<RawRecommendation>()).anyTimes();
+
+    replayAll();
+
+    server = new FanOutServer(queryUtils, 3, 7, 10, 5, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    server.setInterestCoalescer(new InterestCoalescer(7));
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    HttpURLConnection connection1 = connect("query=Foo&querytype=SEARCH");
+    assertThat(connection1.getResponseCode()).isEqualTo(200);
+    try (BufferedReader reader1 = new BufferedReader(new InputStreamReader(
+        connection1.getInputStream(), StandardCharsets.UTF_8))) {
+      assertThat(reader1.readLine()).isEqualTo("id: foo");
+
+      HttpURLConnection connection2 = connect("query=Bar&querytype=SEARCH");
+      assertThat(connection2.getResponseCode()).isEqualTo(200);
+      try (BufferedReader reader2 = new BufferedReader(new InputStreamReader(
+          connection2.getInputStream(), StandardCharsets.UTF_8))) {
+        assertThat(reader2.readLine()).isEqualTo("id: bar");
+      }
+    }
+    assertThat(server.getFeedCount()).isEqualTo(1);
+    assertThat(server.getSavedRequestCount()).isGreaterThanOrEqualTo(1);
+    server.stop();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSubscribeUnknownQueryType() throws Exception {
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = connect("querytype=FOO");
+
+    assertThat(connection.getResponseCode()).isEqualTo(400);
+    assertThat(server.getFeedCount()).isEqualTo(0);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSubscribeFeedSetupFails() throws Exception {
+    expect(queryUtils.getSessionId()).andReturn("session");
+    expect(queryUtils.forSession("session-feed-1")).andReturn(feedQueryUtils);
+    expect(feedQueryUtils.compileRecommendationsQuery(anyObject(String.class), anyInt(),
+        anyObject(String.class), anyObject(Iterable.class))).andThrow(
+            new IllegalArgumentException("catch me"));
+
+    replayAll();
+
+    startServer();
+    HttpURLConnection connection = connect("");
+
+    assertThat(connection.getResponseCode()).isEqualTo(502);
+    assertThat(server.getFeedCount()).isEqualTo(0);
+
+    verifyAll();
+  }
+
+  @Test
+  public void testSearch() throws Exception {
+    replayAll();
+
+    LocalSearchIndex index = new LocalSearchIndex(60000, 16);
+    index.append(RawRecommendation.of("{\"contentID\":\"foo\",\"headline\":\"Apple\"}"
+        .getBytes(StandardCharsets.UTF_8)));
+    index.append(RawRecommendation.of("{\"contentID\":\"bar\",\"headline\":\"Google\"}"
+        .getBytes(StandardCharsets.UTF_8)));
+    server = new FanOutServer(queryUtils, 3, 7, 10, 5, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    server.setSearchIndex(index);
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    URL url = new URL("http", "localhost", server.getAddress().getPort(),
+        FanOutServer.PATH_SEARCH + "?q=apple&limit=5");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        connection.getInputStream(), StandardCharsets.UTF_8))) {
+      assertThat(reader.readLine()).isEqualTo(
+          "[{\"contentID\":\"foo\",\"headline\":\"Apple\"}]");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testTop() throws Exception {
+    replayAll();
+
+    TopKAggregator aggregator = new TopKAggregator(2, 60000, 60000);
+    aggregator.append(RawRecommendation.of("{\"contentID\":\"foo\",\"score\":4}"
+        .getBytes(StandardCharsets.UTF_8)));
+    aggregator.append(RawRecommendation.of("{\"contentID\":\"bar\"}"
+        .getBytes(StandardCharsets.UTF_8)));
+    server = new FanOutServer(queryUtils, 3, 7, 10, 5, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    server.setTopKAggregator(aggregator);
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    URL url = new URL("http", "localhost", server.getAddress().getPort(),
+        FanOutServer.PATH_TOP);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        connection.getInputStream(), StandardCharsets.UTF_8))) {
+      String actual = reader.readLine();
+      assertThat(actual).startsWith("[{\"decayedScore\":");
+      assertThat(actual).contains(",\"recommendation\":{\"contentID\":\"foo\",\"score\":4}}");
+      assertThat(actual).endsWith(
+          ",{\"decayedScore\":null,\"recommendation\":{\"contentID\":\"bar\"}}]");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testWriteEvent() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RawRecommendation recommendation = RawRecommendation.of(
+        "{\r\n\"contentID\":\"foo\"}".getBytes(StandardCharsets.UTF_8));
+
+    FanOutServer.writeEvent(out, recommendation);
+
+    assertThat(out.toString("UTF-8")).isEqualTo("id: foo\ndata: {  \"contentID\":\"foo\"}\n\n");
+  }
+
+  private RawRecommendation relevantTo(String contentId, String entityId) {
+    return RawRecommendation.of(("{\"contentID\":\"" + contentId + "\",\"contributions\":"
+        + "[{\"contributorType\":\"RELEVANCE_ENTITY\",\"contributor\":\"" + entityId
+        + "\"}]}").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void startServer() throws Exception {
+    server = new FanOutServer(queryUtils, 3, 7, 10, 5, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  private HttpURLConnection connect(String query) throws Exception {
+    URL url = new URL("http", "localhost", server.getAddress().getPort(),
+        FanOutServer.PATH_RECOMMENDATIONS + "?" + query);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setReadTimeout(10000);
+    return connection;
+  }
+}
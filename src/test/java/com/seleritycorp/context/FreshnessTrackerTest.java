@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FreshnessTrackerTest {
+  private static final long PUBLISHED = TimestampUtils.parseMillis("2017-03-29T12:00:00.000Z");
+
+  @Test
+  public void testWritten() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.arrived("SEARCH", PUBLISHED + 1000, PUBLISHED + 1300, Arrays.asList(foo));
+    tracker.written(foo, PUBLISHED + 1350);
+
+    assertHistogram(tracker, FreshnessTracker.Stage.PUBLISHED_TO_REQUEST, "SourceFoo/SEARCH",
+        1000);
+    assertHistogram(tracker, FreshnessTracker.Stage.REQUEST_TO_ARRIVAL, "SourceFoo/SEARCH",
+        300);
+    assertHistogram(tracker, FreshnessTracker.Stage.ARRIVAL_TO_WRITTEN, "SourceFoo/SEARCH", 50);
+    assertHistogram(tracker, FreshnessTracker.Stage.PUBLISHED_TO_WRITTEN, "SourceFoo/SEARCH",
+        1350);
+    assertThat(tracker.getWrittenCount()).isEqualTo(1);
+    assertThat(tracker.getUntrackedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testTrackRecordsAppendedItems() throws Exception {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+    RawRecommendation bar = item("bar", "SourceFoo", "2017-03-29T12:00:00.000Z");
+    final List<RawRecommendation> appended = new ArrayList<>();
+    RecommendationSink sink = tracker.track(new RecommendationSink() {
+      @Override
+      public void append(RawRecommendation recommendation) {
+        appended.add(recommendation);
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+
+    tracker.arrived("SEARCH", PUBLISHED, PUBLISHED, Arrays.asList(foo, bar));
+    sink.append(foo);
+
+    assertThat(appended).containsExactly(foo);
+    assertThat(tracker.getWrittenCount()).isEqualTo(1);
+    assertThat(tracker.getUntrackedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testKeyedBySourceAndQueryType() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+    RawRecommendation bar = item("bar", null, "2017-03-29T12:00:00.000Z");
+    RawRecommendation baz = item("baz", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.arrived("SEARCH", PUBLISHED, PUBLISHED, Arrays.asList(foo, bar));
+    tracker.arrived("FEED", PUBLISHED, PUBLISHED, Arrays.asList(baz));
+    tracker.written(foo, PUBLISHED);
+    tracker.written(bar, PUBLISHED);
+    tracker.written(baz, PUBLISHED);
+
+    assertThat(tracker.getHistograms(FreshnessTracker.Stage.PUBLISHED_TO_WRITTEN))
+        .containsOnlyKeys("SourceFoo/SEARCH", "SourceFoo/FEED", "unknown/SEARCH");
+  }
+
+  @Test
+  public void testWithoutTimestamp() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", null);
+
+    tracker.arrived("SEARCH", PUBLISHED, PUBLISHED + 100, Arrays.asList(foo));
+    tracker.written(foo, PUBLISHED + 100);
+
+    assertThat(tracker.getHistograms(FreshnessTracker.Stage.PUBLISHED_TO_WRITTEN)).isEmpty();
+    assertHistogram(tracker, FreshnessTracker.Stage.REQUEST_TO_ARRIVAL, "SourceFoo/SEARCH",
+        100);
+  }
+
+  @Test
+  public void testFirstArrivalKept() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.arrived("SEARCH", PUBLISHED + 100, PUBLISHED + 200, Arrays.asList(foo));
+    tracker.arrived("SEARCH", PUBLISHED + 5000, PUBLISHED + 5000, Arrays.asList(foo));
+    tracker.written(foo, PUBLISHED + 6000);
+
+    assertHistogram(tracker, FreshnessTracker.Stage.PUBLISHED_TO_REQUEST, "SourceFoo/SEARCH",
+        100);
+  }
+
+  @Test
+  public void testUntracked() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.written(foo, PUBLISHED);
+
+    assertThat(tracker.getWrittenCount()).isEqualTo(0);
+    assertThat(tracker.getUntrackedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPendingBounded() {
+    FreshnessTracker tracker = new FreshnessTracker(1);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+    RawRecommendation bar = item("bar", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.arrived("SEARCH", PUBLISHED, PUBLISHED, Collections.singletonList(foo));
+    tracker.arrived("SEARCH", PUBLISHED, PUBLISHED, Collections.singletonList(bar));
+    tracker.written(foo, PUBLISHED);
+    tracker.written(bar, PUBLISHED);
+
+    assertThat(tracker.getWrittenCount()).isEqualTo(1);
+    assertThat(tracker.getUntrackedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testClockSkewCountsAsZero() {
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    RawRecommendation foo = item("foo", "SourceFoo", "2017-03-29T12:00:00.000Z");
+
+    tracker.arrived("SEARCH", PUBLISHED - 500, PUBLISHED, Arrays.asList(foo));
+    tracker.written(foo, PUBLISHED);
+
+    assertHistogram(tracker, FreshnessTracker.Stage.PUBLISHED_TO_REQUEST, "SourceFoo/SEARCH", 0);
+  }
+
+  private void assertHistogram(FreshnessTracker tracker, FreshnessTracker.Stage stage,
+      String key, long expectedMillis) {
+    Map<String, LatencyHistogram> histograms = tracker.getHistograms(stage);
+    assertThat(histograms).containsKey(key);
+    assertThat(histograms.get(key).getCount()).isEqualTo(1);
+    assertThat(histograms.get(key).getMax()).isEqualTo(expectedMillis);
+  }
+
+  private RawRecommendation item(String contentId, String source, String timestamp) {
+    String json = "{\"contentID\":\"" + contentId + "\"";
+    if (source != null) {
+      json += ",\"source\":\"" + source + "\"";
+    }
+    if (timestamp != null) {
+      json += ",\"timestamp\":\"" + timestamp + "\"";
+    }
+    json += "}";
+    return RawRecommendation.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class InterestCoalescerTest {
+  @Test
+  public void testAddSharesUpstream() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+
+    InterestCoalescer.Upstream upstream1 = coalescer.add("FEED|NONE", set("a", "b"));
+    InterestCoalescer.Upstream upstream2 = coalescer.add("FEED|NONE", set("b", "c"));
+
+    assertThat(upstream2).isSameAs(upstream1);
+    assertThat(upstream1.getEntityIds()).containsExactly("a", "b", "c");
+    assertThat(upstream1.getInterestCount()).isEqualTo(2);
+    assertThat(upstream1.getGroup()).isEqualTo("FEED|NONE");
+    assertThat(coalescer.getUpstreamCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testAddCoveredKeepsEntitySet() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+    InterestCoalescer.Upstream upstream = coalescer.add("FEED|NONE", set("a", "b"));
+    Set<String> entityIds = upstream.getEntityIds();
+
+    coalescer.add("FEED|NONE", set("b"));
+    coalescer.add("FEED|NONE", set("a", "b"));
+
+    assertThat(upstream.getEntityIds()).isSameAs(entityIds);
+    assertThat(upstream.getInterestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAddSeparatesGroups() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+
+    InterestCoalescer.Upstream upstream1 = coalescer.add("FEED|NONE", set("a"));
+    InterestCoalescer.Upstream upstream2 = coalescer.add("SEARCH|NONE", set("a"));
+
+    assertThat(upstream2).isNotSameAs(upstream1);
+    assertThat(upstream1.getName()).isNotEqualTo(upstream2.getName());
+    assertThat(coalescer.getUpstreamCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAddRespectsEntityLimit() {
+    InterestCoalescer coalescer = new InterestCoalescer(3);
+
+    InterestCoalescer.Upstream upstream1 = coalescer.add("FEED|NONE", set("a", "b"));
+    InterestCoalescer.Upstream upstream2 = coalescer.add("FEED|NONE", set("c", "d"));
+    InterestCoalescer.Upstream upstream3 = coalescer.add("FEED|NONE", set("d", "e"));
+
+    assertThat(upstream2).isNotSameAs(upstream1);
+    assertThat(upstream3).isSameAs(upstream2);
+    assertThat(upstream1.getEntityIds()).containsExactly("a", "b");
+    assertThat(upstream2.getEntityIds()).containsExactly("c", "d", "e");
+  }
+
+  @Test
+  public void testAddPicksBestFit() {
+    InterestCoalescer coalescer = new InterestCoalescer(4);
+    InterestCoalescer.Upstream upstream1 = coalescer.add("FEED|NONE", set("a", "b", "c"));
+    InterestCoalescer.Upstream upstream2 = coalescer.add("FEED|NONE", set("d", "e"));
+
+    InterestCoalescer.Upstream actual = coalescer.add("FEED|NONE", set("b", "c"));
+
+    assertThat(upstream2).isNotSameAs(upstream1);
+    assertThat(actual).isSameAs(upstream1);
+    assertThat(upstream1.getEntityIds()).containsExactly("a", "b", "c");
+  }
+
+  @Test
+  public void testRemoveShrinksUnion() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+    InterestCoalescer.Upstream upstream = coalescer.add("FEED|NONE", set("a", "b"));
+    coalescer.add("FEED|NONE", set("b", "c"));
+    coalescer.add("FEED|NONE", set("b", "c"));
+
+    boolean actual1 = coalescer.remove(upstream, set("b", "c"));
+    Set<String> entityIds1 = upstream.getEntityIds();
+    boolean actual2 = coalescer.remove(upstream, set("b", "c"));
+
+    assertThat(actual1).isFalse();
+    assertThat(entityIds1).containsExactly("a", "b", "c");
+    assertThat(actual2).isFalse();
+    assertThat(upstream.getEntityIds()).containsExactly("a", "b");
+    assertThat(upstream.getInterestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRemoveLastDropsUpstream() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+    InterestCoalescer.Upstream upstream = coalescer.add("FEED|NONE", set("a"));
+
+    boolean actual = coalescer.remove(upstream, set("a"));
+
+    assertThat(actual).isTrue();
+    assertThat(coalescer.getUpstreamCount()).isEqualTo(0);
+    assertThat(coalescer.add("FEED|NONE", set("a"))).isNotSameAs(upstream);
+  }
+
+  @Test
+  public void testRemoveUnknown() {
+    InterestCoalescer coalescer = new InterestCoalescer(5);
+    InterestCoalescer.Upstream upstream = coalescer.add("FEED|NONE", set("a"));
+
+    boolean actual = coalescer.remove(upstream, set("b"));
+
+    assertThat(actual).isFalse();
+    assertThat(coalescer.getUpstreamCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testAddInvalidInterests() {
+    InterestCoalescer coalescer = new InterestCoalescer(2);
+    try {
+      coalescer.add("FEED|NONE", Collections.<String>emptySet());
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("between 1 and 2");
+    }
+    try {
+      coalescer.add("FEED|NONE", set("a", "b", "c"));
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("between 1 and 2");
+    }
+  }
+
+  private Set<String> set(String... entityIds) {
+    return new LinkedHashSet<>(Arrays.asList(entityIds));
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Micro-benchmark for field access on sparse feed items.
+ *
+ * <p>Compares the previous exception-based field access against {@link JsonUtils}. Run it
+ * through {@code main}, e.g.: from the IDE or via
+ * {@code java -cp target/classes:target/test-classes:... com.seleritycorp.context.JsonUtilsBenchmark}.
+ * It is not a unit test, so it does not run as part of the build.
+ */
+public class JsonUtilsBenchmark {
+  private static final int ITEMS = 1000;
+  private static final int ROUNDS = 2000;
+  private static final int WARMUP_ROUNDS = 500;
+
+  private static final JsonUtils.FieldPath SOCIAL_INFO_AUTHOR =
+      JsonUtils.FieldPath.of("socialInfo", "author");
+
+  /**
+   * Sink to keep the JIT from eliminating the accesses.
+   */
+  private static long sink;
+
+  /**
+   * Exception-based field access, as JsonUtils did it before.
+   */
+  private static String legacyGetAsString(JsonObject object, String field) {
+    String ret;
+    try {
+      ret = object.get(field).getAsString();
+    } catch (Exception e) {
+      ret = "<no proper " + field + ">";
+    }
+    return ret;
+  }
+
+  /**
+   * Exception-based sub-field access, as JsonUtils did it before.
+   */
+  private static String legacyGetAsString(JsonObject object, String field, String subfield) {
+    String ret;
+    try {
+      ret = object.get(field).getAsJsonObject().get(subfield).getAsString();
+    } catch (Exception e) {
+      ret = "<no proper " + field + "->" + subfield + ">";
+    }
+    return ret;
+  }
+
+  private static JsonObject[] createSparseItems() {
+    JsonObject[] ret = new JsonObject[ITEMS];
+    for (int i = 0; i < ITEMS; i++) {
+      JsonObject item = new JsonObject();
+      item.addProperty("contentID", "content" + i);
+      item.addProperty("headline", "headline" + i);
+      item.addProperty("score", i);
+      if (i % 10 == 0) {
+        // Only few items come with a summary and social info
+        item.addProperty("summary", "summary" + i);
+        JsonObject socialInfo = new JsonObject();
+        socialInfo.addProperty("author", "author" + i);
+        item.add("socialInfo", socialInfo);
+      }
+      ret[i] = item;
+    }
+    return ret;
+  }
+
+  private static long runLegacy(JsonObject[] items, int rounds) {
+    long start = System.nanoTime();
+    for (int round = 0; round < rounds; round++) {
+      for (JsonObject item : items) {
+        sink += legacyGetAsString(item, "headline").length();
+        sink += legacyGetAsString(item, "summary").length();
+        sink += legacyGetAsString(item, "linkURL").length();
+        sink += legacyGetAsString(item, "socialInfo", "author").length();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long runJsonUtils(JsonObject[] items, int rounds) {
+    JsonUtils jsonUtils = new JsonUtils();
+    long start = System.nanoTime();
+    for (int round = 0; round < rounds; round++) {
+      for (JsonObject item : items) {
+        sink += jsonUtils.getAsString(item, "headline").length();
+        sink += jsonUtils.getAsString(item, "summary").length();
+        sink += jsonUtils.getAsString(item, "linkURL").length();
+        sink += jsonUtils.getAsString(item, SOCIAL_INFO_AUTHOR).length();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Runs the benchmark and prints the average time per item.
+   *
+   * @param args ignored
+   */
+  public static void main(String[] args) {
+    JsonObject[] items = createSparseItems();
+
+    runLegacy(items, WARMUP_ROUNDS);
+    runJsonUtils(items, WARMUP_ROUNDS);
+
+    long legacy = runLegacy(items, ROUNDS);
+    long current = runJsonUtils(items, ROUNDS);
+
+    double perItem = ITEMS * (double) ROUNDS;
+    System.out.println(String.format("exception-based access: %8.1f ns/item", legacy / perItem));
+    System.out.println(String.format("JsonUtils access:       %8.1f ns/item",
+        current / perItem));
+    System.out.println("(sink: " + sink + ")");
+  }
+}
@@ -20,6 +20,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import org.junit.Test;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
 public class JsonUtilsTest {
@@ -169,4 +171,116 @@ public class JsonUtilsTest {
     assertThat(actual).contains("no proper");
     assertThat(actual).contains("foo->bar");
   }
+
+  @Test
+  public void testGetAsStringArrayField() {
+    JsonArray array = new JsonArray();
+    array.add("bar");
+    JsonObject json = new JsonObject();
+    json.add("foo", array);
+
+    JsonUtils jsonUtils = new JsonUtils(); 
+    String actual = jsonUtils.getAsString(json, "foo");
+    
+    assertThat(actual).isEqualTo("<no proper foo>");
+  }
+
+  @Test
+  public void testGetAsStringJsonNullField() {
+    JsonObject json = new JsonObject();
+    json.add("foo", JsonNull.INSTANCE);
+
+    JsonUtils jsonUtils = new JsonUtils(); 
+    String actual = jsonUtils.getAsString(json, "foo");
+    
+    assertThat(actual).isEqualTo("<no proper foo>");
+  }
+
+  @Test
+  public void testGetEmptyMarkerReused() {
+    JsonUtils jsonUtils = new JsonUtils(); 
+    
+    String first = jsonUtils.getAsString(new JsonObject(), "foo");
+    String second = jsonUtils.getAsString(null, "foo");
+    String firstSub = jsonUtils.getAsString(new JsonObject(), "foo", "bar");
+    String secondSub = jsonUtils.getAsString(null, "foo", "bar");
+    
+    assertThat(second).isSameAs(first);
+    assertThat(secondSub).isSameAs(firstSub);
+    assertThat(firstSub).isEqualTo("<no proper foo->bar>");
+  }
+
+  @Test
+  public void testGetAsStringPath() {
+    JsonObject inner = new JsonObject();
+    inner.addProperty("baz", "quux");
+    JsonObject sub = new JsonObject();
+    sub.add("bar", inner);
+    JsonObject json = new JsonObject();
+    json.add("foo", sub);
+
+    JsonUtils jsonUtils = new JsonUtils(); 
+    
+    assertThat(jsonUtils.getAsString(json, JsonUtils.FieldPath.of("foo", "bar", "baz")))
+        .isEqualTo("quux");
+    assertThat(jsonUtils.getAsString(json, JsonUtils.FieldPath.of("foo", "baz", "bar")))
+        .isEqualTo("<no proper foo->baz->bar>");
+    assertThat(jsonUtils.getAsString(json, JsonUtils.FieldPath.of("foo", "bar")))
+        .isEqualTo("<no proper foo->bar>");
+    assertThat(jsonUtils.getAsString(null, JsonUtils.FieldPath.of("foo")))
+        .isEqualTo("<no proper foo>");
+  }
+
+  @Test
+  public void testGetPathPrimitiveIntermediate() {
+    JsonObject json = new JsonObject();
+    json.addProperty("foo", "bar");
+
+    JsonUtils jsonUtils = new JsonUtils(); 
+    
+    assertThat(jsonUtils.get(json, JsonUtils.FieldPath.of("foo", "bar"))).isNull();
+    assertThat(jsonUtils.getString(json, JsonUtils.FieldPath.of("foo", "bar"), "baz"))
+        .isEqualTo("baz");
+  }
+
+  @Test
+  public void testTypedGetters() {
+    JsonObject json = new JsonObject();
+    json.addProperty("string", "foo");
+    json.addProperty("number", 2.5);
+    json.addProperty("integer", 42);
+    json.addProperty("bool", true);
+    json.add("object", new JsonObject());
+    json.add("array", new JsonArray());
+    json.add("null", JsonNull.INSTANCE);
+
+    JsonUtils jsonUtils = new JsonUtils(); 
+    
+    assertThat(jsonUtils.getString(json, "string", "x")).isEqualTo("foo");
+    assertThat(jsonUtils.getString(json, "number", "x")).isEqualTo("2.5");
+    assertThat(jsonUtils.getString(json, "object", "x")).isEqualTo("x");
+    assertThat(jsonUtils.getString(json, "null", "x")).isEqualTo("x");
+    assertThat(jsonUtils.getString(json, "missing", "x")).isEqualTo("x");
+
+    assertThat(jsonUtils.getDouble(json, "number", -1)).isEqualTo(2.5);
+    assertThat(jsonUtils.getDouble(json, "string", -1)).isEqualTo(-1);
+    assertThat(jsonUtils.getDouble(json, "array", -1)).isEqualTo(-1);
+    assertThat(jsonUtils.getLong(json, "integer", -1)).isEqualTo(42);
+    assertThat(jsonUtils.getLong(json, "bool", -1)).isEqualTo(-1);
+    assertThat(jsonUtils.getBoolean(json, "bool", false)).isTrue();
+    assertThat(jsonUtils.getBoolean(json, "string", false)).isFalse();
+
+    assertThat(jsonUtils.getObject(json, "object")).isNotNull();
+    assertThat(jsonUtils.getObject(json, "array")).isNull();
+    assertThat(jsonUtils.getArray(json, "array")).isNotNull();
+    assertThat(jsonUtils.getArray(json, "object")).isNull();
+    assertThat(jsonUtils.getPrimitive(json, "object")).isNull();
+    assertThat(jsonUtils.get(json, "null")).isNull();
+    assertThat(jsonUtils.get(null, "string")).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFieldPathEmpty() {
+    JsonUtils.FieldPath.of();
+  }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JsonlFileSinkTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAppendWritesLines() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 60000, 0, false,
+        10);
+
+    sink.append(raw("{\"contentID\":\"foo\"}"));
+    sink.append(raw("{\r\n\"contentID\":\"bar\"}"));
+    sink.flush();
+    sink.close();
+
+    File[] files = directory.listFiles();
+    assertThat(files).hasSize(1);
+    assertThat(files[0].getName()).startsWith("foo-").endsWith(".jsonl");
+    assertThat(read(files[0])).isEqualTo("{\"contentID\":\"foo\"}\n"
+        + "{  \"contentID\":\"bar\"}\n");
+    assertThat(sink.getWrittenCount()).isEqualTo(2);
+    assertThat(sink.getDroppedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFreshnessRecordedOnceWritten() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 60000, 0, false,
+        10);
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    sink.setFreshnessTracker(tracker);
+    RawRecommendation foo = raw("{\"contentID\":\"foo\"}");
+    RawRecommendation bar = raw("{\"contentID\":\"bar\"}");
+    tracker.arrived("SEARCH", 0, 0, Arrays.asList(foo, bar));
+
+    sink.append(foo);
+    sink.append(bar);
+    sink.close();
+
+    assertThat(tracker.getWrittenCount()).isEqualTo(2);
+    assertThat(tracker.getUntrackedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRotateBySize() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 40, 60000, -1, false, 10);
+
+    sink.append(raw("{\"contentID\":\"foo\"}"));
+    sink.append(raw("{\"contentID\":\"bar\"}"));
+    sink.append(raw("{\"contentID\":\"baz\"}"));
+    sink.close();
+
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    assertThat(files).hasSize(2);
+    assertThat(read(files[0])).isEqualTo("{\"contentID\":\"foo\"}\n"
+        + "{\"contentID\":\"bar\"}\n");
+    assertThat(read(files[1])).isEqualTo("{\"contentID\":\"baz\"}\n");
+  }
+
+  @Test
+  public void testRotateByTime() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 0, 0, false, 10);
+
+    sink.append(raw("{\"contentID\":\"foo\"}"));
+    waitForWritten(sink, 1);
+    sink.append(raw("{\"contentID\":\"bar\"}"));
+    sink.close();
+
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    assertThat(files).hasSize(2);
+    assertThat(read(files[0])).isEqualTo("{\"contentID\":\"foo\"}\n");
+    assertThat(read(files[1])).isEqualTo("{\"contentID\":\"bar\"}\n");
+  }
+
+  @Test
+  public void testCompress() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 60000, 0, true,
+        10);
+
+    sink.append(raw("{\"contentID\":\"foo\"}"));
+    waitForWritten(sink, 1);
+    sink.append(raw("{\"contentID\":\"bar\"}"));
+    sink.close();
+
+    File[] files = directory.listFiles();
+    assertThat(files).hasSize(1);
+    assertThat(files[0].getName()).endsWith(".jsonl.gz");
+    // Both items got written as separate gzip members
+    try (InputStream in = new GZIPInputStream(new FileInputStream(files[0]))) {
+      assertThat(readFully(in)).isEqualTo("{\"contentID\":\"foo\"}\n"
+          + "{\"contentID\":\"bar\"}\n");
+    }
+  }
+
+  @Test
+  public void testAppendAfterCloseDrops() throws Exception {
+    File directory = folder.newFolder();
+    JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 60000, 0, false,
+        10);
+    sink.close();
+
+    sink.append(raw("{\"contentID\":\"foo\"}"));
+
+    assertThat(sink.getDroppedCount()).isEqualTo(1);
+    assertThat(directory.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void testCloseWhileAppendingCountsAllItems() throws Exception {
+    File directory = folder.newFolder();
+    final JsonlFileSink sink = new JsonlFileSink(directory.toPath(), "foo", 1 << 20, 60000, -1,
+        false, 100000);
+    final RawRecommendation recommendation = raw("{\"contentID\":\"foo\"}");
+    Thread appender = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 20000; i++) {
+          sink.append(recommendation);
+        }
+      }
+    };
+    appender.start();
+    Thread.sleep(1);
+
+    sink.close();
+    appender.join();
+
+    assertThat(sink.getWrittenCount() + sink.getDroppedCount()).isEqualTo(20000);
+    File[] files = directory.listFiles();
+    long lines = 0;
+    for (File file : files) {
+      lines += Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+    }
+    assertThat(lines).isEqualTo(sink.getWrittenCount());
+  }
+
+  @Test
+  public void testPutLine() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    buffer.put((byte) 'x');
+
+    JsonlFileSink.putLine(buffer, raw("{\n\"contentID\":\"foo\"\r}"));
+
+    assertThat(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8))
+        .isEqualTo("x{ \"contentID\":\"foo\" }\n");
+  }
+
+  private void waitForWritten(JsonlFileSink sink, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (sink.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(sink.getWrittenCount()).isEqualTo(count);
+  }
+
+  private String read(File file) throws Exception {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private String readFully(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] chunk = new byte[1024];
+    int read;
+    while ((read = in.read(chunk)) >= 0) {
+      out.write(chunk, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private RawRecommendation raw(String json) {
+    return RawRecommendation.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertThat(histogram.getCount()).isEqualTo(0);
+    assertThat(histogram.getMean()).isEqualTo(0);
+    assertThat(histogram.getMax()).isEqualTo(0);
+    assertThat(histogram.getPercentile(50)).isEqualTo(0);
+  }
+
+  @Test
+  public void testSmallValuesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 4; i++) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo(4);
+    assertThat(histogram.getMean()).isEqualTo(2.5);
+    assertThat(histogram.getPercentile(50)).isEqualTo(2);
+    assertThat(histogram.getPercentile(100)).isEqualTo(4);
+    assertThat(histogram.getMax()).isEqualTo(4);
+  }
+
+  @Test
+  public void testLargeValuesApproximate() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    assertThat(histogram.getPercentile(50)).isBetween(500000L * 7 / 8, 500000L);
+    assertThat(histogram.getPercentile(99)).isBetween(990000L * 7 / 8, 990000L);
+    assertThat(histogram.getMax()).isEqualTo(1000000);
+  }
+
+  @Test
+  public void testNegativeCountsAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+
+    assertThat(histogram.getCount()).isEqualTo(1);
+    assertThat(histogram.getMax()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBuckets() {
+    for (long value : new long[] {0, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+      long lowest = LatencyHistogram.lowestValueOf(LatencyHistogram.bucketOf(value));
+      assertThat(lowest).isLessThanOrEqualTo(value);
+      assertThat(value - lowest).isLessThanOrEqualTo(value / 8);
+    }
+    assertThat(LatencyHistogram.bucketOf(8)).isEqualTo(8);
+    assertThat(LatencyHistogram.bucketOf(16)).isEqualTo(16);
+    assertThat(LatencyHistogram.bucketOf(17)).isEqualTo(16);
+  }
+
+  @Test
+  public void testToString() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(3);
+
+    assertThat(histogram.toString()).isEqualTo("count=1 mean=3.0 p50=3 p90=3 p99=3 max=3");
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LocalSearchIndexTest {
+  private static final long MINUTE = 60000;
+
+  @Test
+  public void testTokenize() {
+    Map<String, Integer> actual = new LinkedHashMap<>();
+
+    LocalSearchIndex.tokenize("The Apple-iPhone 8, and APPLE's x!", 2, actual);
+    LocalSearchIndex.tokenize("apple", 1, actual);
+    LocalSearchIndex.tokenize(null, 1, actual);
+
+    assertThat(actual.keySet()).containsExactly("apple", "iphone");
+    assertThat(actual.get("apple")).isEqualTo(5);
+    assertThat(actual.get("iphone")).isEqualTo(2);
+  }
+
+  @Test
+  public void testSearchSingleTerm() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    index.append(raw("foo", "Apple earnings", "Beat expectations", 1), 0);
+    index.append(raw("bar", "Google earnings", "Apple mentioned", 1), 0);
+    index.append(raw("baz", "Microsoft", "Nothing", 1), 0);
+
+    List<RawRecommendation> actual = index.search("apple", 10, 0);
+
+    // Headline match ranks above summary match
+    assertThat(contentIds(actual)).containsExactly("foo", "bar");
+  }
+
+  @Test
+  public void testSearchAllTermsRequired() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    index.append(raw("foo", "Apple earnings", null, 1), 0);
+    index.append(raw("bar", "Google earnings", null, 1), 0);
+    index.append(raw("baz", "Google Apple deal", "earnings impact", 1), 0);
+
+    List<RawRecommendation> actual = index.search("Apple EARNINGS", 10, 0);
+
+    assertThat(contentIds(actual)).containsExactly("foo", "baz");
+  }
+
+  @Test
+  public void testSearchBoostsByScore() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    index.append(raw("foo", "Apple earnings", null, 0.1), 0);
+    index.append(raw("bar", "Apple earnings", null, 50), 0);
+    index.append(raw("baz", "Apple earnings", null, Double.NaN), 0);
+
+    List<RawRecommendation> actual = index.search("apple", 10, 0);
+
+    assertThat(contentIds(actual)).containsExactly("bar", "foo", "baz");
+  }
+
+  @Test
+  public void testSearchLimit() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    for (int i = 0; i < 10; i++) {
+      index.append(raw("item" + i, "Apple", null, i), 0);
+    }
+
+    List<RawRecommendation> actual = index.search("apple", 3, 0);
+
+    assertThat(contentIds(actual)).containsExactly("item9", "item8", "item7");
+  }
+
+  @Test
+  public void testSearchUnknownOrEmpty() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    index.append(raw("foo", "Apple", null, 1), 0);
+
+    assertThat(index.search("apple google", 10, 0)).isEmpty();
+    assertThat(index.search("the", 10, 0)).isEmpty();
+    assertThat(index.search("apple", 0, 0)).isEmpty();
+  }
+
+  @Test
+  public void testEvictByTime() {
+    LocalSearchIndex index = new LocalSearchIndex(10 * MINUTE, 16);
+    index.append(raw("foo", "Apple", null, 1), 0);
+    index.append(raw("bar", "Apple", null, 1), 5 * MINUTE);
+
+    assertThat(contentIds(index.search("apple", 10, 12 * MINUTE))).containsExactly("bar");
+
+    index.append(raw("baz", "Google", null, 1), 12 * MINUTE);
+
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(contentIds(index.search("apple", 10, 12 * MINUTE))).containsExactly("bar");
+  }
+
+  @Test
+  public void testEvictByCapacity() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 4);
+    for (int i = 0; i < 6; i++) {
+      index.append(raw("item" + i, "Apple", null, 1), 0);
+    }
+
+    assertThat(index.size()).isEqualTo(4);
+    assertThat(contentIds(index.search("apple", 10, 0))).containsExactly("item5", "item4",
+        "item3", "item2");
+  }
+
+  @Test
+  public void testAppendSkipsDuplicates() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    index.append(raw("foo", "Apple", null, 1), 0);
+    index.append(raw("foo", "Apple", null, 1), 0);
+
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(contentIds(index.search("apple", 10, 0))).containsExactly("foo");
+  }
+
+  @Test
+  public void testSweepDropsEvictedTerms() {
+    LocalSearchIndex index = new LocalSearchIndex(60 * MINUTE, 16);
+    for (int i = 0; i < 5000; i++) {
+      index.append(raw("item" + i, "term" + i, null, 1), 0);
+    }
+
+    assertThat(index.size()).isEqualTo(16);
+    assertThat(index.getTermCount()).isLessThan(1000);
+    assertThat(contentIds(index.search("term4999", 10, 0))).containsExactly("item4999");
+  }
+
+  private RawRecommendation raw(String contentId, String headline, String summary,
+      double score) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"contentID\":\"").append(contentId).append("\",\"headline\":\"")
+        .append(headline).append("\"");
+    if (summary != null) {
+      sb.append(",\"summary\":\"").append(summary).append("\"");
+    }
+    if (!Double.isNaN(score)) {
+      sb.append(",\"score\":").append(score);
+    }
+    sb.append("}");
+    return RawRecommendation.of(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String[] contentIds(List<RawRecommendation> recommendations) {
+    String[] ret = new String[recommendations.size()];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = recommendations.get(i).getContentId();
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedRingSinkTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAppendRoundTrip() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096);
+        MappedRingReader reader = new MappedRingReader(file)) {
+      sink.append(raw("foo"));
+      sink.append(raw("barbaz"));
+      sink.flush();
+
+      assertThat(new String(reader.poll(), StandardCharsets.UTF_8)).isEqualTo(json("foo"));
+      assertThat(reader.pollRecommendation().getContentId()).isEqualTo("barbaz");
+      assertThat(reader.poll()).isNull();
+      assertThat(reader.getPosition()).isEqualTo(sink.getCursor());
+    }
+  }
+
+  @Test
+  public void testAppendPadsRecordsToAlignment() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096)) {
+      sink.append(raw("foo"));
+
+      // 4 bytes length + 17 bytes payload, padded to 24
+      assertThat(sink.getCursor()).isEqualTo(24);
+    }
+  }
+
+  @Test
+  public void testAppendWrapsAround() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096);
+        MappedRingReader reader = new MappedRingReader(file)) {
+      String padding = new String(new char[900]).replace('\0', 'x');
+      for (int i = 0; i < 20; i++) {
+        sink.append(raw("item" + i + padding));
+        assertThat(reader.pollRecommendation().getContentId()).isEqualTo("item" + i + padding);
+        assertThat(reader.poll()).isNull();
+      }
+
+      assertThat(sink.getCursor()).isGreaterThan(4 * 4096);
+    }
+  }
+
+  @Test
+  public void testAppendDropsOversized() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096);
+        MappedRingReader reader = new MappedRingReader(file)) {
+      String padding = new String(new char[1024]).replace('\0', 'x');
+      sink.append(raw(padding));
+
+      assertThat(sink.getDroppedCount()).isEqualTo(1);
+      assertThat(sink.getCursor()).isEqualTo(0);
+      assertThat(reader.poll()).isNull();
+    }
+  }
+
+  @Test
+  public void testReopenContinuesAtCursor() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096)) {
+      sink.append(raw("foo"));
+    }
+
+    try (MappedRingReader reader = new MappedRingReader(file);
+        MappedRingSink sink = new MappedRingSink(file, 4096)) {
+      assertThat(sink.getCursor()).isEqualTo(24);
+      sink.append(raw("bar"));
+
+      assertThat(reader.pollRecommendation().getContentId()).isEqualTo("bar");
+    }
+  }
+
+  @Test
+  public void testReopenWithOtherCapacityResets() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096)) {
+      sink.append(raw("foo"));
+    }
+
+    try (MappedRingSink sink = new MappedRingSink(file, 8192)) {
+      assertThat(sink.getCursor()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testSecondWriterFails() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096)) {
+      try {
+        new MappedRingSink(file, 4096);
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("another writer");
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidCapacity() throws Exception {
+    File file = folder.newFile();
+    try {
+      new MappedRingSink(file, 5000);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("5000");
+    }
+  }
+
+  @Test
+  public void testReaderRejectsNonRingFile() throws Exception {
+    File file = folder.newFile();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(4096);
+    }
+
+    try {
+      new MappedRingReader(file);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("no ring file");
+    }
+  }
+
+  @Test
+  public void testReaderOverrun() throws Exception {
+    File file = folder.newFile();
+    try (MappedRingSink sink = new MappedRingSink(file, 4096);
+        MappedRingReader reader = new MappedRingReader(file)) {
+      String padding = new String(new char[500]).replace('\0', 'x');
+      for (int i = 0; i < 10; i++) {
+        sink.append(raw("item" + i + padding));
+      }
+
+      try {
+        reader.poll();
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("overrun");
+      }
+      assertThat(reader.getSkippedBytes()).isEqualTo(sink.getCursor());
+
+      sink.append(raw("foo"));
+      assertThat(reader.pollRecommendation().getContentId()).isEqualTo("foo");
+    }
+  }
+
+  @Test
+  public void testConcurrentReader() throws Exception {
+    File file = folder.newFile();
+    final int count = 10000;
+    try (final MappedRingSink sink = new MappedRingSink(file, 1 << 20);
+        MappedRingReader reader = new MappedRingReader(file)) {
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < count; i++) {
+            sink.append(raw("item" + i));
+          }
+        }
+      };
+      writer.start();
+
+      int read = 0;
+      long deadline = System.currentTimeMillis() + 10000;
+      while (read < count && System.currentTimeMillis() < deadline) {
+        RawRecommendation recommendation = reader.pollRecommendation();
+        if (recommendation != null) {
+          assertThat(recommendation.getContentId()).isEqualTo("item" + read);
+          read++;
+        }
+      }
+      writer.join();
+
+      assertThat(read).isEqualTo(count);
+    }
+  }
+
+  private String json(String contentId) {
+    return "{\"contentID\":\"" + contentId + "\"}";
+  }
+
+  private RawRecommendation raw(String contentId) {
+    return RawRecommendation.of(json(contentId).getBytes(StandardCharsets.UTF_8));
+  }
+}
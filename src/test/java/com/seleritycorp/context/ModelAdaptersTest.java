@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+public class ModelAdaptersTest {
+  private static final String FULL_RECOMMENDATION = "{"
+      + "\"contentID\":\"contentIdFoo\","
+      + "\"contentType\":\"TWEET\","
+      + "\"headline\":\"headlineFoo\","
+      + "\"source\":\"sourceFoo\","
+      + "\"timestamp\":\"2017-01-02T03:04:05.678Z\","
+      + "\"score\":0.75,"
+      + "\"unknownObject\":{\"a\":[1,2,{\"b\":null}]},"
+      + "\"contributions\":[{\"contributorType\":\"RELEVANCE_ENTITY\","
+      + "\"contributor\":\"entityFoo\",\"value\":0.5,\"extra\":true}],"
+      + "\"summary\":\"summaryFoo\","
+      + "\"socialInfo\":{\"followers\":42,\"author\":\"authorFoo\"},"
+      + "\"linkURL\":\"linkFoo\","
+      + "\"relatedContent\":[{\"relationship\":\"relationFoo\","
+      + "\"contentItem\":{\"contentType\":\"ARTICLE\",\"linkURL\":\"relatedLinkFoo\"}}]"
+      + "}";
+
+  @Test
+  public void testReadRecommendationFull() throws IOException {
+    Recommendation actual = read(ModelAdapters.RECOMMENDATION, FULL_RECOMMENDATION);
+
+    assertThat(actual.getContentId()).isEqualTo("contentIdFoo");
+    assertThat(actual.getContentType()).isEqualTo("TWEET");
+    assertThat(actual.getHeadline()).isEqualTo("headlineFoo");
+    assertThat(actual.getSource().getName()).isEqualTo("sourceFoo");
+    assertThat(actual.getTimestamp()).isEqualTo("2017-01-02T03:04:05.678Z");
+    assertThat(actual.getScore()).isEqualTo(0.75);
+    assertThat(actual.getSummary()).isEqualTo("summaryFoo");
+    assertThat(actual.getAuthor()).isEqualTo("authorFoo");
+    assertThat(actual.getLinkUrl()).isEqualTo("linkFoo");
+
+    assertThat(actual.getContributions()).hasSize(1);
+    Contribution contribution = actual.getContributions().get(0);
+    assertThat(contribution.getContributorType()).isEqualTo("RELEVANCE_ENTITY");
+    assertThat(contribution.getContributor()).isEqualTo("entityFoo");
+    assertThat(contribution.getValue()).isEqualTo(0.5f);
+
+    assertThat(actual.getRelatedContent()).hasSize(1);
+    RelatedContent related = actual.getRelatedContent().get(0);
+    assertThat(related.getRelationship()).isEqualTo("relationFoo");
+    assertThat(related.getContentItem().getContentType()).isEqualTo("ARTICLE");
+    assertThat(related.getContentItem().getLinkUrl()).isEqualTo("relatedLinkFoo");
+  }
+
+  @Test
+  public void testReadRecommendationSparse() throws IOException {
+    Recommendation actual = read(ModelAdapters.RECOMMENDATION, "{\"contentID\":\"foo\"}");
+
+    assertThat(actual.getContentId()).isEqualTo("foo");
+    assertThat(actual.getHeadline()).isNull();
+    assertThat(actual.getSource()).isNull();
+    assertThat(actual.getScore()).isNaN();
+    assertThat(actual.getAuthor()).isNull();
+    assertThat(actual.getContributions()).isEmpty();
+    assertThat(actual.getRelatedContent()).isEmpty();
+  }
+
+  @Test
+  public void testReadRecommendationUnexpectedTypes() throws IOException {
+    Recommendation actual = read(ModelAdapters.RECOMMENDATION, "{\"contentID\":42,"
+        + "\"headline\":{\"foo\":1},\"summary\":null,\"socialInfo\":\"bar\",\"score\":\"3.5\","
+        + "\"contributions\":{},\"relatedContent\":[null,\"baz\"]}");
+
+    assertThat(actual.getContentId()).isEqualTo("42");
+    assertThat(actual.getHeadline()).isNull();
+    assertThat(actual.getSummary()).isNull();
+    assertThat(actual.getAuthor()).isNull();
+    assertThat(actual.getScore()).isEqualTo(3.5);
+    assertThat(actual.getContributions()).isEmpty();
+    assertThat(actual.getRelatedContent()).isEmpty();
+  }
+
+  @Test
+  public void testReadRecommendationNonObject() throws IOException {
+    Recommendation actual = read(ModelAdapters.RECOMMENDATION, "\"foo\"");
+
+    assertThat(actual).isNull();
+  }
+
+  @Test
+  public void testRecommendationRoundTrip() throws IOException {
+    Recommendation original = read(ModelAdapters.RECOMMENDATION, FULL_RECOMMENDATION);
+
+    String json = ModelAdapters.RECOMMENDATION.toJson(original);
+    Recommendation actual = read(ModelAdapters.RECOMMENDATION, json);
+
+    assertThat(actual.getContentId()).isEqualTo("contentIdFoo");
+    assertThat(actual.getSource()).isSameAs(original.getSource());
+    assertThat(actual.getScore()).isEqualTo(0.75);
+    assertThat(actual.getAuthor()).isEqualTo("authorFoo");
+    assertThat(actual.getContributions().get(0).getContributor()).isEqualTo("entityFoo");
+    assertThat(actual.getRelatedContent().get(0).getContentItem().getLinkUrl())
+        .isEqualTo("relatedLinkFoo");
+  }
+
+  @Test
+  public void testReadEntity() throws IOException {
+    Entity actual = read(ModelAdapters.ENTITY, "{\"entityID\":\"foo\",\"entityType\":\"bar\","
+        + "\"displayName\":\"baz\",\"description\":\"quux\",\"other\":[1]}");
+
+    assertThat(actual.getEntityId()).isEqualTo("foo");
+    assertThat(actual.getEntityType()).isEqualTo("bar");
+    assertThat(actual.getDisplayName()).isEqualTo("baz");
+    assertThat(actual.getDescription()).isEqualTo("quux");
+  }
+
+  @Test
+  public void testReadSourcesInterned() throws IOException {
+    List<Source> actual = read(ModelAdapters.listOf(ModelAdapters.SOURCE),
+        "[\"foo\",\"bar\",\"foo\"]");
+
+    assertThat(actual).hasSize(3);
+    assertThat(actual.get(0).getName()).isEqualTo("foo");
+    assertThat(actual.get(1).getName()).isEqualTo("bar");
+    assertThat(actual.get(2)).isSameAs(actual.get(0));
+  }
+
+  @Test
+  public void testFieldSkipsOtherFields() throws IOException {
+    TypeAdapter<List<Source>> adapter = ModelAdapters.field("sources",
+        ModelAdapters.listOf(ModelAdapters.SOURCE));
+
+    List<Source> actual = read(adapter, "{\"before\":{\"sources\":1},\"sources\":[\"foo\"],"
+        + "\"after\":[\"bar\"]}");
+
+    assertThat(actual).hasSize(1);
+    assertThat(actual.get(0).getName()).isEqualTo("foo");
+  }
+
+  @Test
+  public void testFieldMissing() throws IOException {
+    TypeAdapter<List<Source>> adapter = ModelAdapters.field("sources",
+        ModelAdapters.listOf(ModelAdapters.SOURCE));
+
+    try {
+      read(adapter, "{\"foo\":[\"bar\"]}");
+      failBecauseExceptionWasNotThrown(JsonParseException.class);
+    } catch (JsonParseException e) {
+      assertThat(e.getMessage()).contains("sources");
+    }
+  }
+
+  private <T> T read(TypeAdapter<T> adapter, String json) throws IOException {
+    return adapter.read(new JsonReader(new StringReader(json)));
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.makeThreadSafe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiQueryFetcherTest extends EasyMockSupport {
+  private QueryUtils queryUtils;
+  private QueryTemplate feed;
+  private QueryTemplate search;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    queryUtils = createMock(QueryUtils.class);
+    feed = template("FEED");
+    search = template("SEARCH");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testFetchMergesByBestScore() throws Exception {
+    RawRecommendation foo1 = raw("foo", "1");
+    RawRecommendation bar = raw("bar", "2");
+    RawRecommendation foo2 = raw("foo", "3");
+    RawRecommendation baz = raw("baz", null);
+    RawRecommendation noId = RawRecommendation.of("{\"score\":1}".getBytes(
+        StandardCharsets.UTF_8));
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(foo1, bar,
+        noId));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andReturn(Arrays.asList(baz, foo2,
+        raw("bar", null)));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    List<RawRecommendation> actual = fetcher.fetch();
+
+    verifyAll();
+
+    assertThat(actual).containsExactly(foo2, bar, noId, baz);
+  }
+
+  @Test
+  public void testFetchEachKeepsResultsPerQuery() throws Exception {
+    RawRecommendation foo1 = raw("foo", "1");
+    RawRecommendation bar = raw("bar", "2");
+    RawRecommendation foo2 = raw("foo", "3");
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(foo1, bar));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andThrow(new IOException("catch"));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    List<List<RawRecommendation>> actual = fetcher.fetchEach();
+
+    verifyAll();
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0)).containsExactly(foo1, bar);
+    assertThat(actual.get(1)).isEmpty();
+    assertThat(fetcher.getFailedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMergeKeepsInstances() throws Exception {
+    RawRecommendation foo1 = raw("foo", "1");
+    RawRecommendation bar = raw("bar", "2");
+    RawRecommendation foo2 = raw("foo", "3");
+
+    List<RawRecommendation> actual = MultiQueryFetcher.merge(Arrays.asList(
+        Arrays.asList(foo1, bar), Arrays.asList(foo2)));
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0)).isSameAs(foo2);
+    assertThat(actual.get(1)).isSameAs(bar);
+  }
+
+  @Test
+  public void testFetchPassesDeadlineToRequests() throws Exception {
+    final List<Long> deadlines = Collections.synchronizedList(new ArrayList<Long>());
+    IAnswer<List<RawRecommendation>> answer = new IAnswer<List<RawRecommendation>>() {
+      @Override
+      public List<RawRecommendation> answer() throws Throwable {
+        long deadline = RequestUtils.attachDeadline(0);
+        RequestUtils.attachDeadline(deadline);
+        deadlines.add(deadline);
+        return Collections.emptyList();
+      }
+    };
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andAnswer(answer);
+    expect(queryUtils.fetchRawRecommendations(search, true)).andAnswer(answer);
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    long start = System.currentTimeMillis();
+    fetcher.fetch();
+    long end = System.currentTimeMillis();
+
+    verifyAll();
+
+    assertThat(deadlines).hasSize(2);
+    for (long deadline : deadlines) {
+      assertThat(deadline).isBetween(start + 10000, end + 10000);
+    }
+    assertThat(RequestUtils.attachDeadline(0)).isEqualTo(0);
+  }
+
+  @Test
+  public void testFetchTracesQueriesUnderCallersTrace() throws Exception {
+    final List<RequestTracer.Trace> traces = Collections.synchronizedList(
+        new ArrayList<RequestTracer.Trace>());
+    IAnswer<List<RawRecommendation>> answer = new IAnswer<List<RawRecommendation>>() {
+      @Override
+      public List<RawRecommendation> answer() throws Throwable {
+        traces.add(RequestTracer.current());
+        return Collections.emptyList();
+      }
+    };
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andAnswer(answer);
+    expect(queryUtils.fetchRawRecommendations(search, true)).andAnswer(answer);
+
+    replayAll();
+
+    RequestTracer tracer = new RequestTracer();
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    RequestTracer.Trace poll = tracer.begin("poll");
+    try {
+      fetcher.fetch();
+    } finally {
+      tracer.end(poll);
+    }
+
+    verifyAll();
+
+    assertThat(traces).containsExactly(poll, poll);
+  }
+
+  @Test
+  public void testFetchUpdatesPerQuery() throws Exception {
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(
+        raw("foo", "1")));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andThrow(
+        new IOException("catch me"));
+    expect(queryUtils.fetchRawRecommendations(feed, false)).andReturn(Arrays.asList(
+        raw("bar", "1")));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andReturn(Arrays.asList(
+        raw("baz", "1")));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    List<RawRecommendation> actual1 = fetcher.fetch();
+    List<RawRecommendation> actual2 = fetcher.fetch();
+
+    verifyAll();
+
+    assertThat(actual1).hasSize(1);
+    assertThat(actual1.get(0).getContentId()).isEqualTo("foo");
+    assertThat(actual2).hasSize(2);
+    assertThat(actual2.get(0).getContentId()).isEqualTo("bar");
+    assertThat(actual2.get(1).getContentId()).isEqualTo("baz");
+    assertThat(fetcher.getFailedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFetchRestartsFailedUpdate() throws Exception {
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(
+        raw("foo", "1")));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andReturn(Arrays.asList(
+        raw("bar", "1")));
+    expect(queryUtils.fetchRawRecommendations(feed, false)).andReturn(Arrays.asList(
+        raw("baz", "1")));
+    expect(queryUtils.fetchRawRecommendations(search, false)).andThrow(
+        new IOException("catch me"));
+    expect(queryUtils.fetchRawRecommendations(feed, false)).andReturn(Arrays.asList(
+        raw("qux", "1")));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andReturn(Arrays.asList(
+        raw("quux", "1")));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    fetcher.fetch();
+    List<RawRecommendation> actual1 = fetcher.fetch();
+    List<RawRecommendation> actual2 = fetcher.fetch();
+
+    verifyAll();
+
+    assertThat(actual1).hasSize(1);
+    assertThat(actual2).hasSize(2);
+    assertThat(fetcher.getFailedCount()).isEqualTo(1);
+    assertThat(fetcher.getRestartCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFetchSortsByScore() throws Exception {
+    RawRecommendation foo = raw("foo", "1");
+    RawRecommendation bar = raw("bar", "5");
+    RawRecommendation baz = raw("baz", "3");
+    RawRecommendation qux = raw("qux", "3");
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(foo, baz));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andReturn(Arrays.asList(bar, qux));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    List<RawRecommendation> actual = fetcher.fetch();
+
+    verifyAll();
+
+    assertThat(actual).containsExactly(bar, baz, qux, foo);
+  }
+
+  @Test
+  public void testFetchCancelsAfterDeadline() throws Exception {
+    RawRecommendation foo = raw("foo", "1");
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andReturn(Arrays.asList(foo));
+    expect(queryUtils.fetchRawRecommendations(search, true)).andAnswer(
+        new IAnswer<List<RawRecommendation>>() {
+          @Override
+          public List<RawRecommendation> answer() throws Throwable {
+            Thread.sleep(60000);
+            return Collections.emptyList();
+          }
+        });
+    // Mocks serialize calls by default, which would block the other query behind the sleep.
+    makeThreadSafe(queryUtils, false);
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 200);
+    long start = System.currentTimeMillis();
+    List<RawRecommendation> actual = fetcher.fetch();
+    long duration = System.currentTimeMillis() - start;
+
+    verifyAll();
+
+    assertThat(actual).containsExactly(foo);
+    assertThat(duration).isLessThan(10000);
+    assertThat(fetcher.getTimedOutCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFetchAllFailing() throws Exception {
+    IOException expected = new IOException("catch me");
+    expect(queryUtils.fetchRawRecommendations(feed, true)).andThrow(expected);
+    expect(queryUtils.fetchRawRecommendations(search, true)).andThrow(
+        new IOException("catch me too"));
+
+    replayAll();
+
+    MultiQueryFetcher fetcher = new MultiQueryFetcher(queryUtils, Arrays.asList(feed, search),
+        executor, 10000);
+    try {
+      fetcher.fetch();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e).isSameAs(expected);
+    }
+
+    verifyAll();
+
+    assertThat(fetcher.getFailedCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testNoQueries() {
+    replayAll();
+
+    try {
+      new MultiQueryFetcher(queryUtils, Collections.<QueryTemplate>emptyList(), executor, 1000);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("at least one query");
+    }
+
+    verifyAll();
+  }
+
+  private QueryTemplate template(String queryType) {
+    return new QueryTemplate(queryType, "NONE", "sessionIdFoo",
+        "{\"requestSent\":\"@@requestSent@@\","
+        + "\"queryMode\":\"@@queryMode@@\",\"queryType\":\"" + queryType + "\"}");
+  }
+
+  private RawRecommendation raw(String contentId, String score) {
+    String json = "{\"contentID\":\"" + contentId + "\""
+        + (score != null ? ",\"score\":" + score : "") + "}";
+    return RawRecommendation.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
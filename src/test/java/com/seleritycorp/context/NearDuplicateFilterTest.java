@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NearDuplicateFilterTest {
+  private static final String HEADLINE = "Apple reports record quarterly revenue driven by "
+      + "strong iPhone sales in China";
+  private static final String SUMMARY = "The company said revenue rose sharply year over year, "
+      + "beating analyst estimates as demand for its flagship phones surged across Asia and "
+      + "services income reached a new high";
+
+  @Test
+  public void testFingerprintEqualForEqualText() {
+    long expected = NearDuplicateFilter.fingerprint(HEADLINE, SUMMARY);
+
+    assertThat(NearDuplicateFilter.fingerprint(HEADLINE.toUpperCase(), SUMMARY + "!"))
+        .isEqualTo(expected);
+    assertThat(expected).isNotEqualTo(0);
+  }
+
+  @Test
+  public void testFingerprintCloseForSimilarText() {
+    long fingerprint1 = NearDuplicateFilter.fingerprint(HEADLINE, SUMMARY);
+    long fingerprint2 = NearDuplicateFilter.fingerprint("RT " + HEADLINE, SUMMARY);
+    long fingerprint3 = NearDuplicateFilter.fingerprint("Google launches new search features",
+        "Search results now include more context");
+
+    assertThat(Long.bitCount(fingerprint1 ^ fingerprint2)).isLessThanOrEqualTo(3);
+    assertThat(Long.bitCount(fingerprint1 ^ fingerprint3)).isGreaterThan(7);
+  }
+
+  @Test
+  public void testFingerprintEmpty() {
+    assertThat(NearDuplicateFilter.fingerprint(null, "")).isEqualTo(0);
+  }
+
+  @Test
+  public void testFilterKeepsFirst() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(0.95, 100, false);
+    RawRecommendation foo = raw("foo", HEADLINE, SUMMARY, 1);
+    RawRecommendation baz = raw("baz", "Google launches new search features", null, 1);
+
+    List<RawRecommendation> actual = filter.filter(Arrays.asList(foo,
+        raw("bar", HEADLINE, SUMMARY, 5), baz));
+    List<RawRecommendation> actual2 = filter.filter(Arrays.asList(
+        raw("qux", "RT " + HEADLINE, SUMMARY, 9)));
+
+    assertThat(actual).containsExactly(foo, baz);
+    assertThat(actual2).isEmpty();
+    assertThat(filter.getSuppressedCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFilterCollapseWithinBatch() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(0.95, 100, true);
+    RawRecommendation bar = raw("bar", HEADLINE, SUMMARY, 5);
+    RawRecommendation baz = raw("baz", "Google launches new search features", null, 1);
+
+    List<RawRecommendation> actual = filter.filter(Arrays.asList(raw("foo", HEADLINE, SUMMARY,
+        1), baz, bar, raw("qux", HEADLINE, SUMMARY, 3)));
+
+    assertThat(actual).containsExactly(bar, baz);
+    assertThat(filter.getSuppressedCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFilterCollapseAcrossBatches() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(0.95, 100, true);
+    RawRecommendation bar = raw("bar", HEADLINE, SUMMARY, 5);
+
+    filter.filter(Arrays.asList(raw("foo", HEADLINE, SUMMARY, 3)));
+    List<RawRecommendation> actual = filter.filter(Arrays.asList(raw("baz", HEADLINE, SUMMARY,
+        2), bar));
+    List<RawRecommendation> actual2 = filter.filter(Arrays.asList(raw("qux", HEADLINE,
+        SUMMARY, 4)));
+
+    assertThat(actual).containsExactly(bar);
+    assertThat(actual2).isEmpty();
+  }
+
+  @Test
+  public void testFilterKeepsItemsWithoutText() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(0.95, 100, false);
+    RawRecommendation foo = raw("foo", null, null, 1);
+    RawRecommendation bar = raw("bar", null, null, 1);
+
+    assertThat(filter.filter(Arrays.asList(foo, bar))).containsExactly(foo, bar);
+  }
+
+  @Test
+  public void testFilterForgetsBeyondWindow() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(0.95, 3, false);
+    filter.filter(Arrays.asList(raw("foo", HEADLINE, SUMMARY, 1)));
+    List<RawRecommendation> others = Arrays.asList(
+        raw("other1", "Google launches new search features", null, 1),
+        raw("other2", "Oil prices fall as inventories climb", null, 1),
+        raw("other3", "Central bank keeps rates unchanged amid uncertainty", null, 1));
+    assertThat(filter.filter(others)).hasSize(3);
+    RawRecommendation bar = raw("bar", HEADLINE, SUMMARY, 1);
+
+    assertThat(filter.filter(Arrays.asList(bar))).containsExactly(bar);
+  }
+
+  @Test
+  public void testFilterExactSimilarity() {
+    NearDuplicateFilter filter = new NearDuplicateFilter(1, 100, false);
+    RawRecommendation foo = raw("foo", HEADLINE, SUMMARY, 1);
+
+    assertThat(filter.filter(Arrays.asList(foo, raw("bar", HEADLINE, SUMMARY, 1))))
+        .containsExactly(foo);
+  }
+
+  @Test
+  public void testInvalidSimilarity() {
+    try {
+      new NearDuplicateFilter(0.5, 100, false);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("0.5");
+    }
+  }
+
+  private RawRecommendation raw(String contentId, String headline, String summary,
+      double score) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"contentID\":\"").append(contentId).append("\",\"score\":").append(score);
+    if (headline != null) {
+      sb.append(",\"headline\":\"").append(headline).append("\"");
+    }
+    if (summary != null) {
+      sb.append(",\"summary\":\"").append(summary).append("\"");
+    }
+    sb.append("}");
+    return RawRecommendation.of(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -323,6 +323,105 @@ public class PrintUtilsTest extends EasyMockSupport {
     assertThat(printed).matches("(?m)(?s).*detailQuux.*detailQuux.*");
   }
 
+  @Test
+  public void testPrintTypedEntityDetails() throws Exception {
+    Entity entity = ModelAdapters.ENTITY.fromJson("{\"entityID\":\"foo\","
+        + "\"entityType\":\"bar\",\"displayName\":\"baz\"}");
+
+    replayAll();
+    
+    PrintUtils printUtils = createPrintUtils();
+    printUtils.printEntityDetails(entity);
+
+    verifyAll();
+
+    String printed = getPrinted();
+    assertThat(printed).contains("bar");
+    assertThat(printed).contains("baz");
+    assertThat(printed).contains("no proper description");
+  }
+
+  @Test
+  public void testPrintTypedRecommendationOk() throws Exception {
+    Recommendation recommendation = ModelAdapters.RECOMMENDATION.fromJson(
+        RequestUtils.toJson(createRecommendation()));
+
+    replayAll();
+    
+    PrintUtils printUtils = createPrintUtils();
+    printUtils.printRecommendation(recommendation);
+
+    verifyAll();
+
+    verifyBasicRecommendation();
+    String printed = getPrinted();
+    assertThat(printed).contains("score: 42\n");
+    assertThat(printed).contains("no proper socialInfo->author");
+  }
+
+  @Test
+  public void testPrintTypedRecommendationSparse() throws Exception {
+    Recommendation recommendation = ModelAdapters.RECOMMENDATION.fromJson(
+        "{\"contentID\":\"contentIDFoo\"}");
+
+    replayAll();
+    
+    PrintUtils printUtils = createPrintUtils();
+    printUtils.printRecommendation(recommendation);
+
+    verifyAll();
+
+    String printed = getPrinted();
+    assertThat(printed).contains("contentIDFoo");
+    assertThat(printed).contains("no proper headline");
+    assertThat(printed).contains("no proper score");
+    assertThat(printed).contains("no proper summary");
+  }
+
+  @Test
+  public void testPrintTypedRecommendationContributionsAndRelated() throws Exception {
+    JsonArray contributions = new JsonArray();
+    JsonObject contribution = new JsonObject();
+    contribution.addProperty("contributorType", "RELEVANCE_ENTITY");
+    contribution.addProperty("contributor", "entityFoo");
+    contribution.addProperty("value", 0.25f);
+    contributions.add(contribution);
+
+    JsonArray relatedContent = new JsonArray();
+    JsonObject relatedCapsule = new JsonObject();
+    relatedCapsule.addProperty("relationship", "relationBar");
+    relatedCapsule.add("contentItem", createRecommendation("Bar"));
+    relatedContent.add(relatedCapsule);
+
+    JsonObject recommendationJson = createRecommendation();
+    recommendationJson.addProperty("score", 0.5);
+    recommendationJson.add("contributions", contributions);
+    recommendationJson.add("relatedContent", relatedContent);
+    Recommendation recommendation = ModelAdapters.RECOMMENDATION.fromJson(
+        RequestUtils.toJson(recommendationJson));
+
+    JsonObject entityDetail = new JsonObject();
+    entityDetail.addProperty("entityID", "entityFoo");
+    entityDetail.addProperty("entityType", "detailBar");
+    JsonArray entityDetails = new JsonArray();
+    entityDetails.add(entityDetail);
+    expect(queryUtils.queryEntities("entityFoo", "ENTITY_ID", 1)).andReturn(entityDetails);
+
+    replayAll();
+    
+    PrintUtils printUtils = createPrintUtils();
+    printUtils.printRecommendation(recommendation);
+
+    verifyAll();
+
+    String printed = getPrinted();
+    assertThat(printed).contains("score: 0.5\n");
+    assertThat(printed).contains("0.250 RELEVANCE_ENTITY");
+    assertThat(printed).contains("detailBar");
+    assertThat(printed).contains("relationBar");
+    assertThat(printed).contains("linkBar");
+  }
+
   private JsonObject createRecommendation() {
     return createRecommendation("Foo");
   }
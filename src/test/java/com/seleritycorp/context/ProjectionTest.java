@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+public class ProjectionTest {
+  private static final String RECOMMENDATION = "{"
+      + "\"contentID\":\"contentIdFoo\","
+      + "\"headline\":\"headlineFoo\","
+      + "\"score\":0.75,"
+      + "\"timestamp\":\"timestampFoo\","
+      + "\"contributions\":[{\"contributorType\":\"RELEVANCE_ENTITY\",\"contributor\":\"e1\","
+      + "\"value\":0.5},{\"contributorType\":\"OTHER\",\"contributor\":\"e2\",\"value\":0.1}],"
+      + "\"socialInfo\":{\"author\":\"authorFoo\",\"followers\":42},"
+      + "\"relatedContent\":[{\"relationship\":\"r\",\"contentItem\":{\"contentID\":\"x\"}}]"
+      + "}";
+
+  @Test
+  public void testContentId() throws IOException {
+    JsonObject actual = read(Projection.CONTENT_ID, RECOMMENDATION);
+
+    assertThat(actual).isEqualTo(parse("{\"contentID\":\"contentIdFoo\"}"));
+  }
+
+  @Test
+  public void testHeadlines() throws IOException {
+    JsonObject actual = read(Projection.HEADLINES, RECOMMENDATION);
+
+    assertThat(actual).isEqualTo(parse("{\"contentID\":\"contentIdFoo\","
+        + "\"headline\":\"headlineFoo\",\"score\":0.75,\"timestamp\":\"timestampFoo\"}"));
+  }
+
+  @Test
+  public void testNestedField() throws IOException {
+    JsonObject actual = read(Projection.of("socialInfo.author"), RECOMMENDATION);
+
+    assertThat(actual).isEqualTo(parse("{\"socialInfo\":{\"author\":\"authorFoo\"}}"));
+  }
+
+  @Test
+  public void testFieldsInArray() throws IOException {
+    JsonObject actual = read(Projection.of("contributions.contributor"), RECOMMENDATION);
+
+    assertThat(actual).isEqualTo(parse("{\"contributions\":[{\"contributor\":\"e1\"},"
+        + "{\"contributor\":\"e2\"}]}"));
+  }
+
+  @Test
+  public void testWholeSubtree() throws IOException {
+    JsonObject actual = read(Projection.of("relatedContent", "relatedContent.relationship"),
+        RECOMMENDATION);
+
+    assertThat(actual).isEqualTo(parse("{\"relatedContent\":[{\"relationship\":\"r\","
+        + "\"contentItem\":{\"contentID\":\"x\"}}]}"));
+  }
+
+  @Test
+  public void testMissingAndMistypedFields() throws IOException {
+    JsonObject actual = read(Projection.of("summary", "headline.foo", "socialInfo.bar"),
+        RECOMMENDATION);
+
+    assertThat(actual.entrySet()).isEmpty();
+  }
+
+  @Test
+  public void testNonObject() throws IOException {
+    JsonObject actual = read(Projection.CONTENT_ID, "[1]");
+
+    assertThat(actual).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyPath() {
+    Projection.of("");
+  }
+
+  @Test
+  public void testAdapterInResponse() throws IOException {
+    List<JsonObject> actual = ModelAdapters.field("recommendations",
+        ModelAdapters.listOf(Projection.CONTENT_ID.adapter())).fromJson(
+        "{\"recommendations\":[" + RECOMMENDATION + "," + RECOMMENDATION + "]}");
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(1)).isEqualTo(parse("{\"contentID\":\"contentIdFoo\"}"));
+  }
+
+  private JsonObject read(Projection projection, String json) throws IOException {
+    return projection.read(new JsonReader(new StringReader(json)));
+  }
+
+  private JsonObject parse(String json) {
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class QueryTemplateTest {
+  @Test
+  public void testRenderInitialMatchesAdHocSerialization() throws IOException {
+    QueryTemplate template = createTemplate(new ArrayList<String>());
+
+    byte[] actual = template.render("2017-01-02T03:04:05.678", true);
+
+    String expected = encode(createQuery("2017-01-02T03:04:05.678", "INITIAL",
+        new ArrayList<String>()));
+    assertThat(new String(actual, "US-ASCII")).isEqualTo(expected);
+  }
+
+  @Test
+  public void testRenderUpdateMatchesAdHocSerialization() throws IOException {
+    QueryTemplate template = createTemplate(new ArrayList<String>());
+
+    byte[] actual = template.render("2017-01-02T03:04:05.678", false);
+
+    String expected = encode(createQuery("2017-01-02T03:04:05.678", "UPDATE",
+        new ArrayList<String>()));
+    assertThat(new String(actual, "US-ASCII")).isEqualTo(expected);
+  }
+
+  @Test
+  public void testRenderEntitiesMatchesAdHocSerialization() throws IOException {
+    List<String> entityIds = new ArrayList<>();
+    entityIds.add("foo/bar");
+    entityIds.add("baz quux");
+    QueryTemplate template = createTemplate(entityIds);
+
+    byte[] actual = template.render("2017-01-02T03:04:05.678", false);
+
+    String expected = encode(createQuery("2017-01-02T03:04:05.678", "UPDATE", entityIds));
+    assertThat(new String(actual, "US-ASCII")).isEqualTo(expected);
+  }
+
+  @Test
+  public void testRenderRepeatedly() throws IOException {
+    QueryTemplate template = createTemplate(new ArrayList<String>());
+
+    template.render("2017-01-02T03:04:05.678", true);
+    byte[] actual = template.render("2018-11-12T13:14:15.167", false);
+
+    String expected = encode(createQuery("2018-11-12T13:14:15.167", "UPDATE",
+        new ArrayList<String>()));
+    assertThat(new String(actual, "US-ASCII")).isEqualTo(expected);
+  }
+
+  @Test
+  public void testGetters() {
+    QueryTemplate template = createTemplate(new ArrayList<String>());
+
+    assertThat(template.getQueryType()).isEqualTo("typeFoo");
+    assertThat(template.getContributionMode()).isEqualTo("DIRECT");
+  }
+
+  @Test
+  public void testMissingPlaceholder() {
+    try {
+      new QueryTemplate("typeFoo", "NONE", "sessionIdFoo",
+          "{\"requestSent\":\"@@requestSent@@\"}");
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("queryMode");
+    }
+  }
+
+  @Test
+  public void testDuplicatePlaceholder() {
+    try {
+      new QueryTemplate("typeFoo", "NONE", "sessionIdFoo", "{\"a\":\"@@requestSent@@\","
+          + "\"b\":\"@@requestSent@@\",\"c\":\"@@queryMode@@\"}");
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("requestSent");
+    }
+  }
+
+  private QueryTemplate createTemplate(List<String> entityIds) {
+    QueryUtils queryUtils = new QueryUtils("apiKeyFoo", "sessionIdFoo",
+        new RequestUtils("https://foo.example.com/"));
+    return queryUtils.compileRecommendationsQuery("typeFoo", 42, "DIRECT", entityIds);
+  }
+
+  private JsonObject createQuery(String requestSent, String queryMode, List<String> entityIds) {
+    JsonObject query = new JsonObject();
+    query.addProperty("apiKey", "apiKeyFoo");
+    query.addProperty("sessionID", "sessionIdFoo");
+    query.addProperty("requestSent", requestSent);
+
+    JsonObject parameters = new JsonObject();
+    parameters.addProperty("queryType", "typeFoo");
+    parameters.addProperty("queryMode", queryMode);
+    parameters.addProperty("numItems", 42);
+    parameters.addProperty("contributionMode", "DIRECT");
+    query.add("parameters", parameters);
+
+    JsonObject interests = new JsonObject();
+    if (!entityIds.isEmpty()) {
+      JsonArray entities = new JsonArray();
+      for (String entityId : entityIds) {
+        JsonObject entity = new JsonObject();
+        entity.addProperty("entityID", entityId);
+        entity.addProperty("weight", 1f);
+        entities.add(entity);
+      }
+      interests.add("entities", entities);
+    }
+    query.add("interests", interests);
+    return query;
+  }
+
+  private String encode(JsonObject query) throws IOException {
+    List<NameValuePair> parameters = new ArrayList<>(1);
+    parameters.add(new BasicNameValuePair("json", RequestUtils.toJson(query)));
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    new UrlEncodedFormEntity(parameters).writeTo(stream);
+    return stream.toString("US-ASCII");
+  }
+}
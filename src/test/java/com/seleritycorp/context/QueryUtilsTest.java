@@ -18,25 +18,40 @@ package com.seleritycorp.context;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.anyBoolean;
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.newCapture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.eq;
 
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.ResponseHandler;
 import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
 public class QueryUtilsTest extends EasyMockSupport {
@@ -57,7 +72,8 @@ public class QueryUtilsTest extends EasyMockSupport {
     sources.add("bar");
     response.add("sources", sources);
     
-    expect(requestUtils.post(eq("/v2/sources"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/sources"), capture(payloadCapture), eq(true)))
+        .andReturn(response);
     
     replayAll();
     
@@ -86,7 +102,7 @@ public class QueryUtilsTest extends EasyMockSupport {
     sources.add("bar");
     response.add("sources", sources);
     
-    expect(requestUtils.post(eq("/v2/sources"), capture(payloadCapture))).andThrow(e);
+    expect(requestUtils.post(eq("/v2/sources"), capture(payloadCapture), eq(true))).andThrow(e);
     
     replayAll();
     
@@ -116,7 +132,9 @@ public class QueryUtilsTest extends EasyMockSupport {
     recommendations.add("bar");
     response.add("recommendations", recommendations);
     
-    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(false)))
+        .andReturn(response);
     
     replayAll();
     
@@ -153,7 +171,9 @@ public class QueryUtilsTest extends EasyMockSupport {
     recommendations.add("bar");
     response.add("recommendations", recommendations);
     
-    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(false)))
+        .andReturn(response);
     
     replayAll();
     
@@ -190,7 +210,9 @@ public class QueryUtilsTest extends EasyMockSupport {
     recommendations.add("bar");
     response.add("recommendations", recommendations);
     
-    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(false)))
+        .andReturn(response);
     
     replayAll();
     
@@ -227,7 +249,9 @@ public class QueryUtilsTest extends EasyMockSupport {
     recommendations.add("bar");
     response.add("recommendations", recommendations);
     
-    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(true)))
+        .andReturn(response);
     
     replayAll();
     
@@ -264,7 +288,9 @@ public class QueryUtilsTest extends EasyMockSupport {
     recommendations.add("bar");
     response.add("recommendations", recommendations);
     
-    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(false)))
+        .andReturn(response);
     
     replayAll();
     
@@ -302,6 +328,466 @@ public class QueryUtilsTest extends EasyMockSupport {
     assertThat(actual).containsExactly(new JsonPrimitive("foo"), new JsonPrimitive("bar"));
   }
 
+  @Test
+  public void testQueryRecommendationsTemplate() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    
+    JsonObject response = new JsonObject();
+    JsonArray recommendations = new JsonArray();
+    recommendations.add("foo");
+    recommendations.add("bar");
+    response.add("recommendations", recommendations);
+    
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RequestResponseHandler.class), eq(false), eq("sessionIdFoo"), eq(true)))
+        .andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();
+
+    List<String> requestedEntities = new ArrayList<>(1);
+    requestedEntities.add("quux");
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        requestedEntities);
+
+    long start = System.currentTimeMillis();
+    JsonArray actual = queryUtils.queryRecommendations(template, false);
+    long end = System.currentTimeMillis();
+    
+    verifyAll();
+    
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    verifyPayloadCommonFields(payload, start, end);
+    JsonObject parameters = payload.getAsJsonObject("parameters"); 
+    assertThat(parameters.get("queryType").getAsString()).isEqualTo("typeFoo");
+    assertThat(parameters.get("queryMode").getAsString()).isEqualTo("UPDATE");
+    assertThat(parameters.get("contributionMode").getAsString()).isEqualTo("NONE");
+    assertThat(parameters.get("numItems").getAsInt()).isEqualTo(42);
+    
+    JsonObject interests = payload.getAsJsonObject("interests");
+    JsonObject entity = interests.getAsJsonArray("entities").get(0).getAsJsonObject();
+    assertThat(entity.get("entityID").getAsString()).isEqualTo("quux");
+
+    assertThat(actual).containsExactly(new JsonPrimitive("foo"), new JsonPrimitive("bar"));
+  }
+
+  @Test
+  public void testFetchRecommendations() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    Capture<ResponseHandler<List<Recommendation>>> handlerCapture = newCapture();
+    List<Recommendation> response = new ArrayList<>();
+    
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        capture(handlerCapture), eq(false), eq("sessionIdFoo"), eq(false))).andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        new LinkedList<String>());
+
+    long start = System.currentTimeMillis();
+    List<Recommendation> actual = queryUtils.fetchRecommendations(template, true);
+    long end = System.currentTimeMillis();
+    
+    verifyAll();
+    
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    verifyPayloadCommonFields(payload, start, end);
+    JsonObject parameters = payload.getAsJsonObject("parameters"); 
+    assertThat(parameters.get("queryMode").getAsString()).isEqualTo("INITIAL");
+
+    assertThat(handlerCapture.getValue()).isInstanceOf(TypedResponseHandler.class);
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchRecommendationsProjected() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    Capture<ResponseHandler<List<JsonObject>>> handlerCapture = newCapture();
+    List<JsonObject> response = new ArrayList<>();
+    
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        capture(handlerCapture), eq(false), eq("sessionIdFoo"), eq(true))).andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        new LinkedList<String>());
+
+    List<JsonObject> actual = queryUtils.fetchRecommendations(template, false,
+        Projection.CONTENT_ID);
+    
+    verifyAll();
+    
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    JsonObject parameters = payload.getAsJsonObject("parameters"); 
+    assertThat(parameters.get("queryMode").getAsString()).isEqualTo("UPDATE");
+
+    assertThat(handlerCapture.getValue()).isInstanceOf(TypedResponseHandler.class);
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchRawRecommendations() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    Capture<ResponseHandler<List<RawRecommendation>>> handlerCapture = newCapture();
+    List<RawRecommendation> response = new ArrayList<>();
+    
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        capture(handlerCapture), eq(false), eq("sessionIdFoo"), eq(false))).andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        new LinkedList<String>());
+
+    List<RawRecommendation> actual = queryUtils.fetchRawRecommendations(template, true);
+    
+    verifyAll();
+    
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    JsonObject parameters = payload.getAsJsonObject("parameters"); 
+    assertThat(parameters.get("queryMode").getAsString()).isEqualTo("INITIAL");
+
+    assertThat(handlerCapture.getValue()).isInstanceOf(RawRecommendationsHandler.class);
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchRawRecommendationsFreshnessTracker() throws Exception {
+    RawRecommendation item = RawRecommendation.of(
+        "{\"contentID\":\"foo\",\"source\":\"SourceFoo\"}".getBytes(StandardCharsets.UTF_8));
+    List<RawRecommendation> response = Arrays.asList(item);
+
+    expect(requestUtils.postForm(eq("/v2/query"), anyObject(byte[].class),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionBar"), eq(false)))
+        .andReturn(response);
+
+    replayAll();
+
+    FreshnessTracker tracker = new FreshnessTracker(10);
+    QueryUtils queryUtils = createQueryUtils();
+    queryUtils.setFreshnessTracker(tracker);
+    QueryTemplate template = queryUtils.forSession("sessionBar").compileRecommendationsQuery(
+        "typeFoo", 42, "NONE", new LinkedList<String>());
+
+    queryUtils.forSession("sessionBar").fetchRawRecommendations(template, true);
+    tracker.written(item, System.currentTimeMillis());
+
+    verifyAll();
+
+    assertThat(tracker.getWrittenCount()).isEqualTo(1);
+    assertThat(tracker.getHistograms(FreshnessTracker.Stage.REQUEST_TO_ARRIVAL))
+        .containsOnlyKeys("SourceFoo/typeFoo");
+  }
+
+  @Test
+  public void testFetchRawRecommendationsNotCached() throws Exception {
+    List<RawRecommendation> response1 = new ArrayList<>();
+    List<RawRecommendation> response2 = new ArrayList<>();
+
+    expect(requestUtils.postForm(eq("/v2/query"), anyObject(byte[].class),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionIdFoo"),
+        anyBoolean())).andReturn(response1);
+    expect(requestUtils.postForm(eq("/v2/query"), anyObject(byte[].class),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionIdFoo"),
+        anyBoolean())).andReturn(response2);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    queryUtils.setResponseCache(createResponseCache());
+    QueryTemplate search = queryUtils.compileRecommendationsQuery("SEARCH", 42, "NONE",
+        new LinkedList<String>());
+
+    // A re-sent INITIAL query has to reach the API, to reset the session.
+    List<RawRecommendation> actual1 = queryUtils.fetchRawRecommendations(search, true);
+    List<RawRecommendation> actual2 = queryUtils.fetchRawRecommendations(search, true);
+
+    verifyAll();
+
+    assertThat(actual1).isSameAs(response1);
+    assertThat(actual2).isSameAs(response2);
+  }
+
+  @Test
+  public void testFetchEntitiesCached() throws Exception {
+    List<Entity> response1 = new ArrayList<>();
+    List<Entity> response2 = new ArrayList<>();
+
+    expect(requestUtils.post(eq("/v2/dds/"), anyObject(JsonObject.class),
+        anyObject(TypedResponseHandler.class), eq(true))).andReturn(response1);
+    expect(requestUtils.post(eq("/v2/dds/"), anyObject(JsonObject.class),
+        anyObject(TypedResponseHandler.class), eq(true))).andReturn(response2);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    queryUtils.setResponseCache(createResponseCache());
+    QueryUtils sessionQueryUtils = queryUtils.forSession("sessionIdBar");
+
+    List<Entity> actual1 = queryUtils.fetchEntities("queryFoo", "EXACT_MATCH", 42);
+    List<Entity> actual2 = sessionQueryUtils.fetchEntities("queryFoo", "EXACT_MATCH", 42);
+    List<Entity> actual3 = queryUtils.fetchEntities("queryBar", "EXACT_MATCH", 42);
+
+    verifyAll();
+
+    assertThat(actual1).isSameAs(response1);
+    assertThat(actual2).isSameAs(response1);
+    assertThat(actual3).isSameAs(response2);
+  }
+
+  @Test
+  public void testForSession() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    List<RawRecommendation> response = new ArrayList<>();
+
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        capture(Capture.<ResponseHandler<List<RawRecommendation>>>newInstance()), eq(false),
+        eq("sessionIdBar"), eq(false))).andReturn(response);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils().forSession("sessionIdBar");
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        new LinkedList<String>());
+    queryUtils.fetchRawRecommendations(template, true);
+
+    verifyAll();
+
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    assertThat(payload.get("apiKey").getAsString()).isEqualTo("apiKeyFoo");
+    assertThat(payload.get("sessionID").getAsString()).isEqualTo("sessionIdBar");
+  }
+
+  @Test
+  public void testFetchRawRecommendationsRestartsMovedSession() throws Exception {
+    Capture<byte[]> payloadCapture = newCapture();
+    List<RawRecommendation> response = new ArrayList<>();
+
+    expect(requestUtils.postForm(eq("/v2/query"), anyObject(byte[].class),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionIdFoo"), eq(true)))
+        .andThrow(new RequestUtils.SessionMovedException("catch me"));
+    expect(requestUtils.postForm(eq("/v2/query"), capture(payloadCapture),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionIdFoo"), eq(false)))
+        .andReturn(response);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    QueryTemplate template = queryUtils.compileRecommendationsQuery("typeFoo", 42, "NONE",
+        new LinkedList<String>());
+    List<RawRecommendation> actual = queryUtils.fetchRawRecommendations(template, false);
+
+    verifyAll();
+
+    JsonObject payload = decodeFormPayload(payloadCapture.getValue());
+    JsonObject parameters = payload.getAsJsonObject("parameters");
+    assertThat(parameters.get("queryMode").getAsString()).isEqualTo("INITIAL");
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchRawRecommendationsPinsTemplateSession() throws Exception {
+    List<RawRecommendation> response = new ArrayList<>();
+
+    expect(requestUtils.postForm(eq("/v2/query"), anyObject(byte[].class),
+        anyObject(RawRecommendationsHandler.class), eq(false), eq("sessionIdBar"), eq(true)))
+        .andReturn(response);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    QueryTemplate template = queryUtils.forSession("sessionIdBar").compileRecommendationsQuery(
+        "typeFoo", 42, "NONE", new LinkedList<String>());
+    List<RawRecommendation> actual = queryUtils.fetchRawRecommendations(template, false);
+
+    verifyAll();
+
+    assertThat(template.getSessionId()).isEqualTo("sessionIdBar");
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testEndSession() throws Exception {
+    requestUtils.endSession("sessionIdBar");
+
+    replayAll();
+
+    createQueryUtils().forSession("sessionIdBar").endSession();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testShardEntityIdsBalanced() throws Exception {
+    List<String> entityIds = new ArrayList<>();
+    for (int i = 0; i < 45; i++) {
+      entityIds.add("entity" + i);
+    }
+
+    List<List<String>> actual = QueryUtils.shardEntityIds(entityIds, 20);
+
+    assertThat(actual).hasSize(3);
+    assertThat(actual.get(0)).hasSize(15);
+    assertThat(actual.get(1)).hasSize(15);
+    assertThat(actual.get(2)).hasSize(15);
+    assertThat(actual.get(0).get(0)).isEqualTo("entity0");
+    assertThat(actual.get(1).get(0)).isEqualTo("entity15");
+    assertThat(actual.get(2).get(14)).isEqualTo("entity44");
+  }
+
+  @Test
+  public void testShardEntityIdsUneven() throws Exception {
+    List<String> entityIds = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      entityIds.add("entity" + i);
+    }
+
+    List<List<String>> actual = QueryUtils.shardEntityIds(entityIds, 3);
+
+    assertThat(actual).hasSize(3);
+    assertThat(actual.get(0)).containsExactly("entity0", "entity1", "entity2");
+    assertThat(actual.get(1)).containsExactly("entity3", "entity4");
+    assertThat(actual.get(2)).containsExactly("entity5", "entity6");
+  }
+
+  @Test
+  public void testShardEntityIdsFitting() throws Exception {
+    List<String> entityIds = new ArrayList<>();
+    entityIds.add("foo");
+    entityIds.add("bar");
+
+    List<List<String>> actual = QueryUtils.shardEntityIds(entityIds, 20);
+
+    assertThat(actual).hasSize(1);
+    assertThat(actual.get(0)).containsExactly("foo", "bar");
+  }
+
+  @Test
+  public void testShardEntityIdsEmpty() throws Exception {
+    List<List<String>> actual = QueryUtils.shardEntityIds(new ArrayList<String>(), 20);
+
+    assertThat(actual).hasSize(1);
+    assertThat(actual.get(0)).isEmpty();
+  }
+
+  @Test
+  public void testShardEntityIdsInvalidSize() throws Exception {
+    try {
+      QueryUtils.shardEntityIds(new ArrayList<String>(), 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("at least one");
+    }
+  }
+
+  @Test
+  public void testFetchEntitledSources() throws Exception {
+    Capture<JsonObject> payloadCapture = newCapture();
+    Capture<ResponseHandler<List<Source>>> handlerCapture = newCapture();
+    List<Source> response = new ArrayList<>();
+    
+    expect(requestUtils.post(eq("/v2/sources"), capture(payloadCapture),
+        capture(handlerCapture), eq(true))).andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();
+
+    long start = System.currentTimeMillis();
+    List<Source> actual = queryUtils.fetchEntitledSources();
+    long end = System.currentTimeMillis();
+    
+    verifyAll();
+    
+    verifyPayloadCommonFields(payloadCapture.getValue(), start, end);
+    assertThat(handlerCapture.getValue()).isInstanceOf(TypedResponseHandler.class);
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchEntitledSourcesSharedAcrossSessions() throws Exception {
+    List<Source> response = new ArrayList<>();
+
+    expect(requestUtils.post(eq("/v2/sources"), anyObject(JsonObject.class),
+        anyObject(TypedResponseHandler.class), eq(true))).andReturn(response);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    ResponseCache cache = createResponseCache();
+    cache.setPolicy("/v2/sources", 60000, 0);
+    queryUtils.setResponseCache(cache);
+
+    List<Source> actual1 = queryUtils.fetchEntitledSources();
+    List<Source> actual2 = queryUtils.forSession("sessionIdBar").fetchEntitledSources();
+
+    verifyAll();
+
+    assertThat(actual1).isSameAs(response);
+    assertThat(actual2).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchEntities() throws Exception {
+    Capture<JsonObject> payloadCapture = newCapture();
+    Capture<ResponseHandler<List<Entity>>> handlerCapture = newCapture();
+    List<Entity> response = new ArrayList<>();
+    
+    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture),
+        capture(handlerCapture), eq(true))).andReturn(response);
+    
+    replayAll();
+    
+    QueryUtils queryUtils = createQueryUtils();    
+    List<Entity> actual = queryUtils.fetchEntities("queryFoo", "EXACT_MATCH", 42);
+    
+    verifyAll();
+    
+    JsonObject payload = payloadCapture.getValue();
+    assertThat(payload.get("query").getAsString()).isEqualTo("queryFoo");
+    assertThat(payload.get("queryType").getAsString()).isEqualTo("EXACT_MATCH");
+    assertThat(payload.get("maxResults").getAsInt()).isEqualTo(42);
+    assertThat(handlerCapture.getValue()).isInstanceOf(TypedResponseHandler.class);
+    assertThat(actual).isSameAs(response);
+  }
+
+  @Test
+  public void testFetchEntitiesEntityIndex() throws Exception {
+    Entity apple = new Entity();
+    apple.entityId = "idApple";
+    apple.displayName = "Apple Inc.";
+    List<Entity> response = new ArrayList<>();
+    response.add(apple);
+
+    expect(requestUtils.post(eq("/v2/dds/"), anyObject(JsonObject.class),
+        anyObject(TypedResponseHandler.class), eq(true))).andReturn(response);
+
+    replayAll();
+
+    QueryUtils queryUtils = createQueryUtils();
+    EntityIndex index = new EntityIndex();
+    queryUtils.setEntityIndex(index);
+
+    List<Entity> actual1 = queryUtils.fetchEntities("Apple", "PARTIAL_MATCH", 42);
+    List<Entity> actual2 = queryUtils.fetchEntities("appl", "PARTIAL_MATCH", 42);
+    JsonArray actual3 = queryUtils.queryEntities("app", "PARTIAL_MATCH", 42);
+
+    verifyAll();
+
+    assertThat(actual1).containsExactly(apple);
+    assertThat(actual2).containsExactly(apple);
+    assertThat(actual3).hasSize(1);
+    assertThat(actual3.get(0).getAsJsonObject().get("entityID").getAsString())
+        .isEqualTo("idApple");
+    assertThat(index.getHitCount()).isEqualTo(2);
+  }
+
   @Test
   public void testQueryEntitiesExact() throws Exception {
     Capture<JsonObject> payloadCapture = newCapture();
@@ -312,7 +798,8 @@ public class QueryUtilsTest extends EasyMockSupport {
     entities.add("bar");
     response.add("result", entities);
     
-    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture), eq(true)))
+        .andReturn(response);
     
     replayAll();
     
@@ -340,7 +827,8 @@ public class QueryUtilsTest extends EasyMockSupport {
     entities.add("bar");
     response.add("result", entities);
     
-    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture), eq(true)))
+        .andReturn(response);
     
     replayAll();
     
@@ -368,7 +856,8 @@ public class QueryUtilsTest extends EasyMockSupport {
     entities.add("bar");
     response.add("result", entities);
     
-    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture))).andReturn(response);
+    expect(requestUtils.post(eq("/v2/dds/"), capture(payloadCapture), eq(true)))
+        .andReturn(response);
     
     replayAll();
     
@@ -386,6 +875,63 @@ public class QueryUtilsTest extends EasyMockSupport {
     assertThat(actual).containsExactly(new JsonPrimitive("foo"), new JsonPrimitive("bar"));
   }
 
+  @Test
+  public void testQueryEntitiesCollapsesConcurrentRequests() throws Exception {
+    final JsonObject response = new JsonObject();
+    JsonArray entities = new JsonArray();
+    entities.add("foo");
+    response.add("result", entities);
+
+    final QueryUtils queryUtils = createQueryUtils();
+    final QueryUtils sessionQueryUtils = queryUtils.forSession("sessionIdBar");
+    final CountDownLatch requestStarted = new CountDownLatch(1);
+    final CountDownLatch requestRelease = new CountDownLatch(1);
+    expect(requestUtils.post(eq("/v2/dds/"), anyObject(JsonObject.class), eq(true))).andAnswer(
+        new IAnswer<JsonObject>() {
+          @Override
+          public JsonObject answer() throws Throwable {
+            requestStarted.countDown();
+            requestRelease.await(10, TimeUnit.SECONDS);
+            return response;
+          }
+        });
+
+    replayAll();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<JsonArray> first = executor.submit(new Callable<JsonArray>() {
+        @Override
+        public JsonArray call() throws Exception {
+          return queryUtils.queryEntities("queryFoo", "EXACT_MATCH", 42);
+        }
+      });
+      assertThat(requestStarted.await(10, TimeUnit.SECONDS)).isTrue();
+      Thread releaser = new Thread() {
+        @Override
+        public void run() {
+          while (sessionQueryUtils.getCollapsedRequestCount() == 0) {
+            Thread.yield();
+          }
+          requestRelease.countDown();
+        }
+      };
+      releaser.start();
+
+      JsonArray actual = sessionQueryUtils.queryEntities("queryFoo", "EXACT_MATCH", 42);
+      releaser.join();
+
+      assertThat(actual).isSameAs(first.get());
+      assertThat(actual).containsExactly(new JsonPrimitive("foo"));
+      assertThat(queryUtils.getCollapsedRequestCount()).isEqualTo(1);
+    } finally {
+      requestRelease.countDown();
+      executor.shutdownNow();
+    }
+
+    verifyAll();
+  }
+
   private void verifyPayloadCommonFields(JsonObject payload, long start, long end) throws ParseException {
     assertThat(payload.get("apiKey").getAsString()).isEqualTo("apiKeyFoo");
     assertThat(payload.get("sessionID").getAsString()).isEqualTo("sessionIdFoo");
@@ -399,6 +945,25 @@ public class QueryUtilsTest extends EasyMockSupport {
     assertThat(requestSent).isBetween(start - delta, end + delta);
   }
 
+  private JsonObject decodeFormPayload(byte[] formPayload) throws Exception {
+    String form = new String(formPayload, StandardCharsets.US_ASCII);
+    assertThat(form).startsWith("json=");
+    String json = URLDecoder.decode(form.substring("json=".length()), "ISO-8859-1");
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+
+  private ResponseCache createResponseCache() {
+    ResponseCache ret = new ResponseCache(1 << 20, QueryUtils.RESPONSE_WEIGHER, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    ret.setPolicy("/v2/query", 60000, 0);
+    ret.setPolicy("/v2/dds/", 60000, 0);
+    return ret;
+  }
+
   private QueryUtils createQueryUtils() {
     return new QueryUtils("apiKeyFoo", "sessionIdFoo", requestUtils);
   }
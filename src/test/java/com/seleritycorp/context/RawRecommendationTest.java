@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class RawRecommendationTest {
+  private static final String JSON = "{\"contentID\":\"foo\",\"headline\":\"headlineFoo\","
+      + "\"score\":\"0.25\",\"socialInfo\":{\"author\":\"authorFoo\"}}";
+
+  @Test
+  public void testEagerFields() {
+    RawRecommendation raw = RawRecommendation.of(JSON.getBytes(StandardCharsets.UTF_8));
+
+    assertThat(raw.getContentId()).isEqualTo("foo");
+    assertThat(raw.getTimestamp()).isNull();
+    assertThat(raw.getScore()).isEqualTo(0.25);
+    assertThat(raw.getLength()).isEqualTo(JSON.length());
+  }
+
+  @Test
+  public void testGetRecommendationLazyAndCached() throws Exception {
+    RawRecommendation raw = RawRecommendation.of(JSON.getBytes(StandardCharsets.UTF_8));
+
+    Recommendation actual = raw.getRecommendation();
+
+    assertThat(actual.getHeadline()).isEqualTo("headlineFoo");
+    assertThat(actual.getAuthor()).isEqualTo("authorFoo");
+    assertThat(raw.getRecommendation()).isSameAs(actual);
+  }
+
+  @Test
+  public void testGetJson() throws Exception {
+    RawRecommendation raw = RawRecommendation.of(JSON.getBytes(StandardCharsets.UTF_8));
+
+    JsonObject actual = raw.getJson();
+
+    assertThat(actual.get("headline").getAsString()).isEqualTo("headlineFoo");
+    assertThat(raw.getJson()).isSameAs(actual);
+  }
+
+  @Test
+  public void testWriteToSlice() throws Exception {
+    byte[] buffer = ("[" + JSON + ",{\"contentID\":\"bar\"}]").getBytes(StandardCharsets.UTF_8);
+    RawRecommendation raw = RawRecommendationsHandler.scanRecommendation(
+        new RawJsonScanner(buffer, 1, buffer.length - 1), buffer);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    raw.writeTo(out);
+
+    assertThat(out.toString("UTF-8")).isEqualTo(JSON);
+    assertThat(new String(raw.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(JSON);
+  }
+
+  @Test
+  public void testAsByteBuffer() throws Exception {
+    byte[] buffer = (" " + JSON).getBytes(StandardCharsets.UTF_8);
+    RawRecommendation raw = RawRecommendationsHandler.scanRecommendation(
+        new RawJsonScanner(buffer, 0, buffer.length), buffer);
+
+    ByteBuffer actual = raw.asByteBuffer();
+
+    assertThat(actual.isReadOnly()).isTrue();
+    assertThat(actual.remaining()).isEqualTo(JSON.length());
+    byte[] bytes = new byte[actual.remaining()];
+    actual.get(bytes);
+    assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo(JSON);
+  }
+
+  @Test
+  public void testEscapedContentId() {
+    RawRecommendation raw = RawRecommendation.of(("{\"contentID\":\"a\\\"b\\n\\u0041\\/\"}")
+        .getBytes(StandardCharsets.UTF_8));
+
+    assertThat(raw.getContentId()).isEqualTo("a\"b\nA/");
+  }
+}
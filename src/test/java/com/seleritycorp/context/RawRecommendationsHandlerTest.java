@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.easymock.EasyMockSupport;
+import org.junit.Test;
+
+public class RawRecommendationsHandlerTest extends EasyMockSupport {
+  @Test
+  public void testHandleResponseOk() throws Exception {
+    String first = "{\"contentID\":\"foo\",\"timestamp\":\"tsFoo\",\"score\":0.5,"
+        + "\"contributions\":[{\"contributor\":\"}]\\\"\"}]}";
+    String second = "{ \"score\" : 3 , \"contentID\" : \"b\\u00e4r\" }";
+    HttpResponse response = mockResponse(200, "{\"before\":{\"recommendations\":[1]},"
+        + "\"recommendations\":[" + first + " , 42, " + second + "],\"after\":null}",
+        "application/json");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    List<RawRecommendation> actual = handler.handleResponse(response);
+
+    verifyAll();
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getContentId()).isEqualTo("foo");
+    assertThat(actual.get(0).getTimestamp()).isEqualTo("tsFoo");
+    assertThat(actual.get(0).getScore()).isEqualTo(0.5);
+    assertThat(actual.get(0).toString()).isEqualTo(first);
+    assertThat(actual.get(1).getContentId()).isEqualTo("b\u00e4r");
+    assertThat(actual.get(1).getTimestamp()).isNull();
+    assertThat(actual.get(1).getScore()).isEqualTo(3);
+    assertThat(actual.get(1).toString()).isEqualTo(second);
+  }
+
+  @Test
+  public void testHandleResponseEmpty() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"recommendations\":[ ]}", "application/json");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    List<RawRecommendation> actual = handler.handleResponse(response);
+
+    verifyAll();
+
+    assertThat(actual).isEmpty();
+  }
+
+  @Test
+  public void testHandleResponseTranscodes() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"recommendations\":[{\"headline\":"
+        + "\"\u00e4\"}]}", "application/json; charset=ISO-8859-1");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    List<RawRecommendation> actual = handler.handleResponse(response);
+
+    verifyAll();
+
+    assertThat(actual.get(0).getRecommendation().getHeadline()).isEqualTo("\u00e4");
+  }
+
+  @Test
+  public void testHandleResponseMissingRecommendations() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"foo\":[]}", "application/json");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("recommendations");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHandleResponseMalformed() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"recommendations\":[{\"contentID\":\"foo",
+        "application/json");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("Unterminated");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHandleResponseServerError() throws Exception {
+    HttpResponse response = mockResponse(500, "{\"errorMessage\":\"bar\"}", "application/json");
+    RawRecommendationsHandler handler = new RawRecommendationsHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("500");
+      assertThat(e.getMessage()).contains("bar");
+    }
+
+    verifyAll();
+  }
+
+  private HttpResponse mockResponse(int statusCode, String content, String contentType)
+      throws Exception {
+    ProtocolVersion proto = new ProtocolVersion("protoFoo", 1, 2);
+    StatusLine statusLine = new BasicStatusLine(proto, statusCode, "reasonFoo");
+
+    Charset charset = contentType.contains("ISO-8859-1") ? StandardCharsets.ISO_8859_1
+        : StandardCharsets.UTF_8;
+    byte[] contentBytes = content.getBytes(charset);
+    InputStream contentStream = new ByteArrayInputStream(contentBytes);
+
+    Header contentTypeHeader = new BasicHeader("Content-Type", contentType);
+
+    HttpEntity httpEntity = createMock(HttpEntity.class);
+    expect(httpEntity.getContent()).andReturn(contentStream);
+    expect(httpEntity.getContentLength()).andReturn((long) contentBytes.length).anyTimes();
+    expect(httpEntity.getContentType()).andReturn(contentTypeHeader).anyTimes();
+
+    HttpResponse response = createMock(HttpResponse.class);
+    expect(response.getStatusLine()).andReturn(statusLine);
+    expect(response.getEntity()).andReturn(httpEntity);
+
+    return response;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecommendationFeedTest extends EasyMockSupport {
+  private QueryUtils queryUtils;
+  private QueryTemplate template;
+
+  @Before
+  public void setUp() {
+    queryUtils = createMock(QueryUtils.class);
+    template = new QueryTemplate("FEED", "NONE", "sessionIdFoo",
+        "{\"requestSent\":\"@@requestSent@@\",\"queryMode\":\"@@queryMode@@\"}");
+  }
+
+  @Test
+  public void testPollOncePublishesToAllSubscribers() throws Exception {
+    RawRecommendation foo = raw("foo");
+    RawRecommendation bar = raw("bar");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo,
+        bar));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber1 = createSubscriber(10);
+    Subscriber subscriber2 = createSubscriber(10);
+    feed.addSubscriber(subscriber1);
+    feed.addSubscriber(subscriber2);
+    int actual = feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(actual).isEqualTo(2);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+  }
+
+  @Test
+  public void testPollOnceUpdatesAndFiltersSeen() throws Exception {
+    RawRecommendation foo = raw("foo");
+    RawRecommendation bar = raw("bar");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo));
+    expect(queryUtils.fetchRawRecommendations(template, false)).andReturn(Arrays.asList(
+        raw("foo"), bar));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber = createSubscriber(10);
+    feed.addSubscriber(subscriber);
+    feed.pollOnce();
+    int actual = feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(actual).isEqualTo(1);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test
+  public void testPollOnceDropsDisconnectedSubscribers() throws Exception {
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(
+        raw("foo"), raw("bar")));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber slow = new Subscriber("slow", 1, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    Subscriber fast = createSubscriber(10);
+    feed.addSubscriber(slow);
+    feed.addSubscriber(fast);
+    feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(slow.isClosed()).isTrue();
+    assertThat(fast.isClosed()).isFalse();
+    assertThat(feed.getSubscriberCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPollOnceAppendsToSinks() throws Exception {
+    RawRecommendation foo = raw("foo");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo,
+        raw("foo")));
+    RecommendationSink sink = createMock(RecommendationSink.class);
+    sink.append(foo);
+    sink.flush();
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    feed.addSink(sink);
+    feed.pollOnce();
+
+    verifyAll();
+  }
+
+  @Test
+  public void testPollOnceDemultiplexesByEntity() throws Exception {
+    RawRecommendation foo = raw("foo", "e1");
+    RawRecommendation bar = raw("bar", "e2", "e3");
+    RawRecommendation baz = raw("baz");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo, bar,
+        baz));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber1 = createSubscriber(10);
+    Subscriber subscriber2 = createSubscriber(10);
+    Subscriber subscriber3 = createSubscriber(10);
+    feed.addSubscriber(subscriber1, Collections.singleton("e1"));
+    feed.addSubscriber(subscriber2, new HashSet<>(Arrays.asList("e1", "e3")));
+    feed.addSubscriber(subscriber3);
+    feed.setCoalescedQueryCount(3);
+    feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isNull();
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isNull();
+    assertThat(subscriber3.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber3.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber3.poll(0, TimeUnit.SECONDS)).isSameAs(baz);
+    assertThat(feed.getSavedRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testSetQueryTemplateRestartsInitial() throws Exception {
+    QueryTemplate template2 = new QueryTemplate("FEED", "DIRECT", "sessionIdFoo",
+        "{\"requestSent\":\"@@requestSent@@\",\"queryMode\":\"@@queryMode@@\"}");
+    RawRecommendation foo = raw("foo", "e1", "e2");
+    RawRecommendation bar = raw("bar", "e1");
+    RawRecommendation baz = raw("baz", "e2");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo));
+    expect(queryUtils.fetchRawRecommendations(template, false)).andReturn(Arrays.asList(bar));
+    expect(queryUtils.fetchRawRecommendations(template2, true)).andReturn(Arrays.asList(foo,
+        bar, baz));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber1 = createSubscriber(10);
+    feed.addSubscriber(subscriber1, Collections.singleton("e1"));
+    feed.pollOnce();
+    Subscriber lateSubscriber = createSubscriber(10);
+    feed.addSubscriber(lateSubscriber, Collections.singleton("e1"));
+    feed.pollOnce();
+    feed.setQueryTemplate(template2);
+    Subscriber subscriber2 = createSubscriber(10);
+    feed.addSubscriber(subscriber2, Collections.singleton("e2"));
+    feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(feed.getQueryTemplate()).isSameAs(template2);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber1.poll(0, TimeUnit.SECONDS)).isNull();
+    assertThat(lateSubscriber.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(lateSubscriber.poll(0, TimeUnit.SECONDS)).isNull();
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isSameAs(baz);
+    assertThat(subscriber2.poll(0, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test
+  public void testPollOnceRetriesFailedInitial() throws Exception {
+    RawRecommendation foo = raw("foo", "e1");
+    expect(queryUtils.fetchRawRecommendations(template, true)).andThrow(new IOException());
+    expect(queryUtils.fetchRawRecommendations(template, true)).andReturn(Arrays.asList(foo));
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber = createSubscriber(10);
+    feed.addSubscriber(subscriber, Collections.singleton("e1"));
+    try {
+      feed.pollOnce();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // Expected
+    }
+    feed.pollOnce();
+
+    verifyAll();
+
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+  }
+
+  @Test
+  public void testStopClosesSubscribers() throws Exception {
+    queryUtils.endSession();
+
+    replayAll();
+
+    RecommendationFeed feed = new RecommendationFeed("feedFoo", queryUtils, template, 0);
+    Subscriber subscriber = createSubscriber(10);
+    feed.addSubscriber(subscriber);
+    feed.stop();
+    feed.run();
+
+    verifyAll();
+
+    assertThat(subscriber.isClosed()).isTrue();
+  }
+
+  private Subscriber createSubscriber(int capacity) {
+    return new Subscriber("subscriber", capacity, Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+  }
+
+  private RawRecommendation raw(String contentId, String... entityIds) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"contentID\":\"").append(contentId).append("\",\"contributions\":[");
+    for (int i = 0; i < entityIds.length; i++) {
+      sb.append(i > 0 ? "," : "").append("{\"contributorType\":\"RELEVANCE_ENTITY\","
+          + "\"contributor\":\"").append(entityIds[i]).append("\"}");
+    }
+    sb.append("]}");
+    return RawRecommendation.of(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecommendationStoreTest {
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long BASE = TimestampUtils.parseMillis("2017-03-29T12:00:00");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testQueryByTime() throws Exception {
+    try (RecommendationStore store = createStore(1 << 20)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T14:00:00", 3, "e2"));
+      store.append(raw("baz", "2017-03-29T13:00:00", 2, "e1"));
+
+      List<RawRecommendation> actual = store.query(Collections.<String>emptyList(),
+          BASE + HOUR, Long.MAX_VALUE, RecommendationStore.Order.TIME, 10);
+
+      assertThat(contentIds(actual)).containsExactly("bar", "baz");
+    }
+  }
+
+  @Test
+  public void testQueryByScore() throws Exception {
+    try (RecommendationStore store = createStore(1 << 20)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T14:00:00", Double.NaN, "e2"));
+      store.append(raw("baz", "2017-03-29T13:00:00", 2, "e1"));
+
+      List<RawRecommendation> actual = store.query(Collections.<String>emptyList(), BASE,
+          Long.MAX_VALUE, RecommendationStore.Order.SCORE, 10);
+
+      assertThat(contentIds(actual)).containsExactly("baz", "foo", "bar");
+    }
+  }
+
+  @Test
+  public void testQueryByEntity() throws Exception {
+    try (RecommendationStore store = createStore(1 << 20)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T14:00:00", 3, "e2"));
+      store.append(raw("baz", "2017-03-29T13:00:00", 2, "e1", "e3"));
+      store.append(raw("qux", "2017-03-29T15:00:00", 4, "e4"));
+
+      List<RawRecommendation> actual = store.query(Arrays.asList("e1", "e3"), BASE,
+          BASE + 2 * HOUR, RecommendationStore.Order.SCORE, 10);
+
+      assertThat(contentIds(actual)).containsExactly("baz", "foo");
+    }
+  }
+
+  @Test
+  public void testQueryCollapsesDuplicatesAndLimits() throws Exception {
+    try (RecommendationStore store = createStore(1 << 20)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T11:00:00", 1, "e1"));
+      store.append(raw("baz", "2017-03-29T10:00:00", 1, "e1"));
+
+      List<RawRecommendation> actual = store.query(Collections.<String>emptyList(), 0,
+          Long.MAX_VALUE, RecommendationStore.Order.TIME, 2);
+
+      assertThat(contentIds(actual)).containsExactly("foo", "bar");
+    }
+  }
+
+  @Test
+  public void testQuerySkipsByTimeIndex() throws Exception {
+    try (RecommendationStore store = createStore(1 << 20)) {
+      // Slightly out of order items, as they arrive from the API
+      for (int i = 0; i < 500; i++) {
+        long offset = (i % 3 == 0) ? i - 2 : i;
+        store.append(raw("item" + i, format(BASE + offset * 60000), i, "e1"));
+      }
+
+      List<RawRecommendation> actual = store.query(Collections.<String>emptyList(),
+          BASE + 400 * 60000, Long.MAX_VALUE, RecommendationStore.Order.SCORE, 1000);
+
+      assertThat(actual).hasSize(100);
+      assertThat(actual.get(0).getContentId()).isEqualTo("item499");
+      assertThat(actual.get(99).getContentId()).isEqualTo("item400");
+    }
+  }
+
+  @Test
+  public void testRollAndReopen() throws Exception {
+    File directory = folder.newFolder();
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 200,
+        Long.MAX_VALUE)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T13:00:00", 2, "e1"));
+      store.append(raw("baz", "2017-03-29T14:00:00", 3, "e2"));
+
+      assertThat(store.getSegmentCount()).isEqualTo(3);
+    }
+
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 200,
+        Long.MAX_VALUE)) {
+      store.append(raw("qux", "2017-03-29T15:00:00", 4, "e1"));
+
+      List<RawRecommendation> actual = store.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10);
+
+      assertThat(contentIds(actual)).containsExactly("qux", "bar", "foo");
+    }
+  }
+
+  @Test
+  public void testReopenTruncatesPartialRecord() throws Exception {
+    File directory = folder.newFolder();
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        Long.MAX_VALUE)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T13:00:00", 2, "e1"));
+    }
+    File segment = new File(directory, String.format("%020d.segment", 0));
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        Long.MAX_VALUE)) {
+      store.append(raw("baz", "2017-03-29T14:00:00", 3, "e1"));
+
+      List<RawRecommendation> actual = store.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10);
+
+      assertThat(contentIds(actual)).containsExactly("baz", "foo");
+    }
+  }
+
+  @Test
+  public void testReadOnlyLeavesStoreUntouched() throws Exception {
+    File directory = folder.newFolder();
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        Long.MAX_VALUE)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      store.append(raw("bar", "2017-03-29T13:00:00", 2, "e1"));
+    }
+    File segment = new File(directory, String.format("%020d.segment", 0));
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+    long length = segment.length();
+
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        0, true)) {
+      List<RawRecommendation> actual = store.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10);
+
+      assertThat(contentIds(actual)).containsExactly("foo");
+      assertThat(store.enforceRetention(Long.MAX_VALUE)).isEqualTo(0);
+      try {
+        store.append(raw("baz", "2017-03-29T14:00:00", 3, "e1"));
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("read-only");
+      }
+    }
+    assertThat(segment.length()).isEqualTo(length);
+  }
+
+  @Test
+  public void testReadOnlyEmptyDirectory() throws Exception {
+    File directory = folder.newFolder();
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        Long.MAX_VALUE, true)) {
+      assertThat(store.getSegmentCount()).isEqualTo(0);
+      assertThat(store.query(Collections.<String>emptyList(), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10)).isEmpty();
+    }
+    assertThat(directory.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void testSecondWriterFails() throws Exception {
+    File directory = folder.newFolder();
+    try (RecommendationStore store = new RecommendationStore(directory.toPath(), 1 << 20,
+        Long.MAX_VALUE)) {
+      store.append(raw("foo", "2017-03-29T12:00:00", 1, "e1"));
+      try {
+        new RecommendationStore(directory.toPath(), 1 << 20, Long.MAX_VALUE);
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("already opened for writing");
+      }
+
+      try (RecommendationStore reader = new RecommendationStore(directory.toPath(), 1 << 20,
+          Long.MAX_VALUE, true)) {
+        assertThat(contentIds(reader.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+            RecommendationStore.Order.TIME, 10))).containsExactly("foo");
+      }
+    }
+
+    // Closing released the lock.
+    new RecommendationStore(directory.toPath(), 1 << 20, Long.MAX_VALUE).close();
+  }
+
+  @Test
+  public void testEnforceRetentionUponRoll() throws Exception {
+    long now = System.currentTimeMillis();
+    try (RecommendationStore store = createStore(200)) {
+      store.append(raw("foo", format(now - 50 * HOUR), 1, "e1"));
+      store.append(raw("bar", format(now - 49 * HOUR), 2, "e1"));
+      store.append(raw("baz", format(now - HOUR), 3, "e1"));
+
+      assertThat(store.getSegmentCount()).isEqualTo(1);
+      assertThat(contentIds(store.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10))).containsExactly("baz");
+    }
+  }
+
+  @Test
+  public void testEnforceRetentionKeepsActiveSegment() throws Exception {
+    long now = System.currentTimeMillis();
+    try (RecommendationStore store = createStore(200)) {
+      store.append(raw("foo", format(now - 2 * HOUR), 1, "e1"));
+      store.append(raw("bar", format(now - HOUR), 2, "e1"));
+
+      int actual = store.enforceRetention(now + 24 * HOUR - 90 * 60000);
+
+      assertThat(actual).isEqualTo(1);
+      assertThat(store.enforceRetention(now + 48 * HOUR)).isEqualTo(0);
+      assertThat(store.getSegmentCount()).isEqualTo(1);
+      assertThat(contentIds(store.query(Arrays.asList("e1"), 0, Long.MAX_VALUE,
+          RecommendationStore.Order.TIME, 10))).containsExactly("bar");
+    }
+  }
+
+  @Test
+  public void testGetEntityIds() throws Exception {
+    RawRecommendation recommendation = RawRecommendation.of(("{\"contributions\":["
+        + "{\"contributorType\":\"RELEVANCE_ENTITY\",\"contributor\":\"e1\"},"
+        + "{\"contributorType\":\"SOURCE\",\"contributor\":\"e2\"},"
+        + "{\"contributorType\":\"RELEVANCE_ENTITY\"}]}").getBytes(StandardCharsets.UTF_8));
+
+    assertThat(RecommendationStore.getEntityIds(recommendation)).containsExactly("e1");
+  }
+
+  private RecommendationStore createStore(long maxSegmentBytes) throws Exception {
+    return new RecommendationStore(folder.newFolder().toPath(), maxSegmentBytes, 24 * HOUR);
+  }
+
+  private String format(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(millis);
+  }
+
+  private RawRecommendation raw(String contentId, String timestamp, double score,
+      String... entityIds) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"contentID\":\"").append(contentId).append("\",\"timestamp\":\"")
+        .append(timestamp).append("\"");
+    if (!Double.isNaN(score)) {
+      sb.append(",\"score\":").append(score);
+    }
+    sb.append(",\"contributions\":[");
+    for (int i = 0; i < entityIds.length; i++) {
+      sb.append(i > 0 ? "," : "").append("{\"contributorType\":\"RELEVANCE_ENTITY\","
+          + "\"contributor\":\"").append(entityIds[i]).append("\",\"value\":1}");
+    }
+    sb.append("]}");
+    return RawRecommendation.of(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String[] contentIds(List<RawRecommendation> recommendations) {
+    String[] ret = new String[recommendations.size()];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = recommendations.get(i).getContentId();
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestHedgerTest {
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testNoHedgeWithoutSamples() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 95, 1);
+    FakeAttempt primary = new FakeAttempt("foo", 50);
+    FakeAttempt hedge = new FakeAttempt("bar", 0);
+
+    String actual = hedger.execute("/foo", primary, hedge);
+
+    assertThat(actual).isEqualTo("foo");
+    assertThat(hedge.calls).isEqualTo(0);
+    assertThat(hedger.getDelayMillis("/foo")).isEqualTo(-1);
+    assertThat(hedger.getRequestCount()).isEqualTo(1);
+    assertThat(hedger.getHedgeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFastRequestNotHedged() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 95, 1);
+    warmUp(hedger, "/foo", 20, 20);
+    FakeAttempt primary = new FakeAttempt("foo", 0);
+    FakeAttempt hedge = new FakeAttempt("bar", 0);
+
+    String actual = hedger.execute("/foo", primary, hedge);
+
+    assertThat(actual).isEqualTo("foo");
+    assertThat(hedger.getDelayMillis("/foo")).isGreaterThanOrEqualTo(20);
+    assertThat(hedger.getRequestCount()).isEqualTo(21);
+  }
+
+  @Test
+  public void testSlowRequestHedged() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 95, 1);
+    warmUp(hedger, "/foo", 20, 0);
+    FakeAttempt primary = new FakeAttempt("foo", -1);
+    FakeAttempt hedge = new FakeAttempt("bar", 0);
+
+    String actual = hedger.execute("/foo", primary, hedge);
+
+    assertThat(actual).isEqualTo("bar");
+    assertThat(primary.aborted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(hedge.calls).isEqualTo(1);
+    assertThat(hedger.getHedgeCount()).isEqualTo(1);
+    assertThat(hedger.getHedgeWinCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSlowRequestHedgedOnlyOtherKinds() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 95, 1);
+    warmUp(hedger, "/bar", 20, 0);
+    FakeAttempt primary = new FakeAttempt("foo", 50);
+    FakeAttempt hedge = new FakeAttempt("bar", 0);
+
+    String actual = hedger.execute("/foo", primary, hedge);
+
+    assertThat(actual).isEqualTo("foo");
+    assertThat(hedge.calls).isEqualTo(0);
+    assertThat(hedger.getHedgeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testHedgeBudgetExhausted() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 50, 0.01);
+    warmUp(hedger, "/foo", 20, 0);
+    FakeAttempt primary1 = new FakeAttempt("foo1", -1);
+    FakeAttempt hedge1 = new FakeAttempt("bar1", 0);
+    FakeAttempt primary2 = new FakeAttempt("foo2", 50);
+    FakeAttempt hedge2 = new FakeAttempt("bar2", 0);
+
+    String actual1 = hedger.execute("/foo", primary1, hedge1);
+    String actual2 = hedger.execute("/foo", primary2, hedge2);
+
+    assertThat(actual1).isEqualTo("bar1");
+    assertThat(actual2).isEqualTo("foo2");
+    assertThat(hedge2.calls).isEqualTo(0);
+    assertThat(hedger.getHedgeCount()).isEqualTo(1);
+    assertThat(hedger.getBudgetExhaustedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPrimaryFailsHedgeSucceeds() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 50, 1);
+    warmUp(hedger, "/foo", 20, 0);
+    FakeAttempt primary = new FakeAttempt(null, 200);
+    FakeAttempt hedge = new FakeAttempt("bar", 300);
+
+    String actual = hedger.execute("/foo", primary, hedge);
+
+    assertThat(actual).isEqualTo("bar");
+    assertThat(hedger.getHedgeWinCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBothFail() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 50, 1);
+    warmUp(hedger, "/foo", 20, 0);
+    FakeAttempt primary = new FakeAttempt(null, 50);
+    FakeAttempt hedge = new FakeAttempt(null, 0);
+
+    try {
+      hedger.execute("/foo", primary, hedge);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+  }
+
+  @Test
+  public void testFastFailureNotHedged() throws Exception {
+    RequestHedger hedger = new RequestHedger(executor, 95, 1);
+    FakeAttempt primary = new FakeAttempt(null, 0);
+    FakeAttempt hedge = new FakeAttempt("bar", 0);
+
+    try {
+      hedger.execute("/foo", primary, hedge);
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+    assertThat(hedge.calls).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPercentile() throws Exception {
+    new RequestHedger(executor, 100, 0.05);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBudget() throws Exception {
+    new RequestHedger(executor, 95, 0);
+  }
+
+  private void warmUp(RequestHedger hedger, String kind, int count, long latencyMillis)
+      throws Exception {
+    for (int i = 0; i < count; i++) {
+      hedger.execute(kind, new FakeAttempt("warm", latencyMillis),
+          new FakeAttempt("warm", latencyMillis));
+    }
+  }
+
+  /**
+   * Attempt that completes after a sleep, or blocks until it gets aborted.
+   */
+  private static class FakeAttempt implements RequestHedger.Attempt<String> {
+    private final String result;
+    private final long sleepMillis;
+    private final CountDownLatch aborted = new CountDownLatch(1);
+    private volatile int calls = 0;
+
+    /**
+     * Creates an attempt.
+     *
+     * @param result The result to return, or null to fail.
+     * @param sleepMillis The time to take, or -1 to block until aborted.
+     */
+    FakeAttempt(String result, long sleepMillis) {
+      this.result = result;
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override
+    public String call() throws Exception {
+      calls++;
+      if (sleepMillis < 0) {
+        aborted.await();
+        throw new IOException("aborted");
+      }
+      Thread.sleep(sleepMillis);
+      if (result == null) {
+        throw new IOException("catch me");
+      }
+      return result;
+    }
+
+    @Override
+    public void abort() {
+      aborted.countDown();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class RequestTracerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    RequestTracer.attach(null);
+  }
+
+  @Test
+  public void testRecordWithoutTrace() {
+    RequestTracer.record(RequestTracer.Phase.DNS, System.nanoTime());
+
+    assertThat(RequestTracer.current()).isNull();
+  }
+
+  @Test
+  public void testBeginEnd() throws Exception {
+    StringWriter writer = new StringWriter();
+    RequestTracer tracer = new RequestTracer(writer);
+
+    RequestTracer.Trace poll = tracer.begin("poll");
+    RequestTracer.record(RequestTracer.Phase.DEDUP, System.nanoTime() - 2000);
+    RequestTracer.Trace request = tracer.begin("/v2/query");
+    RequestTracer.record(RequestTracer.Phase.TTFB, System.nanoTime() - 5000);
+    RequestTracer.record(RequestTracer.Phase.TTFB, System.nanoTime() - 5000);
+    assertThat(RequestTracer.current()).isSameAs(request);
+    tracer.end(request);
+    assertThat(RequestTracer.current()).isSameAs(poll);
+    tracer.end(poll);
+    assertThat(RequestTracer.current()).isNull();
+
+    assertThat(request.getNanos(RequestTracer.Phase.TTFB)).isGreaterThanOrEqualTo(10000);
+    assertThat(request.getNanos(RequestTracer.Phase.DEDUP)).isEqualTo(-1);
+    assertThat(poll.getNanos(RequestTracer.Phase.DEDUP)).isGreaterThanOrEqualTo(2000);
+
+    String[] lines = writer.toString().split("\n");
+    assertThat(lines).hasSize(2);
+    JsonObject requestLine = new JsonParser().parse(lines[0]).getAsJsonObject();
+    assertThat(requestLine.get("id").getAsLong()).isEqualTo(request.getId());
+    assertThat(requestLine.get("parent").getAsLong()).isEqualTo(poll.getId());
+    assertThat(requestLine.get("name").getAsString()).isEqualTo("/v2/query");
+    assertThat(requestLine.getAsJsonObject("phases").get("TTFB").getAsLong())
+        .isGreaterThanOrEqualTo(10);
+    assertThat(requestLine.getAsJsonObject("phases").has("DEDUP")).isFalse();
+    JsonObject pollLine = new JsonParser().parse(lines[1]).getAsJsonObject();
+    assertThat(pollLine.has("parent")).isFalse();
+    assertThat(pollLine.get("name").getAsString()).isEqualTo("poll");
+
+    assertThat(tracer.getHistogram(RequestTracer.Phase.TTFB).getCount()).isEqualTo(1);
+    assertThat(tracer.getHistogram(RequestTracer.Phase.DEDUP).getCount()).isEqualTo(1);
+    assertThat(tracer.getHistogram(RequestTracer.Phase.DNS).getCount()).isEqualTo(0);
+    assertThat(tracer.getTotalHistograms()).containsOnlyKeys("/v2/query", "poll");
+  }
+
+  @Test
+  public void testAttachOnOtherThread() throws Exception {
+    final RequestTracer tracer = new RequestTracer();
+    final RequestTracer.Trace trace = tracer.begin("foo");
+
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        RequestTracer.Trace previous = RequestTracer.attach(trace);
+        RequestTracer.record(RequestTracer.Phase.CONNECT, System.nanoTime() - 1000);
+        RequestTracer.attach(previous);
+      }
+    };
+    thread.start();
+    thread.join();
+    tracer.end(trace);
+
+    assertThat(trace.getNanos(RequestTracer.Phase.CONNECT)).isGreaterThanOrEqualTo(1000);
+  }
+
+  @Test
+  public void testRecordAfterEndIgnored() throws Exception {
+    RequestTracer tracer = new RequestTracer();
+    RequestTracer.Trace trace = tracer.begin("foo");
+    RequestTracer.record(RequestTracer.Phase.TTFB, System.nanoTime() - 1000);
+    tracer.end(trace);
+    long ttfb = trace.getNanos(RequestTracer.Phase.TTFB);
+
+    RequestTracer.Trace previous = RequestTracer.attach(trace);
+    RequestTracer.record(RequestTracer.Phase.TTFB, System.nanoTime() - 1000000);
+    RequestTracer.record(RequestTracer.Phase.BODY, System.nanoTime() - 1000000);
+    RequestTracer.attach(previous);
+
+    assertThat(trace.getNanos(RequestTracer.Phase.TTFB)).isEqualTo(ttfb);
+    assertThat(trace.getNanos(RequestTracer.Phase.BODY)).isEqualTo(-1);
+  }
+
+  @Test
+  public void testTraceFile() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("trace.jsonl");
+    RequestTracer tracer = new RequestTracer(file);
+    tracer.end(tracer.begin("foo"));
+    tracer.end(tracer.begin("bar"));
+    tracer.close();
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0)).contains("\"name\":\"foo\"");
+    assertThat(lines.get(1)).contains("\"name\":\"bar\"");
+  }
+
+  @Test
+  public void testWrap() throws Exception {
+    RequestTracer tracer = new RequestTracer();
+    ResponseHandler<String> handler = tracer.wrap(new ResponseHandler<String>() {
+      @Override
+      public String handleResponse(HttpResponse response) throws IOException {
+        return EntityUtils.toString(response.getEntity()).toUpperCase();
+      }
+    });
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity("foo", StandardCharsets.UTF_8));
+
+    RequestTracer.Trace trace = tracer.begin("foo");
+    String actual = handler.handleResponse(response);
+    tracer.end(trace);
+
+    assertThat(actual).isEqualTo("FOO");
+    assertThat(trace.getNanos(RequestTracer.Phase.BODY)).isGreaterThan(0);
+    assertThat(trace.getNanos(RequestTracer.Phase.PARSE)).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void testWrapWithoutTrace() throws Exception {
+    RequestTracer tracer = new RequestTracer();
+    ResponseHandler<String> handler = tracer.wrap(new ResponseHandler<String>() {
+      @Override
+      public String handleResponse(HttpResponse response) throws IOException {
+        return EntityUtils.toString(response.getEntity());
+      }
+    });
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity("foo", StandardCharsets.UTF_8));
+
+    assertThat(handler.handleResponse(response)).isEqualTo("foo");
+  }
+
+  @Test
+  public void testCreateHttpClient() throws Exception {
+    RequestTracer tracer = new RequestTracer();
+
+    CloseableHttpClient client = tracer.createHttpClient(2, 20);
+
+    assertThat(client).isNotNull();
+    client.close();
+  }
+}
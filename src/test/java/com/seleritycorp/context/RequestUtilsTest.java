@@ -18,20 +18,29 @@ package com.seleritycorp.context;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.newCapture;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -52,11 +61,11 @@ public class RequestUtilsTest extends EasyMockSupport {
     RequestUtils requestUtils = new RequestUtils("https://foo.example.com/");
     CloseableHttpClient httpClient = requestUtils.getHttpClient();
 
-    httpClient.close();
-
     verifyAll();
     
     assertThat(httpClient).isNotNull();
+    assertThat(requestUtils.getHttpClient()).isSameAs(httpClient);
+    httpClient.close();
   }
 
   @Test  
@@ -70,7 +79,6 @@ public class RequestUtilsTest extends EasyMockSupport {
     Capture<HttpUriRequest> requestCapture = newCapture();
     Capture<ResponseHandler<JsonObject>> handlerCapture = newCapture();
     expect(httpClient.execute(capture(requestCapture), capture(handlerCapture))).andReturn(response);
-    httpClient.close();
 
     replayAll();
 
@@ -85,6 +93,32 @@ public class RequestUtilsTest extends EasyMockSupport {
     assertThat(actual.entrySet()).hasSize(1);
   }
 
+  @Test  
+  public void testPostFormRequestOk() throws Exception {
+    byte[] payload = "json=%7B%22foo%22%3A%22bar%2Fbaz%22%7D".getBytes("US-ASCII");
+
+    JsonObject response = new JsonObject();
+    response.addProperty("quux", "quuux");
+
+    Capture<HttpUriRequest> requestCapture = newCapture();
+    Capture<ResponseHandler<JsonObject>> handlerCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), capture(handlerCapture))).andReturn(response);
+
+    replayAll();
+
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    JsonObject actual = requestUtils.postForm("pathFoo", payload);
+
+    verifyAll();
+
+    verifyPostRequest(requestCapture);
+    verifyHandler(handlerCapture);
+    HttpPost post = (HttpPost) requestCapture.getValue();
+    assertThat(post.getEntity().getContentType().getValue())
+        .isEqualTo("application/x-www-form-urlencoded");
+    assertThat(actual.getAsJsonPrimitive("quux").getAsString()).isEqualTo("quuux");
+  }
+
   @Test  
   public void testPostRequestClientProtocolException() throws Exception {
     JsonObject payload = new JsonObject();
@@ -95,7 +129,6 @@ public class RequestUtilsTest extends EasyMockSupport {
     Capture<HttpUriRequest> requestCapture = newCapture();
     Capture<ResponseHandler<JsonObject>> handlerCapture = newCapture();
     expect(httpClient.execute(capture(requestCapture), capture(handlerCapture))).andThrow(e);
-    httpClient.close();
 
     replayAll();
 
@@ -123,7 +156,6 @@ public class RequestUtilsTest extends EasyMockSupport {
     Capture<HttpUriRequest> requestCapture = newCapture();
     Capture<ResponseHandler<JsonObject>> handlerCapture = newCapture();
     expect(httpClient.execute(capture(requestCapture), capture(handlerCapture))).andThrow(e);
-    httpClient.close();
 
     replayAll();
 
@@ -141,6 +173,322 @@ public class RequestUtilsTest extends EasyMockSupport {
     verifyHandler(handlerCapture);
   }
 
+  @Test
+  public void testPostFailsOverOnConnectFailure() throws Exception {
+    JsonObject payload = new JsonObject();
+    payload.addProperty("foo", "bar/baz");
+
+    JsonObject response = new JsonObject();
+    response.addProperty("quux", "quuux");
+
+    Capture<HttpUriRequest> requestCapture1 = newCapture();
+    Capture<HttpUriRequest> requestCapture2 = newCapture();
+    expect(httpClient.execute(capture(requestCapture1), anyObject(RequestResponseHandler.class)))
+        .andThrow(new ConnectException("catch me"));
+    expect(httpClient.execute(capture(requestCapture2), anyObject(RequestResponseHandler.class)))
+        .andReturn(response);
+
+    replayAll();
+
+    EndpointBalancer balancer = new EndpointBalancer(Arrays.asList("https://foo.example.com/",
+        "https://bar.example.com/"));
+    RequestUtils requestUtils = new RequestUtilsMock(balancer);
+    JsonObject actual = requestUtils.post("pathFoo", payload);
+
+    verifyAll();
+
+    String url1 = requestCapture1.getValue().getURI().toString();
+    String url2 = requestCapture2.getValue().getURI().toString();
+    assertThat(url1).isIn("https://foo.example.com/pathFoo", "https://bar.example.com/pathFoo");
+    assertThat(url2).isIn("https://foo.example.com/pathFoo", "https://bar.example.com/pathFoo");
+    assertThat(url2).isNotEqualTo(url1);
+    assertThat(actual.getAsJsonPrimitive("quux").getAsString()).isEqualTo("quuux");
+    long failures = 0;
+    for (EndpointBalancer.Endpoint endpoint : balancer.getEndpoints()) {
+      failures += endpoint.getFailureCount();
+    }
+    assertThat(failures).isEqualTo(1);
+  }
+
+  @Test
+  public void testPostResumingSessionFailsWhenSessionMoves() throws Exception {
+    JsonObject payload = new JsonObject();
+    JsonObject response = new JsonObject();
+
+    Capture<HttpUriRequest> requestCapture1 = newCapture();
+    Capture<HttpUriRequest> requestCapture2 = newCapture();
+    expect(httpClient.execute(capture(requestCapture1), anyObject(RequestResponseHandler.class)))
+        .andThrow(new ConnectException("catch me"));
+    expect(httpClient.execute(capture(requestCapture2), anyObject(RequestResponseHandler.class)))
+        .andReturn(response);
+
+    replayAll();
+
+    EndpointBalancer balancer = new EndpointBalancer(Arrays.asList("https://foo.example.com/",
+        "https://bar.example.com/"));
+    RequestUtils requestUtils = new RequestUtilsMock(balancer);
+    try {
+      requestUtils.post("pathFoo", payload, new RequestResponseHandler(), false, "sessionFoo",
+          true);
+      failBecauseExceptionWasNotThrown(RequestUtils.SessionMovedException.class);
+    } catch (RequestUtils.SessionMovedException e) {
+      assertThat(e.getMessage()).contains("sessionFoo");
+    }
+    JsonObject actual = requestUtils.post("pathFoo", payload, new RequestResponseHandler(),
+        false, "sessionFoo", false);
+
+    verifyAll();
+
+    String url1 = requestCapture1.getValue().getURI().toString();
+    String url2 = requestCapture2.getValue().getURI().toString();
+    assertThat(url2).isNotEqualTo(url1);
+    assertThat(url2).isEqualTo(balancer.getSessionEndpoint("sessionFoo").getUrl() + "pathFoo");
+    assertThat(actual).isSameAs(response);
+    long requests = 0;
+    for (EndpointBalancer.Endpoint endpoint : balancer.getEndpoints()) {
+      requests += endpoint.getRequestCount();
+    }
+    assertThat(requests).isEqualTo(2);
+  }
+
+  @Test
+  public void testPostDoesNotFailOverOnOtherFailures() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    expect(httpClient.execute(anyObject(HttpUriRequest.class),
+        anyObject(RequestResponseHandler.class))).andThrow(new ClientProtocolException("catch me"));
+
+    replayAll();
+
+    RequestUtils requestUtils = new RequestUtilsMock(new EndpointBalancer(Arrays.asList(
+        "https://foo.example.com/", "https://bar.example.com/")));
+    try {
+      requestUtils.post("pathFoo", payload);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException actual) {
+      assertThat(actual.getMessage()).contains("catch me");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testPostReadOnlyHedger() throws Exception {
+    JsonObject payload = new JsonObject();
+    payload.addProperty("foo", "bar/baz");
+
+    JsonObject response = new JsonObject();
+    response.addProperty("quux", "quuux");
+
+    Capture<HttpUriRequest> requestCapture = newCapture();
+    Capture<ResponseHandler<JsonObject>> handlerCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), capture(handlerCapture))).andReturn(response);
+
+    replayAll();
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    RequestHedger hedger = new RequestHedger(executor, 95, 0.05);
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setHedger(hedger);
+    JsonObject actual;
+    try {
+      actual = requestUtils.post("pathFoo", payload, true);
+    } finally {
+      executor.shutdown();
+    }
+
+    verifyAll();
+
+    verifyPostRequest(requestCapture);
+    verifyHandler(handlerCapture);
+    assertThat(actual.getAsJsonPrimitive("quux").getAsString()).isEqualTo("quuux");
+    assertThat(hedger.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPostNotReadOnlyBypassesHedger() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    JsonObject response = new JsonObject();
+
+    expect(httpClient.execute(anyObject(HttpUriRequest.class),
+        anyObject(RequestResponseHandler.class))).andReturn(response);
+
+    replayAll();
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    RequestHedger hedger = new RequestHedger(executor, 95, 0.05);
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setHedger(hedger);
+    try {
+      requestUtils.post("pathFoo", payload);
+    } finally {
+      executor.shutdown();
+    }
+
+    verifyAll();
+
+    assertThat(hedger.getRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPostTraced() throws Exception {
+    JsonObject payload = new JsonObject();
+    payload.addProperty("foo", "bar/baz");
+
+    JsonObject response = new JsonObject();
+    response.addProperty("quux", "quuux");
+
+    Capture<HttpUriRequest> requestCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), anyObject(ResponseHandler.class)))
+        .andReturn(response);
+
+    replayAll();
+
+    RequestTracer tracer = new RequestTracer();
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setTracer(tracer);
+    RequestTracer.Trace poll = tracer.begin("poll");
+    JsonObject actual;
+    try {
+      actual = requestUtils.post("pathFoo", payload);
+    } finally {
+      tracer.end(poll);
+    }
+
+    verifyAll();
+
+    verifyPostRequest(requestCapture);
+    assertThat(actual.getAsJsonPrimitive("quux").getAsString()).isEqualTo("quuux");
+    assertThat(tracer.getTotalHistograms()).containsOnlyKeys("pathFoo", "poll");
+    assertThat(RequestTracer.current()).isNull();
+  }
+
+  @Test
+  public void testPostTimeouts() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    Capture<HttpUriRequest> requestCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), anyObject(RequestResponseHandler.class)))
+        .andReturn(new JsonObject());
+
+    replayAll();
+
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setTimeouts(1000, 2000, 3000, 0);
+    requestUtils.post("pathFoo", payload);
+
+    verifyAll();
+
+    RequestConfig config = ((HttpPost) requestCapture.getValue()).getConfig();
+    assertThat(config.getConnectTimeout()).isEqualTo(1000);
+    assertThat(config.getConnectionRequestTimeout()).isEqualTo(2000);
+    assertThat(config.getSocketTimeout()).isEqualTo(3000);
+  }
+
+  @Test
+  public void testPostSocketTimeoutCounted() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    expect(httpClient.execute(anyObject(HttpUriRequest.class),
+        anyObject(RequestResponseHandler.class))).andThrow(new SocketTimeoutException("catch me"));
+
+    replayAll();
+
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setTimeouts(1000, 1000, 1000, 0);
+    try {
+      requestUtils.post("pathFoo", payload);
+      failBecauseExceptionWasNotThrown(SocketTimeoutException.class);
+    } catch (SocketTimeoutException actual) {
+      assertThat(actual.getMessage()).contains("catch me");
+    }
+
+    verifyAll();
+
+    assertThat(requestUtils.getSocketTimeoutCount()).isEqualTo(1);
+    assertThat(requestUtils.getConnectTimeoutCount()).isEqualTo(0);
+    assertThat(requestUtils.getLeaseTimeoutCount()).isEqualTo(0);
+    assertThat(requestUtils.getDeadlineExceededCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCallerDeadlineAbortsRequest() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    final Capture<HttpUriRequest> requestCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), anyObject(RequestResponseHandler.class)))
+        .andAnswer(new IAnswer<JsonObject>() {
+          @Override
+          public JsonObject answer() throws Throwable {
+            HttpPost post = (HttpPost) requestCapture.getValue();
+            while (!post.isAborted()) {
+              Thread.sleep(5);
+            }
+            throw new IOException("aborted");
+          }
+        });
+
+    replayAll();
+
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setTimeouts(0, 0, 0, 60000);
+    long previous = RequestUtils.attachDeadline(System.currentTimeMillis() + 100);
+    try {
+      requestUtils.post("pathFoo", payload);
+      failBecauseExceptionWasNotThrown(InterruptedIOException.class);
+    } catch (InterruptedIOException actual) {
+      assertThat(actual.getMessage()).contains("did not complete");
+    } finally {
+      RequestUtils.attachDeadline(previous);
+    }
+
+    verifyAll();
+
+    assertThat(previous).isEqualTo(0);
+    assertThat(requestUtils.getDeadlineExceededCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPostDeadlineAbortsRequest() throws Exception {
+    JsonObject payload = new JsonObject();
+
+    final Capture<HttpUriRequest> requestCapture = newCapture();
+    expect(httpClient.execute(capture(requestCapture), anyObject(RequestResponseHandler.class)))
+        .andAnswer(new IAnswer<JsonObject>() {
+          @Override
+          public JsonObject answer() throws Throwable {
+            HttpPost post = (HttpPost) requestCapture.getValue();
+            while (!post.isAborted()) {
+              Thread.sleep(5);
+            }
+            throw new IOException("aborted");
+          }
+        });
+
+    replayAll();
+
+    RequestUtils requestUtils = createRequestUtilsPartialMock();
+    requestUtils.setTimeouts(0, 0, 0, 100);
+    try {
+      requestUtils.post("pathFoo", payload);
+      failBecauseExceptionWasNotThrown(InterruptedIOException.class);
+    } catch (InterruptedIOException actual) {
+      assertThat(actual.getMessage()).contains("within 100 ms");
+    }
+
+    verifyAll();
+
+    assertThat(requestUtils.getDeadlineExceededCount()).isEqualTo(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetTimeoutsNegative() throws Exception {
+    replayAll();
+
+    createRequestUtilsPartialMock().setTimeouts(1000, 1000, -1, 0);
+  }
+
   private void verifyPostRequest(Capture<HttpUriRequest> requestCapture) throws IOException {
     HttpUriRequest request = requestCapture.getValue();
     assertThat(request.getMethod()).isEqualTo("POST");
@@ -184,6 +532,10 @@ public class RequestUtilsTest extends EasyMockSupport {
       super("https://foo.example.com/");
     }
 
+    public RequestUtilsMock(EndpointBalancer balancer) {
+      super(balancer);
+    }
+
     @Override
     protected CloseableHttpClient getHttpClient() {
       return httpClient;
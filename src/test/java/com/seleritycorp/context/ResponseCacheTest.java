@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+  private static final ResponseCache.Weigher LENGTH_WEIGHER = new ResponseCache.Weigher() {
+    @Override
+    public long weigh(Object response) {
+      return response.toString().length();
+    }
+  };
+
+  private List<Runnable> refreshes;
+  private Executor refresher;
+
+  @Before
+  public void setUp() {
+    refreshes = new ArrayList<>();
+    refresher = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        refreshes.add(command);
+      }
+    };
+  }
+
+  @Test
+  public void testFreshHit() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+
+    assertThat(cache.get("/foo", "key", loader("bar1"), 0)).isEqualTo("bar1");
+    assertThat(cache.get("/foo", "key", loader("bar2"), 999)).isEqualTo("bar1");
+
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getWeight()).isEqualTo(4);
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+
+    assertThat(cache.get("/foo", "key", loader("bar1"), 0)).isEqualTo("bar1");
+    assertThat(cache.get("/foo", "key", loader("bar2"), 1000)).isEqualTo("bar2");
+    assertThat(cache.get("/foo", "key", loader("bar3"), 1500)).isEqualTo("bar2");
+
+    assertThat(cache.getMissCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(refreshes).isEmpty();
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 1000);
+
+    cache.get("/foo", "key", loader("bar1"), 0);
+    assertThat(cache.get("/foo", "key", loader("bar2"), 1500)).isEqualTo("bar1");
+    assertThat(cache.get("/foo", "key", loader("bar3"), 1600)).isEqualTo("bar1");
+
+    assertThat(refreshes).hasSize(1);
+    refreshes.get(0).run();
+
+    assertThat(cache.get("/foo", "key", loader("bar4"), System.currentTimeMillis()))
+        .isEqualTo("bar2");
+    assertThat(cache.getStaleHitCount()).isEqualTo(2);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFailedRefreshAllowsRetry() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 1000);
+
+    cache.get("/foo", "key", loader("bar1"), 0);
+    Callable<String> failing = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        throw new Exception("catch me");
+      }
+    };
+    assertThat(cache.get("/foo", "key", failing, 1500)).isEqualTo("bar1");
+    refreshes.get(0).run();
+    assertThat(cache.get("/foo", "key", loader("bar2"), 1600)).isEqualTo("bar1");
+
+    assertThat(refreshes).hasSize(2);
+  }
+
+  @Test
+  public void testEndpointWithoutPolicy() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+    cache.setPolicy("/bar", 0, 0);
+
+    assertThat(cache.get("/bar", "key", loader("baz1"), 0)).isEqualTo("baz1");
+    assertThat(cache.get("/bar", "key", loader("baz2"), 0)).isEqualTo("baz2");
+    assertThat(cache.get("/qux", "key", loader("baz3"), 0)).isEqualTo("baz3");
+
+    assertThat(cache.getMissCount()).isEqualTo(0);
+    assertThat(cache.getWeight()).isEqualTo(0);
+  }
+
+  @Test
+  public void testEndpointWithoutPolicyLoadsOutsideLock() throws Exception {
+    final ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+
+    String actual = cache.get("/foo", "key", new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return Thread.holdsLock(cache) ? "locked" : "unlocked";
+      }
+    }, 0);
+
+    assertThat(actual).isEqualTo("unlocked");
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ResponseCache cache = new ResponseCache(10, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+
+    cache.get("/foo", "key1", loader("1234"), 0);
+    cache.get("/foo", "key2", loader("5678"), 0);
+    // Using key1, so key2 is the least recently used.
+    cache.get("/foo", "key1", loader("unused"), 0);
+    cache.get("/foo", "key3", loader("9012"), 0);
+
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+    assertThat(cache.getWeight()).isEqualTo(8);
+    assertThat(cache.get("/foo", "key1", loader("fetched"), 0)).isEqualTo("1234");
+    assertThat(cache.get("/foo", "key2", loader("fetched"), 0)).isEqualTo("fetched");
+  }
+
+  @Test
+  public void testOversizedResponsesDoNotGetCached() throws Exception {
+    ResponseCache cache = new ResponseCache(10, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+
+    cache.get("/foo", "key1", loader("1234"), 0);
+    assertThat(cache.get("/foo", "key2", loader("12345678901"), 0)).isEqualTo("12345678901");
+
+    assertThat(cache.getWeight()).isEqualTo(4);
+    assertThat(cache.getEvictionCount()).isEqualTo(0);
+    assertThat(cache.get("/foo", "key2", loader("fetched"), 0)).isEqualTo("fetched");
+  }
+
+  @Test
+  public void testLoaderFailure() throws Exception {
+    ResponseCache cache = new ResponseCache(100, LENGTH_WEIGHER, refresher);
+    cache.setPolicy("/foo", 1000, 0);
+
+    try {
+      cache.get("/foo", "key", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          throw new Exception("catch me");
+        }
+      }, 0);
+      failBecauseExceptionWasNotThrown(Exception.class);
+    } catch (Exception e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+
+    assertThat(cache.get("/foo", "key", loader("bar"), 0)).isEqualTo("bar");
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      new ResponseCache(0, LENGTH_WEIGHER, refresher);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("positive");
+    }
+    try {
+      new ResponseCache(1, LENGTH_WEIGHER, refresher).setPolicy("/foo", -1, 0);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("negative");
+    }
+  }
+
+  private Callable<String> loader(final String response) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        return response;
+      }
+    };
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SeenContentFilterTest {
+  @Test
+  public void testFilterUnseenFirstBatch() {
+    SeenContentFilter filter = new SeenContentFilter(10);
+    RawRecommendation foo = raw("foo");
+    RawRecommendation bar = raw("bar");
+
+    List<RawRecommendation> actual = filter.filterUnseen(Arrays.asList(foo, bar));
+
+    assertThat(actual).containsExactly(foo, bar);
+  }
+
+  @Test
+  public void testFilterUnseenDropsSeen() {
+    SeenContentFilter filter = new SeenContentFilter(10);
+    RawRecommendation foo = raw("foo");
+    RawRecommendation bar = raw("bar");
+    filter.filterUnseen(Arrays.asList(foo));
+
+    List<RawRecommendation> actual = filter.filterUnseen(Arrays.asList(raw("foo"), bar));
+
+    assertThat(actual).containsExactly(bar);
+  }
+
+  @Test
+  public void testFilterUnseenDropsDuplicatesWithinBatch() {
+    SeenContentFilter filter = new SeenContentFilter(10);
+    RawRecommendation foo = raw("foo");
+
+    List<RawRecommendation> actual = filter.filterUnseen(Arrays.asList(foo, raw("foo")));
+
+    assertThat(actual).containsExactly(foo);
+  }
+
+  @Test
+  public void testFilterUnseenDropsWithoutContentId() {
+    SeenContentFilter filter = new SeenContentFilter(10);
+    RawRecommendation noId = RawRecommendation.of("{}".getBytes(StandardCharsets.UTF_8));
+
+    List<RawRecommendation> actual = filter.filterUnseen(Arrays.asList(noId));
+
+    assertThat(actual).isEmpty();
+  }
+
+  @Test
+  public void testFilterUnseenForgetsOldest() {
+    SeenContentFilter filter = new SeenContentFilter(2);
+    filter.filterUnseen(Arrays.asList(raw("foo"), raw("bar"), raw("baz")));
+    RawRecommendation foo = raw("foo");
+
+    List<RawRecommendation> actual = filter.filterUnseen(Arrays.asList(foo, raw("baz")));
+
+    assertThat(actual).containsExactly(foo);
+  }
+
+  private RawRecommendation raw(String contentId) {
+    return RawRecommendation.of(("{\"contentID\":\"" + contentId + "\"}").getBytes(
+        StandardCharsets.UTF_8));
+  }
+}
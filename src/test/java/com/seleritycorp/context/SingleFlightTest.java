@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentCallsShareResult() throws Exception {
+    final SingleFlight<String> singleFlight = new SingleFlight<>();
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<Object> callable = new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        calls.incrementAndGet();
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        return new Object();
+      }
+    };
+
+    Future<Object> first = executor.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return singleFlight.execute("foo", callable);
+      }
+    });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    Future<Object> second = executor.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return singleFlight.execute("foo", callable);
+      }
+    });
+    while (singleFlight.getCollapsedCount() == 0) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    assertThat(second.get(10, TimeUnit.SECONDS)).isSameAs(first.get(10, TimeUnit.SECONDS));
+    assertThat(calls.get()).isEqualTo(1);
+    assertThat(singleFlight.getExecutedCount()).isEqualTo(1);
+    assertThat(singleFlight.getCollapsedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConcurrentCallsShareException() throws Exception {
+    final SingleFlight<String> singleFlight = new SingleFlight<>();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<Object> callable = new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        throw new IllegalStateException("catch me");
+      }
+    };
+
+    executor.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return singleFlight.execute("foo", callable);
+      }
+    });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        while (singleFlight.getCollapsedCount() == 0) {
+          Thread.yield();
+        }
+        release.countDown();
+      }
+    };
+    releaser.start();
+
+    try {
+      singleFlight.execute("foo", callable);
+      failBecauseExceptionWasNotThrown(IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+    releaser.join();
+
+    assertThat(singleFlight.getExecutedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSequentialCallsRunAgain() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+    final AtomicInteger calls = new AtomicInteger();
+    Callable<Integer> callable = new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return calls.incrementAndGet();
+      }
+    };
+
+    assertThat(singleFlight.execute("foo", callable)).isEqualTo(1);
+    assertThat(singleFlight.execute("foo", callable)).isEqualTo(2);
+
+    assertThat(singleFlight.getExecutedCount()).isEqualTo(2);
+    assertThat(singleFlight.getCollapsedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFailedCallIsNotRemembered() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+
+    try {
+      singleFlight.execute("foo", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          throw new Exception("catch me");
+        }
+      });
+      failBecauseExceptionWasNotThrown(Exception.class);
+    } catch (Exception e) {
+      assertThat(e.getMessage()).isEqualTo("catch me");
+    }
+    String actual = singleFlight.execute("foo", new Callable<String>() {
+      @Override
+      public String call() {
+        return "bar";
+      }
+    });
+
+    assertThat(actual).isEqualTo("bar");
+  }
+
+  @Test
+  public void testDifferentKeysDoNotCollapse() throws Exception {
+    final SingleFlight<String> singleFlight = new SingleFlight<>();
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+
+    Future<String> foo = executor.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return singleFlight.execute("foo", awaiting(bothStarted, "foo"));
+      }
+    });
+    Future<String> bar = executor.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return singleFlight.execute("bar", awaiting(bothStarted, "bar"));
+      }
+    });
+
+    assertThat(foo.get(10, TimeUnit.SECONDS)).isEqualTo("foo");
+    assertThat(bar.get(10, TimeUnit.SECONDS)).isEqualTo("bar");
+    assertThat(singleFlight.getExecutedCount()).isEqualTo(2);
+    assertThat(singleFlight.getCollapsedCount()).isEqualTo(0);
+  }
+
+  private Callable<String> awaiting(final CountDownLatch latch, final String result) {
+    return new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        latch.countDown();
+        assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        return result;
+      }
+    };
+  }
+}
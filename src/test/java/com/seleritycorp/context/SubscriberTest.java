@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SubscriberTest {
+  @Test
+  public void testOfferPoll() throws Exception {
+    Subscriber subscriber = new Subscriber("foo", 2, Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+    RawRecommendation foo = raw("foo");
+    RawRecommendation bar = raw("bar");
+
+    assertThat(subscriber.offer(foo)).isTrue();
+    assertThat(subscriber.offer(bar)).isTrue();
+
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isNull();
+    assertThat(subscriber.getDroppedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testOfferDropOldest() throws Exception {
+    Subscriber subscriber = new Subscriber("foo", 2, Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+    RawRecommendation bar = raw("bar");
+    RawRecommendation baz = raw("baz");
+
+    subscriber.offer(raw("foo"));
+    subscriber.offer(bar);
+    assertThat(subscriber.offer(baz)).isTrue();
+
+    assertThat(subscriber.isClosed()).isFalse();
+    assertThat(subscriber.getDroppedCount()).isEqualTo(1);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(bar);
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(baz);
+  }
+
+  @Test
+  public void testOfferDisconnect() throws Exception {
+    Subscriber subscriber = new Subscriber("foo", 1, Subscriber.SlowConsumerPolicy.DISCONNECT);
+    RawRecommendation foo = raw("foo");
+
+    subscriber.offer(foo);
+    assertThat(subscriber.offer(raw("bar"))).isFalse();
+
+    assertThat(subscriber.isClosed()).isTrue();
+    assertThat(subscriber.poll(0, TimeUnit.SECONDS)).isSameAs(foo);
+    assertThat(subscriber.poll(1, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test
+  public void testOfferAfterClose() throws Exception {
+    Subscriber subscriber = new Subscriber("foo", 1, Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+    subscriber.close();
+
+    assertThat(subscriber.offer(raw("foo"))).isFalse();
+    assertThat(subscriber.poll(1, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test
+  public void testPollWakesUpOnOffer() throws Exception {
+    final Subscriber subscriber = new Subscriber("foo", 1,
+        Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+    final RawRecommendation foo = raw("foo");
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          // Offering right away is fine too.
+        }
+        subscriber.offer(foo);
+      }
+    };
+    thread.start();
+
+    RawRecommendation actual = subscriber.poll(10, TimeUnit.SECONDS);
+
+    thread.join();
+    assertThat(actual).isSameAs(foo);
+  }
+
+  @Test
+  public void testNonPositiveCapacity() {
+    try {
+      new Subscriber("foo", 0, Subscriber.SlowConsumerPolicy.DROP_OLDEST);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("0");
+    }
+  }
+
+  private RawRecommendation raw(String contentId) {
+    return RawRecommendation.of(("{\"contentID\":\"" + contentId + "\"}").getBytes(
+        StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TimestampUtilsTest {
+  @Test
+  public void testParseMillisPlain() {
+    assertThat(TimestampUtils.parseMillis("1970-01-01T00:00:00")).isEqualTo(0);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56")).isEqualTo(1490790896000L);
+  }
+
+  @Test
+  public void testParseMillisFraction() {
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56.7")).isEqualTo(1490790896700L);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56.789")).isEqualTo(
+        1490790896789L);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56.789999")).isEqualTo(
+        1490790896789L);
+  }
+
+  @Test
+  public void testParseMillisZones() {
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56Z")).isEqualTo(1490790896000L);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T14:34:56+02:00")).isEqualTo(
+        1490790896000L);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T07:04:56.1-0530")).isEqualTo(
+        1490790896100L);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T13:34:56+01")).isEqualTo(1490790896000L);
+  }
+
+  @Test
+  public void testParseMillisSpaceSeparator() {
+    assertThat(TimestampUtils.parseMillis("2017-03-29 12:34:56")).isEqualTo(1490790896000L);
+  }
+
+  @Test
+  public void testParseMillisBeforeEpochAndLeapYear() {
+    assertThat(TimestampUtils.parseMillis("1969-12-31T23:59:59")).isEqualTo(-1000);
+    assertThat(TimestampUtils.parseMillis("2016-02-29T00:00:00")).isEqualTo(1456704000000L);
+  }
+
+  @Test
+  public void testParseMillisMatchesSimpleDateFormat() throws Exception {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    for (long millis = -1000000000000L; millis < 4000000000000L; millis += 12345678901L) {
+      assertThat(TimestampUtils.parseMillis(format.format(millis))).isEqualTo(millis);
+    }
+  }
+
+  @Test
+  public void testParseMillisInvalid() {
+    assertThat(TimestampUtils.parseMillis(null)).isEqualTo(TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("")).isEqualTo(TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("tsFoo")).isEqualTo(TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("2017-13-29T12:34:56")).isEqualTo(
+        TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("2017-03-29X12:34:56")).isEqualTo(
+        TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56.")).isEqualTo(
+        TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56Zfoo")).isEqualTo(
+        TimestampUtils.UNKNOWN);
+    assertThat(TimestampUtils.parseMillis("2017-03-29T12:34:56+0x:00")).isEqualTo(
+        TimestampUtils.UNKNOWN);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.Assertions.offset;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TopKAggregatorTest {
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long NOW = TimestampUtils.parseMillis("2017-06-01T12:00:00Z");
+
+  @Test
+  public void testRanksByScore() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 24 * HOUR, NOW);
+    aggregator.append(raw("foo", "2017-06-01T12:00:00Z", 2), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 8), NOW);
+    aggregator.append(raw("baz", "2017-06-01T12:00:00Z", 4), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(actual).hasSize(3);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("bar");
+    assertThat(actual.get(0).getDecayedScore()).isEqualTo(8);
+    assertThat(actual.get(1).getRecommendation().getContentId()).isEqualTo("baz");
+    assertThat(actual.get(2).getRecommendation().getContentId()).isEqualTo("foo");
+  }
+
+  @Test
+  public void testDecayFavorsNewerItems() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 24 * HOUR, NOW);
+    aggregator.append(raw("old", "2017-06-01T09:00:00Z", 10), NOW);
+    aggregator.append(raw("new", "2017-06-01T12:00:00Z", 2), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW + HOUR);
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("new");
+    assertThat(actual.get(0).getDecayedScore()).isEqualTo(1, offset(1e-9));
+    assertThat(actual.get(1).getRecommendation().getContentId()).isEqualTo("old");
+    assertThat(actual.get(1).getDecayedScore()).isEqualTo(10.0 / 16, offset(1e-9));
+  }
+
+  @Test
+  public void testKeepsOnlyK() {
+    TopKAggregator aggregator = new TopKAggregator(2, HOUR, 24 * HOUR, NOW);
+    aggregator.append(raw("foo", "2017-06-01T12:00:00Z", 5), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 1), NOW);
+    aggregator.append(raw("baz", "2017-06-01T12:00:00Z", 3), NOW);
+    aggregator.append(raw("qux", "2017-06-01T12:00:00Z", 2), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("foo");
+    assertThat(actual.get(1).getRecommendation().getContentId()).isEqualTo("baz");
+  }
+
+  @Test
+  public void testEvictsOutsideWindow() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 2 * HOUR, NOW);
+    aggregator.append(raw("foo", "2017-06-01T11:00:00Z", 5), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 1), NOW);
+    aggregator.append(raw("baz", "2017-06-01T09:00:00Z", 9), NOW);
+
+    List<TopKAggregator.Ranked> actual1 = aggregator.snapshot(NOW);
+    List<TopKAggregator.Ranked> actual2 = aggregator.snapshot(NOW + 90 * 60 * 1000);
+
+    assertThat(actual1).hasSize(2);
+    assertThat(actual1.get(0).getRecommendation().getContentId()).isEqualTo("foo");
+    assertThat(actual2).hasSize(1);
+    assertThat(actual2.get(0).getRecommendation().getContentId()).isEqualTo("bar");
+  }
+
+  @Test
+  public void testRefillsFromCandidatesAfterEviction() {
+    TopKAggregator aggregator = new TopKAggregator(2, HOUR, 2 * HOUR, NOW);
+    aggregator.append(raw("foo", "2017-06-01T11:00:00Z", 9), NOW);
+    aggregator.append(raw("bar", "2017-06-01T11:00:00Z", 8), NOW);
+    aggregator.append(raw("baz", "2017-06-01T12:00:00Z", 1), NOW);
+
+    List<TopKAggregator.Ranked> actual1 = aggregator.snapshot(NOW);
+    List<TopKAggregator.Ranked> actual2 = aggregator.snapshot(NOW + 90 * 60 * 1000);
+
+    assertThat(actual1).hasSize(2);
+    assertThat(actual1.get(0).getRecommendation().getContentId()).isEqualTo("foo");
+    assertThat(actual1.get(1).getRecommendation().getContentId()).isEqualTo("bar");
+    assertThat(actual2).hasSize(1);
+    assertThat(actual2.get(0).getRecommendation().getContentId()).isEqualTo("baz");
+  }
+
+  @Test
+  public void testPrunesOutrankedCandidates() {
+    TopKAggregator aggregator = new TopKAggregator(1, HOUR, 24 * HOUR, NOW);
+    for (int i = 1; i <= 100; i++) {
+      aggregator.append(raw("foo" + i, "2017-06-01T12:00:00Z", i), NOW);
+    }
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(aggregator.getCandidateCount()).isLessThan(4);
+    assertThat(actual).hasSize(1);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("foo100");
+  }
+
+  @Test
+  public void testClampsFutureTimestamps() {
+    TopKAggregator aggregator = new TopKAggregator(2, HOUR, 24 * HOUR, NOW);
+    aggregator.append(raw("future", "2017-06-01T13:00:00Z", 1), NOW);
+    aggregator.append(raw("now", "2017-06-01T12:00:00Z", 1.5), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("now");
+    assertThat(actual.get(1).getRecommendation().getContentId()).isEqualTo("future");
+    assertThat(actual.get(1).getDecayedScore()).isEqualTo(1, offset(1e-9));
+  }
+
+  @Test
+  public void testDeduplicatesByContentId() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 24 * HOUR, NOW);
+    aggregator.append(raw("foo", "2017-06-01T12:00:00Z", 5), NOW);
+    aggregator.append(raw("foo", "2017-06-01T12:00:00Z", 3), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 1), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 7), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("bar");
+    assertThat(actual.get(0).getDecayedScore()).isEqualTo(7);
+    assertThat(actual.get(1).getRecommendation().getContentId()).isEqualTo("foo");
+    assertThat(actual.get(1).getDecayedScore()).isEqualTo(5);
+  }
+
+  @Test
+  public void testUnscoredItemsRankLast() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 24 * HOUR, NOW);
+    aggregator.append(RawRecommendation.of(
+        "{\"contentID\":\"foo\",\"timestamp\":\"2017-06-01T12:00:00Z\"}"
+        .getBytes(StandardCharsets.UTF_8)), NOW);
+    aggregator.append(raw("bar", "2017-06-01T12:00:00Z", 0), NOW);
+    aggregator.append(raw("baz", "2017-06-01T08:00:00Z", 0.01), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW);
+
+    assertThat(actual).hasSize(3);
+    assertThat(actual.get(0).getRecommendation().getContentId()).isEqualTo("baz");
+    assertThat(actual.get(1).getRecommendation().getContentId()).isIn("foo", "bar");
+    assertThat(actual.get(2).getRecommendation().getContentId()).isIn("foo", "bar");
+  }
+
+  @Test
+  public void testItemsWithoutTimestampUseNow() {
+    TopKAggregator aggregator = new TopKAggregator(3, HOUR, 24 * HOUR, NOW);
+    aggregator.append(RawRecommendation.of("{\"contentID\":\"foo\",\"score\":4}"
+        .getBytes(StandardCharsets.UTF_8)), NOW);
+
+    List<TopKAggregator.Ranked> actual = aggregator.snapshot(NOW + HOUR);
+
+    assertThat(actual).hasSize(1);
+    assertThat(actual.get(0).getDecayedScore()).isEqualTo(2, offset(1e-9));
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      new TopKAggregator(0, HOUR, HOUR);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("positive");
+    }
+    try {
+      new TopKAggregator(1, 0, HOUR);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("positive");
+    }
+  }
+
+  private RawRecommendation raw(String contentId, String timestamp, double score) {
+    String json = "{\"contentID\":\"" + contentId + "\",\"timestamp\":\"" + timestamp
+        + "\",\"score\":" + score + "}";
+    return RawRecommendation.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Selerity, Inc. (support@seleritycorp.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.seleritycorp.context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.easymock.EasyMock.expect;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.easymock.EasyMockSupport;
+import org.junit.Test;
+
+public class TypedResponseHandlerTest extends EasyMockSupport {
+  @Test
+  public void testHandleResponseOk() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"foo\":1,\"recommendations\":"
+        + "[{\"contentID\":\"bar\"},{\"contentID\":\"baz\"}]}", "application/json");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    List<Recommendation> actual = handler.handleResponse(response);
+
+    verifyAll();
+
+    assertThat(actual).hasSize(2);
+    assertThat(actual.get(0).getContentId()).isEqualTo("bar");
+    assertThat(actual.get(1).getContentId()).isEqualTo("baz");
+  }
+
+  @Test
+  public void testHandleResponseUtf8() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"recommendations\":"
+        + "[{\"headline\":\"\u00e4\u20ac\"}]}", "application/json");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    List<Recommendation> actual = handler.handleResponse(response);
+
+    verifyAll();
+
+    assertThat(actual.get(0).getHeadline()).isEqualTo("\u00e4\u20ac");
+  }
+
+  @Test
+  public void testHandleResponseClientErrorJsonErrorMessage() throws Exception {
+    HttpResponse response = mockResponse(400, "{\"errorMessage\":\"bar\"}", "application/json");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("400");
+      assertThat(e.getMessage()).contains("bar");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHandleResponseWrongContentType() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"recommendations\":[]}", "text/plain");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("text/plain");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHandleResponseMissingField() throws Exception {
+    HttpResponse response = mockResponse(200, "{\"foo\":[]}", "application/json");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("recommendations");
+    }
+
+    verifyAll();
+  }
+
+  @Test
+  public void testHandleResponseNonObject() throws Exception {
+    HttpResponse response = mockResponse(200, "[1,2]", "application/json");
+    TypedResponseHandler<List<Recommendation>> handler = createHandler();
+
+    replayAll();
+
+    try {
+      handler.handleResponse(response);
+      failBecauseExceptionWasNotThrown(ClientProtocolException.class);
+    } catch (ClientProtocolException e) {
+      assertThat(e.getMessage()).contains("decode");
+    }
+
+    verifyAll();
+  }
+
+  private TypedResponseHandler<List<Recommendation>> createHandler() {
+    return new TypedResponseHandler<>(ModelAdapters.field("recommendations",
+        ModelAdapters.listOf(ModelAdapters.RECOMMENDATION)));
+  }
+
+  private HttpResponse mockResponse(int statusCode, String content, String contentType)
+      throws Exception {
+    ProtocolVersion proto = new ProtocolVersion("protoFoo", 1, 2);
+    StatusLine statusLine = new BasicStatusLine(proto, statusCode, "reasonFoo");
+
+    byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+    InputStream contentStream = new ByteArrayInputStream(contentBytes);
+
+    Header contentTypeHeader = new BasicHeader("Content-Type", contentType);
+
+    HttpEntity httpEntity = createMock(HttpEntity.class);
+    expect(httpEntity.getContent()).andReturn(contentStream);
+    expect(httpEntity.getContentLength()).andReturn((long) contentBytes.length).anyTimes();
+    expect(httpEntity.getContentType()).andReturn(contentTypeHeader).anyTimes();
+
+    HttpResponse response = createMock(HttpResponse.class);
+    expect(response.getStatusLine()).andReturn(statusLine);
+    expect(response.getEntity()).andReturn(httpEntity);
+
+    return response;
+  }
+}